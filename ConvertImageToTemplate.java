@@ -1,7 +1,7 @@
 /**
  * <h1>Perler Bead Template Creator</h1>
  * <p>This program allows the user to take a digital image and convert it into a printable pattern 
- * for a Perler bead pegboard. The user must submit a 29x29px image. The program then finds the closest
+ * for a Perler bead pegboard. Images larger than 29x29px are shrunk to fit the pegboard. The program then finds the closest
  * matching bead color for each pixel from a specific color palette. A printable file is then exported 
  * which includes the template pattern and a list of each bead color needed and in what quantity.</p>
  * @author Adam Grimshaw
@@ -10,37 +10,256 @@
  */
 
 import java.awt.*;
-import java.awt.image.BufferedImage;
+import java.awt.image.*;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
 import java.io.*;
-import javax.imageio.ImageIO;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 public class ConvertImageToTemplate {
+	// Number of pegs along each side of a Perler pegboard.
+	static final int BOARD_SIZE = 29;
+	static final String USAGE = "Usage: java ConvertImageToTemplate [--transparent] [image [columns [rows [colors [brand]]]]]\n"
+			+ "       java ConvertImageToTemplate --serve [port]\n"
+			+ "       java ConvertImageToTemplate --batch images [output [workers]]";
+	
 	/**
 	 * The main method. Specifies file to be uploaded, and calls all methods needed to convert the image
 	 * to a printable template. 
-	 * @param args Not used.
+	 * @param args Optional name of the image file to convert, optionally followed by the largest number of beads 
+	 * across and down. A single number bounds both sides. Images are shrunk to fit. Designs larger than one 
+	 * pegboard are exported as a mosaic of boards.
+	 * A fourth argument limits the number of bead colors used, and a fifth names the bead brand. Palettes for other 
+	 * brands are read from the palettes directory. Run with --serve, optionally followed by a port number, to handle
+	 * conversions over HTTP instead. See TemplateService. Run with --batch followed by a directory or manifest of 
+	 * images, an output directory and optionally the workers per stage (for example 2,4,4,2) to convert many images.
+	 * Start the arguments with --transparent to leave transparent pixels as empty pegs on a single pegboard.
 	 */
 	public static void main(String args[]) {
+		if(args.length > 0 && args[0].equals("--serve")) {
+			int port = args.length > 1 ? countArgument(args[1], 0) : TemplateService.DEFAULT_PORT;
+			if(port < 0 || port > 65535) {
+				System.out.println("The port must be a whole number from 0 to 65535.");
+				System.out.println(USAGE);
+				return;
+			}
+			serve(port);
+			return;
+		}
+		if(args.length > 1 && args[0].equals("--batch")) {
+			batch(new File(args[1]), new File(args.length > 2 ? args[2] : "templates"), args.length > 3 ? args[3] : null);
+			return;
+		}
+		// Leave transparent pixels as empty pegs instead of matching them.
+		boolean transparent = args.length > 0 && args[0].equals("--transparent");
+		if(transparent) {
+			args = Arrays.copyOfRange(args, 1, args.length);
+		}
 		// Name of file to be imported and converted to bead pattern.
-		String fileName = "painting-03.png";
+		String fileName = args.length > 0 ? args[0] : "painting-03.png";
+		// Largest design size in beads. One pegboard unless given, and square if only the columns are given.
+		int maxColumns = args.length > 1 ? countArgument(args[1], 1) : BOARD_SIZE;
+		int maxRows = args.length > 2 ? countArgument(args[2], 1) : maxColumns;
+		// Most bead colors in the design. All colors unless given.
+		int colors = args.length > 3 ? countArgument(args[3], 0) : 0;
+		if(maxColumns < 0 || maxRows < 0 || colors < 0) {
+			System.out.println("Sizes must be whole numbers of at least 1, and the number of colors at least 0.");
+			System.out.println(USAGE);
+			return;
+		}
+		// Brand of beads to use. Perler unless given.
+		String brand = args.length > 4 ? args[4] : PaletteRegistry.BUILT_IN_BRAND;
 		
-		// Create new color library and new empty array of beads.
-		ColorLibrary beadPalette = new ColorLibrary();
-		ArrayList<Bead> paletteArray = new ArrayList<>();
+		PaletteRegistry registry = loadPalettes();
 		
-		// Populate bead array with all bead colors.
-		beadPalette.populateArrayAllColors(paletteArray);
+		// Copy the brand's bead colors into a new array of beads.
+		ArrayList<Bead> paletteArray = registry.get(brand).getBeads();
 		
 		// Create a map with all bead colors(key) and their color codes(value).
-		Map<String,String> codeMap = beadPalette.createCodeMap(paletteArray);
+		Map<String,String> codeMap = registry.get(brand).getCodeMap();
+		
+		if(maxColumns > BOARD_SIZE || maxRows > BOARD_SIZE) {
+			if(transparent) {
+				System.out.println("Empty pegs are only supported on a single pegboard. Leave out --transparent or the size.");
+				return;
+			}
+			exportMosaic(fileName, paletteArray, codeMap, maxColumns, maxRows, colors);
+			printMetrics();
+			return;
+		}
 		
 		// Create and run a converter to sample each pixel value of the imported file and find the closest matching bead color in the palette. Returns a BeadMatrix which can be processed into a graphic.
+		// Templates are usually made from pixel art with few colors, so each distinct color only needs to be matched once.
 		ImageToBeadConverter converter = new ImageToBeadConverter();
-		BeadMatrix beadTemplate = converter.processImage(fileName, paletteArray);
+		converter.setMatchUniqueColors(true);
+		converter.setPaletteSize(colors);
+		converter.setCache(ConversionCache.createDefault());
+		BeadMatrix beadTemplate;
+		if(transparent) {
+			// Sparse designs are not cached, so the image is always read.
+			try {
+				BufferedImage image = BeadGridResampler.loadScaled(new File(fileName), BOARD_SIZE, BOARD_SIZE, BeadGridResampler.Filter.BOX);
+				beadTemplate = converter.convertSparse(image, paletteArray, MatchingStrategy.CHANNEL_SEARCH).asBeadMatrix();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		} else {
+			beadTemplate = converter.processImage(fileName, paletteArray, MatchingStrategy.CHANNEL_SEARCH, BOARD_SIZE, BOARD_SIZE, BeadGridResampler.Filter.BOX);
+		}
 		
 		// Feed the BeadMatrix and codeMap into an exporter where the information will be turned into a graphic and exported as an image file.
-		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile(fileName, beadTemplate, codeMap);
+		// The page only has a few colors, so it is drawn with one byte per pixel and compressed on every core.
+		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+		exporter.setIndexedColor(true);
+		exporter.setFilter(PngEncoder.Filter.UP);
+		exporter.setDeflateThreads(Runtime.getRuntime().availableProcessors());
+		exporter.export(fileName, beadTemplate, codeMap, new File("BeadTemplate.png"));
+		printMetrics();
+	}
+	
+	/**
+	 * Reads a count given on the command line.
+	 * @param text The argument.
+	 * @param min The smallest count allowed.
+	 * @return Returns the count, or -1 if the argument is not a whole number of at least min.
+	 */
+	static int countArgument(String text, int min) {
+		try {
+			int value = Integer.parseInt(text.trim());
+			return value >= min ? value : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Loads the palettes in the palettes directory, if there is one, along with the built-in palette. The compiled 
+	 * palettes are kept in the conversion cache's directory so later runs skip parsing, unless that directory 
+	 * belongs to another user.
+	 */
+	static PaletteRegistry loadPalettes() {
+		File paletteDirectory = new File("palettes");
+		if(paletteDirectory.isDirectory()) {
+			try {
+				File cacheDirectory = ConversionCache.defaultDirectory();
+				if(cacheDirectory.exists() && !ConversionCache.isOwnedByUser(cacheDirectory)) {
+					return PaletteRegistry.load(paletteDirectory);
+				}
+				return PaletteRegistry.loadCached(new File(cacheDirectory, "palettes.snapshot"), paletteDirectory);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return PaletteRegistry.getDefault();
+	}
+	
+	/**
+	 * Runs the HTTP service until the program is stopped. Results are cached in memory only, so the service writes 
+	 * no files.
+	 */
+	static void serve(int port) {
+		try {
+			int cores = Runtime.getRuntime().availableProcessors();
+			TemplateService service = new TemplateService(new InetSocketAddress(port), loadPalettes(), new ConversionCache(null, 256L << 20), cores);
+			service.start();
+			System.out.println("Serving bead templates on port " + service.getAddress().getPort());
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Converts every image in a directory or manifest to a template page and prints the summary.
+	 * @param workers The workers for the decode, match, render and encode stages separated by commas, or null for 
+	 * the default.
+	 */
+	static void batch(File source, File outputDirectory, String workers) {
+		String[] counts = workers == null ? new String[0] : workers.split(",");
+		int[] workerCounts = new int[Math.min(counts.length, BatchConverter.Stage.values().length)];
+		for(int s = 0; s < workerCounts.length; s++) {
+			workerCounts[s] = countArgument(counts[s], 1);
+			if(workerCounts[s] < 0) {
+				System.out.println("Worker counts must be whole numbers of at least 1, for example 2,4,4,2.");
+				System.out.println(USAGE);
+				return;
+			}
+		}
+		try {
+			PaletteRegistry.Palette palette = loadPalettes().get(PaletteRegistry.BUILT_IN_BRAND);
+			BatchConverter converter = new BatchConverter(palette.getBeads(), palette.getCodeMap());
+			for(int s = 0; s < workerCounts.length; s++) {
+				converter.setWorkers(BatchConverter.Stage.values()[s], workerCounts[s]);
+			}
+			System.out.print(converter.run(BatchConverter.listInputs(source), outputDirectory));
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		printMetrics();
+	}
+	
+	/**
+	 * Prints the time spent in each stage if the program was run with -Dperlerbeads.metrics=true.
+	 */
+	static void printMetrics() {
+		if(ConversionMetrics.isEnabled()) {
+			System.out.print(ConversionMetrics.snapshot());
+		}
+	}
+	
+	/**
+	 * Converts an image into a design of up to maxColumns by maxRows beads and exports it as one page per pegboard,
+	 * named BeadTemplate-board-row-column.png, along with BeadTemplate-overview.png and BeadTemplate-materials.csv.
+	 * The design itself is saved as BeadTemplate.beads.
+	 */
+	static void exportMosaic(String fileName, ArrayList<Bead> paletteArray, Map<String,String> codeMap, int maxColumns, int maxRows, int colors) {
+		try {
+			ImageToBeadConverter converter = new ImageToBeadConverter(ForkJoinPool.commonPool());
+			converter.setMatchUniqueColors(true);
+			converter.setPaletteSize(colors);
+			converter.setCache(ConversionCache.createDefault());
+			CompactBeadMatrix design = converter.convertFile(new File(fileName), paletteArray, MatchingStrategy.CHANNEL_SEARCH, maxColumns, maxRows, BeadGridResampler.Filter.BOX);
+			MosaicExporter exporter = new MosaicExporter(BOARD_SIZE, Runtime.getRuntime().availableProcessors());
+			exporter.export(design, codeMap, "Perler Bead Pattern for " + fileName, new File("."), "BeadTemplate");
+			// Save the design so boards can be printed again without converting.
+			BeadTemplateFile.write(design, BOARD_SIZE, new File("BeadTemplate.beads"));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 	}
 }
 
@@ -49,12 +268,97 @@ public class ConvertImageToTemplate {
  * @author Adapted from code found at {@link https://www.tutorialspoint.com/java_dip/understand_image_pixels.htm}
  */
 class ImageToBeadConverter {
-	private BufferedImage image;
-	private int width;
-	private int height;
+	// Rows of at most this many pixels are matched as one task in parallel mode.
+	static final int PIXELS_PER_TASK = 16384;
+	// Pool used to convert images in parallel, or null to convert on the calling thread.
+	private final ForkJoinPool pool;
+	// Whether to match each distinct pixel color once instead of matching every pixel.
+	private boolean matchUniqueColors;
+	// How colors between bead colors are spread over neighboring beads.
+	private DitherMode ditherMode = DitherMode.NONE;
+	// Most bead colors to use, or 0 to use the whole palette.
+	private int paletteSize;
+	// Results of earlier conversions, or null to always convert.
+	private ConversionCache cache;
+	// Pixels less opaque than this are left as empty pegs by convertSparse.
+	private int alphaThreshold = 128;
+	// Color left as empty pegs by convertSparse packed as 0xRRGGBB, or -1 for none.
+	private int backgroundColor = -1;
 	
-	/** Default constructor.*/
+	/** Default constructor. Images are converted on the calling thread.*/
 	public ImageToBeadConverter() {
+		this.pool = null;
+	}
+	
+	/**
+	 * Constructor for a converter that splits each image into bands of rows and matches the bands in parallel.
+	 * The result is the same as converting on one thread.
+	 * @param pool The pool to run the bands on, for example ForkJoinPool.commonPool().
+	 */
+	public ImageToBeadConverter(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Turns unique color matching on or off. When on, the converter first counts the distinct colors in the image, 
+	 * matches each distinct color once, and then fills the grid from those matches. This is much faster for pixel 
+	 * art and other images with few colors. The result is the same either way.
+	 * @param matchUniqueColors True to match each distinct color once.
+	 */
+	public void setMatchUniqueColors(boolean matchUniqueColors) {
+		this.matchUniqueColors = matchUniqueColors;
+	}
+	
+	/**
+	 * Sets how the converter handles colors that fall between bead colors. With NONE every pixel gets its closest 
+	 * bead, which gives flat bands in photographs. The other modes mix nearby bead colors so that areas average out 
+	 * to the image's colors. Unique color matching does not apply when dithering.
+	 * @param ditherMode The dithering mode.
+	 */
+	public void setDitherMode(DitherMode ditherMode) {
+		this.ditherMode = ditherMode;
+	}
+	
+	/**
+	 * Limits how many bead colors a design may use. Before converting, the palette is reduced to the colors that 
+	 * best fit the image, as chosen by PaletteReducer.
+	 * @param paletteSize Most bead colors, or 0 for no limit.
+	 */
+	public void setPaletteSize(int paletteSize) {
+		if(paletteSize < 0) {
+			throw new IllegalArgumentException("Palette size cannot be negative.");
+		}
+		this.paletteSize = paletteSize;
+	}
+	
+	/**
+	 * Sets a cache of earlier results. Files that were converted before with the same palette and settings are 
+	 * not decoded or matched again.
+	 * @param cache The cache, or null for none.
+	 */
+	public void setCache(ConversionCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * Sets which pixels convertSparse leaves as empty pegs by their transparency.
+	 * @param alphaThreshold Pixels with an alpha value below this are empty: 1 for fully transparent pixels only, 
+	 * 255 for every pixel that is not fully opaque, or 0 for none. The default is 128.
+	 */
+	public void setAlphaThreshold(int alphaThreshold) {
+		if(alphaThreshold < 0 || alphaThreshold > 255) {
+			throw new IllegalArgumentException("Alpha threshold must be from 0 to 255.");
+		}
+		this.alphaThreshold = alphaThreshold;
+	}
+	
+	/**
+	 * Sets a background color that convertSparse leaves as empty pegs, for images with a solid background instead 
+	 * of a transparent one. Only pixels of exactly this color are empty.
+	 * @param backgroundColor The background color, or null for none.
+	 */
+	public void setBackgroundColor(Color backgroundColor) {
+		this.backgroundColor = backgroundColor == null ? -1 : backgroundColor.getRGB() & 0xFFFFFF;
 	}
 	
 	/**
@@ -66,659 +370,7880 @@ class ImageToBeadConverter {
 	 * @return Returns a BeadMatrix object. 
 	 */
 	public BeadMatrix processImage(String fileName, ArrayList<Bead> beadArray) {
-		// Create bead color palette. Creates an array for each color channel.
-		ArrayList<Bead> redChannelArray = new ArrayList<>(beadArray);
-		ArrayList<Bead> greenChannelArray = new ArrayList<>(beadArray);
-		ArrayList<Bead> blueChannelArray = new ArrayList<>(beadArray);
-		// Sorts each array by specific color channel.
-		Collections.sort(redChannelArray, new RedChannelComparator());
-		Collections.sort(greenChannelArray, new GreenChannelComparator());
-		Collections.sort(blueChannelArray, new BlueChannelComparator());
-		
+		return processImage(fileName, beadArray, MatchingStrategy.CHANNEL_SEARCH);
+	}
+	
+	/**
+	 * Imports an image and finds the closest matching bead for each pixel using the given matching strategy.
+	 * @param fileName The name of the image file to import and read.
+	 * @param beadArray An ArrayList containing bead objects. Each bead object represents a different
+	 * color in the available color palette.
+	 * @param strategy The method used to find the closest bead color for each pixel.
+	 * @return Returns a BeadMatrix object, or null if the image could not be read.
+	 */
+	public BeadMatrix processImage(String fileName, ArrayList<Bead> beadArray, MatchingStrategy strategy) {
 		try {
-			// The image file to be read.
-			File input = new File(fileName);
-			image = ImageIO.read(input);
-			width = image.getWidth();
-			height = image.getHeight();
-			
-			// An array to store bead objects. Each bead represents one pixel.
-			Bead[][] beadGrid = new Bead[height][width];
-			
-			// A map to store a list of all bead colors used in the design, and how many of each color are needed.
-			Map<String, Integer> colorList = new HashMap<>();
-			int count = 0; // An index number for each pixel processed. Only used in print statements.
-			
-			// Loops through the entire image one pixel at a time starting at top left corner.
-			for(int i=0; i<height; i++) {
-				for(int j=0; j<width; j++) {
-					count++;
-					// Get RGB color value for current pixel.
-					Color c = new Color(image.getRGB(j, i));
-					//System.out.println("S.No: " + count + " Red: " + c.getRed() +"  Green: " + c.getGreen() + " Blue: " + c.getBlue());
-					
-					// Create starting index for search on each color channel. Find closest matching value in each channel as initial point of search.
-					int k = 0;
-					while(c.getRed() > redChannelArray.get(k).getColor().getRed()) {
-						k++;
-					}
-					int redIndex = k;
-					k = 0;
-					while(c.getGreen() > greenChannelArray.get(k).getColor().getGreen()) {
-						k++;
-					}
-					int greenIndex = k;
-					k = 0;
-					while(c.getBlue() > blueChannelArray.get(k).getColor().getBlue()) {
-						k++;
-					}
-					int blueIndex = k;
-					//System.out.println("RedIndex: " + redIndex + " GreenIndex: " + greenIndex + " BlueIndex: " + blueIndex);
-					
-					// Create map to hold all possible bead colors for this pixel. 
-					Map<String,ColorMatch> colorMap = new HashMap<>();
-					
-					// Create ColorMatch object for use in calling ColorMatch methods.
-					ColorMatch masterMatch = new ColorMatch();
-					
-					// Boolean to control the while loop.
-					boolean stopSearching = false;
-					
-					// Index integer to navigate the color channel arrays.
-					int moveIndex = 1;
-					
-					// Booleans to confirm that the array has reached one of its ends.
-					boolean stepForwardRed = false;
-					boolean stepBackwardRed = false;
-					boolean stepForwardGreen = false;
-					boolean stepBackwardGreen = false;
-					boolean stepForwardBlue = false;
-					boolean stepBackwardBlue = false;
-					
-					// Compare pixel color values to beads in palette until the closest match is identified.
-					while(!stopSearching) {
-						// Add new bead color to red channel. Check to see if this bead is found in all channels.
-						if(masterMatch.addBeadAsPossibleMatch(colorMap, redChannelArray.get(redIndex).getCode(), 0) == true) {
-							beadGrid[i][j] = new Bead(redChannelArray.get(redIndex).getName(), redChannelArray.get(redIndex).getCode(), redChannelArray.get(redIndex).getColor(), i, j);
-							if(colorList.get(redChannelArray.get(redIndex).getName()) == null) {
-								colorList.put(redChannelArray.get(redIndex).getName(), 1);
-							} else {
-								int temp = colorList.get(redChannelArray.get(redIndex).getName());
-								colorList.put(redChannelArray.get(redIndex).getName(), ++temp);
-							}
-							stopSearching = true;
-							break;
-						}
-						// Add new bead color to green channel. Check to see if this bead is found in all channels.
-						if(masterMatch.addBeadAsPossibleMatch(colorMap, greenChannelArray.get(greenIndex).getCode(), 1) == true) {
-							beadGrid[i][j] = new Bead(greenChannelArray.get(greenIndex).getName(), greenChannelArray.get(greenIndex).getCode(), greenChannelArray.get(greenIndex).getColor(), i, j);
-							if(colorList.get(greenChannelArray.get(greenIndex).getName()) == null) {
-								colorList.put(greenChannelArray.get(greenIndex).getName(), 1);
-							} else {
-								int temp = colorList.get(greenChannelArray.get(greenIndex).getName());
-								colorList.put(greenChannelArray.get(greenIndex).getName(), ++temp);
-							}
-							stopSearching = true;
-							break;
-						}
-						// Add new bead color to blue channel. Check to see if this bead is found in all channels.
-						if(masterMatch.addBeadAsPossibleMatch(colorMap, blueChannelArray.get(blueIndex).getCode(), 2) == true) {
-							beadGrid[i][j] = new Bead(blueChannelArray.get(blueIndex).getName(), blueChannelArray.get(blueIndex).getCode(), blueChannelArray.get(blueIndex).getColor(), i, j);
-							if(colorList.get(blueChannelArray.get(blueIndex).getName()) == null) {
-								colorList.put(blueChannelArray.get(blueIndex).getName(), 1);
-							} else {
-								int temp = colorList.get(blueChannelArray.get(blueIndex).getName());
-								colorList.put(blueChannelArray.get(blueIndex).getName(), ++temp);
-							}
-							stopSearching = true;
-							break;
-						} 
-						// If a color match has not been confirmed, move the index on each color channel array.
-						else {
-							moveIndex *= -1;
-							if(moveIndex > 0) {
-								moveIndex++;
-							} else {
-								moveIndex--;
-							}
-							
-							// Navigate red channel array
-							if(stepForwardRed) {
-								redIndex++;
-							} else if(stepBackwardRed) {
-								redIndex--;
-							} else if(redIndex + moveIndex > redChannelArray.size() -1 && !stepForwardRed && !stepBackwardRed) {
-								redIndex--;
-								stepBackwardRed = true;
-							} else if(redIndex + moveIndex < 0 && !stepForwardRed && !stepBackwardRed) {
-								redIndex++;
-								stepForwardRed = true;
-							} else {
-								redIndex += moveIndex;
-							}
-
-							// Navigate green channel array
-							if(stepForwardGreen) {
-								greenIndex++;
-							} else if(stepBackwardGreen) {
-								greenIndex--;
-							} else if(greenIndex + moveIndex > greenChannelArray.size() - 1 && !stepForwardGreen && !stepBackwardGreen) {
-								greenIndex--;
-								stepBackwardGreen = true;
-							} else if(greenIndex + moveIndex < 0 && !stepForwardGreen && !stepBackwardGreen) {
-								greenIndex++;
-								stepForwardGreen = true;
-							} else {
-								greenIndex += moveIndex;
-							}
-							
-							// Navigate blue channel array
-							if(stepForwardBlue) {
-								blueIndex++;
-							} else if(stepBackwardBlue) {
-								blueIndex--;
-							} else if(blueIndex + moveIndex > blueChannelArray.size() - 1 && !stepForwardBlue && !stepBackwardBlue) {
-								blueIndex--;
-								stepBackwardBlue = true;
-							} else if(blueIndex + moveIndex < 0 && !stepForwardBlue && !stepBackwardBlue) {
-								blueIndex++;
-								stepForwardBlue = true;
-							} else {
-								blueIndex += moveIndex;
-							}
-						}
-					}
-					//System.out.println(beadGrid[i][j].getName());
-					//System.out.println("R: " + beadGrid[i][j].getColor().getRed() + " G: " + beadGrid[i][j].getColor().getGreen() + " B: " + beadGrid[i][j].getColor().getBlue() + '\n');
-				}
-			}
-			// After color match has been found for all pixels, create a BeadMatrix with all color information and return it.
-			BeadMatrix bm = new BeadMatrix(beadGrid, colorList);
-			return bm;
+			// Match every pixel of the image file, then expand the result into a grid of bead objects.
+			return convertFile(new File(fileName), beadArray, strategy, 0, 0, null).toBeadMatrix();
 		} 
 		catch (Exception e) {
 			e.printStackTrace();
 			return null;
 		}
 	}
-}
-
-/**
- * This class is used to help determine the closest matching bead color for each pixel. Each ColorMatch
- * object represents a single color as defined by its code, and a list of booleans to track whether it 
- * has been identified as a possible match in a given color channel.
- */
-class ColorMatch {
-	// The color code of a bead.
-	private String code;
-	
-	// Has this bead color been identified as a possible match in the Red, Green, or Blue channel.
-	private boolean[] channels = {false, false, false};
-	
-	/** Default constructor.*/
-	public ColorMatch () {
-	}
 	
 	/**
-	 * Constructor accepting color code.
-	 * @param code Color code for bead object.
+	 * Imports an image of any size, shrinks it to fit within a bead grid if it is larger, and finds the closest 
+	 * matching bead for each pixel.
+	 * @param fileName The name of the image file to import and read.
+	 * @param beadArray An ArrayList containing bead objects. Each bead object represents a different
+	 * color in the available color palette.
+	 * @param strategy The method used to find the closest bead color for each pixel.
+	 * @param maxColumns Most beads across.
+	 * @param maxRows Most beads down.
+	 * @param filter The filter used to shrink the image.
+	 * @return Returns a BeadMatrix object, or null if the image could not be read.
 	 */
-	public ColorMatch (String code) {
-		this.code = code;
+	public BeadMatrix processImage(String fileName, ArrayList<Bead> beadArray, MatchingStrategy strategy, int maxColumns, int maxRows, BeadGridResampler.Filter filter) {
+		try {
+			return convertFile(new File(fileName), beadArray, strategy, maxColumns, maxRows, filter).toBeadMatrix();
+		} 
+		catch (Exception e) {
+			e.printStackTrace();
+			return null;
+		}
 	}
 	
 	/**
-	 * To identify the closest matching bead color for each pixel, each color channel submits its closest matching
-	 * bead as determined by RGB value. When a new bead color is submitted, it is added to a map of ColorMatch objects. 
-	 * This method first looks to see if the color is already in the map. If not, it is added to the map. It then 
-	 * calls the addToChannel method to confirm that the color has been identified as a possible match in this channel. 
-	 * It then calls the isMatch method to determine if the color has been identified as a possible match on all three 
-	 * channels. If so, this bead color is the closest match for the pixel. It therefore returns true.
-	 * @param map A map of ColorMatch objects, keyed by color code.
-	 * @param key The color code of the bead.
-	 * @param channel The current channel being tested.
-	 * @return Returns true if the bead color has been identified on all three channels as a possible match.
+	 * Reads and converts an image file, or takes the result from the cache if the same file has been converted 
+	 * with the same palette and settings before.
+	 * @param file The image file.
+	 * @param beadArray An ArrayList containing bead objects. Each bead object represents a different
+	 * color in the available color palette.
+	 * @param strategy The method used to find the closest bead color for each pixel.
+	 * @param maxColumns Most beads across, or 0 to keep the image's size.
+	 * @param maxRows Most beads down, or 0 to keep the image's size.
+	 * @param filter The filter used to shrink the image.
+	 * @return Returns the converted design.
+	 * @throws IOException If the file cannot be read.
 	 */
-	public boolean addBeadAsPossibleMatch (Map map, String key, int channel) {
-		if(map.containsKey(key)) {
-			addToChannel((ColorMatch)map.get(key), channel);
-		} else {
-			map.put(key, new ColorMatch(key));
-			addToChannel((ColorMatch)map.get(key), channel);
+	public CompactBeadMatrix convertFile(File file, ArrayList<Bead> beadArray, MatchingStrategy strategy, int maxColumns, int maxRows, BeadGridResampler.Filter filter) throws IOException {
+		String key = null;
+		if(cache != null) {
+			key = cacheKey(Files.readAllBytes(file.toPath()), beadArray, strategy, maxColumns, maxRows, filter);
+			CompactBeadMatrix cached = cache.get(key);
+			if(cached != null) {
+				return cached;
+			}
 		}
-		if(isMatch((ColorMatch)map.get(key))) {
-			//System.out.println("Match");
-			return true;
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.DECODE);
+		BufferedImage image;
+		if(maxColumns > 0 && maxRows > 0) {
+			image = BeadGridResampler.loadScaled(file, maxColumns, maxRows, filter);
 		} else {
-			return false;
+			image = ImageIO.read(file);
+			if(image == null) {
+				throw new IOException("Unsupported image format: " + file);
+			}
 		}
+		timer.stop((long) image.getWidth() * image.getHeight());
+		CompactBeadMatrix result = convert(image, beadArray, strategy);
+		if(cache != null) {
+			cache.put(key, result);
+		}
+		return result;
 	}
 	
 	/**
-	 * Sets the boolean value of the ColorMatch object to true for the given channel. This means that this particular 
-	 * bead color has been identified as a possible match for the current pixel.
-	 * @param cm A ColorMatch object.
-	 * @param channel A color channel (0 = R, 1 = G, 2 = B)
+	 * Converts an image that is already in memory, such as an upload, or takes the result from the cache. Nothing 
+	 * is written to disk unless the cache keeps results there.
+	 * @param imageBytes The bytes of an image file.
+	 * @param beadArray An ArrayList containing bead objects. Each bead object represents a different
+	 * color in the available color palette.
+	 * @param strategy The method used to find the closest bead color for each pixel.
+	 * @param maxColumns Most beads across, or 0 to keep the image's size.
+	 * @param maxRows Most beads down, or 0 to keep the image's size.
+	 * @param filter The filter used to shrink the image.
+	 * @return Returns the converted design.
+	 * @throws IOException If the bytes are not a supported image.
 	 */
-	public void addToChannel(ColorMatch cm, int channel) {
-		cm.channels[channel] = true;
+	public CompactBeadMatrix convertBytes(byte[] imageBytes, ArrayList<Bead> beadArray, MatchingStrategy strategy, int maxColumns, int maxRows, BeadGridResampler.Filter filter) throws IOException {
+		String key = null;
+		if(cache != null) {
+			key = cacheKey(imageBytes, beadArray, strategy, maxColumns, maxRows, filter);
+			CompactBeadMatrix cached = cache.get(key);
+			if(cached != null) {
+				return cached;
+			}
+		}
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.DECODE);
+		BufferedImage image;
+		// A memory cache stream, so ImageIO does not buffer the data in a temporary file.
+		try(ImageInputStream input = new javax.imageio.stream.MemoryCacheImageInputStream(new ByteArrayInputStream(imageBytes))) {
+			image = BeadGridResampler.loadScaled(input, "upload", maxColumns, maxRows, filter);
+		}
+		timer.stop((long) image.getWidth() * image.getHeight());
+		CompactBeadMatrix result = convert(image, beadArray, strategy);
+		if(cache != null) {
+			cache.put(key, result);
+		}
+		return result;
+	}
+	
+	private String cacheKey(byte[] imageBytes, ArrayList<Bead> beadArray, MatchingStrategy strategy, int maxColumns, int maxRows, BeadGridResampler.Filter filter) {
+		String options = "strategy=" + strategy + ";columns=" + maxColumns + ";rows=" + maxRows + ";filter=" + filter 
+				+ ";dither=" + ditherMode + ";colors=" + paletteSize;
+		return ConversionCache.key(imageBytes, beadArray, options);
 	}
 	
 	/**
-	 * Examines a ColorMatch object to see if this color has been identified as a possible match in all three 
-	 * color channels.
-	 * @param cm A ColorMatch object.
-	 * @return Returns true if each boolean in channels property has been set to true.
+	 * Finds the closest matching bead for each pixel of an image. If a palette size is set, the palette is first 
+	 * reduced to the beads that suit this image best.
+	 * @param image The image to convert.
+	 * @param beadArray An ArrayList containing bead objects. Each bead object represents a different
+	 * color in the available color palette.
+	 * @param strategy The method used to find the closest bead color for each pixel.
+	 * @return Returns a CompactBeadMatrix whose palette holds the beads that were used for matching.
 	 */
-	public boolean isMatch(ColorMatch cm) {
-		if(cm.channels[0] == true && cm.channels[1] == true && cm.channels[2] == true) {
-			return true;
-		} else {
-			return false;
+	public CompactBeadMatrix convert(BufferedImage image, ArrayList<Bead> beadArray, MatchingStrategy strategy) {
+		int[] pixels = ImagePixelReader.readPixels(image);
+		// Copy the palette into arrays and build the matcher once for the whole image.
+		BeadPalette palette = new BeadPalette(beadArray);
+		if(paletteSize > 0 && paletteSize < palette.size()) {
+			ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.REDUCE);
+			palette = new BeadPalette(new PaletteReducer(pool).reduce(pixels, palette, paletteSize));
+			timer.stop(pixels.length);
 		}
+		return convert(pixels, image.getWidth(), image.getHeight(), palette, strategy.createMatcher(palette));
 	}
-}
-
-/**
- * Contains a grid of bead objects listed by rows, along with a map that includes the color name of each bead used in 
- * the pattern and the quantity of each bead color. 
- */
-class BeadMatrix {
-	public Bead[][] beadGrid = new Bead[0][0];
-	public Map<String, Integer> colorList = new HashMap<>();
 	
 	/**
-	 * Constructor for BeadMatrix.
-	 * @param grid Contains a grid of bead objects listed by rows. Mimics an image.
-	 * @param map Contains a key of every color of bead included in the grid and a value of how many beads of that color are used in the grid.
+	 * Finds the closest matching bead for each pixel of an image and stores the result as palette indexes. No bead
+	 * objects are created.
+	 * @param image The image to convert.
+	 * @param palette The bead colors to match against.
+	 * @param matcher A matcher created for the palette.
+	 * @return Returns a CompactBeadMatrix the same size as the image.
 	 */
-	public BeadMatrix(Bead[][] grid, Map<String, Integer> map) {
-		this.beadGrid = grid;
-		this.colorList.putAll(map);
-	}
-}
-
-/**
- * A digital representation of a physical Perler bead. Each bead has a name, a color code, a color, and can also be given an x and y coordinate.
- */
-class Bead {
-	private String name;
-	private String code;
-	private Color color;
-	private int x;
-	private int y;
-	
-	public Bead(String name, String code, Color color) {
-		this.name = name;
-		this.code = code;
-		this.color = color;
+	public CompactBeadMatrix convert(BufferedImage image, BeadPalette palette, BeadMatcher matcher) {
+		return convert(ImagePixelReader.readPixels(image), image.getWidth(), image.getHeight(), palette, matcher);
 	}
 	
-	public Bead(String name, String code, Color color, int y, int x) {
-		this.name = name;
-		this.code = code;
-		this.color = color;
-		this.x = x;
-		this.y = y;
+	/**
+	 * Finds the closest matching bead for each pixel of an image that has already been unpacked into an array.
+	 * @param pixels The color of each pixel packed as 0xAARRGGBB, row by row.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param palette The bead colors to match against.
+	 * @param matcher A matcher created for the palette.
+	 * @return Returns a CompactBeadMatrix the same size as the image.
+	 */
+	public CompactBeadMatrix convert(int[] pixels, int width, int height, BeadPalette palette, BeadMatcher matcher) {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.MATCH);
+		CompactBeadMatrix result = match(pixels, width, height, palette, matcher);
+		timer.stop((long) width * height);
+		return result;
 	}
 	
-	public String getName() {
-		return name;
+	/**
+	 * Converts an image in which transparent pixels, and pixels of the background color if one is set, are left as 
+	 * empty pegs. Only the other pixels are matched and counted, and the page drawn from the result has nothing at 
+	 * the empty pegs. If a palette size is set, the palette is reduced to suit the pixels that get beads. Dithering 
+	 * is not applied, since the empty pegs would break up the spread of each color's error.
+	 * @param image The image to convert.
+	 * @param beadArray An ArrayList containing bead objects. Each bead object represents a different
+	 * color in the available color palette.
+	 * @param strategy The method used to find the closest bead color for each pixel.
+	 * @return Returns a SparseBeadMatrix the same size as the image.
+	 */
+	public SparseBeadMatrix convertSparse(BufferedImage image, ArrayList<Bead> beadArray, MatchingStrategy strategy) {
+		int[] pixels = ImagePixelReader.readPixels(image);
+		BeadPalette palette = new BeadPalette(beadArray);
+		if(paletteSize > 0 && paletteSize < palette.size()) {
+			ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.REDUCE);
+			int[] filled = Arrays.stream(pixels).filter(pixel -> !isEmpty(pixel)).toArray();
+			// With every peg empty there is nothing to choose colors for, and no bead is ever matched.
+			if(filled.length > 0) {
+				palette = new BeadPalette(new PaletteReducer(pool).reduce(filled, palette, paletteSize));
+			}
+			timer.stop(filled.length);
+		}
+		return convertSparse(pixels, image.getWidth(), image.getHeight(), palette, strategy.createMatcher(palette));
 	}
 	
-	public String getCode() {
-		return code;
+	/**
+	 * Converts an image that has already been unpacked into an array, leaving empty pegs as convertSparse above.
+	 * @param pixels The color of each pixel packed as 0xAARRGGBB, row by row.
+	 * @param width The width of the image.
+	 * @param height The height of the image.
+	 * @param palette The bead colors to match against.
+	 * @param matcher A matcher created for the palette.
+	 * @return Returns a SparseBeadMatrix the same size as the image.
+	 */
+	public SparseBeadMatrix convertSparse(int[] pixels, int width, int height, BeadPalette palette, BeadMatcher matcher) {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.MATCH);
+		// Find the runs of pixels that get beads, then match just those pixels as one long row.
+		SparseBeadMatrix.Builder builder = new SparseBeadMatrix.Builder(width, height);
+		for(int y = 0; y < height; y++) {
+			int row = y * width;
+			builder.addRow(x -> !isEmpty(pixels[row + x]));
+		}
+		int[] filled = new int[builder.getBeadCount()];
+		int count = 0;
+		for(int pixel : pixels) {
+			if(!isEmpty(pixel)) {
+				filled[count++] = pixel;
+			}
+		}
+		CompactBeadMatrix beads;
+		if(matchUniqueColors) {
+			beads = convertUniqueColors(filled, filled.length, 1, palette, matcher);
+		} else {
+			short[] cells = new short[filled.length];
+			int[] histogram = pool == null ? matchRows(filled, cells, 0, filled.length, matcher, palette.size()) 
+					: pool.invoke(new MatchBandTask(filled, cells, 1, 0, filled.length, PIXELS_PER_TASK, matcher, palette.size()));
+			beads = new CompactBeadMatrix(palette, filled.length, 1, cells, histogram);
+		}
+		int[] histogram = new int[palette.size()];
+		for(int i = 0; i < histogram.length; i++) {
+			histogram[i] = beads.getCount(i);
+		}
+		timer.stop(filled.length);
+		return builder.build(palette, beads.getCells(), histogram);
 	}
 	
-	public Color getColor() {
-		return color;
+	/**
+	 * @return Returns true if convertSparse leaves a pixel as an empty peg.
+	 */
+	private boolean isEmpty(int pixel) {
+		return (pixel >>> 24) < alphaThreshold || (pixel & 0xFFFFFF) == backgroundColor;
 	}
 	
-	public int getX() {
-		return x;
+	/**
+	 * Matches the pixels with the converter's settings: dithered, one match per distinct color, or pixel by pixel.
+	 */
+	private CompactBeadMatrix match(int[] pixels, int width, int height, BeadPalette palette, BeadMatcher matcher) {
+		if(ditherMode != DitherMode.NONE) {
+			short[] cells = new Ditherer(palette, matcher, ditherMode).dither(pixels, width, height, pool);
+			return new CompactBeadMatrix(palette, width, height, cells);
+		}
+		if(matchUniqueColors) {
+			return convertUniqueColors(pixels, width, height, palette, matcher);
+		}
+		short[] cells = new short[width * height];
+		int[] histogram;
+		if(pool == null) {
+			histogram = matchRows(pixels, cells, 0, cells.length, matcher, palette.size());
+		} else {
+			// Each band covers whole rows, with enough rows to make the task worth scheduling.
+			int rowsPerTask = Math.max(1, PIXELS_PER_TASK / Math.max(1, width));
+			histogram = pool.invoke(new MatchBandTask(pixels, cells, width, 0, height, rowsPerTask, matcher, palette.size()));
+		}
+		return new CompactBeadMatrix(palette, width, height, cells, histogram);
+	}
+	
+	/**
+	 * Converts an image by matching each distinct color once. A first pass counts the distinct colors in a 
+	 * ColorHistogram, the matcher is called once per distinct color, and the bead counts are the color counts added 
+	 * up by match. A second pass then fills the grid by looking each pixel up in the histogram.
+	 */
+	private CompactBeadMatrix convertUniqueColors(int[] pixels, int width, int height, BeadPalette palette, BeadMatcher matcher) {
+		// Alpha is ignored by the matchers, so colors that only differ in alpha share an entry.
+		ColorHistogram colors = ColorHistogram.count(pixels, 0xFFFFFF);
+		int[] matches = new int[colors.capacity()];
+		IntConsumer matchSlot = slot -> {
+			if(colors.isUsed(slot)) {
+				matches[slot] = matcher.findClosestBead(colors.getColor(slot));
+			}
+		};
+		short[] cells = new short[width * height];
+		IntConsumer fillRow = row -> {
+			for(int i = row * width; i < (row + 1) * width; i++) {
+				cells[i] = (short) matches[colors.slotOf(pixels[i] & 0xFFFFFF)];
+			}
+		};
+		if(pool == null) {
+			IntStream.range(0, matches.length).forEach(matchSlot);
+			IntStream.range(0, height).forEach(fillRow);
+		} else {
+			pool.submit(() -> IntStream.range(0, matches.length).parallel().forEach(matchSlot)).join();
+			pool.submit(() -> IntStream.range(0, height).parallel().forEach(fillRow)).join();
+		}
+		
+		// Bead counts come straight from the color counts.
+		int[] histogram = new int[palette.size()];
+		for(int slot = 0; slot < matches.length; slot++) {
+			if(colors.isUsed(slot)) {
+				histogram[matches[slot]] += colors.getCount(slot);
+			}
+		}
+		return new CompactBeadMatrix(palette, width, height, cells, histogram);
+	}
+	
+	/**
+	 * Matches a range of pixels and counts the beads of each color in that range.
+	 * @return Returns the bead count of each palette color for the range.
+	 */
+	static int[] matchRows(int[] pixels, short[] cells, int from, int to, BeadMatcher matcher, int paletteSize) {
+		int[] histogram = new int[paletteSize];
+		for(int i = from; i < to; i++) {
+			int index = matcher.findClosestBead(pixels[i]);
+			cells[i] = (short) index;
+			histogram[index]++;
+		}
+		return histogram;
+	}
+	
+	/**
+	 * A fork/join task that matches a band of rows. Bands larger than the limit are split in half. Every task writes 
+	 * only its own cells and keeps its own bead counts, which are added together as the tasks are joined.
+	 */
+	static class MatchBandTask extends RecursiveTask<int[]> {
+		private static final long serialVersionUID = 1L;
+		
+		private final int[] pixels;
+		private final short[] cells;
+		private final int width;
+		private final int firstRow;
+		private final int endRow;
+		private final int rowsPerTask;
+		private final BeadMatcher matcher;
+		private final int paletteSize;
+		
+		MatchBandTask(int[] pixels, short[] cells, int width, int firstRow, int endRow, int rowsPerTask, BeadMatcher matcher, int paletteSize) {
+			this.pixels = pixels;
+			this.cells = cells;
+			this.width = width;
+			this.firstRow = firstRow;
+			this.endRow = endRow;
+			this.rowsPerTask = rowsPerTask;
+			this.matcher = matcher;
+			this.paletteSize = paletteSize;
+		}
+		
+		protected int[] compute() {
+			if(endRow - firstRow <= rowsPerTask) {
+				return matchRows(pixels, cells, firstRow * width, endRow * width, matcher, paletteSize);
+			}
+			int middle = (firstRow + endRow) >>> 1;
+			MatchBandTask top = new MatchBandTask(pixels, cells, width, firstRow, middle, rowsPerTask, matcher, paletteSize);
+			MatchBandTask bottom = new MatchBandTask(pixels, cells, width, middle, endRow, rowsPerTask, matcher, paletteSize);
+			top.fork();
+			int[] histogram = bottom.compute();
+			int[] topHistogram = top.join();
+			for(int i = 0; i < histogram.length; i++) {
+				histogram[i] += topHistogram[i];
+			}
+			return histogram;
+		}
+	}
+}
+
+/**
+ * Shrinks an image to the size of a bead grid. The filter is applied in two passes: each source row is first 
+ * filtered across to the target width, and those narrow rows are then combined down to the target height. Rows 
+ * are pushed in one at a time, and only as many filtered rows as one target row needs are kept, so the full source 
+ * image never has to be held in memory. Colors are averaged with alpha premultiplied, so transparent pixels do not 
+ * darken the edges of a design.
+ */
+class BeadGridResampler {
+	/** The available filters. */
+	enum Filter {
+		/** Area average. Each target pixel is the average of the source pixels it covers. */
+		BOX,
+		/** Lanczos filter with three lobes. Sharper than BOX, at a higher cost. */
+		LANCZOS
+	}
+	
+	static final int LANCZOS_LOBES = 3;
+	// Images read from files are decoded at no less than this many times the target size before filtering.
+	static final int OVERSAMPLE = 4;
+	
+	private final int sourceWidth;
+	private final int sourceHeight;
+	private final int targetWidth;
+	private final int targetHeight;
+	// First source column or row used by each target column or row, and the weight of each source pixel from there.
+	private final int[] columnStart;
+	private final float[][] columnWeights;
+	private final int[] rowStart;
+	private final float[][] rowWeights;
+	// Source rows filtered to the target width, four premultiplied channels per pixel, kept in a ring.
+	private final float[][] ring;
+	private int rowsPushed;
+	private int rowsDone;
+	private final int[] target;
+	
+	/**
+	 * Constructor for BeadGridResampler.
+	 * @param sourceWidth Width of the image that will be pushed in.
+	 * @param sourceHeight Number of rows that will be pushed in.
+	 * @param targetWidth Width of the resampled image.
+	 * @param targetHeight Height of the resampled image.
+	 * @param filter The filter to use.
+	 */
+	public BeadGridResampler(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight, Filter filter) {
+		if(sourceWidth < 1 || sourceHeight < 1 || targetWidth < 1 || targetHeight < 1) {
+			throw new IllegalArgumentException("Image sizes must be at least 1x1.");
+		}
+		this.sourceWidth = sourceWidth;
+		this.sourceHeight = sourceHeight;
+		this.targetWidth = targetWidth;
+		this.targetHeight = targetHeight;
+		columnStart = new int[targetWidth];
+		columnWeights = new float[targetWidth][];
+		computeWeights(sourceWidth, targetWidth, filter, columnStart, columnWeights);
+		rowStart = new int[targetHeight];
+		rowWeights = new float[targetHeight][];
+		computeWeights(sourceHeight, targetHeight, filter, rowStart, rowWeights);
+		int window = 1;
+		for(float[] weights : rowWeights) {
+			window = Math.max(window, weights.length);
+		}
+		ring = new float[window][targetWidth * 4];
+		target = new int[targetWidth * targetHeight];
+	}
+	
+	/**
+	 * Works out which source pixels contribute to each target pixel along one axis, and by how much. The weights for
+	 * each target pixel add up to one.
+	 */
+	private static void computeWeights(int sourceSize, int targetSize, Filter filter, int[] start, float[][] weights) {
+		double scale = (double) sourceSize / targetSize;
+		for(int i = 0; i < targetSize; i++) {
+			int first;
+			int last;
+			double[] w;
+			if(filter == Filter.BOX) {
+				// Overlap between the target pixel and each source pixel.
+				double from = i * scale;
+				double to = (i + 1) * scale;
+				first = (int) Math.floor(from);
+				last = Math.min(sourceSize - 1, (int) Math.ceil(to) - 1);
+				w = new double[last - first + 1];
+				for(int k = 0; k < w.length; k++) {
+					w[k] = Math.min(to, first + k + 1) - Math.max(from, first + k);
+				}
+			} else {
+				// Lanczos kernel stretched over the source pixels when shrinking.
+				double stretch = Math.max(scale, 1);
+				double center = (i + 0.5) * scale;
+				first = Math.max(0, (int) Math.floor(center - LANCZOS_LOBES * stretch));
+				last = Math.min(sourceSize - 1, (int) Math.ceil(center + LANCZOS_LOBES * stretch));
+				w = new double[last - first + 1];
+				for(int k = 0; k < w.length; k++) {
+					w[k] = lanczos((first + k + 0.5 - center) / stretch);
+				}
+			}
+			double sum = 0;
+			for(double value : w) {
+				sum += value;
+			}
+			start[i] = first;
+			weights[i] = new float[w.length];
+			for(int k = 0; k < w.length; k++) {
+				weights[i][k] = (float) (w[k] / sum);
+			}
+		}
+	}
+	
+	private static double lanczos(double x) {
+		if(x == 0) {
+			return 1;
+		}
+		if(Math.abs(x) >= LANCZOS_LOBES) {
+			return 0;
+		}
+		double px = Math.PI * x;
+		return LANCZOS_LOBES * Math.sin(px) * Math.sin(px / LANCZOS_LOBES) / (px * px);
+	}
+	
+	/**
+	 * Adds the next source row. Any target rows that can be finished with the rows pushed so far are written out.
+	 * @param row Array holding the row's pixels packed as 0xAARRGGBB.
+	 * @param offset Index of the row's first pixel in the array.
+	 */
+	public void pushRow(int[] row, int offset) {
+		if(rowsPushed >= sourceHeight) {
+			throw new IllegalStateException("All " + sourceHeight + " rows have already been pushed.");
+		}
+		// Filter across to the target width.
+		float[] filtered = ring[rowsPushed % ring.length];
+		for(int x = 0; x < targetWidth; x++) {
+			float a = 0;
+			float r = 0;
+			float g = 0;
+			float b = 0;
+			float[] weights = columnWeights[x];
+			int source = offset + columnStart[x];
+			for(int k = 0; k < weights.length; k++) {
+				int pixel = row[source + k];
+				float weight = weights[k] * (pixel >>> 24);
+				a += weight;
+				r += weight * ((pixel >> 16) & 0xFF);
+				g += weight * ((pixel >> 8) & 0xFF);
+				b += weight * (pixel & 0xFF);
+			}
+			filtered[4 * x] = a;
+			filtered[4 * x + 1] = r;
+			filtered[4 * x + 2] = g;
+			filtered[4 * x + 3] = b;
+		}
+		rowsPushed++;
+		
+		// Combine filtered rows into every target row whose last source row has now arrived.
+		while(rowsDone < targetHeight && rowStart[rowsDone] + rowWeights[rowsDone].length <= rowsPushed) {
+			float[] weights = rowWeights[rowsDone];
+			int first = rowStart[rowsDone];
+			for(int x = 0; x < targetWidth; x++) {
+				float a = 0;
+				float r = 0;
+				float g = 0;
+				float b = 0;
+				for(int k = 0; k < weights.length; k++) {
+					float[] source = ring[(first + k) % ring.length];
+					a += weights[k] * source[4 * x];
+					r += weights[k] * source[4 * x + 1];
+					g += weights[k] * source[4 * x + 2];
+					b += weights[k] * source[4 * x + 3];
+				}
+				target[rowsDone * targetWidth + x] = pack(a, r, g, b);
+			}
+			rowsDone++;
+		}
+	}
+	
+	/**
+	 * Converts premultiplied channel sums back to a packed color.
+	 */
+	private static int pack(float a, float r, float g, float b) {
+		if(a <= 0) {
+			return 0;
+		}
+		return (clamp(a) << 24) | (clamp(r / a) << 16) | (clamp(g / a) << 8) | clamp(b / a);
+	}
+	
+	private static int clamp(float value) {
+		return Math.max(0, Math.min(255, Math.round(value)));
+	}
+	
+	/**
+	 * @return Returns the resampled pixels packed as 0xAARRGGBB, row by row. Every source row must have been pushed.
+	 */
+	public int[] getPixels() {
+		if(rowsDone < targetHeight) {
+			throw new IllegalStateException("Only " + rowsPushed + " of " + sourceHeight + " rows have been pushed.");
+		}
+		return target;
+	}
+	
+	/**
+	 * Works out the largest size with the same shape as an image that fits within a grid. Images that already fit 
+	 * keep their size.
+	 * @return Returns the width and height.
+	 */
+	public static int[] fitWithin(int width, int height, int maxColumns, int maxRows) {
+		if(width <= maxColumns && height <= maxRows) {
+			return new int[] {width, height};
+		}
+		double scale = Math.min((double) maxColumns / width, (double) maxRows / height);
+		return new int[] {Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale))};
+	}
+	
+	/**
+	 * Resamples an image that is already in memory, reading it one row at a time.
+	 * @return Returns a new TYPE_INT_ARGB image of the target size.
+	 */
+	public static BufferedImage resample(BufferedImage image, int targetWidth, int targetHeight, Filter filter) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		BeadGridResampler resampler = new BeadGridResampler(width, height, targetWidth, targetHeight, filter);
+		int[] row = new int[width];
+		for(int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			resampler.pushRow(row, 0);
+		}
+		BufferedImage scaled = new BufferedImage(targetWidth, targetHeight, BufferedImage.TYPE_INT_ARGB);
+		scaled.setRGB(0, 0, targetWidth, targetHeight, resampler.getPixels(), 0, targetWidth);
+		return scaled;
+	}
+	
+	/**
+	 * Reads an image file and shrinks it to fit within a bead grid, keeping its shape. Large images are decoded with 
+	 * ImageIO source subsampling, which skips pixels while decoding, down to no less than OVERSAMPLE times the target 
+	 * size. The filter then brings that down to the target size. Images that already fit are returned as read.
+	 * @param file The image file.
+	 * @param maxColumns Most beads across.
+	 * @param maxRows Most beads down.
+	 * @param filter The filter to use.
+	 * @return Returns the image, no larger than maxColumns by maxRows.
+	 * @throws IOException If the file cannot be read or is not a supported image.
+	 */
+	public static BufferedImage loadScaled(File file, int maxColumns, int maxRows, Filter filter) throws IOException {
+		try(ImageInputStream input = ImageIO.createImageInputStream(file)) {
+			if(input == null) {
+				throw new IOException("Cannot open " + file);
+			}
+			return loadScaled(input, file.toString(), maxColumns, maxRows, filter);
+		}
+	}
+	
+	/**
+	 * Reads an image from a stream and shrinks it to fit within a bead grid, as loadScaled does for files. The 
+	 * stream is not closed.
+	 * @param input The image data.
+	 * @param name A name for the image, used in error messages.
+	 * @param maxColumns Most beads across, or 0 to keep the image's size.
+	 * @param maxRows Most beads down, or 0 to keep the image's size.
+	 * @param filter The filter to use.
+	 * @return Returns the image.
+	 * @throws IOException If the data cannot be read or is not a supported image.
+	 */
+	public static BufferedImage loadScaled(ImageInputStream input, String name, int maxColumns, int maxRows, Filter filter) throws IOException {
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+		if(!readers.hasNext()) {
+			throw new IOException("Unsupported image format: " + name);
+		}
+		ImageReader reader = readers.next();
+		try {
+			reader.setInput(input, true, true);
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+			int[] size = maxColumns > 0 && maxRows > 0 ? fitWithin(width, height, maxColumns, maxRows) : new int[] {width, height};
+			ImageReadParam param = reader.getDefaultReadParam();
+			int step = Math.max(1, Math.min(width / (size[0] * OVERSAMPLE), height / (size[1] * OVERSAMPLE)));
+			param.setSourceSubsampling(step, step, 0, 0);
+			BufferedImage decoded = reader.read(0, param);
+			if(decoded.getWidth() == size[0] && decoded.getHeight() == size[1]) {
+				return decoded;
+			}
+			return resample(decoded, size[0], size[1], filter);
+		} finally {
+			reader.dispose();
+		}
+	}
+}
+
+/**
+ * Counts how many times each color appears in an image. Colors and counts are kept in two int arrays using open 
+ * addressing with linear probing, so counting allocates nothing per pixel. A slot with a count of zero is empty. 
+ * The table doubles in size when it becomes half full.
+ */
+class ColorHistogram {
+	private int[] colors;
+	private int[] counts;
+	private int size;
+	// 32 minus the number of slot bits. Slots come from the high bits of the hash, which depend on every channel.
+	private int shift;
+	
+	/** Creates an empty histogram. */
+	public ColorHistogram() {
+		colors = new int[64];
+		counts = new int[64];
+		shift = 32 - 6;
+	}
+	
+	/**
+	 * Counts the colors of an array of pixels.
+	 * @param pixels The pixels to count.
+	 * @param mask Bits of each pixel that make up its color, for example 0xFFFFFF to ignore alpha.
+	 * @return Returns the histogram of the pixels.
+	 */
+	public static ColorHistogram count(int[] pixels, int mask) {
+		ColorHistogram histogram = new ColorHistogram();
+		for(int pixel : pixels) {
+			histogram.add(pixel & mask, 1);
+		}
+		return histogram;
+	}
+	
+	private int slot(int color) {
+		return (color * 0x9E3779B1) >>> shift;
+	}
+	
+	/**
+	 * Adds to the count of a color.
+	 * @param color The color to count.
+	 * @param count The amount to add. Must be greater than zero.
+	 */
+	public void add(int color, int count) {
+		int mask = colors.length - 1;
+		int slot = slot(color);
+		while(counts[slot] != 0 && colors[slot] != color) {
+			slot = (slot + 1) & mask;
+		}
+		if(counts[slot] == 0) {
+			colors[slot] = color;
+			if(++size * 2 > colors.length) {
+				counts[slot] = count;
+				grow();
+				return;
+			}
+		}
+		counts[slot] += count;
+	}
+	
+	private void grow() {
+		int[] oldColors = colors;
+		int[] oldCounts = counts;
+		colors = new int[oldColors.length * 2];
+		counts = new int[oldCounts.length * 2];
+		shift--;
+		int mask = colors.length - 1;
+		for(int i = 0; i < oldColors.length; i++) {
+			if(oldCounts[i] != 0) {
+				int slot = slot(oldColors[i]);
+				while(counts[slot] != 0) {
+					slot = (slot + 1) & mask;
+				}
+				colors[slot] = oldColors[i];
+				counts[slot] = oldCounts[i];
+			}
+		}
+	}
+	
+	/**
+	 * @return Returns the slot holding a color, or -1 if the color has not been counted.
+	 */
+	public int slotOf(int color) {
+		int mask = colors.length - 1;
+		int slot = slot(color);
+		while(counts[slot] != 0) {
+			if(colors[slot] == color) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return Returns the number of distinct colors.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return Returns the number of slots. Slots are numbered from 0 to capacity() - 1.
+	 */
+	public int capacity() {
+		return colors.length;
+	}
+	
+	public boolean isUsed(int slot) {
+		return counts[slot] != 0;
+	}
+	
+	public int getColor(int slot) {
+		return colors[slot];
+	}
+	
+	public int getCount(int slot) {
+		return counts[slot];
+	}
+	
+	/**
+	 * @return Returns the count of a color, or 0 if it has not been counted.
+	 */
+	public int getCountOf(int color) {
+		int slot = slotOf(color);
+		return slot < 0 ? 0 : counts[slot];
+	}
+}
+
+/**
+ * Ways of choosing beads for colors that fall between bead colors. The error diffusion modes carry the difference 
+ * between each pixel and its bead to the pixels to the right and below. The weights are given for the pixels ahead 
+ * on the same row, and for the pixels one left, straight below and one right on each of the following rows.
+ */
+enum DitherMode {
+	/** Every pixel gets its closest bead. */
+	NONE(null, null),
+	/** Floyd-Steinberg error diffusion. All of the error is passed on. */
+	FLOYD_STEINBERG(new float[] {7 / 16f}, new float[][] {{3 / 16f, 5 / 16f, 1 / 16f}}),
+	/** Atkinson error diffusion. Only three quarters of the error is passed on, which keeps more contrast. */
+	ATKINSON(new float[] {1 / 8f, 1 / 8f}, new float[][] {{1 / 8f, 1 / 8f, 1 / 8f}, {0, 1 / 8f, 0}}),
+	/** Ordered dithering with an 8x8 Bayer matrix. Each pixel is matched on its own, so it runs fully in parallel. */
+	BAYER(null, null);
+	
+	final float[] ahead;
+	final float[][] below;
+	
+	DitherMode(float[] ahead, float[][] below) {
+		this.ahead = ahead;
+		this.below = below;
+	}
+}
+
+/**
+ * Converts images with one of the dithering modes. 
+ * <p>
+ * Error diffusion is done row by row, but a row can start before the row above it has finished: a pixel only 
+ * needs the row above to be two pixels ahead of it. In parallel, each thread takes every n-th row and follows 
+ * the row above at that distance, so the rows move down the image in a wavefront. Each row reads its error from 
+ * one buffer and adds to the buffers of the rows below. The buffers are a ring of float arrays, two rows per 
+ * thread for Floyd-Steinberg and three for Atkinson, and error along the current row is kept in local variables. 
+ * The additions to each buffer happen in the same order as on one thread, so the result is exactly the same.
+ */
+class Ditherer {
+	// Pixels done between updates of a row's progress.
+	static final int PROGRESS_STEP = 32;
+	// Times a waiting thread spins before it yields.
+	static final int SPINS = 64;
+	
+	private final BeadPalette palette;
+	private final BeadMatcher matcher;
+	private final DitherMode mode;
+	
+	/**
+	 * Constructor for Ditherer.
+	 * @param palette The bead colors to match against.
+	 * @param matcher A matcher created for the palette.
+	 * @param mode Any mode but NONE.
+	 */
+	public Ditherer(BeadPalette palette, BeadMatcher matcher, DitherMode mode) {
+		if(mode == DitherMode.NONE) {
+			throw new IllegalArgumentException("Ditherer needs a dithering mode.");
+		}
+		this.palette = palette;
+		this.matcher = matcher;
+		this.mode = mode;
+	}
+	
+	/**
+	 * Chooses a bead for every pixel.
+	 * @param pixels The color of each pixel packed as 0xAARRGGBB, row by row.
+	 * @param pool The pool to run on, or null to run on the calling thread.
+	 * @return Returns the palette index of each pixel's bead.
+	 */
+	public short[] dither(int[] pixels, int width, int height, ForkJoinPool pool) {
+		short[] cells = new short[width * height];
+		if(mode == DitherMode.BAYER) {
+			orderedDither(pixels, cells, width, height, pool);
+			return cells;
+		}
+		int threads = pool == null ? 1 : Math.max(1, Math.min(pool.getParallelism(), height));
+		int lookahead = mode.below.length;
+		float[][] errors = new float[threads + lookahead][width * 3];
+		AtomicIntegerArray progress = new AtomicIntegerArray(height);
+		if(threads == 1) {
+			for(int y = 0; y < height; y++) {
+				diffuseRow(pixels, cells, width, y, errors, progress, false);
+			}
+			return cells;
+		}
+		java.util.List<RecursiveAction> lanes = new ArrayList<>();
+		for(int lane = 0; lane < threads; lane++) {
+			int first = lane;
+			lanes.add(new RecursiveAction() {
+				protected void compute() {
+					for(int y = first; y < height; y += threads) {
+						diffuseRow(pixels, cells, width, y, errors, progress, true);
+					}
+				}
+			});
+		}
+		pool.invoke(new RecursiveAction() {
+			protected void compute() {
+				invokeAll(lanes);
+			}
+		});
+		return cells;
+	}
+	
+	/**
+	 * Matches one row, taking its error from its buffer and adding the new error to the buffers below.
+	 * @param wait Whether to wait for the row above to keep ahead.
+	 */
+	private void diffuseRow(int[] pixels, short[] cells, int width, int y, float[][] errors, AtomicIntegerArray progress, boolean wait) {
+		float[] ahead = mode.ahead;
+		float[][] below = mode.below;
+		float[] error = errors[y % errors.length];
+		float[][] next = new float[below.length][];
+		for(int k = 0; k < below.length; k++) {
+			next[k] = y + 1 + k < progress.length() ? errors[(y + 1 + k) % errors.length] : null;
+		}
+		// Error carried to the next pixels on this row, three channels for each.
+		float[] carry = new float[ahead.length * 3 + 3];
+		int row = y * width;
+		for(int x = 0; x < width; x++) {
+			if(wait && y > 0) {
+				awaitProgress(progress, y - 1, Math.min(x + 2, width));
+			}
+			int pixel = pixels[row + x];
+			float red = clamp(((pixel >> 16) & 0xFF) + error[x * 3] + carry[0]);
+			float green = clamp(((pixel >> 8) & 0xFF) + error[x * 3 + 1] + carry[1]);
+			float blue = clamp((pixel & 0xFF) + error[x * 3 + 2] + carry[2]);
+			error[x * 3] = 0;
+			error[x * 3 + 1] = 0;
+			error[x * 3 + 2] = 0;
+			
+			int index = matcher.findClosestBead((Math.round(red) << 16) | (Math.round(green) << 8) | Math.round(blue));
+			cells[row + x] = (short) index;
+			int bead = palette.getRGB(index);
+			float errorRed = red - ((bead >> 16) & 0xFF);
+			float errorGreen = green - ((bead >> 8) & 0xFF);
+			float errorBlue = blue - (bead & 0xFF);
+			
+			System.arraycopy(carry, 3, carry, 0, carry.length - 3);
+			for(int k = 0; k < ahead.length; k++) {
+				carry[k * 3] += errorRed * ahead[k];
+				carry[k * 3 + 1] += errorGreen * ahead[k];
+				carry[k * 3 + 2] += errorBlue * ahead[k];
+			}
+			for(int k = 0; k < below.length; k++) {
+				if(next[k] == null) {
+					continue;
+				}
+				for(int dx = -1; dx <= 1; dx++) {
+					float weight = below[k][dx + 1];
+					if(weight == 0 || x + dx < 0 || x + dx >= width) {
+						continue;
+					}
+					int i = (x + dx) * 3;
+					next[k][i] += errorRed * weight;
+					next[k][i + 1] += errorGreen * weight;
+					next[k][i + 2] += errorBlue * weight;
+				}
+			}
+			if((x + 1) % PROGRESS_STEP == 0) {
+				progress.set(y, x + 1);
+			}
+		}
+		progress.set(y, width);
+	}
+	
+	/**
+	 * Waits until a row has done at least the given number of pixels. The wait is a managed block, so the pool 
+	 * can start another thread if all of its threads are waiting.
+	 */
+	private static void awaitProgress(AtomicIntegerArray progress, int row, int needed) {
+		if(progress.get(row) >= needed) {
+			return;
+		}
+		try {
+			ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+				public boolean block() {
+					for(int spin = 0; progress.get(row) < needed; spin++) {
+						if(spin < SPINS) {
+							Thread.onSpinWait();
+						} else {
+							Thread.yield();
+						}
+					}
+					return true;
+				}
+				
+				public boolean isReleasable() {
+					return progress.get(row) >= needed;
+				}
+			});
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Dithering was interrupted.");
+		}
+	}
+	
+	private static float clamp(float value) {
+		return value < 0 ? 0 : value > 255 ? 255 : value;
+	}
+	
+	/**
+	 * Adds a threshold from the Bayer matrix to every pixel before matching it. The threshold's range is the 
+	 * average distance from each bead color to its closest other bead color, so that pixels between two beads are 
+	 * split between them.
+	 */
+	private void orderedDither(int[] pixels, short[] cells, int width, int height, ForkJoinPool pool) {
+		int[] matrix = bayerMatrix(3);
+		float spread = averageSpacing();
+		IntConsumer ditherRow = y -> {
+			for(int x = 0; x < width; x++) {
+				int pixel = pixels[y * width + x];
+				float offset = ((matrix[(y & 7) * 8 + (x & 7)] + 0.5f) / 64f - 0.5f) * spread;
+				int red = Math.round(clamp(((pixel >> 16) & 0xFF) + offset));
+				int green = Math.round(clamp(((pixel >> 8) & 0xFF) + offset));
+				int blue = Math.round(clamp((pixel & 0xFF) + offset));
+				cells[y * width + x] = (short) matcher.findClosestBead((red << 16) | (green << 8) | blue);
+			}
+		};
+		if(pool == null) {
+			IntStream.range(0, height).forEach(ditherRow);
+		} else {
+			pool.submit(() -> IntStream.range(0, height).parallel().forEach(ditherRow)).join();
+		}
+	}
+	
+	/**
+	 * Builds a Bayer threshold matrix by repeatedly splitting each cell into four.
+	 * @param levels The matrix is 2^levels cells across.
+	 * @return Returns the matrix row by row, with values from 0 to 4^levels - 1.
+	 */
+	static int[] bayerMatrix(int levels) {
+		int[] matrix = {0};
+		int size = 1;
+		for(int level = 0; level < levels; level++) {
+			int[] larger = new int[size * size * 4];
+			for(int y = 0; y < size; y++) {
+				for(int x = 0; x < size; x++) {
+					int value = matrix[y * size + x] * 4;
+					larger[y * size * 2 + x] = value;
+					larger[y * size * 2 + x + size] = value + 2;
+					larger[(y + size) * size * 2 + x] = value + 3;
+					larger[(y + size) * size * 2 + x + size] = value + 1;
+				}
+			}
+			matrix = larger;
+			size *= 2;
+		}
+		return matrix;
+	}
+	
+	/**
+	 * @return Returns the average distance from each bead color to its closest other bead color.
+	 */
+	float averageSpacing() {
+		if(palette.size() < 2) {
+			return 0;
+		}
+		double total = 0;
+		for(int i = 0; i < palette.size(); i++) {
+			int a = palette.getRGB(i);
+			long closest = Long.MAX_VALUE;
+			for(int j = 0; j < palette.size(); j++) {
+				int b = palette.getRGB(j);
+				if(j == i || a == b) {
+					continue;
+				}
+				long dr = ((a >> 16) & 0xFF) - ((b >> 16) & 0xFF);
+				long dg = ((a >> 8) & 0xFF) - ((b >> 8) & 0xFF);
+				long db = (a & 0xFF) - (b & 0xFF);
+				closest = Math.min(closest, dr * dr + dg * dg + db * db);
+			}
+			total += closest == Long.MAX_VALUE ? 0 : Math.sqrt(closest);
+		}
+		return (float) (total / palette.size());
+	}
+}
+
+/**
+ * Picks the beads that suit an image best when only a few colors may be used. The image's colors are first 
+ * gathered into a histogram of 32x32x32 bins that keeps the count and average color of each bin, so the work after 
+ * that does not depend on the number of pixels. Median cut splits the bins into as many boxes as there are colors 
+ * to pick, and the bead closest to each box's average starts as that box's bead. Then k-means refines the choice: 
+ * every bin goes to its closest chosen bead, and each bead is replaced by the free bead closest to the average 
+ * color of its bins. This repeats until nothing changes or the iteration limit is reached. The steps over bins run 
+ * in parallel when a pool is given.
+ */
+class PaletteReducer {
+	// Bits kept of each channel in the histogram.
+	static final int BIN_BITS = 5;
+	// Most rounds of k-means.
+	static final int MAX_ITERATIONS = 30;
+	// Pixels counted by one task when building the histogram in parallel. Each task has its own bins, which are 
+	// added up at the end, so tasks need to be large.
+	static final int PIXELS_PER_TASK = 1 << 20;
+	
+	private final ForkJoinPool pool;
+	
+	/** Creates a reducer that runs on the calling thread. */
+	public PaletteReducer() {
+		this(null);
+	}
+	
+	/**
+	 * @param pool The pool to run on, or null to run on the calling thread.
+	 */
+	public PaletteReducer(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Picks up to the given number of beads for an image.
+	 * @param pixels The color of each pixel packed as 0xAARRGGBB.
+	 * @param palette The beads to choose from.
+	 * @param colors How many beads to pick.
+	 * @return Returns the chosen beads in palette order. There may be fewer if the image has fewer colors.
+	 */
+	public ArrayList<Bead> reduce(int[] pixels, BeadPalette palette, int colors) {
+		ArrayList<Bead> beads = new ArrayList<>();
+		for(int index : choose(pixels, palette, colors)) {
+			beads.add(palette.getBead(index));
+		}
+		return beads;
+	}
+	
+	/**
+	 * @return Returns the palette indexes of the chosen beads in ascending order.
+	 */
+	int[] choose(int[] pixels, BeadPalette palette, int colors) {
+		if(colors >= palette.size()) {
+			return IntStream.range(0, palette.size()).toArray();
+		}
+		Bins bins = countBins(pixels);
+		if(bins.size == 0 || colors < 1) {
+			return new int[0];
+		}
+		int[] chosen = medianCut(bins, palette, colors);
+		int[] assignment = new int[bins.size];
+		Arrays.fill(assignment, -1);
+		for(int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+			boolean changed = assign(bins, palette, chosen, assignment);
+			if(!changed && iteration > 0) {
+				break;
+			}
+			int[] next = update(bins, palette, chosen, assignment);
+			if(Arrays.equals(next, chosen)) {
+				break;
+			}
+			chosen = next;
+		}
+		// Beads that no bin went to are dropped.
+		int[] result = chosen;
+		boolean[] used = new boolean[result.length];
+		assign(bins, palette, result, assignment);
+		for(int cluster : assignment) {
+			used[cluster] = true;
+		}
+		return IntStream.range(0, result.length).filter(i -> used[i]).map(i -> result[i]).sorted().toArray();
+	}
+	
+	/** Count, sum of each channel and average color of every bin that has pixels. */
+	static class Bins {
+		int size;
+		long[] count;
+		float[] red;
+		float[] green;
+		float[] blue;
+	}
+	
+	/**
+	 * Counts pixels into bins by the top bits of each channel, keeping the sum of each channel to find the average.
+	 */
+	Bins countBins(int[] pixels) {
+		int binCount = 1 << (3 * BIN_BITS);
+		int tasks = (pixels.length + PIXELS_PER_TASK - 1) / PIXELS_PER_TASK;
+		IntFunction<long[]> countTask = task -> {
+			// Count, then red, green and blue sums, for every bin.
+			long[] sums = new long[binCount * 4];
+			int end = Math.min(pixels.length, (task + 1) * PIXELS_PER_TASK);
+			for(int i = task * PIXELS_PER_TASK; i < end; i++) {
+				int pixel = pixels[i];
+				int red = (pixel >> 16) & 0xFF;
+				int green = (pixel >> 8) & 0xFF;
+				int blue = pixel & 0xFF;
+				int bin = ((red >> (8 - BIN_BITS)) << (2 * BIN_BITS)) | ((green >> (8 - BIN_BITS)) << BIN_BITS) | (blue >> (8 - BIN_BITS));
+				sums[bin * 4]++;
+				sums[bin * 4 + 1] += red;
+				sums[bin * 4 + 2] += green;
+				sums[bin * 4 + 3] += blue;
+			}
+			return sums;
+		};
+		BinaryOperator<long[]> add = (a, b) -> {
+			for(int i = 0; i < a.length; i++) {
+				a[i] += b[i];
+			}
+			return a;
+		};
+		long[] sums;
+		if(pool == null || tasks < 2) {
+			sums = IntStream.range(0, tasks).mapToObj(countTask).reduce(add).orElse(new long[binCount * 4]);
+		} else {
+			sums = pool.submit(() -> IntStream.range(0, tasks).parallel().mapToObj(countTask).reduce(add).orElse(new long[binCount * 4])).join();
+		}
+		
+		Bins bins = new Bins();
+		for(int bin = 0; bin < binCount; bin++) {
+			if(sums[bin * 4] > 0) {
+				bins.size++;
+			}
+		}
+		bins.count = new long[bins.size];
+		bins.red = new float[bins.size];
+		bins.green = new float[bins.size];
+		bins.blue = new float[bins.size];
+		int k = 0;
+		for(int bin = 0; bin < binCount; bin++) {
+			long count = sums[bin * 4];
+			if(count > 0) {
+				bins.count[k] = count;
+				bins.red[k] = (float) sums[bin * 4 + 1] / count;
+				bins.green[k] = (float) sums[bin * 4 + 2] / count;
+				bins.blue[k] = (float) sums[bin * 4 + 3] / count;
+				k++;
+			}
+		}
+		return bins;
+	}
+	
+	/**
+	 * Splits the bins into boxes, each time cutting the box with the most pixels times spread at the weighted 
+	 * median of its widest channel, and gives each box the free bead closest to its average color.
+	 * @return Returns one bead index per box.
+	 */
+	int[] medianCut(Bins bins, BeadPalette palette, int colors) {
+		java.util.List<int[]> boxes = new ArrayList<>();
+		boxes.add(IntStream.range(0, bins.size).toArray());
+		while(boxes.size() < colors) {
+			int best = -1;
+			double bestScore = 0;
+			int bestChannel = 0;
+			for(int b = 0; b < boxes.size(); b++) {
+				int[] box = boxes.get(b);
+				if(box.length < 2) {
+					continue;
+				}
+				for(int channel = 0; channel < 3; channel++) {
+					float[] values = channel(bins, channel);
+					float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+					long weight = 0;
+					for(int i : box) {
+						min = Math.min(min, values[i]);
+						max = Math.max(max, values[i]);
+						weight += bins.count[i];
+					}
+					double score = (double) (max - min) * weight;
+					if(score > bestScore) {
+						bestScore = score;
+						best = b;
+						bestChannel = channel;
+					}
+				}
+			}
+			if(best < 0) {
+				break;
+			}
+			float[] values = channel(bins, bestChannel);
+			int[] box = boxes.remove(best);
+			// Sort by the channel, packing each value above its bin so a primitive sort can be used. The values 
+			// are never negative, so their bits sort in the same order.
+			long[] keys = new long[box.length];
+			long total = 0;
+			for(int i = 0; i < box.length; i++) {
+				keys[i] = ((long) Float.floatToIntBits(values[box[i]]) << 32) | box[i];
+				total += bins.count[box[i]];
+			}
+			Arrays.sort(keys);
+			int[] sorted = new int[box.length];
+			for(int i = 0; i < keys.length; i++) {
+				sorted[i] = (int) keys[i];
+			}
+			// Cut where half the pixels are on each side, leaving at least one bin in each half.
+			long running = 0;
+			int cut = 1;
+			for(int i = 0; i < sorted.length - 1; i++) {
+				running += bins.count[sorted[i]];
+				cut = i + 1;
+				if(running * 2 >= total) {
+					break;
+				}
+			}
+			boxes.add(Arrays.copyOfRange(sorted, 0, cut));
+			boxes.add(Arrays.copyOfRange(sorted, cut, sorted.length));
+		}
+		
+		// The heaviest boxes choose their beads first.
+		boxes.sort((a, b) -> Long.compare(weight(bins, b), weight(bins, a)));
+		boolean[] taken = new boolean[palette.size()];
+		int[] chosen = new int[boxes.size()];
+		for(int b = 0; b < boxes.size(); b++) {
+			double red = 0, green = 0, blue = 0;
+			long weight = weight(bins, boxes.get(b));
+			for(int i : boxes.get(b)) {
+				red += bins.red[i] * bins.count[i];
+				green += bins.green[i] * bins.count[i];
+				blue += bins.blue[i] * bins.count[i];
+			}
+			chosen[b] = closestFree(palette, taken, red / weight, green / weight, blue / weight);
+			taken[chosen[b]] = true;
+		}
+		return chosen;
+	}
+	
+	private static float[] channel(Bins bins, int channel) {
+		return channel == 0 ? bins.red : channel == 1 ? bins.green : bins.blue;
+	}
+	
+	private static long weight(Bins bins, int[] box) {
+		long weight = 0;
+		for(int i : box) {
+			weight += bins.count[i];
+		}
+		return weight;
+	}
+	
+	/**
+	 * Gives every bin the closest chosen bead.
+	 * @return Returns true if any bin changed beads.
+	 */
+	boolean assign(Bins bins, BeadPalette palette, int[] chosen, int[] assignment) {
+		IntPredicate assignBin = i -> {
+			int best = 0;
+			double bestDistance = Double.MAX_VALUE;
+			for(int c = 0; c < chosen.length; c++) {
+				double distance = distance(palette.getRGB(chosen[c]), bins.red[i], bins.green[i], bins.blue[i]);
+				if(distance < bestDistance) {
+					bestDistance = distance;
+					best = c;
+				}
+			}
+			boolean changed = assignment[i] != best;
+			assignment[i] = best;
+			return changed;
+		};
+		if(pool == null) {
+			return IntStream.range(0, bins.size).filter(assignBin).count() > 0;
+		}
+		return pool.submit(() -> IntStream.range(0, bins.size).parallel().filter(assignBin).count()).join() > 0;
+	}
+	
+	/**
+	 * Moves each chosen bead to the free bead closest to the average color of its bins. Beads with the most pixels 
+	 * choose first, and beads with no bins stay where they are if they can.
+	 * @return Returns the new bead for each cluster.
+	 */
+	int[] update(Bins bins, BeadPalette palette, int[] chosen, int[] assignment) {
+		int clusters = chosen.length;
+		long[] weight = new long[clusters];
+		double[] red = new double[clusters];
+		double[] green = new double[clusters];
+		double[] blue = new double[clusters];
+		for(int i = 0; i < bins.size; i++) {
+			int c = assignment[i];
+			weight[c] += bins.count[i];
+			red[c] += bins.red[i] * bins.count[i];
+			green[c] += bins.green[i] * bins.count[i];
+			blue[c] += bins.blue[i] * bins.count[i];
+		}
+		Integer[] order = new Integer[clusters];
+		for(int c = 0; c < clusters; c++) {
+			order[c] = c;
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(weight[b], weight[a]));
+		boolean[] taken = new boolean[palette.size()];
+		int[] next = new int[clusters];
+		for(int c : order) {
+			if(weight[c] == 0) {
+				int rgb = palette.getRGB(chosen[c]);
+				next[c] = closestFree(palette, taken, (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+			} else {
+				next[c] = closestFree(palette, taken, red[c] / weight[c], green[c] / weight[c], blue[c] / weight[c]);
+			}
+			taken[next[c]] = true;
+		}
+		return next;
+	}
+	
+	/**
+	 * @return Returns the index of the closest bead that has not been taken. Ties go to the lowest index.
+	 */
+	static int closestFree(BeadPalette palette, boolean[] taken, double red, double green, double blue) {
+		int best = -1;
+		double bestDistance = Double.MAX_VALUE;
+		for(int i = 0; i < palette.size(); i++) {
+			double distance = distance(palette.getRGB(i), red, green, blue);
+			if(!taken[i] && distance < bestDistance) {
+				bestDistance = distance;
+				best = i;
+			}
+		}
+		return best;
+	}
+	
+	private static double distance(int rgb, double red, double green, double blue) {
+		double dr = ((rgb >> 16) & 0xFF) - red;
+		double dg = ((rgb >> 8) & 0xFF) - green;
+		double db = (rgb & 0xFF) - blue;
+		return dr * dr + dg * dg + db * db;
+	}
+}
+
+/**
+ * Keeps the results of earlier conversions, found by a SHA-256 hash of the image file, the palette and the 
+ * conversion settings. Recent results are kept in memory, up to a total size, and the least recently used are 
+ * dropped first. Every result is also written to a directory, one file per result, and read back from there 
+ * through a memory-mapped buffer. A result file holds:
+ * <pre>
+ * int    magic "BMX1"
+ * int    width, height, number of beads in the palette
+ * beads  color as 0xRRGGBB, then name and code as DataOutput UTF strings
+ * short  palette index of every cell, row by row
+ * </pre>
+ * All numbers are big-endian. Files are written under a temporary name and then renamed, so a reader never sees 
+ * part of a file. The directory is kept under a total size too, deleting the files least recently written or read 
+ * first. The disk is only an extra tier: a result that cannot be written is still kept in memory. Result files are 
+ * only read and written in a directory owned by the user running the program, since keys can be worked out by 
+ * anyone who has the image and a directory another user controls could hold planted results. Results are copied 
+ * on the way in and out, so callers may change them. Safe to use from several threads.
+ */
+class ConversionCache {
+	static final int MAGIC = 0x424D5831;
+	// Rough size in memory of one cached result apart from its cells.
+	static final int ENTRY_OVERHEAD = 256;
+	
+	private final File directory;
+	private final long memoryLimit;
+	private final long diskLimit;
+	// Bytes of result files in the directory, or -1 until the directory has been looked at.
+	private long diskUsed = -1;
+	// Whether the directory belongs to the user, or null until it exists and has been checked.
+	private Boolean owned;
+	private final LinkedHashMap<String, CompactBeadMatrix> memory = new LinkedHashMap<>(16, 0.75f, true);
+	private long memoryUsed;
+	private final AtomicLong memoryHits = new AtomicLong();
+	private final AtomicLong diskHits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong diskErrors = new AtomicLong();
+	
+	/**
+	 * Constructor for ConversionCache. The directory may grow without limit.
+	 * @param directory The directory for result files, or null to keep results in memory only.
+	 * @param memoryLimit Most bytes of results kept in memory.
+	 */
+	public ConversionCache(File directory, long memoryLimit) {
+		this(directory, memoryLimit, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Constructor for ConversionCache.
+	 * @param directory The directory for result files, or null to keep results in memory only.
+	 * @param memoryLimit Most bytes of results kept in memory.
+	 * @param diskLimit Most bytes of result files kept in the directory.
+	 */
+	public ConversionCache(File directory, long memoryLimit, long diskLimit) {
+		this.directory = directory;
+		this.memoryLimit = memoryLimit;
+		this.diskLimit = diskLimit;
+	}
+	
+	/**
+	 * @return Returns a cache in the user's own cache directory with 64 MB kept in memory and 256 MB on disk.
+	 */
+	static ConversionCache createDefault() {
+		return new ConversionCache(defaultDirectory(), 64L << 20, 256L << 20);
+	}
+	
+	/**
+	 * @return Returns .perler-bead-cache in the user's home directory. Unlike the system's temporary directory, other 
+	 * users cannot create it first.
+	 */
+	static File defaultDirectory() {
+		return new File(System.getProperty("user.home"), ".perler-bead-cache");
+	}
+	
+	/**
+	 * @return Returns true if the path is a directory, not a link, owned by the user running the program.
+	 */
+	static boolean isOwnedByUser(File directory) {
+		try {
+			Path path = directory.toPath();
+			if(!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+				return false;
+			}
+			UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+			return Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).equals(user);
+		} catch (IOException | UnsupportedOperationException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return Returns true if the directory exists and belongs to the user. The answer is kept once the directory exists.
+	 */
+	private synchronized boolean directoryIsOwned() {
+		if(owned == null && directory.exists()) {
+			owned = isOwnedByUser(directory);
+		}
+		return owned != null && owned;
+	}
+	
+	/**
+	 * Makes the key for a conversion.
+	 * @param imageBytes The bytes of the image file.
+	 * @param beadArray The palette.
+	 * @param options The conversion settings, written as text.
+	 * @return Returns the key as 64 hexadecimal digits.
+	 */
+	static String key(byte[] imageBytes, ArrayList<Bead> beadArray, String options) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(imageBytes);
+			// Each part ends with a zero byte so that different splits of the same text give different keys.
+			digest.update((byte) 0);
+			for(Bead bead : beadArray) {
+				digest.update((bead.getName() + "\0" + bead.getCode() + "\0" + (bead.getColor().getRGB() & 0xFFFFFF) + "\0").getBytes(StandardCharsets.UTF_8));
+			}
+			digest.update((byte) 0);
+			digest.update(options.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for(byte b : digest.digest()) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-256.
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Looks for a result in memory, then on disk. A result found on disk is kept in memory too.
+	 * @return Returns a copy of the result, or null if there is none.
+	 */
+	public CompactBeadMatrix get(String key) {
+		synchronized(memory) {
+			CompactBeadMatrix cached = memory.get(key);
+			if(cached != null) {
+				memoryHits.incrementAndGet();
+				return copy(cached);
+			}
+		}
+		File file = fileFor(key);
+		if(file != null && directoryIsOwned() && file.isFile()) {
+			try {
+				CompactBeadMatrix loaded = read(file);
+				diskHits.incrementAndGet();
+				// Marks the file as recently used, so it is kept when the directory is trimmed.
+				file.setLastModified(System.currentTimeMillis());
+				remember(key, loaded);
+				return copy(loaded);
+			} catch (IOException | RuntimeException e) {
+				// A damaged file is a miss, and is replaced when the result is stored again.
+				file.delete();
+			}
+		}
+		misses.incrementAndGet();
+		return null;
+	}
+	
+	/**
+	 * Stores a result in memory and on disk. A result file that cannot be written, or a directory owned by someone 
+	 * else, is counted in getDiskErrors, and the result stays in memory.
+	 */
+	public void put(String key, CompactBeadMatrix result) {
+		CompactBeadMatrix copy = copy(result);
+		remember(key, copy);
+		File file = fileFor(key);
+		if(file == null) {
+			return;
+		}
+		try {
+			directory.mkdirs();
+			if(!directoryIsOwned()) {
+				throw new IOException("Cache directory is not owned by this user: " + directory);
+			}
+			File temporary = File.createTempFile(key, ".tmp", directory);
+			try {
+				write(copy, temporary);
+				long replaced = file.length();
+				try {
+					Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+				trimDisk(file.length() - replaced);
+			} finally {
+				temporary.delete();
+			}
+		} catch (IOException e) {
+			diskErrors.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Adds to the bytes used on disk and deletes the least recently used result files while the total is over the 
+	 * limit. The total is counted from the directory the first time, and again whenever it goes over, since other 
+	 * programs may share the directory.
+	 */
+	private synchronized void trimDisk(long added) {
+		if(diskLimit == Long.MAX_VALUE) {
+			return;
+		}
+		if(diskUsed >= 0) {
+			diskUsed += added;
+			if(diskUsed <= diskLimit) {
+				return;
+			}
+		}
+		File[] files = directory.listFiles((dir, name) -> name.endsWith(".bmx"));
+		if(files == null) {
+			return;
+		}
+		long[] modified = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		diskUsed = 0;
+		for(int i = 0; i < files.length; i++) {
+			modified[i] = files[i].lastModified();
+			order[i] = i;
+			diskUsed += files[i].length();
+		}
+		Arrays.sort(order, (a, b) -> Long.compare(modified[a], modified[b]));
+		for(int i = 0; i < order.length && diskUsed > diskLimit; i++) {
+			long length = files[order[i]].length();
+			if(files[order[i]].delete()) {
+				diskUsed -= length;
+			}
+		}
+	}
+	
+	public long getMemoryHits() {
+		return memoryHits.get();
+	}
+	
+	public long getDiskHits() {
+		return diskHits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * @return Returns the number of results that could not be written to disk.
+	 */
+	public long getDiskErrors() {
+		return diskErrors.get();
+	}
+	
+	/**
+	 * @return Returns the bytes of results kept in memory.
+	 */
+	public long getMemoryUsed() {
+		synchronized(memory) {
+			return memoryUsed;
+		}
+	}
+	
+	private File fileFor(String key) {
+		return directory == null ? null : new File(directory, key + ".bmx");
+	}
+	
+	/**
+	 * Keeps a result in memory, dropping the least recently used results until the total fits.
+	 */
+	private void remember(String key, CompactBeadMatrix result) {
+		long size = sizeOf(result);
+		if(size > memoryLimit) {
+			return;
+		}
+		synchronized(memory) {
+			CompactBeadMatrix old = memory.put(key, result);
+			memoryUsed += size - (old == null ? 0 : sizeOf(old));
+			Iterator<CompactBeadMatrix> eldest = memory.values().iterator();
+			while(memoryUsed > memoryLimit) {
+				memoryUsed -= sizeOf(eldest.next());
+				eldest.remove();
+			}
+		}
+	}
+	
+	static long sizeOf(CompactBeadMatrix result) {
+		return 2L * result.getWidth() * result.getHeight() + 4L * result.getPalette().size() + ENTRY_OVERHEAD;
+	}
+	
+	private static CompactBeadMatrix copy(CompactBeadMatrix result) {
+		return result.copyRegion(0, 0, result.getWidth(), result.getHeight());
+	}
+	
+	static void write(CompactBeadMatrix result, File file) throws IOException {
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			BeadPalette palette = result.getPalette();
+			out.writeInt(MAGIC);
+			out.writeInt(result.getWidth());
+			out.writeInt(result.getHeight());
+			out.writeInt(palette.size());
+			for(int i = 0; i < palette.size(); i++) {
+				out.writeInt(palette.getRGB(i));
+				out.writeUTF(palette.getBead(i).getName());
+				out.writeUTF(palette.getBead(i).getCode());
+			}
+			for(short cell : result.getCells()) {
+				out.writeShort(cell);
+			}
+		}
+	}
+	
+	static CompactBeadMatrix read(File file) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.getInt() != MAGIC) {
+				throw new IOException("Not a cached result: " + file);
+			}
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+			int size = buffer.getInt();
+			ArrayList<Bead> beads = new ArrayList<>();
+			for(int i = 0; i < size; i++) {
+				Color color = new Color(buffer.getInt());
+				String name = readUTF(buffer);
+				beads.add(new Bead(name, readUTF(buffer), color));
+			}
+			short[] cells = new short[width * height];
+			buffer.asShortBuffer().get(cells);
+			for(short cell : cells) {
+				if(cell < 0 || cell >= size) {
+					throw new IOException("Bad palette index in " + file);
+				}
+			}
+			return new CompactBeadMatrix(new BeadPalette(beads), width, height, cells);
+		}
+	}
+	
+	/**
+	 * Reads a string written by DataOutput.writeUTF, moving the buffer past it.
+	 */
+	static String readUTF(ByteBuffer buffer) throws IOException {
+		int length = buffer.getShort() & 0xFFFF;
+		ByteBuffer bytes = buffer.slice();
+		bytes.limit(length);
+		buffer.position(buffer.position() + length);
+		byte[] data = new byte[length + 2];
+		data[0] = (byte) (length >> 8);
+		data[1] = (byte) length;
+		bytes.get(data, 2, length);
+		return new DataInputStream(new ByteArrayInputStream(data)).readUTF();
+	}
+}
+
+/**
+ * Counters for the stages of a conversion: how often each stage ran, how long it took, how many pixels it handled 
+ * and how many bytes the calling thread allocated. The channel search also counts the steps it walks for each pixel
+ * in a histogram whose buckets double in width. Metrics are off by default and cost one flag check per stage and 
+ * per searched pixel while off. They are turned on with setEnabled or the system property perlerbeads.metrics=true.
+ * 
+ * Every stage is also reported as a Flight Recorder event (perlerbeads.ConversionStage) whenever a recording asks 
+ * for it, whether or not metrics are on. While metrics are on, recordings also get a perlerbeads.SearchSteps event 
+ * every second with a summary of the histogram.
+ */
+class ConversionMetrics {
+	/** The timed parts of a conversion. */
+	enum Stage {
+		/** Reading the image file, and shrinking it to fit if needed. */
+		DECODE,
+		/** Picking the beads that suit the image best, when the palette size is limited. */
+		REDUCE,
+		/** Finding the closest bead for each pixel, including dithering. */
+		MATCH,
+		/** Drawing a template page. */
+		RENDER,
+		/** Writing a template page as PNG. */
+		ENCODE
+	}
+	
+	// Bucket b counts searches of 2^(b-1) to 2^b - 1 steps. Bucket 0 counts searches that matched on the first step.
+	static final int HISTOGRAM_BUCKETS = 32;
+	
+	private static volatile boolean enabled;
+	private static final LongAdder[] counts = createAdders(Stage.values().length);
+	private static final LongAdder[] nanos = createAdders(Stage.values().length);
+	private static final LongAdder[] pixels = createAdders(Stage.values().length);
+	private static final LongAdder[] allocated = createAdders(Stage.values().length);
+	private static final LongAdder[] searchSteps = createAdders(HISTOGRAM_BUCKETS);
+	private static final com.sun.management.ThreadMXBean threadBean = allocationBean();
+	private static boolean periodicEventAdded;
+	// Tells whether a recording wants stage events, without creating one.
+	private static final jdk.jfr.EventType STAGE_EVENT = jdk.jfr.EventType.getEventType(StageEvent.class);
+	
+	// Handed out by start while nothing is recording, so a stage that is not measured creates no objects.
+	private static final Timer IDLE = new Timer(null, null, 0, 0);
+	
+	static {
+		// Through setEnabled, so the periodic event is added too.
+		if(Boolean.getBoolean("perlerbeads.metrics")) {
+			setEnabled(true);
+		}
+	}
+	
+	private ConversionMetrics() {
+	}
+	
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Turns the metrics on or off. Counts already taken are kept.
+	 */
+	public static synchronized void setEnabled(boolean on) {
+		enabled = on;
+		if(on && !periodicEventAdded) {
+			jdk.jfr.FlightRecorder.addPeriodicEvent(SearchStepsEvent.class, ConversionMetrics::emitSearchSteps);
+			periodicEventAdded = true;
+		}
+	}
+	
+	/**
+	 * Clears all counts.
+	 */
+	public static void reset() {
+		for(LongAdder[] adders : new LongAdder[][] {counts, nanos, pixels, allocated, searchSteps}) {
+			for(LongAdder adder : adders) {
+				adder.reset();
+			}
+		}
+	}
+	
+	/**
+	 * Starts timing a stage.
+	 * @param stage The stage that is starting.
+	 * @return Returns a timer to stop when the stage ends.
+	 */
+	static Timer start(Stage stage) {
+		boolean recording = STAGE_EVENT.isEnabled();
+		if(!enabled && !recording) {
+			return IDLE;
+		}
+		StageEvent event = null;
+		if(recording) {
+			event = new StageEvent();
+			event.begin();
+		}
+		return new Timer(stage, event, System.nanoTime(), allocatedBytes());
+	}
+	
+	/**
+	 * Counts one channel search.
+	 * @param steps The number of times the search moved outward before finding the match.
+	 */
+	static void recordSearch(int steps) {
+		searchSteps[32 - Integer.numberOfLeadingZeros(steps)].increment();
+	}
+	
+	/**
+	 * @return Returns a copy of the current counts.
+	 */
+	public static Snapshot snapshot() {
+		return new Snapshot(sum(counts), sum(nanos), sum(pixels), sum(allocated), sum(searchSteps));
+	}
+	
+	private static long allocatedBytes() {
+		return threadBean == null ? 0 : threadBean.getCurrentThreadAllocatedBytes();
+	}
+	
+	/**
+	 * @return Returns the thread bean if it can count allocated bytes, or null.
+	 */
+	private static com.sun.management.ThreadMXBean allocationBean() {
+		java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+			return (com.sun.management.ThreadMXBean) bean;
+		}
+		return null;
+	}
+	
+	private static LongAdder[] createAdders(int size) {
+		LongAdder[] adders = new LongAdder[size];
+		for(int i = 0; i < size; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+	
+	private static long[] sum(LongAdder[] adders) {
+		long[] sums = new long[adders.length];
+		for(int i = 0; i < adders.length; i++) {
+			sums[i] = adders[i].sum();
+		}
+		return sums;
+	}
+	
+	private static void emitSearchSteps() {
+		if(!enabled) {
+			return;
+		}
+		Snapshot snapshot = snapshot();
+		SearchStepsEvent event = new SearchStepsEvent();
+		event.searches = snapshot.getSearches();
+		event.medianSteps = snapshot.getSearchStepsPercentile(0.5);
+		event.p99Steps = snapshot.getSearchStepsPercentile(0.99);
+		event.maxSteps = snapshot.getSearchStepsPercentile(1);
+		event.commit();
+	}
+	
+	/**
+	 * Measures one run of a stage.
+	 */
+	static class Timer {
+		private final Stage stage;
+		private final StageEvent event;
+		private final long startNanos;
+		private final long startAllocated;
+		
+		private Timer(Stage stage, StageEvent event, long startNanos, long startAllocated) {
+			this.stage = stage;
+			this.event = event;
+			this.startNanos = startNanos;
+			this.startAllocated = startAllocated;
+		}
+		
+		/**
+		 * Ends the stage and records it.
+		 * @param pixelCount The number of pixels the stage handled.
+		 */
+		void stop(long pixelCount) {
+			if(stage == null) {
+				return;
+			}
+			long elapsed = System.nanoTime() - startNanos;
+			long bytes = allocatedBytes() - startAllocated;
+			if(enabled) {
+				int s = stage.ordinal();
+				counts[s].increment();
+				nanos[s].add(elapsed);
+				pixels[s].add(pixelCount);
+				allocated[s].add(bytes);
+			}
+			if(event != null) {
+				event.end();
+				event.stage = stage.name();
+				event.pixels = pixelCount;
+				event.allocatedBytes = bytes;
+				event.commit();
+			}
+		}
+	}
+	
+	/**
+	 * The counts at one moment.
+	 */
+	static class Snapshot {
+		private final long[] counts;
+		private final long[] nanos;
+		private final long[] pixels;
+		private final long[] allocated;
+		private final long[] searchSteps;
+		
+		private Snapshot(long[] counts, long[] nanos, long[] pixels, long[] allocated, long[] searchSteps) {
+			this.counts = counts;
+			this.nanos = nanos;
+			this.pixels = pixels;
+			this.allocated = allocated;
+			this.searchSteps = searchSteps;
+		}
+		
+		/**
+		 * @return Returns the number of times the stage ran.
+		 */
+		public long getCount(Stage stage) {
+			return counts[stage.ordinal()];
+		}
+		
+		/**
+		 * @return Returns the total time spent in the stage in nanoseconds.
+		 */
+		public long getNanos(Stage stage) {
+			return nanos[stage.ordinal()];
+		}
+		
+		/**
+		 * @return Returns the number of pixels the stage handled.
+		 */
+		public long getPixels(Stage stage) {
+			return pixels[stage.ordinal()];
+		}
+		
+		/**
+		 * @return Returns the pixels handled per second of time spent in the stage, or 0 if it never ran.
+		 */
+		public double getPixelsPerSecond(Stage stage) {
+			long time = getNanos(stage);
+			return time == 0 ? 0 : getPixels(stage) * 1e9 / time;
+		}
+		
+		/**
+		 * @return Returns the bytes allocated by the threads that started and stopped the stage, while it ran. 
+		 * Work handed to other threads is not included.
+		 */
+		public long getAllocatedBytes(Stage stage) {
+			return allocated[stage.ordinal()];
+		}
+		
+		/**
+		 * @return Returns the number of channel searches in each histogram bucket.
+		 */
+		public long[] getSearchHistogram() {
+			return searchSteps.clone();
+		}
+		
+		/**
+		 * @return Returns the number of channel searches.
+		 */
+		public long getSearches() {
+			long total = 0;
+			for(long count : searchSteps) {
+				total += count;
+			}
+			return total;
+		}
+		
+		/**
+		 * Estimates a percentile of the steps per search from the histogram.
+		 * @param fraction The percentile as a fraction from 0 to 1.
+		 * @return Returns the upper end of the bucket holding the percentile, or 0 if there were no searches.
+		 */
+		public long getSearchStepsPercentile(double fraction) {
+			long total = getSearches();
+			long seen = 0;
+			for(int b = 0; b < searchSteps.length; b++) {
+				seen += searchSteps[b];
+				if(total > 0 && seen >= Math.ceil(fraction * total)) {
+					return (1L << b) - 1;
+				}
+			}
+			return 0;
+		}
+		
+		/**
+		 * @return Returns a table with a line for each stage that ran, followed by the search histogram.
+		 */
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append(String.format("%-8s %8s %12s %12s %14s %12s%n", "stage", "runs", "ms", "pixels", "pixels/s", "alloc KB"));
+			for(Stage stage : Stage.values()) {
+				if(getCount(stage) > 0) {
+					report.append(String.format("%-8s %8d %12.1f %12d %14.0f %12d%n", stage, getCount(stage), getNanos(stage) / 1e6, 
+							getPixels(stage), getPixelsPerSecond(stage), getAllocatedBytes(stage) >> 10));
+				}
+			}
+			if(getSearches() > 0) {
+				report.append(String.format("searches %d, median steps <= %d, 99th percentile <= %d%n", getSearches(), 
+						getSearchStepsPercentile(0.5), getSearchStepsPercentile(0.99)));
+				for(int b = 0; b < searchSteps.length; b++) {
+					if(searchSteps[b] > 0) {
+						report.append(String.format("  steps %6d-%-6d %12d%n", b == 0 ? 0 : 1L << (b - 1), (1L << b) - 1, searchSteps[b]));
+					}
+				}
+			}
+			return report.toString();
+		}
+	}
+	
+	@jdk.jfr.Name("perlerbeads.ConversionStage")
+	@jdk.jfr.Label("Conversion Stage")
+	@jdk.jfr.Category("Perler Beads")
+	@jdk.jfr.Description("One stage of converting an image or exporting a template page.")
+	static class StageEvent extends jdk.jfr.Event {
+		@jdk.jfr.Label("Stage")
+		String stage;
+		
+		@jdk.jfr.Label("Pixels")
+		long pixels;
+		
+		@jdk.jfr.Label("Allocated")
+		@jdk.jfr.Description("Bytes allocated by the thread that ran the stage.")
+		@jdk.jfr.DataAmount
+		long allocatedBytes;
+	}
+	
+	@jdk.jfr.Name("perlerbeads.SearchSteps")
+	@jdk.jfr.Label("Channel Search Steps")
+	@jdk.jfr.Category("Perler Beads")
+	@jdk.jfr.Description("Summary of the steps per pixel taken by the channel search since the metrics were reset.")
+	@jdk.jfr.Period("1 s")
+	static class SearchStepsEvent extends jdk.jfr.Event {
+		@jdk.jfr.Label("Searches")
+		long searches;
+		
+		@jdk.jfr.Label("Median Steps")
+		long medianSteps;
+		
+		@jdk.jfr.Label("99th Percentile Steps")
+		long p99Steps;
+		
+		@jdk.jfr.Label("Most Steps")
+		long maxSteps;
+	}
+}
+
+/**
+ * Reads all pixels of an image into one int array without creating an object per pixel. The common image types 
+ * produced by ImageIO (packed int, interleaved byte and 8-bit indexed) are unpacked straight from the raster's data 
+ * buffer. Any other type is read a row at a time with getRGB, which gives the same values.
+ */
+class ImagePixelReader {
+	/**
+	 * Reads every pixel of an image.
+	 * @param image The image to read.
+	 * @return Returns the color of each pixel packed as 0xAARRGGBB, row by row.
+	 */
+	public static int[] readPixels(BufferedImage image) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] pixels = new int[width * height];
+		WritableRaster raster = image.getRaster();
+		SampleModel model = raster.getSampleModel();
+		DataBuffer buffer = raster.getDataBuffer();
+		// Child rasters, such as those from getSubimage, start part way into the buffer and use the slower path.
+		boolean translated = raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0;
+		
+		if(!translated && buffer.getNumBanks() == 1 && buffer instanceof DataBufferInt && model instanceof SinglePixelPackedSampleModel
+				&& (image.getType() == BufferedImage.TYPE_INT_RGB || image.getType() == BufferedImage.TYPE_INT_ARGB)) {
+			// Packed int pixels already use the 0xAARRGGBB layout. Opaque images get a full alpha channel.
+			int[] data = ((DataBufferInt) buffer).getData();
+			int stride = ((SinglePixelPackedSampleModel) model).getScanlineStride();
+			int offset = buffer.getOffset();
+			int alpha = image.getType() == BufferedImage.TYPE_INT_RGB ? 0xFF000000 : 0;
+			for(int y = 0; y < height; y++) {
+				int source = offset + y * stride;
+				int target = y * width;
+				if(alpha == 0) {
+					System.arraycopy(data, source, pixels, target, width);
+				} else {
+					for(int x = 0; x < width; x++) {
+						pixels[target + x] = data[source + x] | alpha;
+					}
+				}
+			}
+		} else if(!translated && buffer.getNumBanks() == 1 && buffer instanceof DataBufferByte && model instanceof PixelInterleavedSampleModel
+				&& (image.getType() == BufferedImage.TYPE_3BYTE_BGR || image.getType() == BufferedImage.TYPE_4BYTE_ABGR)) {
+			// Interleaved bytes stored as B, G, R or A, B, G, R.
+			byte[] data = ((DataBufferByte) buffer).getData();
+			PixelInterleavedSampleModel interleaved = (PixelInterleavedSampleModel) model;
+			int stride = interleaved.getScanlineStride();
+			int step = interleaved.getPixelStride();
+			int[] offsets = interleaved.getBandOffsets();
+			boolean hasAlpha = offsets.length == 4;
+			int offset = buffer.getOffset();
+			for(int y = 0; y < height; y++) {
+				int source = offset + y * stride;
+				int target = y * width;
+				for(int x = 0; x < width; x++, source += step) {
+					int alpha = hasAlpha ? data[source + offsets[3]] & 0xFF : 0xFF;
+					pixels[target + x] = (alpha << 24) | ((data[source + offsets[0]] & 0xFF) << 16)
+							| ((data[source + offsets[1]] & 0xFF) << 8) | (data[source + offsets[2]] & 0xFF);
+				}
+			}
+		} else if(!translated && buffer.getNumBanks() == 1 && buffer instanceof DataBufferByte && model instanceof PixelInterleavedSampleModel
+				&& model.getNumBands() == 1 && image.getColorModel() instanceof IndexColorModel) {
+			// 8-bit indexed images. Look each index up in the color table.
+			IndexColorModel colorModel = (IndexColorModel) image.getColorModel();
+			int[] colors = new int[256];
+			colorModel.getRGBs(colors);
+			byte[] data = ((DataBufferByte) buffer).getData();
+			int stride = ((PixelInterleavedSampleModel) model).getScanlineStride();
+			int offset = buffer.getOffset();
+			for(int y = 0; y < height; y++) {
+				int source = offset + y * stride;
+				int target = y * width;
+				for(int x = 0; x < width; x++) {
+					pixels[target + x] = colors[data[source + x] & 0xFF];
+				}
+			}
+		} else {
+			// Any other layout. getRGB converts a whole row per call.
+			for(int y = 0; y < height; y++) {
+				image.getRGB(0, y, width, 1, pixels, y * width, width);
+			}
+		}
+		return pixels;
+	}
+}
+
+/**
+ * Finds the closest bead color in a palette for a single pixel. Implementations are created once per palette
+ * by a MatchingStrategy and then called for every pixel of the image.
+ */
+interface BeadMatcher {
+	/**
+	 * Finds the bead color that best matches a pixel.
+	 * @param rgb The pixel color packed as 0xRRGGBB. Any alpha bits are ignored.
+	 * @return Returns the index of the matching bead in the palette.
+	 */
+	int findClosestBead(int rgb);
+}
+
+/**
+ * The available methods for matching pixel colors to bead colors.
+ */
+enum MatchingStrategy {
+	/** The original search, which walks outward through palette copies sorted by each color channel. */
+	CHANNEL_SEARCH {
+		BeadMatcher createMatcher(BeadPalette palette) {
+			return ChannelSearchMatcher.forPalette(palette);
+		}
+	},
+	/** Nearest color by RGB distance, answered from a precomputed lookup table. */
+	LOOKUP_TABLE {
+		BeadMatcher createMatcher(BeadPalette palette) {
+			return LookupTableMatcher.forPalette(palette);
+		}
+	},
+	/** Nearest color by RGB distance, found by searching a k-d tree of the palette. Suited to large palettes. */
+	KD_TREE {
+		BeadMatcher createMatcher(BeadPalette palette) {
+			return new KdTreeMatcher(palette);
+		}
+	},
+	/** Nearest color by the CIEDE2000 color difference, which follows how people see color differences. */
+	CIEDE2000 {
+		BeadMatcher createMatcher(BeadPalette palette) {
+			return new CiedeMatcher(palette);
+		}
+	},
+	/** Nearest color by RGB distance, checking many palette colors at once with the Vector API when it is available. */
+	VECTOR {
+		BeadMatcher createMatcher(BeadPalette palette) {
+			return NearestColorMatcher.forPalette(palette);
+		}
+	};
+	
+	/**
+	 * Creates a matcher for the given palette.
+	 * @param palette The bead colors to match against.
+	 * @return Returns a BeadMatcher for the palette.
+	 */
+	abstract BeadMatcher createMatcher(BeadPalette palette);
+}
+
+/**
+ * The original channel search. Each color channel keeps a copy of the palette sorted by that channel. Starting from
+ * the closest value on each channel, the search walks outward on all three channels at once and flags every bead it 
+ * passes as a possible match for that channel. The first bead to be flagged on all three channels is the match.
+ */
+class ChannelSearchMatcher implements BeadMatcher {
+	// Number of palettes to keep matchers for.
+	private static final int CACHE_SIZE = 8;
+	
+	// Recently used matchers, keyed by palette contents.
+	private static final Map<String, ChannelSearchMatcher> cache = Collections.synchronizedMap(
+			new LinkedHashMap<String, ChannelSearchMatcher>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, ChannelSearchMatcher> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+	
+	private final BeadPalette palette;
+	// Palette indexes sorted by the red, green and blue channel.
+	private final int[] redChannelArray;
+	private final int[] greenChannelArray;
+	private final int[] blueChannelArray;
+	
+	/**
+	 * Constructor for ChannelSearchMatcher. Sorts the palette by each color channel.
+	 * @param palette The bead colors to match against.
+	 */
+	public ChannelSearchMatcher(BeadPalette palette) {
+		this(palette, channelOrder(palette));
+	}
+	
+	/**
+	 * Constructor for ChannelSearchMatcher using channel orders that were sorted earlier.
+	 * @param palette The bead colors to match against.
+	 * @param channelOrder The palette indexes sorted by red, green and blue, as made by channelOrder.
+	 */
+	ChannelSearchMatcher(BeadPalette palette, int[][] channelOrder) {
+		this.palette = palette;
+		redChannelArray = channelOrder[0];
+		greenChannelArray = channelOrder[1];
+		blueChannelArray = channelOrder[2];
+	}
+	
+	/**
+	 * Returns the matcher for a palette, reusing one made for the same palette contents if it is cached.
+	 * @param palette The bead colors to match against.
+	 * @return Returns a ChannelSearchMatcher for the palette.
+	 */
+	public static ChannelSearchMatcher forPalette(BeadPalette palette) {
+		ChannelSearchMatcher matcher = cache.get(palette.getKey());
+		if(matcher == null) {
+			matcher = new ChannelSearchMatcher(palette);
+			cache.put(palette.getKey(), matcher);
+		}
+		return matcher;
+	}
+	
+	/**
+	 * Caches a matcher built from channel orders that were sorted earlier, so that later conversions with the 
+	 * same palette skip the sort.
+	 */
+	static void preload(BeadPalette palette, int[][] channelOrder) {
+		cache.put(palette.getKey(), new ChannelSearchMatcher(palette, channelOrder));
+	}
+	
+	/**
+	 * Sorts the palette indexes by each color channel.
+	 * @return Returns three arrays of palette indexes, sorted by red, green and blue.
+	 */
+	static int[][] channelOrder(BeadPalette palette) {
+		return new int[][] {
+			sortByChannel(palette, new RedChannelComparator()),
+			sortByChannel(palette, new GreenChannelComparator()),
+			sortByChannel(palette, new BlueChannelComparator())
+		};
+	}
+	
+	/**
+	 * Sorts the palette indexes by one color channel. The sort is stable, so beads with equal values keep their
+	 * palette order.
+	 */
+	private static int[] sortByChannel(BeadPalette palette, Comparator<Bead> comparator) {
+		Integer[] order = new Integer[palette.size()];
+		for(int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> comparator.compare(palette.getBead(a), palette.getBead(b)));
+		int[] sorted = new int[order.length];
+		for(int i = 0; i < order.length; i++) {
+			sorted[i] = order[i];
+		}
+		return sorted;
+	}
+	
+	/**
+	 * Finds the starting point of the search on one channel: the first bead whose value is not below the pixel's
+	 * value, or the last bead if every value is lower.
+	 */
+	private int startIndex(int[] channelArray, int shift, int value) {
+		int k = 0;
+		while(k < channelArray.length - 1 && value > ((palette.getRGB(channelArray[k]) >> shift) & 0xFF)) {
+			k++;
+		}
+		return k;
+	}
+	
+	public int findClosestBead(int rgb) {
+		// Create starting index for search on each color channel. Find closest matching value in each channel as initial point of search.
+		int redIndex = startIndex(redChannelArray, 16, (rgb >> 16) & 0xFF);
+		int greenIndex = startIndex(greenChannelArray, 8, (rgb >> 8) & 0xFF);
+		int blueIndex = startIndex(blueChannelArray, 0, rgb & 0xFF);
+		
+		// Create map to hold all possible bead colors for this pixel. 
+		Map<String,ColorMatch> colorMap = new HashMap<>();
+		
+		// Create ColorMatch object for use in calling ColorMatch methods.
+		ColorMatch masterMatch = new ColorMatch();
+		
+		// Index integer to navigate the color channel arrays.
+		int moveIndex = 1;
+		// Number of times the search has moved outward, for the metrics.
+		int steps = 0;
+		
+		// Booleans to confirm that the array has reached one of its ends.
+		boolean stepForwardRed = false;
+		boolean stepBackwardRed = false;
+		boolean stepForwardGreen = false;
+		boolean stepBackwardGreen = false;
+		boolean stepForwardBlue = false;
+		boolean stepBackwardBlue = false;
+		
+		// Compare pixel color values to beads in palette until the closest match is identified.
+		while(true) {
+			// Add new bead color to each channel. Check to see if this bead is found in all channels.
+			if(masterMatch.addBeadAsPossibleMatch(colorMap, palette.getBead(redChannelArray[redIndex]).getCode(), 0)) {
+				return found(redChannelArray[redIndex], steps);
+			}
+			if(masterMatch.addBeadAsPossibleMatch(colorMap, palette.getBead(greenChannelArray[greenIndex]).getCode(), 1)) {
+				return found(greenChannelArray[greenIndex], steps);
+			}
+			if(masterMatch.addBeadAsPossibleMatch(colorMap, palette.getBead(blueChannelArray[blueIndex]).getCode(), 2)) {
+				return found(blueChannelArray[blueIndex], steps);
+			}
+			
+			// If a color match has not been confirmed, move the index on each color channel array.
+			steps++;
+			moveIndex *= -1;
+			if(moveIndex > 0) {
+				moveIndex++;
+			} else {
+				moveIndex--;
+			}
+			
+			// Navigate red channel array
+			if(stepForwardRed) {
+				redIndex++;
+			} else if(stepBackwardRed) {
+				redIndex--;
+			} else if(redIndex + moveIndex > redChannelArray.length - 1) {
+				redIndex--;
+				stepBackwardRed = true;
+			} else if(redIndex + moveIndex < 0) {
+				redIndex++;
+				stepForwardRed = true;
+			} else {
+				redIndex += moveIndex;
+			}
+			
+			// Navigate green channel array
+			if(stepForwardGreen) {
+				greenIndex++;
+			} else if(stepBackwardGreen) {
+				greenIndex--;
+			} else if(greenIndex + moveIndex > greenChannelArray.length - 1) {
+				greenIndex--;
+				stepBackwardGreen = true;
+			} else if(greenIndex + moveIndex < 0) {
+				greenIndex++;
+				stepForwardGreen = true;
+			} else {
+				greenIndex += moveIndex;
+			}
+			
+			// Navigate blue channel array
+			if(stepForwardBlue) {
+				blueIndex++;
+			} else if(stepBackwardBlue) {
+				blueIndex--;
+			} else if(blueIndex + moveIndex > blueChannelArray.length - 1) {
+				blueIndex--;
+				stepBackwardBlue = true;
+			} else if(blueIndex + moveIndex < 0) {
+				blueIndex++;
+				stepForwardBlue = true;
+			} else {
+				blueIndex += moveIndex;
+			}
+		}
+	}
+	
+	/**
+	 * Counts the search in the metrics and returns the match.
+	 */
+	private static int found(int index, int steps) {
+		if(ConversionMetrics.isEnabled()) {
+			ConversionMetrics.recordSearch(steps);
+		}
+		return index;
+	}
+}
+
+/**
+ * Matches each pixel to the bead with the smallest RGB distance by reading a precomputed table. The color cube is 
+ * divided into cells of 8x8x8 values. Because the set of colors closest to one bead is convex, a cell whose eight 
+ * corners all match the same bead matches that bead everywhere, and the table stores it directly. Cells on the 
+ * border between beads are marked as ambiguous and are refined to an exact table of every color in the cell the 
+ * first time a pixel falls inside them. Exact matches are found with a k-d tree of the palette. Tables are cached 
+ * by palette contents, so they are only built once per palette.
+ */
+class LookupTableMatcher implements BeadMatcher {
+	// Bits kept from each channel to select a cell, and the number of values per channel inside each cell.
+	static final int BITS = 5;
+	static final int SHIFT = 8 - BITS;
+	static final int CELLS = 1 << BITS;
+	static final int CELL_SIZE = 1 << SHIFT;
+	// Table value for cells that contain more than one closest bead.
+	private static final short AMBIGUOUS = -1;
+	// Number of palettes to keep tables for.
+	private static final int CACHE_SIZE = 8;
+	
+	// Recently used tables, keyed by palette contents.
+	private static final Map<String, LookupTableMatcher> cache = Collections.synchronizedMap(
+			new LinkedHashMap<String, LookupTableMatcher>(16, 0.75f, true) {
+				protected boolean removeEldestEntry(Map.Entry<String, LookupTableMatcher> eldest) {
+					return size() > CACHE_SIZE;
+				}
+			});
+	
+	// Exact matcher used to fill the table.
+	private final KdTreeMatcher exact;
+	// The closest bead for each cell, or AMBIGUOUS.
+	private final short[] table;
+	// Exact tables for ambiguous cells, created when first needed.
+	private final AtomicReferenceArray<short[]> refinedCells;
+	
+	/**
+	 * Returns the lookup table for a palette, building it if no table for the same palette contents is cached.
+	 * @param palette The bead colors to match against.
+	 * @return Returns a LookupTableMatcher for the palette.
+	 */
+	public static LookupTableMatcher forPalette(BeadPalette palette) {
+		LookupTableMatcher matcher = cache.get(palette.getKey());
+		if(matcher == null) {
+			matcher = new LookupTableMatcher(palette);
+			cache.put(palette.getKey(), matcher);
+		}
+		return matcher;
+	}
+	
+	/**
+	 * Caches a matcher built from a table that was filled earlier, so that later conversions with the same palette 
+	 * skip filling it.
+	 * @param palette The bead colors to match against.
+	 * @param table The table, as returned by getTable for the same palette.
+	 */
+	static void preload(BeadPalette palette, short[] table) {
+		cache.put(palette.getKey(), new LookupTableMatcher(palette, table));
+	}
+	
+	/**
+	 * Constructor for LookupTableMatcher using a table that was filled earlier.
+	 */
+	private LookupTableMatcher(BeadPalette palette, short[] table) {
+		if(table.length != CELLS * CELLS * CELLS) {
+			throw new IllegalArgumentException("Table must have " + CELLS * CELLS * CELLS + " cells.");
+		}
+		exact = new KdTreeMatcher(palette);
+		this.table = table;
+		refinedCells = new AtomicReferenceArray<>(table.length);
+	}
+	
+	/**
+	 * Constructor for LookupTableMatcher. Finds the closest bead at the corners of every cell and fills the table.
+	 * @param palette The bead colors to match against.
+	 */
+	LookupTableMatcher(BeadPalette palette) {
+		if(palette.size() == 0 || palette.size() > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Palette must contain between 1 and " + Short.MAX_VALUE + " colors.");
+		}
+		exact = new KdTreeMatcher(palette);
+		table = new short[CELLS * CELLS * CELLS];
+		refinedCells = new AtomicReferenceArray<>(table.length);
+		
+		// Each cell has a low and a high corner value on every channel. Corner 2c is the lowest value in cell c 
+		// and corner 2c + 1 is the highest.
+		int corners = CELLS * 2;
+		int[] cornerValues = new int[corners];
+		for(int c = 0; c < CELLS; c++) {
+			cornerValues[2 * c] = c << SHIFT;
+			cornerValues[2 * c + 1] = (c << SHIFT) + CELL_SIZE - 1;
+		}
+		short[] cornerMatches = new short[corners * corners * corners];
+		for(int r = 0; r < corners; r++) {
+			for(int g = 0; g < corners; g++) {
+				for(int b = 0; b < corners; b++) {
+					cornerMatches[(r * corners + g) * corners + b] = (short) exact.findClosestBead((cornerValues[r] << 16) | (cornerValues[g] << 8) | cornerValues[b]);
+				}
+			}
+		}
+		
+		// A cell is resolved when all eight of its corners match the same bead.
+		for(int r = 0; r < CELLS; r++) {
+			for(int g = 0; g < CELLS; g++) {
+				for(int b = 0; b < CELLS; b++) {
+					short match = cornerMatches[((2 * r) * corners + 2 * g) * corners + 2 * b];
+					for(int corner = 1; corner < 8 && match != AMBIGUOUS; corner++) {
+						int cr = 2 * r + (corner >> 2);
+						int cg = 2 * g + ((corner >> 1) & 1);
+						int cb = 2 * b + (corner & 1);
+						if(cornerMatches[(cr * corners + cg) * corners + cb] != match) {
+							match = AMBIGUOUS;
+						}
+					}
+					table[(r << (2 * BITS)) | (g << BITS) | b] = match;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return Returns the closest bead for each cell, or -1 for cells that need an exact lookup.
+	 */
+	short[] getTable() {
+		return table;
+	}
+	
+	public int findClosestBead(int rgb) {
+		int red = (rgb >> 16) & 0xFF;
+		int green = (rgb >> 8) & 0xFF;
+		int blue = rgb & 0xFF;
+		int cell = ((red >> SHIFT) << (2 * BITS)) | ((green >> SHIFT) << BITS) | (blue >> SHIFT);
+		short match = table[cell];
+		if(match != AMBIGUOUS) {
+			return match;
+		}
+		// Border cell. Look up the color in the exact table for this cell.
+		int mask = CELL_SIZE - 1;
+		return refineCell(cell)[(((red & mask) << SHIFT) | (green & mask)) << SHIFT | (blue & mask)];
+	}
+	
+	/**
+	 * Returns the exact table for an ambiguous cell, building it if needed. If two threads build the same cell at
+	 * once, both tables are identical and either one may be kept.
+	 */
+	private short[] refineCell(int cell) {
+		short[] refined = refinedCells.get(cell);
+		if(refined == null) {
+			int red = (cell >> (2 * BITS)) << SHIFT;
+			int green = ((cell >> BITS) & (CELLS - 1)) << SHIFT;
+			int blue = (cell & (CELLS - 1)) << SHIFT;
+			refined = new short[CELL_SIZE * CELL_SIZE * CELL_SIZE];
+			int k = 0;
+			for(int r = 0; r < CELL_SIZE; r++) {
+				for(int g = 0; g < CELL_SIZE; g++) {
+					for(int b = 0; b < CELL_SIZE; b++) {
+						refined[k++] = (short) exact.findClosestBead(((red + r) << 16) | ((green + g) << 8) | (blue + b));
+					}
+				}
+			}
+			refinedCells.compareAndSet(cell, null, refined);
+			refined = refinedCells.get(cell);
+		}
+		return refined;
+	}
+}
+
+/**
+ * Matches each pixel to the bead with the smallest RGB distance by checking every bead. The palette's channels are 
+ * kept in three int arrays, so the loop reads plain numbers instead of calling getColor() on each bead. When the 
+ * jdk.incubator.vector module is present, forPalette returns VectorNearestMatcher instead, which checks several beads 
+ * per instruction. That class is loaded by name, so this file builds and runs without the module.
+ */
+class NearestColorMatcher implements BeadMatcher {
+	// Name of the Vector API matcher, which is compiled separately with --add-modules jdk.incubator.vector.
+	static final String VECTOR_MATCHER = "VectorNearestMatcher";
+	// Constructor of the Vector API matcher, or null if it cannot be loaded.
+	private static final java.lang.reflect.Constructor<?> vectorConstructor = findVectorMatcher();
+	
+	private final int[] red;
+	private final int[] green;
+	private final int[] blue;
+	
+	/**
+	 * Constructor for NearestColorMatcher. Splits the palette into channel arrays.
+	 * @param palette The bead colors to match against.
+	 */
+	public NearestColorMatcher(BeadPalette palette) {
+		if(palette.size() == 0) {
+			throw new IllegalArgumentException("Palette must contain at least one color.");
+		}
+		red = new int[palette.size()];
+		green = new int[palette.size()];
+		blue = new int[palette.size()];
+		for(int i = 0; i < palette.size(); i++) {
+			red[i] = (palette.getRGB(i) >> 16) & 0xFF;
+			green[i] = (palette.getRGB(i) >> 8) & 0xFF;
+			blue[i] = palette.getRGB(i) & 0xFF;
+		}
+	}
+	
+	/**
+	 * Creates the fastest matcher available for a palette: the Vector API matcher if it can be loaded, or else 
+	 * this scalar one. Both give the same results.
+	 * @param palette The bead colors to match against.
+	 * @return Returns a BeadMatcher for the palette.
+	 */
+	public static BeadMatcher forPalette(BeadPalette palette) {
+		if(vectorConstructor != null) {
+			try {
+				return (BeadMatcher) vectorConstructor.newInstance(palette);
+			} catch (java.lang.reflect.InvocationTargetException e) {
+				// Failures of the constructor itself, such as an empty palette or running out of memory, are passed on.
+				if(e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				if(e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+			} catch (ReflectiveOperationException e) {
+				// The constructor was made once already by findVectorMatcher, so this should not happen. If it does, 
+				// the scalar matcher below gives the same results.
+			}
+		}
+		return new NearestColorMatcher(palette);
+	}
+	
+	/**
+	 * @return Returns true if forPalette returns the Vector API matcher.
+	 */
+	public static boolean isVectorized() {
+		return vectorConstructor != null;
+	}
+	
+	/**
+	 * Loads the Vector API matcher and makes one, so that a missing module shows up here rather than on first use.
+	 */
+	private static java.lang.reflect.Constructor<?> findVectorMatcher() {
+		try {
+			java.lang.reflect.Constructor<?> constructor = Class.forName(VECTOR_MATCHER).getConstructor(BeadPalette.class);
+			ArrayList<Bead> test = new ArrayList<>();
+			test.add(new Bead("Black", "18", Color.BLACK));
+			constructor.newInstance(new BeadPalette(test));
+			return constructor;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return null;
+		}
+	}
+	
+	public int findClosestBead(int rgb) {
+		int r = (rgb >> 16) & 0xFF;
+		int g = (rgb >> 8) & 0xFF;
+		int b = rgb & 0xFF;
+		int best = 0;
+		int bestDistance = Integer.MAX_VALUE;
+		for(int i = 0; i < red.length; i++) {
+			int dr = r - red[i];
+			int dg = g - green[i];
+			int db = b - blue[i];
+			int distance = dr * dr + dg * dg + db * db;
+			if(distance < bestDistance) {
+				bestDistance = distance;
+				best = i;
+			}
+		}
+		return best;
+	}
+}
+
+/**
+ * Matches each pixel to the bead with the smallest RGB distance using a k-d tree. The palette is split at the 
+ * median of the red, green and blue channel in turn, and the tree is stored in one array: the bead in the middle 
+ * of each range is the node, and the two halves are its children. A search visits the side of each node that holds 
+ * the pixel first and only crosses to the other side when the splitting plane is closer than the best bead found 
+ * so far, so most of the palette is never looked at. Small ranges are left unsplit and checked bead by bead.
+ */
+class KdTreeMatcher implements BeadMatcher {
+	// Ranges with this many beads or fewer are scanned instead of split.
+	static final int LEAF_SIZE = 8;
+	// Palette colors in tree order, packed as 0xRRGGBB, and the palette index of each.
+	private final int[] nodeColor;
+	private final int[] nodeIndex;
+	
+	/**
+	 * Constructor for KdTreeMatcher. Builds the tree from the palette.
+	 * @param palette The bead colors to match against.
+	 */
+	public KdTreeMatcher(BeadPalette palette) {
+		if(palette.size() == 0) {
+			throw new IllegalArgumentException("Palette must contain at least one color.");
+		}
+		nodeIndex = new int[palette.size()];
+		nodeColor = new int[palette.size()];
+		for(int i = 0; i < nodeIndex.length; i++) {
+			nodeIndex[i] = i;
+			nodeColor[i] = palette.getRGB(i);
+		}
+		build(0, nodeIndex.length, 0);
+	}
+	
+	/**
+	 * Returns the channel value used to split the tree at the given depth (0 = R, 1 = G, 2 = B).
+	 */
+	private static int channel(int rgb, int depth) {
+		return (rgb >> (16 - 8 * (depth % 3))) & 0xFF;
+	}
+	
+	/**
+	 * Arranges a range of the arrays so that the middle entry is the median on this depth's channel, with lower 
+	 * values before it and higher values after it, then builds both halves.
+	 */
+	private void build(int lo, int hi, int depth) {
+		if(hi - lo <= LEAF_SIZE) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		// Quickselect the median into the middle position.
+		int left = lo;
+		int right = hi - 1;
+		while(left < right) {
+			int pivot = channel(nodeColor[(left + right) >>> 1], depth);
+			int i = left;
+			int j = right;
+			while(i <= j) {
+				while(channel(nodeColor[i], depth) < pivot) {
+					i++;
+				}
+				while(channel(nodeColor[j], depth) > pivot) {
+					j--;
+				}
+				if(i <= j) {
+					swap(i++, j--);
+				}
+			}
+			if(mid <= j) {
+				right = j;
+			} else if(mid >= i) {
+				left = i;
+			} else {
+				break;
+			}
+		}
+		build(lo, mid, depth + 1);
+		build(mid + 1, hi, depth + 1);
+	}
+	
+	private void swap(int i, int j) {
+		int color = nodeColor[i];
+		nodeColor[i] = nodeColor[j];
+		nodeColor[j] = color;
+		int index = nodeIndex[i];
+		nodeIndex[i] = nodeIndex[j];
+		nodeIndex[j] = index;
+	}
+	
+	public int findClosestBead(int rgb) {
+		return (int) search(0, nodeIndex.length, 0, rgb & 0xFFFFFF, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Searches one range of the tree. The best match so far is packed into a long with the squared distance in the 
+	 * high half and the palette index in the low half, so comparing two packed values also breaks ties in favor of 
+	 * the bead listed first in the palette.
+	 * @return Returns the packed best match after searching this range.
+	 */
+	private long search(int lo, int hi, int depth, int rgb, long best) {
+		if(hi - lo <= LEAF_SIZE) {
+			for(int i = lo; i < hi; i++) {
+				best = Math.min(best, candidate(i, rgb));
+			}
+			return best;
+		}
+		int mid = (lo + hi) >>> 1;
+		int color = nodeColor[mid];
+		best = Math.min(best, candidate(mid, rgb));
+		int diff = channel(rgb, depth) - channel(color, depth);
+		// Search the near side first, then the far side only if it could hold a bead at least as close.
+		if(diff < 0) {
+			best = search(lo, mid, depth + 1, rgb, best);
+			if((long) diff * diff <= (best >>> 32)) {
+				best = search(mid + 1, hi, depth + 1, rgb, best);
+			}
+		} else {
+			best = search(mid + 1, hi, depth + 1, rgb, best);
+			if((long) diff * diff <= (best >>> 32)) {
+				best = search(lo, mid, depth + 1, rgb, best);
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * Packs the squared distance between a pixel and one tree entry together with the entry's palette index.
+	 */
+	private long candidate(int node, int rgb) {
+		int color = nodeColor[node];
+		int dr = ((rgb >> 16) & 0xFF) - ((color >> 16) & 0xFF);
+		int dg = ((rgb >> 8) & 0xFF) - ((color >> 8) & 0xFF);
+		int db = (rgb & 0xFF) - (color & 0xFF);
+		return ((long) (dr * dr + dg * dg + db * db) << 32) | nodeIndex[node];
+	}
+}
+
+/**
+ * Matches each pixel to the bead with the smallest CIEDE2000 color difference. Every palette color is converted to 
+ * CIELAB once and the palette is sorted by lightness. Lightness alone sets a lower limit on the CIEDE2000 difference, 
+ * so the search starts at the bead with the closest lightness, works outward, and stops as soon as the lightness gap 
+ * alone is larger than the best difference found. Each thread keeps a small cache of recently seen pixel colors with 
+ * their Lab values and matches, since neighboring pixels usually repeat colors.
+ */
+class CiedeMatcher implements BeadMatcher {
+	// Largest lightness weighting (S_L) for lightness values between 0 and 100.
+	private static final double MAX_LIGHTNESS_WEIGHT = 1 + 0.015 * 2500 / Math.sqrt(2520);
+	
+	// Palette colors in CIELAB sorted by lightness, and the palette index of each.
+	private final double[] lightness;
+	private final double[] aValues;
+	private final double[] bValues;
+	private final int[] paletteIndex;
+	private final ThreadLocal<LabCache> caches = ThreadLocal.withInitial(LabCache::new);
+	
+	/**
+	 * Constructor for CiedeMatcher. Converts the palette to CIELAB and sorts it by lightness.
+	 * @param palette The bead colors to match against.
+	 */
+	public CiedeMatcher(BeadPalette palette) {
+		if(palette.size() == 0) {
+			throw new IllegalArgumentException("Palette must contain at least one color.");
+		}
+		int size = palette.size();
+		double[][] lab = new double[size][];
+		Integer[] order = new Integer[size];
+		for(int i = 0; i < size; i++) {
+			lab[i] = LabColorSpace.toLab(palette.getRGB(i));
+			order[i] = i;
+		}
+		Arrays.sort(order, (x, y) -> Double.compare(lab[x][0], lab[y][0]));
+		lightness = new double[size];
+		aValues = new double[size];
+		bValues = new double[size];
+		paletteIndex = new int[size];
+		for(int i = 0; i < size; i++) {
+			paletteIndex[i] = order[i];
+			lightness[i] = lab[order[i]][0];
+			aValues[i] = lab[order[i]][1];
+			bValues[i] = lab[order[i]][2];
+		}
+	}
+	
+	public int findClosestBead(int rgb) {
+		rgb &= 0xFFFFFF;
+		LabCache cache = caches.get();
+		int slot = cache.slot(rgb);
+		if(cache.keys[slot] == (rgb | LabCache.USED)) {
+			if(cache.matches[slot] >= 0) {
+				return cache.matches[slot];
+			}
+		} else {
+			double[] lab = LabColorSpace.toLab(rgb);
+			cache.keys[slot] = rgb | LabCache.USED;
+			cache.lab[3 * slot] = lab[0];
+			cache.lab[3 * slot + 1] = lab[1];
+			cache.lab[3 * slot + 2] = lab[2];
+		}
+		int match = search(cache.lab[3 * slot], cache.lab[3 * slot + 1], cache.lab[3 * slot + 2]);
+		cache.matches[slot] = match;
+		return match;
+	}
+	
+	/**
+	 * Finds the palette color with the smallest CIEDE2000 difference from a Lab color.
+	 * @return Returns the palette index of the closest bead.
+	 */
+	private int search(double l, double a, double b) {
+		// Find the first palette color that is not darker than the pixel.
+		int up = 0;
+		int down = lightness.length - 1;
+		while(up <= down) {
+			int mid = (up + down) >>> 1;
+			if(lightness[mid] < l) {
+				up = mid + 1;
+			} else {
+				down = mid - 1;
+			}
+		}
+		
+		// Visit colors in order of increasing lightness gap, alternating between lighter and darker ones.
+		double chroma = Math.sqrt(a * a + b * b);
+		double bestDistance = Double.MAX_VALUE;
+		int best = Integer.MAX_VALUE;
+		while(up < lightness.length || down >= 0) {
+			int k;
+			if(down < 0 || (up < lightness.length && lightness[up] - l <= l - lightness[down])) {
+				k = up++;
+			} else {
+				k = down--;
+			}
+			double bound = (lightness[k] - l) / MAX_LIGHTNESS_WEIGHT;
+			if(bound * bound > bestDistance) {
+				break;
+			}
+			double distance = LabColorSpace.deltaE2000Squared(l, a, b, chroma, lightness[k], aValues[k], bValues[k], bestDistance);
+			if(distance < bestDistance || (distance == bestDistance && paletteIndex[k] < best)) {
+				bestDistance = distance;
+				best = paletteIndex[k];
+			}
+		}
+		return best;
+	}
+	
+	/**
+	 * A fixed-size cache of pixel colors. Each color has one possible slot, and a new color replaces whatever was 
+	 * stored there.
+	 */
+	static class LabCache {
+		static final int BITS = 12;
+		// Marks a key as used, so that black (0) can be told apart from an empty slot.
+		static final int USED = 1 << 24;
+		final int[] keys = new int[1 << BITS];
+		final double[] lab = new double[3 << BITS];
+		final int[] matches = new int[1 << BITS];
+		
+		int slot(int rgb) {
+			return (rgb * 0x9E3779B1) >>> (32 - BITS);
+		}
+	}
+}
+
+/**
+ * Conversions from sRGB to CIELAB (D65 white point) and the CIEDE2000 color difference formula.
+ */
+class LabColorSpace {
+	// Linear light value of each 8-bit sRGB channel value.
+	private static final double[] LINEAR = new double[256];
+	// Reference white.
+	private static final double WHITE_X = 0.95047;
+	private static final double WHITE_Y = 1.0;
+	private static final double WHITE_Z = 1.08883;
+	private static final double POW25_7 = Math.pow(25, 7);
+	private static final double COS_30 = Math.cos(Math.toRadians(30));
+	private static final double SIN_30 = Math.sin(Math.toRadians(30));
+	private static final double COS_6 = Math.cos(Math.toRadians(6));
+	private static final double SIN_6 = Math.sin(Math.toRadians(6));
+	private static final double COS_63 = Math.cos(Math.toRadians(63));
+	private static final double SIN_63 = Math.sin(Math.toRadians(63));
+	
+	static {
+		for(int i = 0; i < 256; i++) {
+			double c = i / 255.0;
+			LINEAR[i] = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+		}
+	}
+	
+	/**
+	 * Converts a color to CIELAB.
+	 * @param rgb The color packed as 0xRRGGBB.
+	 * @return Returns an array holding L, a and b.
+	 */
+	public static double[] toLab(int rgb) {
+		double r = LINEAR[(rgb >> 16) & 0xFF];
+		double g = LINEAR[(rgb >> 8) & 0xFF];
+		double b = LINEAR[rgb & 0xFF];
+		double fx = labCurve((0.4124564 * r + 0.3575761 * g + 0.1804375 * b) / WHITE_X);
+		double fy = labCurve((0.2126729 * r + 0.7151522 * g + 0.0721750 * b) / WHITE_Y);
+		double fz = labCurve((0.0193339 * r + 0.1191920 * g + 0.9503041 * b) / WHITE_Z);
+		return new double[] {116 * fy - 16, 500 * (fx - fy), 200 * (fy - fz)};
+	}
+	
+	private static double labCurve(double t) {
+		return t > 216.0 / 24389 ? Math.cbrt(t) : (24389.0 / 27 * t + 16) / 116;
+	}
+	
+	/**
+	 * Calculates the CIEDE2000 color difference between two Lab colors.
+	 * @return Returns the color difference.
+	 */
+	public static double deltaE2000(double l1, double a1, double b1, double l2, double a2, double b2) {
+		return Math.sqrt(deltaE2000Squared(l1, a1, b1, Math.sqrt(a1 * a1 + b1 * b1), l2, a2, b2, Double.MAX_VALUE));
+	}
+	
+	/**
+	 * Calculates the square of the CIEDE2000 color difference. The lightness term is worked out first, and if it 
+	 * alone is larger than the limit the rest of the formula is skipped and that partial value is returned.
+	 * @param chroma1 The chroma of the first color, sqrt(a1^2 + b1^2).
+	 * @param limit The squared difference above which the exact value is not needed.
+	 * @return Returns the squared color difference, or a value larger than the limit.
+	 */
+	static double deltaE2000Squared(double l1, double a1, double b1, double chroma1, double l2, double a2, double b2, double limit) {
+		// Lightness.
+		double meanL = (l1 + l2) / 2 - 50;
+		double sl = 1 + 0.015 * meanL * meanL / Math.sqrt(20 + meanL * meanL);
+		double lTerm = (l2 - l1) / sl;
+		double distance = lTerm * lTerm;
+		if(distance > limit) {
+			return distance;
+		}
+		
+		// Chroma, with the a axis stretched for neutral colors.
+		double meanC = (chroma1 + Math.sqrt(a2 * a2 + b2 * b2)) / 2;
+		double meanC7 = pow7(meanC);
+		double g = 0.5 * (1 - Math.sqrt(meanC7 / (meanC7 + POW25_7)));
+		double ap1 = (1 + g) * a1;
+		double ap2 = (1 + g) * a2;
+		double cp1 = Math.sqrt(ap1 * ap1 + b1 * b1);
+		double cp2 = Math.sqrt(ap2 * ap2 + b2 * b2);
+		
+		// Hue.
+		double hp1 = cp1 == 0 ? 0 : Math.toDegrees(Math.atan2(b1, ap1));
+		double hp2 = cp2 == 0 ? 0 : Math.toDegrees(Math.atan2(b2, ap2));
+		if(hp1 < 0) {
+			hp1 += 360;
+		}
+		if(hp2 < 0) {
+			hp2 += 360;
+		}
+		double dhp = 0;
+		double meanH = hp1 + hp2;
+		if(cp1 * cp2 != 0) {
+			dhp = hp2 - hp1;
+			if(dhp > 180) {
+				dhp -= 360;
+			} else if(dhp < -180) {
+				dhp += 360;
+			}
+			if(Math.abs(hp1 - hp2) <= 180) {
+				meanH = (hp1 + hp2) / 2;
+			} else if(hp1 + hp2 < 360) {
+				meanH = (hp1 + hp2 + 360) / 2;
+			} else {
+				meanH = (hp1 + hp2 - 360) / 2;
+			}
+		}
+		double dHp = 2 * Math.sqrt(cp1 * cp2) * Math.sin(Math.toRadians(dhp / 2));
+		
+		// Weighting functions. The cosines of the multiples of the mean hue come from its sine and cosine.
+		double meanCp = (cp1 + cp2) / 2;
+		double hueRadians = Math.toRadians(meanH);
+		double cos1 = Math.cos(hueRadians);
+		double sin1 = Math.sin(hueRadians);
+		double cos2 = 2 * cos1 * cos1 - 1;
+		double sin2 = 2 * sin1 * cos1;
+		double cos3 = cos1 * (4 * cos1 * cos1 - 3);
+		double sin3 = sin1 * (3 - 4 * sin1 * sin1);
+		double cos4 = 2 * cos2 * cos2 - 1;
+		double sin4 = 2 * sin2 * cos2;
+		double t = 1 - 0.17 * (cos1 * COS_30 + sin1 * SIN_30) + 0.24 * cos2
+				+ 0.32 * (cos3 * COS_6 - sin3 * SIN_6) - 0.20 * (cos4 * COS_63 + sin4 * SIN_63);
+		double hueOffset = (meanH - 275) / 25;
+		double dTheta = 30 * Math.exp(-hueOffset * hueOffset);
+		double meanCp7 = pow7(meanCp);
+		double rc = 2 * Math.sqrt(meanCp7 / (meanCp7 + POW25_7));
+		double sc = 1 + 0.045 * meanCp;
+		double sh = 1 + 0.015 * meanCp * t;
+		double rt = -Math.sin(Math.toRadians(2 * dTheta)) * rc;
+		
+		double cTerm = (cp2 - cp1) / sc;
+		double hTerm = dHp / sh;
+		return distance + cTerm * cTerm + hTerm * hTerm + rt * cTerm * hTerm;
+	}
+	
+	private static double pow7(double x) {
+		double x2 = x * x;
+		return x2 * x2 * x2 * x;
+	}
+}
+
+/**
+ * This class is used to help determine the closest matching bead color for each pixel. Each ColorMatch
+ * object represents a single color as defined by its code, and a list of booleans to track whether it 
+ * has been identified as a possible match in a given color channel.
+ */
+class ColorMatch {
+	// The color code of a bead.
+	private String code;
+	
+	// Has this bead color been identified as a possible match in the Red, Green, or Blue channel.
+	private boolean[] channels = {false, false, false};
+	
+	/** Default constructor.*/
+	public ColorMatch () {
+	}
+	
+	/**
+	 * Constructor accepting color code.
+	 * @param code Color code for bead object.
+	 */
+	public ColorMatch (String code) {
+		this.code = code;
+	}
+	
+	/**
+	 * To identify the closest matching bead color for each pixel, each color channel submits its closest matching
+	 * bead as determined by RGB value. When a new bead color is submitted, it is added to a map of ColorMatch objects. 
+	 * This method first looks to see if the color is already in the map. If not, it is added to the map. It then 
+	 * calls the addToChannel method to confirm that the color has been identified as a possible match in this channel. 
+	 * It then calls the isMatch method to determine if the color has been identified as a possible match on all three 
+	 * channels. If so, this bead color is the closest match for the pixel. It therefore returns true.
+	 * @param map A map of ColorMatch objects, keyed by color code.
+	 * @param key The color code of the bead.
+	 * @param channel The current channel being tested.
+	 * @return Returns true if the bead color has been identified on all three channels as a possible match.
+	 */
+	public boolean addBeadAsPossibleMatch (Map map, String key, int channel) {
+		if(map.containsKey(key)) {
+			addToChannel((ColorMatch)map.get(key), channel);
+		} else {
+			map.put(key, new ColorMatch(key));
+			addToChannel((ColorMatch)map.get(key), channel);
+		}
+		if(isMatch((ColorMatch)map.get(key))) {
+			//System.out.println("Match");
+			return true;
+		} else {
+			return false;
+		}
+	}
+	
+	/**
+	 * Sets the boolean value of the ColorMatch object to true for the given channel. This means that this particular 
+	 * bead color has been identified as a possible match for the current pixel.
+	 * @param cm A ColorMatch object.
+	 * @param channel A color channel (0 = R, 1 = G, 2 = B)
+	 */
+	public void addToChannel(ColorMatch cm, int channel) {
+		cm.channels[channel] = true;
+	}
+	
+	/**
+	 * Examines a ColorMatch object to see if this color has been identified as a possible match in all three 
+	 * color channels.
+	 * @param cm A ColorMatch object.
+	 * @return Returns true if each boolean in channels property has been set to true.
+	 */
+	public boolean isMatch(ColorMatch cm) {
+		if(cm.channels[0] == true && cm.channels[1] == true && cm.channels[2] == true) {
+			return true;
+		} else {
+			return false;
+		}
+	}
+}
+
+/**
+ * Contains a grid of bead objects listed by rows, along with a map that includes the color name of each bead used in 
+ * the pattern and the quantity of each bead color. 
+ */
+class BeadMatrix {
+	public Bead[][] beadGrid = new Bead[0][0];
+	public Map<String, Integer> colorList = new HashMap<>();
+	// Compact storage behind this matrix, or null when it was created from a grid of bead objects.
+	private CompactBeadMatrix compact;
+	// Sparse storage behind this matrix, or null if every peg has a bead.
+	private SparseBeadMatrix sparse;
+	
+	/**
+	 * Constructor for BeadMatrix.
+	 * @param grid Contains a grid of bead objects listed by rows. Mimics an image.
+	 * @param map Contains a key of every color of bead included in the grid and a value of how many beads of that color are used in the grid.
+	 */
+	public BeadMatrix(Bead[][] grid, Map<String, Integer> map) {
+		this.beadGrid = grid;
+		this.colorList.putAll(map);
+	}
+	
+	/**
+	 * Creates a view of a CompactBeadMatrix. The color list is filled in, but beadGrid is left empty; use getBead to 
+	 * read the grid.
+	 * @param compact The compact matrix holding the grid.
+	 */
+	public BeadMatrix(CompactBeadMatrix compact) {
+		this.compact = compact;
+		this.colorList.putAll(compact.createColorList());
+	}
+	
+	/**
+	 * Creates a view of a SparseBeadMatrix. Empty pegs have no bead, and are left out of the color list.
+	 * @param sparse The sparse matrix holding the grid.
+	 */
+	public BeadMatrix(SparseBeadMatrix sparse) {
+		this.sparse = sparse;
+		this.colorList.putAll(sparse.createColorList());
+	}
+	
+	/**
+	 * @return Returns the number of rows of beads.
+	 */
+	public int getRowCount() {
+		if(sparse != null) {
+			return sparse.getHeight();
+		}
+		return compact != null ? compact.getHeight() : beadGrid.length;
+	}
+	
+	/**
+	 * @return Returns the number of beads in each row.
+	 */
+	public int getColumnCount() {
+		if(sparse != null) {
+			return sparse.getWidth();
+		}
+		if(compact != null) {
+			return compact.getWidth();
+		}
+		return beadGrid.length == 0 ? 0 : beadGrid[0].length;
+	}
+	
+	/**
+	 * Returns the bead at a position in the grid. For a compact or sparse matrix this is the shared palette bead, so 
+	 * its x and y are not set.
+	 * @param row The row of the bead.
+	 * @param column The column of the bead.
+	 * @return Returns the bead at that position, or null for an empty peg of a sparse matrix.
+	 */
+	public Bead getBead(int row, int column) {
+		if(sparse != null) {
+			return sparse.getBead(row, column);
+		}
+		return compact != null ? compact.getBead(row, column) : beadGrid[row][column];
+	}
+	
+	/**
+	 * @return Returns the compact matrix behind this view, or null if the matrix was created from bead objects.
+	 */
+	public CompactBeadMatrix getCompactMatrix() {
+		return compact;
+	}
+	
+	/**
+	 * @return Returns the sparse matrix behind this view, or null if the matrix has no empty pegs.
+	 */
+	public SparseBeadMatrix getSparseMatrix() {
+		return sparse;
+	}
+}
+
+/**
+ * A grid of beads stored as palette indexes. Each cell is a short holding the index of its bead in the palette, so 
+ * a grid costs two bytes per bead no matter how many beads it has, and no Bead objects are created for cells. A 
+ * histogram keeps the number of beads of each palette color and is updated as cells are set.
+ */
+class CompactBeadMatrix {
+	private final BeadPalette palette;
+	private final int width;
+	private final int height;
+	// Palette index of each bead, row by row.
+	private final short[] cells;
+	// Number of beads of each palette color.
+	private final int[] histogram;
+	
+	/**
+	 * Creates an empty matrix. Every cell must be set before the matrix is used.
+	 * @param palette The palette the cell indexes refer to.
+	 * @param width Number of beads in each row.
+	 * @param height Number of rows.
+	 */
+	public CompactBeadMatrix(BeadPalette palette, int width, int height) {
+		if(palette.size() > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Palette must contain no more than " + Short.MAX_VALUE + " colors.");
+		}
+		this.palette = palette;
+		this.width = width;
+		this.height = height;
+		this.cells = new short[width * height];
+		this.histogram = new int[palette.size()];
+		// Cells start out as the first palette color until they are set.
+		if(palette.size() > 0) {
+			histogram[0] = cells.length;
+		}
+	}
+	
+	/**
+	 * Creates a matrix from existing cells and counts the beads of each color.
+	 * @param palette The palette the cell indexes refer to.
+	 * @param width Number of beads in each row.
+	 * @param height Number of rows.
+	 * @param cells Palette index of each bead, row by row. The array is used directly, not copied.
+	 */
+	public CompactBeadMatrix(BeadPalette palette, int width, int height, short[] cells) {
+		this(palette, width, height, cells, countCells(cells, palette.size()));
+	}
+	
+	/**
+	 * Creates a matrix from existing cells whose beads have already been counted.
+	 * @param histogram Number of beads of each palette color. The array is used directly, not copied.
+	 */
+	CompactBeadMatrix(BeadPalette palette, int width, int height, short[] cells, int[] histogram) {
+		if(cells.length != width * height) {
+			throw new IllegalArgumentException("Expected " + (width * height) + " cells but found " + cells.length + ".");
+		}
+		this.palette = palette;
+		this.width = width;
+		this.height = height;
+		this.cells = cells;
+		this.histogram = histogram;
+	}
+	
+	private static int[] countCells(short[] cells, int paletteSize) {
+		int[] histogram = new int[paletteSize];
+		for(short cell : cells) {
+			histogram[cell]++;
+		}
+		return histogram;
+	}
+	
+	public BeadPalette getPalette() {
+		return palette;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * @return Returns the palette index of the bead at a position.
+	 */
+	public int getIndex(int row, int column) {
+		return cells[row * width + column];
+	}
+	
+	/**
+	 * Sets the palette index of the bead at a position and updates the bead counts.
+	 */
+	public void setIndex(int row, int column, int index) {
+		int cell = row * width + column;
+		histogram[cells[cell]]--;
+		histogram[index]++;
+		cells[cell] = (short) index;
+	}
+	
+	/**
+	 * @return Returns the palette bead at a position.
+	 */
+	public Bead getBead(int row, int column) {
+		return palette.getBead(cells[row * width + column]);
+	}
+	
+	/**
+	 * @return Returns the number of beads of one palette color.
+	 */
+	public int getCount(int index) {
+		return histogram[index];
+	}
+	
+	/**
+	 * Copies a rectangle of this matrix into a new matrix with the same palette.
+	 * @param column Left edge of the rectangle.
+	 * @param row Top edge of the rectangle.
+	 * @param regionWidth Width of the rectangle.
+	 * @param regionHeight Height of the rectangle.
+	 * @return Returns the copy, with its own bead counts.
+	 */
+	public CompactBeadMatrix copyRegion(int column, int row, int regionWidth, int regionHeight) {
+		short[] region = new short[regionWidth * regionHeight];
+		for(int i = 0; i < regionHeight; i++) {
+			System.arraycopy(cells, (row + i) * width + column, region, i * regionWidth, regionWidth);
+		}
+		return new CompactBeadMatrix(palette, regionWidth, regionHeight, region);
+	}
+	
+	/**
+	 * Returns the cell array itself, for code that reads or fills the whole grid at once. Writing to it directly does
+	 * not update the bead counts.
+	 */
+	short[] getCells() {
+		return cells;
+	}
+	
+	/**
+	 * Creates a map of bead color names and how many beads of each are used, in the same form as 
+	 * BeadMatrix.colorList. Colors that are not used are left out. Colors are added in the order they first appear
+	 * in the grid, which gives the map the same iteration order as the one processImage has always built.
+	 * @return Returns a map with color names as keys and bead counts as values.
+	 */
+	public Map<String, Integer> createColorList() {
+		Map<String, Integer> colorList = new HashMap<>();
+		boolean[] added = new boolean[histogram.length];
+		int remaining = 0;
+		for(int count : histogram) {
+			if(count > 0) {
+				remaining++;
+			}
+		}
+		for(int i = 0; i < cells.length && remaining > 0; i++) {
+			int index = cells[i];
+			if(!added[index]) {
+				added[index] = true;
+				remaining--;
+				// HashMap.merge adds new keys at the front of their bucket, so put is used to keep the original order.
+				String name = palette.getBead(index).getName();
+				colorList.put(name, colorList.getOrDefault(name, 0) + histogram[index]);
+			}
+		}
+		return colorList;
+	}
+	
+	/**
+	 * @return Returns a BeadMatrix view of this matrix that reads beads from the palette.
+	 */
+	public BeadMatrix asBeadMatrix() {
+		return new BeadMatrix(this);
+	}
+	
+	/**
+	 * Expands this matrix into a BeadMatrix with a new Bead object for every cell, as returned by processImage.
+	 * @return Returns a BeadMatrix with beadGrid filled in.
+	 */
+	public BeadMatrix toBeadMatrix() {
+		Bead[][] beadGrid = new Bead[height][width];
+		for(int i = 0; i < height; i++) {
+			for(int j = 0; j < width; j++) {
+				Bead match = getBead(i, j);
+				beadGrid[i][j] = new Bead(match.getName(), match.getCode(), match.getColor(), i, j);
+			}
+		}
+		return new BeadMatrix(beadGrid, createColorList());
+	}
+}
+
+/**
+ * A bead grid in which some pegs are left empty, such as the transparent background of a sprite. Only the pegs with 
+ * a bead are stored. Each row is a list of runs, a first column and a length, and the palette indexes of the beads 
+ * in those runs are stored one after another, row by row. Empty pegs take no space, and code that walks the runs 
+ * never visits them.
+ */
+class SparseBeadMatrix {
+	private final BeadPalette palette;
+	private final int width;
+	private final int height;
+	// Runs of row r are runs[2 * k] (first column) and runs[2 * k + 1] (length) for rowRuns[r] <= k < rowRuns[r + 1].
+	private final int[] rowRuns;
+	private final int[] runs;
+	// Beads of row r start at beads[rowBeads[r]].
+	private final int[] rowBeads;
+	private final short[] beads;
+	// Number of beads of each palette color.
+	private final int[] histogram;
+	
+	/**
+	 * Creates a sparse matrix from its runs. SparseBeadMatrix.Builder is the usual way to make one.
+	 */
+	SparseBeadMatrix(BeadPalette palette, int width, int height, int[] rowRuns, int[] runs, int[] rowBeads, short[] beads, int[] histogram) {
+		this.palette = palette;
+		this.width = width;
+		this.height = height;
+		this.rowRuns = rowRuns;
+		this.runs = runs;
+		this.rowBeads = rowBeads;
+		this.beads = beads;
+		this.histogram = histogram;
+	}
+	
+	public BeadPalette getPalette() {
+		return palette;
+	}
+	
+	public int getWidth() {
+		return width;
+	}
+	
+	public int getHeight() {
+		return height;
+	}
+	
+	/**
+	 * @return Returns the number of pegs that have a bead.
+	 */
+	public int getBeadCount() {
+		return beads.length;
+	}
+	
+	/**
+	 * @return Returns the palette index of the bead at a position, or -1 if the peg is empty.
+	 */
+	public int getIndex(int row, int column) {
+		int bead = rowBeads[row];
+		for(int k = rowRuns[row]; k < rowRuns[row + 1]; k++) {
+			int first = runs[2 * k];
+			int length = runs[2 * k + 1];
+			if(column < first) {
+				return -1;
+			}
+			if(column < first + length) {
+				return beads[bead + column - first];
+			}
+			bead += length;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @return Returns the palette bead at a position, or null if the peg is empty.
+	 */
+	public Bead getBead(int row, int column) {
+		int index = getIndex(row, column);
+		return index < 0 ? null : palette.getBead(index);
+	}
+	
+	/**
+	 * @return Returns the number of beads of one palette color.
+	 */
+	public int getCount(int index) {
+		return histogram[index];
+	}
+	
+	/**
+	 * @return Returns the palette index of a bead by its place in the runs, counting from the first run of the first 
+	 * row.
+	 */
+	int getIndexAt(int bead) {
+		return beads[bead];
+	}
+	
+	/**
+	 * @return Returns the number of runs of beads in a row.
+	 */
+	int getRunCount(int row) {
+		return rowRuns[row + 1] - rowRuns[row];
+	}
+	
+	/**
+	 * @return Returns the first column of a run of beads in a row.
+	 */
+	int getRunStart(int row, int run) {
+		return runs[2 * (rowRuns[row] + run)];
+	}
+	
+	/**
+	 * @return Returns the number of beads in a run.
+	 */
+	int getRunLength(int row, int run) {
+		return runs[2 * (rowRuns[row] + run) + 1];
+	}
+	
+	/**
+	 * Creates a map of bead color names and how many beads of each are used, in the same form and order as 
+	 * CompactBeadMatrix.createColorList. Empty pegs are not counted.
+	 * @return Returns a map with color names as keys and bead counts as values.
+	 */
+	public Map<String, Integer> createColorList() {
+		Map<String, Integer> colorList = new HashMap<>();
+		boolean[] added = new boolean[histogram.length];
+		for(short index : beads) {
+			if(!added[index]) {
+				added[index] = true;
+				String name = palette.getBead(index).getName();
+				colorList.put(name, colorList.getOrDefault(name, 0) + histogram[index]);
+			}
+		}
+		return colorList;
+	}
+	
+	/**
+	 * @return Returns a BeadMatrix view of this matrix. Its getBead returns null for empty pegs.
+	 */
+	public BeadMatrix asBeadMatrix() {
+		return new BeadMatrix(this);
+	}
+	
+	/**
+	 * Collects the runs of a sparse matrix one row at a time.
+	 */
+	static class Builder {
+		private final int width;
+		private final int height;
+		private int[] rowRuns;
+		private int[] runs = new int[16];
+		private int[] rowBeads;
+		private int runCount;
+		private int beadCount;
+		private int row;
+		
+		Builder(int width, int height) {
+			this.width = width;
+			this.height = height;
+			this.rowRuns = new int[height + 1];
+			this.rowBeads = new int[height + 1];
+		}
+		
+		/**
+		 * Adds the next row.
+		 * @param filled Tells whether each column of the row has a bead.
+		 */
+		void addRow(IntPredicate filled) {
+			int column = 0;
+			while(column < width) {
+				if(!filled.test(column)) {
+					column++;
+					continue;
+				}
+				int first = column;
+				while(column < width && filled.test(column)) {
+					column++;
+				}
+				if(2 * runCount == runs.length) {
+					runs = Arrays.copyOf(runs, runs.length * 2);
+				}
+				runs[2 * runCount] = first;
+				runs[2 * runCount + 1] = column - first;
+				runCount++;
+				beadCount += column - first;
+			}
+			row++;
+			rowRuns[row] = runCount;
+			rowBeads[row] = beadCount;
+		}
+		
+		/**
+		 * @return Returns the number of beads in the rows added so far.
+		 */
+		int getBeadCount() {
+			return beadCount;
+		}
+		
+		/**
+		 * Finishes the matrix.
+		 * @param beads The palette index of each bead, in the order of the runs.
+		 * @param histogram The number of beads of each palette color.
+		 */
+		SparseBeadMatrix build(BeadPalette palette, short[] beads, int[] histogram) {
+			if(row != height || beads.length != beadCount) {
+				throw new IllegalStateException("Expected " + height + " rows and " + beadCount + " beads.");
+			}
+			return new SparseBeadMatrix(palette, width, height, rowRuns, Arrays.copyOf(runs, 2 * runCount), rowBeads, beads, histogram);
+		}
+	}
+}
+
+/**
+ * A digital representation of a physical Perler bead. Each bead has a name, a color code, a color, and can also be given an x and y coordinate.
+ */
+class Bead {
+	private String name;
+	private String code;
+	private Color color;
+	private int x;
+	private int y;
+	
+	public Bead(String name, String code, Color color) {
+		this.name = name;
+		this.code = code;
+		this.color = color;
+	}
+	
+	public Bead(String name, String code, Color color, int y, int x) {
+		this.name = name;
+		this.code = code;
+		this.color = color;
+		this.x = x;
+		this.y = y;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public String getCode() {
+		return code;
+	}
+	
+	public Color getColor() {
+		return color;
+	}
+	
+	public int getX() {
+		return x;
 	}
 	
 	public int getY() {
 		return y;
 	}
 	
-	public void setName(String name) {
-		this.name = name;
+	public void setName(String name) {
+		this.name = name;
+	}
+	
+	public void setCode(String code) {
+		this.code = code;
+	}
+	
+	public void setColor(Color color) {
+		this.color = color;
+	}
+	
+	public void setX(int x) {
+		this.x = x;
+	}
+	
+	public void setY(int y) {
+		this.y = y;
+	}
+}
+
+/**
+ * Creates a library of bead colors. Creates bead objects mimicking the true names and colors of Perler beads. 
+ * Includes methods to populate color palettes.
+ */
+class ColorLibrary {
+	// Define each bead color with name, code, and RGB color value.
+	Bead white = new Bead("White", "01", new Color(241, 241, 241));	
+	Bead cream = new Bead("Cream", "02", new Color(224, 222, 169));
+	Bead yellow = new Bead("Yellow", "03", new Color(236, 216, 0));
+	Bead orange = new Bead("Orange", "04", new Color(237, 97, 32));
+	Bead red = new Bead("Red", "05", new Color(191, 46, 64));
+	Bead bubblegum = new Bead("Bubblegum", "06", new Color(221, 102, 155));
+	Bead purple = new Bead("Purple", "07", new Color(96, 64, 137));
+	Bead darkBlue = new Bead("Dark Blue", "08",	new Color(43, 63, 135));
+	Bead lightBlue = new Bead("Light Blue", "09", new Color(51, 112, 192));
+	Bead darkGreen = new Bead("Dark Green", "10", new Color(28, 117, 62));
+	Bead pearlCoral = new Bead("Pearl Coral", "100", new Color(249, 126, 121));
+	Bead pearlLightBlue = new Bead("Pearl Light Blue", "101", new Color(122, 174, 162));
+	Bead pearlGreen = new Bead("Pearl Green", "102", new Color(132, 183, 145));
+	Bead pearlYellow = new Bead("Pearl Yellow", "103", new Color(202, 192, 51));
+	Bead pearlLightPink = new Bead("Pearl Light Pink", "104", new Color(215, 168, 162));
+	Bead silver = new Bead("Silver", "105", new Color(119, 123, 129));
+	Bead lightGreen = new Bead("Light Green", "11", new Color(86, 186, 159));
+	Bead brown = new Bead("Brown", "12", new Color(81, 57, 49));
+	Bead grey = new Bead("Grey", "17", new Color(138, 141, 145));
+	Bead black = new Bead("Black", "18", new Color(46, 47, 50));
+	Bead rust = new Bead("Rust", "20", new Color(140, 55, 44));
+	Bead lightBrown = new Bead("Light Brown", "21", new Color(129, 93, 52));
+	Bead peach = new Bead("Peach", "33", new Color(238, 186, 178));
+	Bead tan = new Bead("Tan", "35", new Color(188, 147, 113));
+	Bead magenta = new Bead("Magenta", "38", new Color(242, 42, 123));
+	Bead neonYellow = new Bead("Neon Yellow", "47", new Color(220, 224, 2));
+	Bead neonOrange = new Bead("Neon Orange", "48", new Color(255, 119, 0));
+	Bead neonGreen = new Bead("Neon Green", "49", new Color(1, 158, 67));
+	Bead neonPink = new Bead("Neon Pink", "50", new Color(255, 57, 145));
+	Bead pastelBlue = new Bead("Pastel Blue", "52", new Color(83, 144, 209));
+	Bead pastelGreen = new Bead("Pastel Green", "53", new Color(118, 200, 130));
+	Bead pastelLavender = new Bead("Pastel Lavender", "54", new Color(138, 114, 193));
+	Bead pastelYellow = new Bead("Pastel Yellow", "56", new Color(254, 248, 117));
+	Bead cheddar = new Bead("Cheddar", "57", new Color(241, 170, 12));
+	Bead toothpaste = new Bead("Toothpaste", "58", new Color(147, 200, 212));
+	Bead hotCoral = new Bead("Hot Coral", "59", new Color(255, 56, 81));
+	Bead plum = new Bead("Plum", "60", new Color(62, 75, 156));
+	Bead kiwiLime = new Bead("Kiwi Lime", "61", new Color(108, 190, 19));
+	Bead cyan = new Bead("Cyan", "62", new Color(43, 137, 198));
+	Bead blush = new Bead("Blush", "63", new Color(255, 130, 133));
+	Bead periwinkleBlue = new Bead("Periwinkle Blue", "70", new Color(100, 124, 190));
+	Bead lightPink = new Bead("Light Pink", "79", new Color(246, 179, 221));
+	Bead brightGreen = new Bead("Bright Green", "80", new Color(79, 173, 66));
+	Bead lightGray = new Bead("Light Gray", "81", new Color(177, 181, 178));
+	Bead evergreen = new Bead("Evergreen", "179", new Color(53, 83, 67));
+	Bead lavender = new Bead("Lavender", "82", new Color(173, 152, 212));
+	Bead pink = new Bead("Pink", "83", new Color(228, 72, 146));
+	Bead gold = new Bead("Gold", "85", new Color(187, 118, 52));
+	Bead raspberry = new Bead("Raspberry", "88", new Color(165, 48, 97));
+	Bead butterscotch = new Bead("Butterscotch", "90", new Color(212, 132, 55));
+	Bead parrotGreen = new Bead("Parrot Green", "91", new Color(6, 124, 129));
+	Bead darkGrey = new Bead("Dark Grey", "92", new Color(77, 81, 86));
+	Bead blueberryCream = new Bead("Blueberry Cream", "93", new Color(130, 151, 217));
+	
+	/**
+	 * Defines the color palette to be used in the process of converting pixel colors to bead colors. This method
+	 * uses all possible colors.
+	 * @param array An ArrayList that contains the color palette.
+	 */
+	public void populateArrayAllColors(ArrayList<Bead> array) {
+		array.add(white);
+		array.add(cream);
+		array.add(yellow);
+		array.add(orange);
+		array.add(red);
+		array.add(bubblegum);
+		array.add(purple);
+		array.add(darkBlue);
+		array.add(lightBlue);
+		array.add(darkGreen);
+		array.add(pearlCoral);
+		array.add(pearlLightBlue);
+		array.add(pearlGreen);
+		array.add(pearlYellow);
+		array.add(pearlLightPink);
+		array.add(silver);
+		array.add(lightGreen);
+		array.add(brown);
+		array.add(grey);
+		array.add(black);
+		array.add(rust);
+		array.add(lightBrown);
+		array.add(peach);
+		array.add(tan);
+		array.add(magenta);
+		array.add(neonYellow);
+		array.add(neonOrange);
+		array.add(neonGreen);
+		array.add(neonPink);
+		array.add(pastelBlue);
+		array.add(pastelGreen);
+		array.add(pastelLavender);
+		array.add(pastelYellow);
+		array.add(cheddar);
+		array.add(toothpaste);
+		array.add(hotCoral);
+		array.add(plum);
+		array.add(kiwiLime);
+		array.add(cyan);
+		array.add(blush);
+		array.add(periwinkleBlue);
+		array.add(lightPink);
+		array.add(brightGreen);
+		array.add(lightGray);
+		array.add(evergreen);
+		array.add(lavender);
+		array.add(pink);
+		array.add(gold);
+		array.add(raspberry);
+		array.add(butterscotch);
+		array.add(parrotGreen);
+		array.add(darkGrey);
+		array.add(blueberryCream);
+	}
+	
+	/**
+	 * Defines the color palette to be used in the process of converting pixel colors to bead colors. This method
+	 * uses a palette of colors found in a commonly used set of Perler beads.
+	 * @param array An ArrayList that contains the color palette.
+	 */
+	public void populateArrayFunColors(ArrayList<Bead> array) {
+			array.add(pink);
+			array.add(magenta);
+			array.add(red);
+			array.add(cheddar);
+			array.add(neonOrange);
+			array.add(yellow);
+			array.add(lightGreen);
+			array.add(kiwiLime);
+			array.add(parrotGreen);
+			array.add(lightBlue);
+			array.add(plum);
+			array.add(pink);
+			array.add(purple);
+			array.add(lightBrown);
+			array.add(black);
+			array.add(white);
+	}
+	
+	/**
+	 * Reads all the bead colors contained in the given array, and creates a map storing the name and code of 
+	 * each color. This map is used to create a list on the final printable file that includes the color code 
+	 * for each bead color.
+	 * @param array An array of bead objects that defines the color palette of the project.
+	 * @return Returns a map containing color names as keys and color codes as values.
+	 */
+	public Map<String,String> createCodeMap(ArrayList<Bead> array) {
+		Map<String,String> codeMap = new HashMap<>();
+		for(int i = 0; i < array.size(); i++) {
+			codeMap.put(array.get(i).getName(), array.get(i).getCode());
+		}
+		return codeMap;
+	}
+}
+
+/**
+ * A fixed copy of a color palette stored in arrays. Matchers read the bead colors from here instead of calling 
+ * getColor() on each bead. The key describes the palette contents and is used to cache work done per palette.
+ */
+class BeadPalette {
+	private final Bead[] beads;
+	// Color of each bead packed as 0xRRGGBB.
+	private final int[] rgb;
+	private final String key;
+	
+	/**
+	 * Constructor for BeadPalette. The order of the beads is kept, so palette indexes match the ArrayList.
+	 * @param beadArray An ArrayList containing bead objects. Each bead object represents a different color.
+	 */
+	public BeadPalette(ArrayList<Bead> beadArray) {
+		beads = beadArray.toArray(new Bead[0]);
+		rgb = new int[beads.length];
+		StringBuilder keyBuilder = new StringBuilder();
+		for(int i = 0; i < beads.length; i++) {
+			rgb[i] = beads[i].getColor().getRGB() & 0xFFFFFF;
+			keyBuilder.append(beads[i].getCode()).append('=').append(Integer.toHexString(rgb[i])).append(';');
+		}
+		key = keyBuilder.toString();
+	}
+	
+	public int size() {
+		return beads.length;
+	}
+	
+	public Bead getBead(int index) {
+		return beads[index];
+	}
+	
+	public int getRGB(int index) {
+		return rgb[index];
+	}
+	
+	public String getKey() {
+		return key;
+	}
+	
+	/**
+	 * Finds the bead with the smallest squared RGB distance by checking every bead. When two beads are equally
+	 * close, the one listed first wins.
+	 * @param red Red value of the color (0-255).
+	 * @param green Green value of the color (0-255).
+	 * @param blue Blue value of the color (0-255).
+	 * @return Returns the index of the closest bead.
+	 */
+	public int findNearest(int red, int green, int blue) {
+		int best = 0;
+		int bestDistance = Integer.MAX_VALUE;
+		for(int i = 0; i < rgb.length; i++) {
+			int dr = red - ((rgb[i] >> 16) & 0xFF);
+			int dg = green - ((rgb[i] >> 8) & 0xFF);
+			int db = blue - (rgb[i] & 0xFF);
+			int distance = dr * dr + dg * dg + db * db;
+			if(distance < bestDistance) {
+				bestDistance = distance;
+				best = i;
+			}
+		}
+		return best;
+	}
+}
+
+/**
+ * Bead palettes for every brand, loaded from CSV and JSON files and merged with the built-in Perler colors. A 
+ * registry never changes once made, so one registry can be shared by any number of threads. Palettes are looked up 
+ * by brand name, ignoring case.
+ * 
+ * A CSV file has one bead per line: brand, name, code and either a hex color (#RRGGBB) or red, green and blue 
+ * values. Blank lines, lines starting with # and a header line starting with "brand" are skipped. Fields may be 
+ * quoted. A JSON file holds one palette object, or an array of them, in this form:
+ * {"brand": "Hama", "beads": [{"name": "White", "code": "H01", "color": "#FFFFFF"}, ...]}. A bead may give 
+ * "rgb": [r, g, b] instead of "color".
+ * 
+ * When a brand is defined more than once, the palettes are merged: a bead with a code already in the palette 
+ * replaces the earlier bead in place, and new codes are added at the end.
+ * 
+ * Each palette is compiled when loaded: the channel orders used by the channel search and the lookup table are 
+ * built once and handed to the matchers. A compiled registry can be saved as a snapshot and mapped back in at 
+ * startup, which skips parsing and compiling. loadCached does this automatically. A snapshot records the path, size 
+ * and time of every file it was compiled from and is only used for those same files. The default registry is not 
+ * saved, so it leaves out the lookup table, which takes longest to build, until a lookup table matcher is made.
+ */
+class PaletteRegistry {
+	static final int MAGIC = 0x42504C54;
+	static final int VERSION = 2;
+	// Brand of the palette built from ColorLibrary.
+	static final String BUILT_IN_BRAND = "Perler";
+	
+	private final Map<String, Palette> palettes;
+	
+	private PaletteRegistry(Map<String, Palette> palettes) {
+		this.palettes = palettes;
+	}
+	
+	/**
+	 * @return Returns the registry holding only the built-in Perler palette.
+	 */
+	static PaletteRegistry getDefault() {
+		return DefaultHolder.INSTANCE;
+	}
+	
+	private static class DefaultHolder {
+		// Without a lookup table, since the default channel search never uses it. LookupTableMatcher builds and 
+		// keeps one the first time it is asked for.
+		static final PaletteRegistry INSTANCE = compile(builtIn(), false);
+	}
+	
+	/**
+	 * Loads palette files and merges them with the built-in palette.
+	 * @param sources Palette files, or directories whose .csv and .json files are loaded in name order.
+	 * @return Returns the registry.
+	 * @throws IOException If a file cannot be read or is not a valid palette file.
+	 */
+	static PaletteRegistry load(File... sources) throws IOException {
+		Map<String, LinkedHashMap<String, Bead>> brands = builtIn();
+		for(File file : expand(sources)) {
+			String name = file.getName().toLowerCase(Locale.ROOT);
+			String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+			if(name.endsWith(".json")) {
+				parseJson(text, file, brands);
+			} else {
+				parseCsv(text, file, brands);
+			}
+		}
+		return compile(brands, true);
+	}
+	
+	/**
+	 * Maps in a snapshot if it was written from the same source files as they are now, or loads the sources and 
+	 * saves a new snapshot.
+	 * @param snapshot The snapshot file.
+	 * @param sources Palette files or directories, as for load.
+	 * @return Returns the registry.
+	 * @throws IOException If a source cannot be read or the snapshot cannot be written.
+	 */
+	static PaletteRegistry loadCached(File snapshot, File... sources) throws IOException {
+		String fingerprint = fingerprint(sources);
+		if(snapshot.isFile()) {
+			try {
+				return readSnapshot(snapshot, fingerprint);
+			} catch (IOException | RuntimeException e) {
+				// A damaged or old snapshot, or one written from other files, is rebuilt below.
+			}
+		}
+		PaletteRegistry registry = load(sources);
+		File directory = snapshot.getAbsoluteFile().getParentFile();
+		directory.mkdirs();
+		File temporary = File.createTempFile(snapshot.getName(), ".tmp", directory);
+		try {
+			registry.writeSnapshot(temporary, fingerprint);
+			try {
+				Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			temporary.delete();
+		}
+		return registry;
+	}
+	
+	/**
+	 * Describes the files that load would read: the canonical path, size and time of each, one per line. A file 
+	 * that is added, removed, changed or read from another directory changes the text.
+	 * @param sources Palette files or directories, as for load.
+	 * @return Returns the description.
+	 * @throws IOException If a source does not exist.
+	 */
+	static String fingerprint(File... sources) throws IOException {
+		StringBuilder text = new StringBuilder();
+		for(File file : expand(sources)) {
+			text.append(file.getCanonicalPath()).append('\0').append(file.length()).append('\0').append(file.lastModified()).append('\n');
+		}
+		return text.toString();
+	}
+	
+	/**
+	 * @return Returns the brand names in alphabetical order.
+	 */
+	public java.util.List<String> getBrands() {
+		java.util.List<String> brands = new ArrayList<>();
+		for(Palette palette : palettes.values()) {
+			brands.add(palette.getBrand());
+		}
+		return brands;
+	}
+	
+	/**
+	 * @param brand The brand name, in any case.
+	 * @return Returns the palette for the brand.
+	 * @throws IllegalArgumentException If there is no palette for the brand.
+	 */
+	public Palette get(String brand) {
+		Palette palette = palettes.get(brand);
+		if(palette == null) {
+			throw new IllegalArgumentException("Unknown palette: " + brand + ". Known palettes: " + getBrands());
+		}
+		return palette;
+	}
+	
+	/**
+	 * Saves the compiled palettes.
+	 * @param file The file to write.
+	 * @param sources The fingerprint of the files the palettes were loaded from.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void writeSnapshot(File file, String sources) throws IOException {
+		try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			byte[] fingerprint = sources.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(fingerprint.length);
+			out.write(fingerprint);
+			out.writeInt(palettes.size());
+			for(Palette palette : palettes.values()) {
+				BeadPalette beads = palette.getBeadPalette();
+				out.writeUTF(palette.getBrand());
+				out.writeInt(beads.size());
+				for(int i = 0; i < beads.size(); i++) {
+					out.writeInt(beads.getRGB(i));
+					out.writeUTF(beads.getBead(i).getName());
+					out.writeUTF(beads.getBead(i).getCode());
+				}
+				for(int[] order : palette.channelOrder) {
+					for(int index : order) {
+						out.writeInt(index);
+					}
+				}
+				if(palette.lookupTable == null) {
+					out.writeInt(0);
+				} else {
+					out.writeInt(palette.lookupTable.length);
+					for(short cell : palette.lookupTable) {
+						out.writeShort(cell);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Maps in a snapshot written by writeSnapshot.
+	 * @param file The snapshot file.
+	 * @param sources The fingerprint of the files the snapshot must have been written from.
+	 * @return Returns the registry.
+	 * @throws IOException If the file cannot be read, is not a snapshot of this version or was written from other 
+	 * files.
+	 */
+	static PaletteRegistry readSnapshot(File file, String sources) throws IOException {
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+				throw new IOException("Not a palette snapshot: " + file);
+			}
+			byte[] fingerprint = new byte[buffer.getInt()];
+			buffer.get(fingerprint);
+			if(!new String(fingerprint, StandardCharsets.UTF_8).equals(sources)) {
+				throw new IOException("Palette snapshot is for other files: " + file);
+			}
+			int count = buffer.getInt();
+			Map<String, Palette> palettes = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+			for(int p = 0; p < count; p++) {
+				String brand = ConversionCache.readUTF(buffer);
+				int size = buffer.getInt();
+				ArrayList<Bead> beads = new ArrayList<>();
+				for(int i = 0; i < size; i++) {
+					Color color = new Color(buffer.getInt());
+					String name = ConversionCache.readUTF(buffer);
+					beads.add(new Bead(name, ConversionCache.readUTF(buffer), color));
+				}
+				int[][] channelOrder = new int[3][size];
+				for(int[] order : channelOrder) {
+					buffer.asIntBuffer().get(order);
+					buffer.position(buffer.position() + 4 * size);
+					for(int index : order) {
+						if(index < 0 || index >= size) {
+							throw new IOException("Bad palette index in " + file);
+						}
+					}
+				}
+				int tableSize = buffer.getInt();
+				short[] lookupTable = null;
+				if(tableSize != 0) {
+					if(tableSize != LookupTableMatcher.CELLS * LookupTableMatcher.CELLS * LookupTableMatcher.CELLS) {
+						throw new IOException("Bad lookup table in " + file);
+					}
+					lookupTable = new short[tableSize];
+					buffer.asShortBuffer().get(lookupTable);
+					buffer.position(buffer.position() + 2 * tableSize);
+					for(short cell : lookupTable) {
+						if(cell < -1 || cell >= size) {
+							throw new IOException("Bad palette index in " + file);
+						}
+					}
+				}
+				palettes.put(brand, new Palette(brand, new BeadPalette(beads), channelOrder, lookupTable));
+			}
+			return new PaletteRegistry(Collections.unmodifiableMap(palettes));
+		}
+	}
+	
+	/**
+	 * @return Returns the built-in palette as the starting point for merging.
+	 */
+	private static Map<String, LinkedHashMap<String, Bead>> builtIn() {
+		ArrayList<Bead> beads = new ArrayList<>();
+		new ColorLibrary().populateArrayAllColors(beads);
+		Map<String, LinkedHashMap<String, Bead>> brands = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		for(Bead bead : beads) {
+			addBead(brands, BUILT_IN_BRAND, bead);
+		}
+		return brands;
+	}
+	
+	/**
+	 * Builds the lookup structures for every palette.
+	 * @param lookupTables True to build the lookup tables now, so they are saved in snapshots, or false to leave 
+	 * them to the first lookup table matcher.
+	 */
+	private static PaletteRegistry compile(Map<String, LinkedHashMap<String, Bead>> brands, boolean lookupTables) {
+		Map<String, Palette> palettes = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		for(Map.Entry<String, LinkedHashMap<String, Bead>> brand : brands.entrySet()) {
+			BeadPalette beads = new BeadPalette(new ArrayList<>(brand.getValue().values()));
+			// Palettes too large for a lookup table are left without one.
+			short[] lookupTable = lookupTables && beads.size() <= Short.MAX_VALUE ? new LookupTableMatcher(beads).getTable() : null;
+			palettes.put(brand.getKey(), new Palette(brand.getKey(), beads, ChannelSearchMatcher.channelOrder(beads), lookupTable));
+		}
+		return new PaletteRegistry(Collections.unmodifiableMap(palettes));
+	}
+	
+	private static java.util.List<File> expand(File[] sources) throws IOException {
+		java.util.List<File> files = new ArrayList<>();
+		for(File source : sources) {
+			if(source.isDirectory()) {
+				File[] children = source.listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).endsWith(".csv") 
+						|| name.toLowerCase(Locale.ROOT).endsWith(".json"));
+				Arrays.sort(children);
+				files.addAll(Arrays.asList(children));
+			} else if(source.isFile()) {
+				files.add(source);
+			} else {
+				throw new FileNotFoundException("No palette file: " + source);
+			}
+		}
+		return files;
+	}
+	
+	private static void addBead(Map<String, LinkedHashMap<String, Bead>> brands, String brand, Bead bead) {
+		// Brands keep the spelling they were first given.
+		LinkedHashMap<String, Bead> palette = brands.get(brand);
+		if(palette == null) {
+			palette = new LinkedHashMap<>();
+			brands.put(brand, palette);
+		}
+		palette.put(bead.getCode(), bead);
+	}
+	
+	/**
+	 * Reads the beads in a CSV palette file.
+	 */
+	static void parseCsv(String text, File file, Map<String, LinkedHashMap<String, Bead>> brands) throws IOException {
+		String[] lines = text.split("\r?\n");
+		for(int n = 0; n < lines.length; n++) {
+			String line = lines[n].trim();
+			if(line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			java.util.List<String> fields = splitCsv(line);
+			if(n == 0 && fields.get(0).equalsIgnoreCase("brand")) {
+				continue;
+			}
+			String where = file + " line " + (n + 1);
+			Color color;
+			if(fields.size() == 4) {
+				color = parseHex(fields.get(3), where);
+			} else if(fields.size() == 6) {
+				color = parseRGB(fields.get(3), fields.get(4), fields.get(5), where);
+			} else {
+				throw new IOException(where + ": expected brand, name, code and a color.");
+			}
+			if(fields.get(0).isEmpty() || fields.get(2).isEmpty()) {
+				throw new IOException(where + ": brand and code must not be empty.");
+			}
+			addBead(brands, fields.get(0), new Bead(fields.get(1), fields.get(2), color));
+		}
+	}
+	
+	/**
+	 * Splits one CSV line. Quoted fields may hold commas, and "" inside quotes is one quote.
+	 */
+	private static java.util.List<String> splitCsv(String line) {
+		java.util.List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(quoted) {
+				if(c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if(c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if(c == '"') {
+				quoted = true;
+			} else if(c == ',') {
+				fields.add(field.toString().trim());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString().trim());
+		return fields;
+	}
+	
+	/**
+	 * Reads the palettes in a JSON palette file.
+	 */
+	static void parseJson(String text, File file, Map<String, LinkedHashMap<String, Bead>> brands) throws IOException {
+		Object root = new JsonReader(text, file).readDocument();
+		java.util.List<?> list = root instanceof java.util.List ? (java.util.List<?>) root : Collections.singletonList(root);
+		for(Object item : list) {
+			Map<?, ?> palette = jsonObject(item, file + ": palette");
+			String brand = jsonString(palette.get("brand"), file + ": brand");
+			if(!(palette.get("beads") instanceof java.util.List)) {
+				throw new IOException(file + ": palette " + brand + " has no beads array.");
+			}
+			for(Object entry : (java.util.List<?>) palette.get("beads")) {
+				Map<?, ?> bead = jsonObject(entry, file + ": bead in " + brand);
+				String where = file + ": bead " + bead.get("code") + " in " + brand;
+				String code = jsonString(bead.get("code"), where);
+				String name = bead.containsKey("name") ? jsonString(bead.get("name"), where) : code;
+				Color color;
+				if(bead.get("rgb") instanceof java.util.List && ((java.util.List<?>) bead.get("rgb")).size() == 3) {
+					java.util.List<?> rgb = (java.util.List<?>) bead.get("rgb");
+					color = parseRGB(String.valueOf(rgb.get(0)), String.valueOf(rgb.get(1)), String.valueOf(rgb.get(2)), where);
+				} else {
+					color = parseHex(jsonString(bead.get("color"), where), where);
+				}
+				addBead(brands, brand, new Bead(name, code, color));
+			}
+		}
+	}
+	
+	private static Map<?, ?> jsonObject(Object value, String where) throws IOException {
+		if(!(value instanceof Map)) {
+			throw new IOException(where + " must be an object.");
+		}
+		return (Map<?, ?>) value;
+	}
+	
+	private static String jsonString(Object value, String where) throws IOException {
+		if(!(value instanceof String) || ((String) value).isEmpty()) {
+			throw new IOException(where + ": expected a non-empty string.");
+		}
+		return (String) value;
+	}
+	
+	private static Color parseHex(String value, String where) throws IOException {
+		String hex = value.startsWith("#") ? value.substring(1) : value;
+		if(!hex.matches("[0-9A-Fa-f]{6}")) {
+			throw new IOException(where + ": bad color " + value + ".");
+		}
+		return new Color(Integer.parseInt(hex, 16));
+	}
+	
+	private static Color parseRGB(String red, String green, String blue, String where) throws IOException {
+		int[] values = new int[3];
+		String[] text = {red, green, blue};
+		for(int i = 0; i < 3; i++) {
+			try {
+				// JSON numbers are read as doubles, so 255 arrives as "255.0".
+				double value = Double.parseDouble(text[i]);
+				if(value != Math.rint(value) || value < 0 || value > 255) {
+					throw new NumberFormatException();
+				}
+				values[i] = (int) value;
+			} catch (NumberFormatException e) {
+				throw new IOException(where + ": bad color value " + text[i] + ".");
+			}
+		}
+		return new Color(values[0], values[1], values[2]);
+	}
+	
+	/**
+	 * One brand's palette with its lookup structures. Beads handed out are copies, so a palette never changes.
+	 */
+	static class Palette {
+		private final String brand;
+		private final BeadPalette beads;
+		private final Map<String, String> codeMap;
+		// Palette indexes sorted by red, green and blue, and the lookup table or null, as used by the matchers.
+		private final int[][] channelOrder;
+		private final short[] lookupTable;
+		
+		Palette(String brand, BeadPalette beads, int[][] channelOrder, short[] lookupTable) {
+			this.brand = brand;
+			this.beads = beads;
+			this.channelOrder = channelOrder;
+			this.lookupTable = lookupTable;
+			Map<String, String> codes = new HashMap<>();
+			for(int i = 0; i < beads.size(); i++) {
+				codes.put(beads.getBead(i).getName(), beads.getBead(i).getCode());
+			}
+			codeMap = Collections.unmodifiableMap(codes);
+			ChannelSearchMatcher.preload(beads, channelOrder);
+			if(lookupTable != null) {
+				LookupTableMatcher.preload(beads, lookupTable);
+			}
+		}
+		
+		public String getBrand() {
+			return brand;
+		}
+		
+		public int size() {
+			return beads.size();
+		}
+		
+		/**
+		 * @return Returns a new list of copies of the beads, in palette order.
+		 */
+		public ArrayList<Bead> getBeads() {
+			ArrayList<Bead> copies = new ArrayList<>();
+			for(int i = 0; i < beads.size(); i++) {
+				Bead bead = beads.getBead(i);
+				copies.add(new Bead(bead.getName(), bead.getCode(), bead.getColor()));
+			}
+			return copies;
+		}
+		
+		/**
+		 * @return Returns a map from color names to codes, as made by ColorLibrary.createCodeMap.
+		 */
+		public Map<String, String> getCodeMap() {
+			return codeMap;
+		}
+		
+		BeadPalette getBeadPalette() {
+			return beads;
+		}
+		
+		/**
+		 * Creates a matcher for this palette. The channel search and lookup table use the structures built when 
+		 * the palette was compiled.
+		 */
+		public BeadMatcher createMatcher(MatchingStrategy strategy) {
+			if(strategy == MatchingStrategy.CHANNEL_SEARCH) {
+				return new ChannelSearchMatcher(beads, channelOrder);
+			}
+			if(strategy == MatchingStrategy.LOOKUP_TABLE && lookupTable != null) {
+				LookupTableMatcher.preload(beads, lookupTable);
+			}
+			return strategy.createMatcher(beads);
+		}
+	}
+	
+	/**
+	 * Reads a JSON document into maps, lists, strings, doubles, booleans and nulls.
+	 */
+	private static class JsonReader {
+		private final String text;
+		private final File file;
+		private int position;
+		
+		JsonReader(String text, File file) {
+			this.text = text;
+			this.file = file;
+		}
+		
+		Object readDocument() throws IOException {
+			Object value = readValue();
+			skipSpace();
+			if(position < text.length()) {
+				throw error("unexpected text after the document");
+			}
+			return value;
+		}
+		
+		private Object readValue() throws IOException {
+			skipSpace();
+			if(position >= text.length()) {
+				throw error("unexpected end of file");
+			}
+			char c = text.charAt(position);
+			if(c == '{') {
+				position++;
+				Map<String, Object> object = new LinkedHashMap<>();
+				if(!consume('}')) {
+					do {
+						skipSpace();
+						if(position >= text.length() || text.charAt(position) != '"') {
+							throw error("expected a field name");
+						}
+						String name = readString();
+						expect(':');
+						object.put(name, readValue());
+					} while(consume(','));
+					expect('}');
+				}
+				return object;
+			}
+			if(c == '[') {
+				position++;
+				java.util.List<Object> array = new ArrayList<>();
+				if(!consume(']')) {
+					do {
+						array.add(readValue());
+					} while(consume(','));
+					expect(']');
+				}
+				return array;
+			}
+			if(c == '"') {
+				return readString();
+			}
+			for(String word : new String[] {"true", "false", "null"}) {
+				if(text.startsWith(word, position)) {
+					position += word.length();
+					return word.equals("null") ? null : Boolean.valueOf(word);
+				}
+			}
+			int start = position;
+			while(position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+				position++;
+			}
+			try {
+				return Double.valueOf(text.substring(start, position));
+			} catch (NumberFormatException e) {
+				throw error("expected a value");
+			}
+		}
+		
+		private String readString() throws IOException {
+			position++;
+			StringBuilder value = new StringBuilder();
+			while(position < text.length()) {
+				char c = text.charAt(position++);
+				if(c == '"') {
+					return value.toString();
+				}
+				if(c == '\\') {
+					if(position >= text.length()) {
+						break;
+					}
+					char escaped = text.charAt(position++);
+					switch(escaped) {
+					case 'n': value.append('\n'); break;
+					case 't': value.append('\t'); break;
+					case 'r': value.append('\r'); break;
+					case 'b': value.append('\b'); break;
+					case 'f': value.append('\f'); break;
+					case 'u':
+						if(position + 4 > text.length()) {
+							throw error("bad escape");
+						}
+						try {
+							value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+						} catch (NumberFormatException e) {
+							throw error("bad escape");
+						}
+						position += 4;
+						break;
+					default: value.append(escaped);
+					}
+				} else {
+					value.append(c);
+				}
+			}
+			throw error("unterminated string");
+		}
+		
+		private void skipSpace() {
+			while(position < text.length() && Character.isWhitespace(text.charAt(position))) {
+				position++;
+			}
+		}
+		
+		private boolean consume(char c) {
+			skipSpace();
+			if(position < text.length() && text.charAt(position) == c) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+		
+		private void expect(char c) throws IOException {
+			if(!consume(c)) {
+				throw error("expected '" + c + "'");
+			}
+		}
+		
+		private IOException error(String message) {
+			return new IOException(file + ": " + message + " at character " + position + ".");
+		}
+	}
+}
+
+/**
+ * Used to compare the averaged tonal value of a bead object. Not currently used, but may prove useful in future updates.
+ */
+class TonalValueComparator implements Comparator<Bead>, java.io.Serializable {
+	public int compare(Bead b1, Bead b2) {
+		int rgb1 = ((b1.getColor().getRed() + b1.getColor().getGreen() + b1.getColor().getBlue()) / 3);
+		int rgb2 = ((b2.getColor().getRed() + b2.getColor().getGreen() + b2.getColor().getBlue()) / 3);
+		
+		if (rgb1 < rgb2) {
+			return -1;
+		} else if (rgb1 == rgb2) {
+			return 0;
+		} else {
+			return 1;
+		}
+	}
+}
+
+/**
+ * Used to compare the red channel value of a bead object.
+ */
+class RedChannelComparator implements Comparator<Bead>, java.io.Serializable {
+	public int compare(Bead b1, Bead b2) {
+		int r1 = b1.getColor().getRed();
+		int r2 = b2.getColor().getRed();
+		
+		if (r1 < r2) {
+			return -1;
+		} else if (r1 == r2) {
+			return 0;
+		} else {
+			return 1;
+		}
+	}
+}
+
+/**
+ * Used to compare the green channel value of a bead object.
+ */
+class GreenChannelComparator implements Comparator<Bead>, java.io.Serializable {
+	public int compare(Bead b1, Bead b2) {
+		int g1 = b1.getColor().getGreen();
+		int g2 = b2.getColor().getGreen();
+		
+		if (g1 < g2) {
+			return -1;
+		} else if (g1 == g2) {
+			return 0;
+		} else {
+			return 1;
+		}
+	}
+}
+
+/**
+ * Used to compare the blue channel value of a bead object.
+ */
+class BlueChannelComparator implements Comparator<Bead>, java.io.Serializable {
+	public int compare(Bead b1, Bead b2) {
+		int rgb1 = b1.getColor().getBlue();
+		int rgb2 = b2.getColor().getBlue();
+		
+		if (rgb1 < rgb2) {
+			return -1;
+		} else if (rgb1 == rgb2) {
+			return 0;
+		} else {
+			return 1;
+		}
+	}
+}
+
+/**
+ * Creates and exports an image file ready to be printed on letter sized paper at 300dpi.
+ */
+class CreateImageAndExportToFile {
+	// Width and height of page, and radius of each bead. 
+	final int PAGE_WIDTH = 2550;
+	final int PAGE_HEIGHT = 3300;
+	final int RADIUS = 29;
+	final int DIAMETER = RADIUS * 2;
+	int borderWidth = 3;
+	// Starting x and y coordinates for list of beads.
+	final int LIST_X = 200;
+	final int LIST_Y = 2200;
+	// Top edge of the bead grid.
+	final int GRID_Y = 250;
+	
+	// Draw pages with one byte per pixel instead of one int.
+	private boolean indexedColor;
+	// Deflate level from 0 to 9, or -1 for the PNG writer's default.
+	private int compressionLevel = -1;
+	// Filter used on each row, or null to let the PNG writer choose.
+	private PngEncoder.Filter filter;
+	private int deflateThreads = 1;
+	
+	/** Creates an exporter that renders pages without writing them. */
+	public CreateImageAndExportToFile() {
+	}
+	
+	/**
+	 * This method formats and exports the output file. It creates a white page, paints rows of beads in their 
+	 * appropriate colors overlaid with their color codes, adds title text, and creates a list of bead colors 
+	 * needed to complete the project as well as the quantity in which they are needed.
+	 * @param fileName The name of the image file originally imported for conversion.
+	 * @param matrix The BeadMatrix containing the grid of bead objects and list of bead colors used.
+	 * @param codeMap A map containing color names and their color codes.
+	 */
+	public CreateImageAndExportToFile(String fileName, BeadMatrix matrix, Map<String,String> codeMap) {
+		this(fileName, matrix, codeMap, new File("BeadTemplate.png"));
+	}
+	
+	/**
+	 * Formats the page as above and exports it to the given file.
+	 * @param fileName The name of the image file originally imported for conversion.
+	 * @param matrix The BeadMatrix containing the grid of bead objects and list of bead colors used.
+	 * @param codeMap A map containing color names and their color codes.
+	 * @param output The PNG file to write.
+	 */
+	public CreateImageAndExportToFile(String fileName, BeadMatrix matrix, Map<String,String> codeMap, File output) {
+		export(fileName, matrix, codeMap, output);
+	}
+	
+	/**
+	 * Formats the page as above and exports it to the given file, using this exporter's settings.
+	 * @param fileName The name of the image file originally imported for conversion.
+	 * @param matrix The BeadMatrix containing the grid of bead objects and list of bead colors used.
+	 * @param codeMap A map containing color names and their color codes.
+	 * @param output The PNG file to write.
+	 */
+	public void export(String fileName, BeadMatrix matrix, Map<String,String> codeMap, File output) {
+		BufferedImage bufferedImage = renderPage("Perler Bead Pattern for " + fileName, null, matrix, codeMap);
+		try {
+			// Save as PNG
+			writePng(bufferedImage, output);
+		} catch (IOException ex) {
+			System.out.print(ex);
+		}
+	}
+	
+	/**
+	 * Sets whether pages are drawn as indexed images, with one byte per pixel and a color table made from the bead 
+	 * colors plus black and white. This needs a quarter of the memory and gives smaller files. Grids with more 
+	 * than 254 colors are still drawn in RGB.
+	 */
+	public void setIndexedColor(boolean indexedColor) {
+		this.indexedColor = indexedColor;
+	}
+	
+	/**
+	 * Sets the deflate level of written PNG files.
+	 * @param compressionLevel From 0 (fastest) to 9 (smallest), or -1 for the default.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if(compressionLevel < -1 || compressionLevel > 9) {
+			throw new IllegalArgumentException("Compression level must be from 0 to 9, or -1.");
+		}
+		this.compressionLevel = compressionLevel;
+	}
+	
+	/**
+	 * Sets the filter applied to each row of written PNG files. ImageIO's PNG writer does not offer a choice of 
+	 * filter, so pages are written with PngEncoder when a filter is set.
+	 * @param filter The filter, or null to let ImageIO choose.
+	 */
+	public void setFilter(PngEncoder.Filter filter) {
+		this.filter = filter;
+	}
+	
+	/**
+	 * Sets how many threads compress each written PNG file. More than one thread writes pages with PngEncoder.
+	 */
+	public void setDeflateThreads(int deflateThreads) {
+		if(deflateThreads < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1.");
+		}
+		this.deflateThreads = deflateThreads;
+	}
+	
+	/**
+	 * Renders a template page: the bead grid, the title, and the list of bead colors needed.
+	 * @param title The title printed at the top of the page.
+	 * @param subtitle A line printed below the title, or null for none.
+	 * @param matrix The BeadMatrix containing the grid of beads and list of bead colors used.
+	 * @param codeMap A map containing color names and their color codes.
+	 * @return Returns the rendered page.
+	 */
+	public BufferedImage renderPage(String title, String subtitle, BeadMatrix matrix, Map<String,String> codeMap) {
+		return renderPage(title, subtitle, matrix, codeMap, indexedColor ? createColorModel(matrix) : null);
+	}
+	
+	/**
+	 * Renders a template page with a chosen color table. The table must hold white, black and every bead color in 
+	 * the grid, and may hold more.
+	 * @param colorModel The color table of the page, or null for an RGB page.
+	 * @return Returns the rendered page.
+	 */
+	BufferedImage renderPage(String title, String subtitle, BeadMatrix matrix, Map<String,String> codeMap, IndexColorModel colorModel) {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.RENDER);
+		// Create BufferedImage to hold graphics.
+		BufferedImage bufferedImage = colorModel != null 
+				? new BufferedImage(PAGE_WIDTH, PAGE_HEIGHT, BufferedImage.TYPE_BYTE_INDEXED, colorModel) 
+				: new BufferedImage(PAGE_WIDTH, PAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		
+		// Create white page.
+		Graphics2D page = bufferedImage.createGraphics();
+		page.setColor(Color.WHITE);
+		page.fillRect(0, 0, PAGE_WIDTH, PAGE_HEIGHT);
+		page.dispose();
+		
+		drawGrid(bufferedImage, matrix);
+		drawText(bufferedImage, title, subtitle, matrix.colorList, codeMap);
+		timer.stop((long) bufferedImage.getWidth() * bufferedImage.getHeight());
+		return bufferedImage;
+	}
+	
+	/**
+	 * Makes a color table with white, black and every bead color in the grid.
+	 * @return Returns the color model, or null if the grid has too many colors.
+	 */
+	static IndexColorModel createColorModel(BeadMatrix matrix) {
+		LinkedHashSet<Integer> colors = new LinkedHashSet<>();
+		colors.add(0xFFFFFF);
+		colors.add(0x000000);
+		for(int i = 0; i < matrix.getRowCount(); i++) {
+			for(int j = 0; j < matrix.getColumnCount(); j++) {
+				Bead bead = matrix.getBead(i, j);
+				if(bead == null) {
+					continue;
+				}
+				colors.add(bead.getColor().getRGB() & 0xFFFFFF);
+				if(colors.size() > 256) {
+					return null;
+				}
+			}
+		}
+		int[] table = new int[colors.size()];
+		int index = 0;
+		for(int rgb : colors) {
+			table[index++] = rgb;
+		}
+		return new IndexColorModel(8, table.length, table, 0, false, -1, DataBuffer.TYPE_BYTE);
+	}
+	
+	/**
+	 * Makes a color table with white, black and every color of a palette, so that any design in the palette can be 
+	 * drawn on the page.
+	 * @return Returns the color model, or null if the palette has too many colors.
+	 */
+	static IndexColorModel createColorModel(BeadPalette palette) {
+		LinkedHashSet<Integer> colors = new LinkedHashSet<>();
+		colors.add(0xFFFFFF);
+		colors.add(0x000000);
+		for(int i = 0; i < palette.size(); i++) {
+			colors.add(palette.getRGB(i) & 0xFFFFFF);
+			if(colors.size() > 256) {
+				return null;
+			}
+		}
+		int[] table = new int[colors.size()];
+		int index = 0;
+		for(int rgb : colors) {
+			table[index++] = rgb;
+		}
+		return new IndexColorModel(8, table.length, table, 0, false, -1, DataBuffer.TYPE_BYTE);
+	}
+	
+	/**
+	 * @return Returns true if pages are drawn with a color table.
+	 */
+	public boolean isIndexedColor() {
+		return indexedColor;
+	}
+	
+	/**
+	 * @return Returns the x coordinate of the left edge of the bead grid, which is centered on the page.
+	 */
+	int gridX(int columns) {
+		return (PAGE_WIDTH - DIAMETER * columns) / 2;
+	}
+	
+	/**
+	 * Paints a colored circle with its color code for every bead in the grid. Each bead color is drawn once into a 
+	 * sprite and then copied into the page, which gives the same pixels as drawing every bead.
+	 */
+	void drawGrid(BufferedImage bufferedImage, BeadMatrix matrix) {
+		// Set x and y location of grid.
+		int startX = gridX(matrix.getColumnCount());
+		int startY = GRID_Y;
+		
+		if(bufferedImage.getType() == BufferedImage.TYPE_BYTE_INDEXED) {
+			drawIndexedGrid(bufferedImage, matrix, startX, startY);
+			return;
+		}
+		if(bufferedImage.getType() != BufferedImage.TYPE_INT_RGB) {
+			Graphics2D pegboard = bufferedImage.createGraphics();
+			forEachBead(matrix, (i, j, bead) -> drawBead(pegboard, bead, (DIAMETER * j) + startX, (DIAMETER * i) + startY));
+			pegboard.dispose();
+			return;
+		}
+		
+		// Stamp a sprite for each bead, in the same order the beads would be drawn.
+		int[] page = ((DataBufferInt) bufferedImage.getRaster().getDataBuffer()).getData();
+		int pageWidth = bufferedImage.getWidth();
+		int pageHeight = bufferedImage.getHeight();
+		// Palette beads are shared between cells, so most lookups are by reference.
+		IdentityHashMap<Bead, BeadSprite> sprites = new IdentityHashMap<>();
+		forEachBead(matrix, (i, j, bead) -> {
+			BeadSprite sprite = sprites.get(bead);
+			if(sprite == null) {
+				sprite = BeadSprite.forBead(bead, this);
+				sprites.put(bead, sprite);
+			}
+			sprite.stamp(page, pageWidth, pageHeight, (DIAMETER * j) + startX, (DIAMETER * i) + startY);
+		});
+	}
+	
+	/** Receives the beads of a grid from forEachBead. */
+	interface BeadVisitor {
+		void visit(int row, int column, Bead bead);
+	}
+	
+	/**
+	 * Visits every bead of a grid, row by row. The empty pegs of a sparse matrix are skipped by walking its runs, 
+	 * so they cost nothing.
+	 */
+	static void forEachBead(BeadMatrix matrix, BeadVisitor visitor) {
+		SparseBeadMatrix sparse = matrix.getSparseMatrix();
+		if(sparse == null) {
+			for(int i = 0; i < matrix.getRowCount(); i++) {
+				for(int j = 0; j < matrix.getColumnCount(); j++) {
+					visitor.visit(i, j, matrix.getBead(i, j));
+				}
+			}
+			return;
+		}
+		BeadPalette palette = sparse.getPalette();
+		for(int i = 0, bead = 0; i < sparse.getHeight(); i++) {
+			for(int run = 0; run < sparse.getRunCount(i); run++) {
+				int start = sparse.getRunStart(i, run);
+				for(int j = start; j < start + sparse.getRunLength(i, run); j++) {
+					visitor.visit(i, j, palette.getBead(sparse.getIndexAt(bead++)));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Stamps sprites into an indexed page. Each sprite's colors are looked up in the page's color table once.
+	 */
+	private void drawIndexedGrid(BufferedImage bufferedImage, BeadMatrix matrix, int startX, int startY) {
+		IndexColorModel colorModel = (IndexColorModel) bufferedImage.getColorModel();
+		HashMap<Integer, Byte> indexOf = new HashMap<>();
+		for(int i = colorModel.getMapSize() - 1; i >= 0; i--) {
+			indexOf.put(colorModel.getRGB(i) & 0xFFFFFF, (byte) i);
+		}
+		byte[] page = ((DataBufferByte) bufferedImage.getRaster().getDataBuffer()).getData();
+		int pageWidth = bufferedImage.getWidth();
+		int pageHeight = bufferedImage.getHeight();
+		IdentityHashMap<Bead, BeadSprite> sprites = new IdentityHashMap<>();
+		IdentityHashMap<Bead, byte[]> spriteIndexes = new IdentityHashMap<>();
+		forEachBead(matrix, (i, j, bead) -> {
+			BeadSprite sprite = sprites.get(bead);
+			if(sprite == null) {
+				sprite = BeadSprite.forBead(bead, this);
+				sprites.put(bead, sprite);
+				spriteIndexes.put(bead, sprite.toIndexes(indexOf, colorModel));
+			}
+			sprite.stamp(page, spriteIndexes.get(bead), pageWidth, pageHeight, (DIAMETER * j) + startX, (DIAMETER * i) + startY);
+		});
+	}
+	
+	/**
+	 * Draws one bead: a black circle, a smaller circle in the bead color, and the color code.
+	 * @param pegboard The graphics to draw with. Its color is left black.
+	 * @param x The left edge of the bead.
+	 * @param y The top edge of the bead.
+	 */
+	void drawBead(Graphics2D pegboard, Bead bead, int x, int y) {
+		pegboard.setFont(new Font("Helvetica", 1, (DIAMETER / 3)));
+		pegboard.setColor(Color.BLACK);
+		pegboard.fillOval(x, y, DIAMETER, DIAMETER);
+		pegboard.setColor(bead.getColor());
+		pegboard.fillOval(x + borderWidth, y + borderWidth, DIAMETER - (2 * borderWidth), DIAMETER - (2 * borderWidth));
+		pegboard.setColor(Color.BLACK);
+		pegboard.drawString(bead.getCode(), x + RADIUS - (RADIUS / 3), y + RADIUS + (RADIUS / 6));
+	}
+	
+	/**
+	 * Draws the title and the list of bead colors with their color code and number of beads required for project.
+	 */
+	void drawText(BufferedImage bufferedImage, String title, String subtitle, Map<String, Integer> colorList, Map<String,String> codeMap) {
+		Graphics2D beadList = bufferedImage.createGraphics();
+		Font listFont = new Font("Helvetica", 1, 30);
+		beadList.setFont(listFont);
+		beadList.setColor(Color.BLACK);
+		beadList.drawString(title, 1050, 150);
+		if(subtitle != null) {
+			beadList.drawString(subtitle, LIST_X, 210);
+		}
+		beadList.drawString("You will need the following bead colors:", LIST_X, LIST_Y - 100);
+		
+		// Draw each item of list, ten to a column.
+		java.util.List<String> lines = legendLines(colorList, codeMap);
+		for(int i = 0; i < lines.size(); i++) {
+			beadList.drawString(lines.get(i), legendX(i), legendY(i));
+		}
+		beadList.dispose();
+	}
+	
+	/**
+	 * Makes the lines of the bead list, in the order they are drawn.
+	 * @return Returns one line for each entry of the color list.
+	 */
+	static java.util.List<String> legendLines(Map<String, Integer> colorList, Map<String,String> codeMap) {
+		java.util.List<String> lines = new ArrayList<>(colorList.size());
+		for(Map.Entry<String, Integer> entry : colorList.entrySet()) {
+			lines.add(entry.getKey() + " (" + codeMap.get(entry.getKey()) + ") - " + entry.getValue() + " beads");
+		}
+		return lines;
+	}
+	
+	private int legendX(int line) {
+		return LIST_X + 600 * (line / 10);
+	}
+	
+	private int legendY(int line) {
+		return LIST_Y + 100 * (line % 10);
+	}
+	
+	/**
+	 * Redraws the beads at some cells of a rendered page after they have changed in the matrix. For each cell, the 
+	 * area the old and new bead sprites cover is cleared and every bead that reaches into it is stamped again, 
+	 * clipped to the area and in the order drawGrid stamps them, so the page ends up as if it had been rendered 
+	 * again. Nothing is drawn if a cell cannot be patched this way; the page must then be rendered again.
+	 * @param page A page made by renderPage for the matrix.
+	 * @param matrix The matrix with the new beads.
+	 * @param subtitle The subtitle the page was rendered with.
+	 * @param cells The changed cells, as row * columns + column.
+	 * @param previous The bead each changed cell held when the page was drawn.
+	 * @param count The number of changed cells.
+	 * @return Returns true if the page was patched, or false if the beads would touch the page's text, a new bead 
+	 * color is not in an indexed page's color table, or the matrix has empty pegs.
+	 */
+	boolean repaintBeads(BufferedImage page, BeadMatrix matrix, String subtitle, int[] cells, Bead[] previous, int count) {
+		int columns = matrix.getColumnCount();
+		int rows = matrix.getRowCount();
+		int startX = gridX(columns);
+		boolean indexed = page.getType() == BufferedImage.TYPE_BYTE_INDEXED;
+		if((!indexed && page.getType() != BufferedImage.TYPE_INT_RGB) || matrix.getSparseMatrix() != null) {
+			return false;
+		}
+		
+		// Text is drawn over the white page, so an area may only be cleared if it is between the heading and the list.
+		Graphics2D graphics = page.createGraphics();
+		FontMetrics metrics = graphics.getFontMetrics(new Font("Helvetica", 1, 30));
+		int top = (subtitle != null ? 210 : 150) + metrics.getMaxDescent() + 1;
+		int bottom = LIST_Y - 100 - metrics.getMaxAscent() - 1;
+		IdentityHashMap<Bead, BeadSprite> sprites = new IdentityHashMap<>();
+		Rectangle[] areas = new Rectangle[count];
+		for(int k = 0; k < count; k++) {
+			int row = cells[k] / columns;
+			int column = cells[k] % columns;
+			int x = (DIAMETER * column) + startX;
+			int y = (DIAMETER * row) + GRID_Y;
+			Rectangle area = sprite(sprites, previous[k]).getBounds(x, y).union(sprite(sprites, matrix.getBead(row, column)).getBounds(x, y));
+			areas[k] = area.intersection(new Rectangle(0, top, page.getWidth(), bottom - top));
+			if(!areas[k].equals(area)) {
+				graphics.dispose();
+				return false;
+			}
+		}
+		
+		HashMap<Integer, Byte> indexOf = new HashMap<>();
+		IdentityHashMap<Bead, byte[]> spriteIndexes = new IdentityHashMap<>();
+		if(indexed) {
+			IndexColorModel colorModel = (IndexColorModel) page.getColorModel();
+			for(int i = colorModel.getMapSize() - 1; i >= 0; i--) {
+				indexOf.put(colorModel.getRGB(i) & 0xFFFFFF, (byte) i);
+			}
+			for(int k = 0; k < count; k++) {
+				Bead bead = matrix.getBead(cells[k] / columns, cells[k] % columns);
+				if(!indexOf.containsKey(bead.getColor().getRGB() & 0xFFFFFF)) {
+					graphics.dispose();
+					return false;
+				}
+			}
+		}
+		
+		graphics.setColor(Color.WHITE);
+		int pageWidth = page.getWidth();
+		for(int k = 0; k < count; k++) {
+			Rectangle area = areas[k];
+			graphics.fillRect(area.x, area.y, area.width, area.height);
+			// A sprite reaches at most one bead past its own cell, since it is drawn on a canvas three beads wide.
+			int row = cells[k] / columns;
+			int column = cells[k] % columns;
+			for(int i = Math.max(0, row - 1); i <= Math.min(rows - 1, row + 1); i++) {
+				for(int j = Math.max(0, column - 1); j <= Math.min(columns - 1, column + 1); j++) {
+					Bead bead = matrix.getBead(i, j);
+					BeadSprite sprite = sprite(sprites, bead);
+					int x = (DIAMETER * j) + startX;
+					int y = (DIAMETER * i) + GRID_Y;
+					if(indexed) {
+						byte[] indexes = spriteIndexes.get(bead);
+						if(indexes == null) {
+							indexes = sprite.toIndexes(indexOf, (IndexColorModel) page.getColorModel());
+							spriteIndexes.put(bead, indexes);
+						}
+						sprite.stamp(((DataBufferByte) page.getRaster().getDataBuffer()).getData(), indexes, pageWidth, x, y, area);
+					} else {
+						sprite.stamp(((DataBufferInt) page.getRaster().getDataBuffer()).getData(), pageWidth, x, y, area);
+					}
+				}
+			}
+		}
+		graphics.dispose();
+		return true;
+	}
+	
+	private BeadSprite sprite(IdentityHashMap<Bead, BeadSprite> sprites, Bead bead) {
+		BeadSprite sprite = sprites.get(bead);
+		if(sprite == null) {
+			sprite = BeadSprite.forBead(bead, this);
+			sprites.put(bead, sprite);
+		}
+		return sprite;
+	}
+	
+	/**
+	 * Redraws the lines of the bead list that have changed on a rendered page. The area each changed line covered 
+	 * before and covers now is cleared, and every line that reaches into it is drawn again, clipped to the area.
+	 * Lines that stay the same are not touched. The beads must not reach the list, which repaintBeads checks.
+	 * @param page A page made by renderPage.
+	 * @param before The lines the page was drawn with, from legendLines.
+	 * @param after The lines of the new color list.
+	 */
+	void repaintLegend(BufferedImage page, java.util.List<String> before, java.util.List<String> after) {
+		Graphics2D beadList = page.createGraphics();
+		Font listFont = new Font("Helvetica", 1, 30);
+		beadList.setFont(listFont);
+		FontMetrics metrics = beadList.getFontMetrics();
+		for(int i = 0; i < Math.max(before.size(), after.size()); i++) {
+			String old = i < before.size() ? before.get(i) : null;
+			String line = i < after.size() ? after.get(i) : null;
+			if(Objects.equals(old, line)) {
+				continue;
+			}
+			Rectangle area = old != null ? lineBounds(metrics, old, i) : lineBounds(metrics, line, i);
+			if(old != null && line != null) {
+				area = area.union(lineBounds(metrics, line, i));
+			}
+			beadList.setClip(null);
+			beadList.setColor(Color.WHITE);
+			beadList.fillRect(area.x, area.y, area.width, area.height);
+			beadList.setClip(area);
+			beadList.setColor(Color.BLACK);
+			for(int j = 0; j < after.size(); j++) {
+				if(lineBounds(metrics, after.get(j), j).intersects(area)) {
+					beadList.drawString(after.get(j), legendX(j), legendY(j));
+				}
+			}
+		}
+		beadList.dispose();
+	}
+	
+	/**
+	 * @return Returns a rectangle around everything a line of the bead list can draw, with room for glyphs that 
+	 * reach past their advance.
+	 */
+	private Rectangle lineBounds(FontMetrics metrics, String line, int index) {
+		int margin = metrics.getHeight() / 2;
+		return new Rectangle(legendX(index) - margin, legendY(index) - metrics.getMaxAscent() - margin, 
+				metrics.stringWidth(line) + 2 * margin, metrics.getMaxAscent() + metrics.getMaxDescent() + 2 * margin);
+	}
+	
+	/**
+	 * Saves a rendered page as a PNG file.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void writePng(BufferedImage page, File file) throws IOException {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.ENCODE);
+		encodePng(page, file);
+		timer.stop((long) page.getWidth() * page.getHeight());
+	}
+	
+	/**
+	 * Writes a rendered page as PNG to a stream, without using temporary files. The stream is not closed.
+	 * @throws IOException If the stream cannot be written.
+	 */
+	public void writePng(BufferedImage page, OutputStream output) throws IOException {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.ENCODE);
+		if(filter != null || deflateThreads > 1) {
+			PngEncoder encoder = new PngEncoder();
+			encoder.setCompressionLevel(compressionLevel);
+			encoder.setFilter(filter != null ? filter : PngEncoder.Filter.ADAPTIVE);
+			encoder.setThreads(deflateThreads);
+			encoder.write(page, output);
+		} else {
+			try(ImageOutputStream stream = new javax.imageio.stream.MemoryCacheImageOutputStream(output)) {
+				writeWithImageIO(page, stream);
+			}
+		}
+		timer.stop((long) page.getWidth() * page.getHeight());
+	}
+	
+	private void encodePng(BufferedImage page, File file) throws IOException {
+		if(filter != null || deflateThreads > 1) {
+			PngEncoder encoder = new PngEncoder();
+			encoder.setCompressionLevel(compressionLevel);
+			encoder.setFilter(filter != null ? filter : PngEncoder.Filter.ADAPTIVE);
+			encoder.setThreads(deflateThreads);
+			encoder.write(page, file);
+			return;
+		}
+		if(compressionLevel < 0) {
+			ImageIO.write(page, "png", file);
+			return;
+		}
+		file.delete();
+		try(ImageOutputStream output = ImageIO.createImageOutputStream(file)) {
+			writeWithImageIO(page, output);
+		}
+	}
+	
+	/**
+	 * Writes a page with ImageIO's PNG writer at the set compression level, or its default level.
+	 */
+	private void writeWithImageIO(BufferedImage page, ImageOutputStream output) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+		try {
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			if(compressionLevel >= 0) {
+				param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+				// The writer uses deflate level 9 * (1 - quality), rounded down.
+				param.setCompressionQuality(compressionLevel == 9 ? 0f : 1f - (compressionLevel + 0.5f) / 9f);
+			}
+			writer.setOutput(output);
+			writer.write(null, new IIOImage(page, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+}
+
+/**
+ * A bead drawn once so it can be copied into a page many times. Only the pixels the drawing touched are kept, as 
+ * runs along each row, so copying a sprite changes exactly the pixels that drawing the bead would. Sprites are 
+ * shared between threads and cached by bead code, color and diameter.
+ */
+class BeadSprite {
+	private static final ConcurrentHashMap<String, BeadSprite> cache = new ConcurrentHashMap<>();
+	
+	// Offset of the sprite's top left corner from the bead's top left corner.
+	private final int offsetX;
+	private final int offsetY;
+	private final int width;
+	private final int height;
+	private final int[] pixels;
+	// Three ints per run: row, first column and length.
+	private final int[] runs;
+	
+	private BeadSprite(int offsetX, int offsetY, int width, int height, int[] pixels, int[] runs) {
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+		this.width = width;
+		this.height = height;
+		this.pixels = pixels;
+		this.runs = runs;
+	}
+	
+	/**
+	 * Returns the sprite for a bead, drawing it the first time it is needed.
+	 * @param bead The bead to draw.
+	 * @param exporter The exporter whose border width and drawing are used.
+	 * @return Returns the cached sprite.
+	 */
+	static BeadSprite forBead(Bead bead, CreateImageAndExportToFile exporter) {
+		int rgb = bead.getColor().getRGB() & 0xFFFFFF;
+		String key = bead.getCode() + "/" + Integer.toHexString(rgb) + "/" + exporter.borderWidth;
+		return cache.computeIfAbsent(key, k -> render(bead, exporter));
+	}
+	
+	/**
+	 * Draws the bead on a transparent canvas with a margin on every side, since the code may be wider than the 
+	 * bead, and keeps the part that was drawn on.
+	 */
+	private static BeadSprite render(Bead bead, CreateImageAndExportToFile exporter) {
+		int diameter = exporter.DIAMETER;
+		int size = diameter * 3;
+		BufferedImage canvas = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		Graphics2D graphics = canvas.createGraphics();
+		// The sprite is copied onto pages pixel for pixel, so it must be drawn exactly like a bead drawn on the page.
+		graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+		graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+		exporter.drawBead(graphics, bead, diameter, diameter);
+		graphics.dispose();
+		int[] argb = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+		
+		// Find the drawn area.
+		int minX = size, minY = size, maxX = -1, maxY = -1;
+		for(int y = 0; y < size; y++) {
+			for(int x = 0; x < size; x++) {
+				if(argb[y * size + x] != 0) {
+					minX = Math.min(minX, x);
+					maxX = Math.max(maxX, x);
+					minY = Math.min(minY, y);
+					maxY = Math.max(maxY, y);
+				}
+			}
+		}
+		if(maxX < 0) {
+			return new BeadSprite(0, 0, 0, 0, new int[0], new int[0]);
+		}
+		int width = maxX - minX + 1;
+		int height = maxY - minY + 1;
+		int[] pixels = new int[width * height];
+		int[] runs = new int[12];
+		int runCount = 0;
+		for(int y = 0; y < height; y++) {
+			int row = (y + minY) * size + minX;
+			int x = 0;
+			while(x < width) {
+				if((argb[row + x] >>> 24) != 0xFF) {
+					if(argb[row + x] != 0) {
+						throw new IllegalStateException("Bead sprites must be drawn without anti-aliasing.");
+					}
+					x++;
+					continue;
+				}
+				int start = x;
+				while(x < width && (argb[row + x] >>> 24) == 0xFF) {
+					pixels[y * width + x] = argb[row + x] & 0xFFFFFF;
+					x++;
+				}
+				if(runCount * 3 == runs.length) {
+					runs = Arrays.copyOf(runs, runs.length * 2);
+				}
+				runs[runCount * 3] = y;
+				runs[runCount * 3 + 1] = start;
+				runs[runCount * 3 + 2] = x - start;
+				runCount++;
+			}
+		}
+		return new BeadSprite(minX - diameter, minY - diameter, width, height, pixels, Arrays.copyOf(runs, runCount * 3));
+	}
+	
+	/**
+	 * Looks up the color table index of every sprite pixel.
+	 * @param indexOf The index of each color in the table.
+	 * @param colorModel The color table, used for colors that are not in it exactly.
+	 * @return Returns the sprite's pixels as indexes.
+	 */
+	byte[] toIndexes(Map<Integer, Byte> indexOf, IndexColorModel colorModel) {
+		byte[] indexes = new byte[pixels.length];
+		for(int i = 0; i < runs.length; i += 3) {
+			int start = runs[i] * width + runs[i + 1];
+			for(int k = start; k < start + runs[i + 2]; k++) {
+				Byte index = indexOf.get(pixels[k]);
+				indexes[k] = index != null ? index : ((byte[]) colorModel.getDataElements(0xFF000000 | pixels[k], null))[0];
+			}
+		}
+		return indexes;
+	}
+	
+	/**
+	 * Copies the sprite into an RGB page. Runs that fall partly off the page are clipped.
+	 * @param page The page's pixels, one int per pixel.
+	 * @param x The left edge of the bead on the page.
+	 * @param y The top edge of the bead on the page.
+	 */
+	void stamp(int[] page, int pageWidth, int pageHeight, int x, int y) {
+		copyRuns(pixels, page, pageWidth, x, y, 0, 0, pageWidth, pageHeight);
+	}
+	
+	/**
+	 * Copies the sprite into an indexed page.
+	 * @param page The page's pixels, one byte per pixel.
+	 * @param indexes The sprite's pixels from {@link #toIndexes}.
+	 */
+	void stamp(byte[] page, byte[] indexes, int pageWidth, int pageHeight, int x, int y) {
+		copyRuns(indexes, page, pageWidth, x, y, 0, 0, pageWidth, pageHeight);
+	}
+	
+	/**
+	 * Copies the part of the sprite inside a rectangle of the page into an RGB page.
+	 * @param clip The rectangle to copy into. It must lie within the page.
+	 */
+	void stamp(int[] page, int pageWidth, int x, int y, Rectangle clip) {
+		copyRuns(pixels, page, pageWidth, x, y, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height);
+	}
+	
+	/**
+	 * Copies the part of the sprite inside a rectangle of the page into an indexed page.
+	 * @param clip The rectangle to copy into. It must lie within the page.
+	 */
+	void stamp(byte[] page, byte[] indexes, int pageWidth, int x, int y, Rectangle clip) {
+		copyRuns(indexes, page, pageWidth, x, y, clip.x, clip.y, clip.x + clip.width, clip.y + clip.height);
+	}
+	
+	/**
+	 * @param x The left edge of the bead on the page.
+	 * @param y The top edge of the bead on the page.
+	 * @return Returns the rectangle of the page the sprite draws on when stamped at that bead position.
+	 */
+	Rectangle getBounds(int x, int y) {
+		return new Rectangle(x + offsetX, y + offsetY, width, height);
+	}
+	
+	/**
+	 * Copies runs from an int or byte array of sprite pixels into a page array of the same type. Runs are clipped 
+	 * to the rectangle from (clipLeft, clipTop) up to but not including (clipRight, clipBottom).
+	 */
+	private void copyRuns(Object source, Object page, int pageWidth, int x, int y, int clipLeft, int clipTop, int clipRight, int clipBottom) {
+		int left = x + offsetX;
+		int top = y + offsetY;
+		boolean inside = left >= clipLeft && top >= clipTop && left + width <= clipRight && top + height <= clipBottom;
+		for(int i = 0; i < runs.length; i += 3) {
+			int row = runs[i];
+			int start = runs[i + 1];
+			int length = runs[i + 2];
+			int pageY = top + row;
+			int pageX = left + start;
+			if(!inside) {
+				if(pageY < clipTop || pageY >= clipBottom) {
+					continue;
+				}
+				if(pageX < clipLeft) {
+					start += clipLeft - pageX;
+					length -= clipLeft - pageX;
+					pageX = clipLeft;
+				}
+				length = Math.min(length, clipRight - pageX);
+				if(length <= 0) {
+					continue;
+				}
+			}
+			System.arraycopy(source, row * width + start, page, pageY * pageWidth + pageX, length);
+		}
+	}
+}
+
+/**
+ * Writes PNG files with a chosen deflate level and row filter. Indexed images with 8 bit pixels are written with 
+ * their color table, and other images as RGB, or RGBA if they have alpha. With more than one thread, the image is 
+ * split into segments of rows that are filtered and compressed at the same time. Each segment starts with the end 
+ * of the data before it as its dictionary, so the file is barely larger than one compressed on a single thread.
+ */
+class PngEncoder {
+	/** The filter applied to every row before compression. ADAPTIVE picks the filter for each row that gives the smallest sum of differences. */
+	enum Filter {NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE}
+	
+	// Uncompressed bytes in each segment compressed by one thread.
+	static final int SEGMENT_SIZE = 1 << 20;
+	// Largest IDAT chunk written.
+	static final int CHUNK_SIZE = 1 << 16;
+	// Size of the deflate window, and so of the dictionary given to each segment.
+	static final int WINDOW_SIZE = 1 << 15;
+	private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+	
+	private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	private Filter filter = Filter.ADAPTIVE;
+	private int threads = 1;
+	
+	/**
+	 * @param compressionLevel From 0 (fastest) to 9 (smallest), or -1 for deflate's default.
+	 */
+	public void setCompressionLevel(int compressionLevel) {
+		if(compressionLevel < -1 || compressionLevel > 9) {
+			throw new IllegalArgumentException("Compression level must be from 0 to 9, or -1.");
+		}
+		this.compressionLevel = compressionLevel;
+	}
+	
+	public void setFilter(Filter filter) {
+		this.filter = filter;
+	}
+	
+	public void setThreads(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1.");
+		}
+		this.threads = threads;
+	}
+	
+	/**
+	 * Writes an image to a PNG file.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void write(BufferedImage image, File file) throws IOException {
+		try(OutputStream output = new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE)) {
+			write(image, output);
+		}
+	}
+	
+	/**
+	 * Writes an image as PNG to a stream. The stream is not closed.
+	 * @throws IOException If the stream cannot be written.
+	 */
+	public void write(BufferedImage image, OutputStream output) throws IOException {
+		DataOutputStream out = new DataOutputStream(output);
+		out.write(SIGNATURE);
+		boolean indexed = image.getColorModel() instanceof IndexColorModel && image.getColorModel().getPixelSize() == 8 
+				&& image.getSampleModel().getNumBands() == 1;
+		boolean alpha = !indexed && image.getColorModel().hasAlpha();
+		int bytesPerPixel = indexed ? 1 : alpha ? 4 : 3;
+		
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream headerData = new DataOutputStream(header);
+		headerData.writeInt(image.getWidth());
+		headerData.writeInt(image.getHeight());
+		// Bit depth, color type, compression, filtering and interlace.
+		headerData.write(new byte[] {8, (byte) (indexed ? 3 : alpha ? 6 : 2), 0, 0, 0});
+		writeChunk(out, "IHDR", header.toByteArray(), 0, header.size());
+		if(indexed) {
+			IndexColorModel colorModel = (IndexColorModel) image.getColorModel();
+			int size = colorModel.getMapSize();
+			byte[] table = new byte[size * 3];
+			byte[] transparency = new byte[size];
+			int transparent = 0;
+			for(int i = 0; i < size; i++) {
+				int argb = colorModel.getRGB(i);
+				table[i * 3] = (byte) (argb >> 16);
+				table[i * 3 + 1] = (byte) (argb >> 8);
+				table[i * 3 + 2] = (byte) argb;
+				transparency[i] = (byte) (argb >>> 24);
+				if((argb >>> 24) != 0xFF) {
+					transparent = i + 1;
+				}
+			}
+			writeChunk(out, "PLTE", table, 0, table.length);
+			if(transparent > 0) {
+				writeChunk(out, "tRNS", transparency, 0, transparent);
+			}
+		}
+		
+		Rows rows = new Rows(image, indexed, bytesPerPixel);
+		ChunkOutputStream idat = new ChunkOutputStream(out);
+		// Deflate's zlib header, with the level hint and check bits.
+		int levelHint = compressionLevel < 0 || compressionLevel == 6 ? 2 : compressionLevel < 2 ? 0 : compressionLevel < 6 ? 1 : 3;
+		int flags = levelHint << 6;
+		flags += 31 - ((0x78 << 8) + flags) % 31;
+		idat.write(0x78);
+		idat.write(flags);
+		int adler = threads > 1 ? compressParallel(rows, idat) : compress(rows, idat);
+		idat.write(adler >>> 24);
+		idat.write(adler >>> 16);
+		idat.write(adler >>> 8);
+		idat.write(adler);
+		idat.flush();
+		writeChunk(out, "IEND", new byte[0], 0, 0);
+		out.flush();
+	}
+	
+	/**
+	 * Compresses all rows as one deflate stream on the calling thread.
+	 * @return Returns the Adler-32 checksum of the uncompressed data.
+	 */
+	private int compress(Rows rows, OutputStream out) throws IOException {
+		Deflater deflater = new Deflater(compressionLevel, true);
+		Adler32 adler = new Adler32();
+		byte[] buffer = new byte[CHUNK_SIZE];
+		try {
+			int rowsPerSegment = rows.rowsPerSegment();
+			for(int y = 0; y < rows.height; y += rowsPerSegment) {
+				byte[] data = rows.filter(y, Math.min(rows.height, y + rowsPerSegment));
+				adler.update(data);
+				deflater.setInput(data);
+				while(!deflater.needsInput()) {
+					out.write(buffer, 0, deflater.deflate(buffer));
+				}
+			}
+			deflater.finish();
+			while(!deflater.finished()) {
+				out.write(buffer, 0, deflater.deflate(buffer));
+			}
+		} finally {
+			deflater.end();
+		}
+		return (int) adler.getValue();
+	}
+	
+	/**
+	 * Compresses segments of rows on several threads and writes them in order. Only a few segments are held at once.
+	 * @return Returns the Adler-32 checksum of the uncompressed data.
+	 */
+	private int compressParallel(Rows rows, OutputStream out) throws IOException {
+		int rowsPerSegment = rows.rowsPerSegment();
+		int segments = (rows.height + rowsPerSegment - 1) / rowsPerSegment;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<Segment>> pending = new ArrayDeque<>();
+		long adler = 1;
+		try {
+			for(int i = 0; i < segments; i++) {
+				int first = i * rowsPerSegment;
+				boolean last = i == segments - 1;
+				pending.add(executor.submit(() -> compressSegment(rows, first, Math.min(rows.height, first + rowsPerSegment), last)));
+				while(pending.size() >= threads * 2 || (last && !pending.isEmpty())) {
+					Segment segment = pending.remove().get();
+					out.write(segment.data);
+					adler = combineAdler(adler, segment.adler, segment.length);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("PNG compression was interrupted.");
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Could not compress PNG data.", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+		return (int) adler;
+	}
+	
+	/**
+	 * Filters and compresses one segment. Every segment but the last ends on a byte boundary so the next one can 
+	 * follow it.
+	 */
+	private Segment compressSegment(Rows rows, int first, int end, boolean last) {
+		byte[] data = rows.filter(first, end);
+		Deflater deflater = new Deflater(compressionLevel, true);
+		try {
+			if(first > 0) {
+				int dictionaryRows = Math.min(first, (WINDOW_SIZE + rows.rowLength - 1) / rows.rowLength);
+				byte[] before = rows.filter(first - dictionaryRows, first);
+				int length = Math.min(WINDOW_SIZE, before.length);
+				deflater.setDictionary(before, before.length - length, length);
+			}
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 4 + 64);
+			byte[] buffer = new byte[CHUNK_SIZE];
+			deflater.setInput(data);
+			if(last) {
+				deflater.finish();
+				while(!deflater.finished()) {
+					compressed.write(buffer, 0, deflater.deflate(buffer));
+				}
+			} else {
+				int length;
+				do {
+					length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					compressed.write(buffer, 0, length);
+				} while(length == buffer.length || !deflater.needsInput());
+			}
+			Adler32 adler = new Adler32();
+			adler.update(data);
+			return new Segment(compressed.toByteArray(), adler.getValue(), data.length);
+		} finally {
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * Combines the Adler-32 checksums of two blocks of data into the checksum of both, as zlib does.
+	 * @param length The length of the second block.
+	 */
+	static long combineAdler(long first, long second, long length) {
+		final long BASE = 65521;
+		long remainder = length % BASE;
+		long sum1 = first & 0xFFFF;
+		long sum2 = (remainder * sum1) % BASE;
+		sum1 += (second & 0xFFFF) + BASE - 1;
+		sum2 += ((first >> 16) & 0xFFFF) + ((second >> 16) & 0xFFFF) + BASE - remainder;
+		sum1 %= BASE;
+		sum2 %= BASE;
+		return sum1 | (sum2 << 16);
+	}
+	
+	private static void writeChunk(DataOutputStream out, String type, byte[] data, int offset, int length) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, offset, length);
+		out.writeInt(length);
+		out.write(typeBytes);
+		out.write(data, offset, length);
+		out.writeInt((int) crc.getValue());
+	}
+	
+	/** A compressed segment with the checksum and length of its uncompressed data. */
+	private static class Segment {
+		final byte[] data;
+		final long adler;
+		final int length;
+		
+		Segment(byte[] data, long adler, int length) {
+			this.data = data;
+			this.adler = adler;
+			this.length = length;
+		}
+	}
+	
+	/** Collects compressed data and writes it as IDAT chunks. */
+	private static class ChunkOutputStream extends OutputStream {
+		private final DataOutputStream out;
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int count;
+		
+		ChunkOutputStream(DataOutputStream out) {
+			this.out = out;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			if(count == buffer.length) {
+				flush();
+			}
+			buffer[count++] = (byte) b;
+		}
+		
+		@Override
+		public void write(byte[] b, int offset, int length) throws IOException {
+			while(length > 0) {
+				if(count == buffer.length) {
+					flush();
+				}
+				int n = Math.min(length, buffer.length - count);
+				System.arraycopy(b, offset, buffer, count, n);
+				count += n;
+				offset += n;
+				length -= n;
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if(count > 0) {
+				writeChunk(out, "IDAT", buffer, 0, count);
+				count = 0;
+			}
+		}
+	}
+	
+	/** Reads rows of an image as bytes and filters them. Safe to use from several threads. */
+	private class Rows {
+		final BufferedImage image;
+		final boolean indexed;
+		final int bytesPerPixel;
+		final int width;
+		final int height;
+		// Bytes in a filtered row, including the filter type.
+		final int rowLength;
+		
+		Rows(BufferedImage image, boolean indexed, int bytesPerPixel) {
+			this.image = image;
+			this.indexed = indexed;
+			this.bytesPerPixel = bytesPerPixel;
+			this.width = image.getWidth();
+			this.height = image.getHeight();
+			this.rowLength = width * bytesPerPixel + 1;
+		}
+		
+		int rowsPerSegment() {
+			return Math.max(1, SEGMENT_SIZE / rowLength);
+		}
+		
+		/**
+		 * Reads one row into a byte array, as palette indexes or as RGB(A) samples.
+		 */
+		void read(int y, byte[] row, int[] argb) {
+			if(indexed) {
+				image.getRaster().getDataElements(0, y, width, 1, row);
+				return;
+			}
+			image.getRGB(0, y, width, 1, argb, 0, width);
+			int k = 0;
+			for(int x = 0; x < width; x++) {
+				int pixel = argb[x];
+				row[k++] = (byte) (pixel >> 16);
+				row[k++] = (byte) (pixel >> 8);
+				row[k++] = (byte) pixel;
+				if(bytesPerPixel == 4) {
+					row[k++] = (byte) (pixel >>> 24);
+				}
+			}
+		}
+		
+		/**
+		 * Filters the rows from first up to but not including end.
+		 * @return Returns the filtered rows, each starting with its filter type.
+		 */
+		byte[] filter(int first, int end) {
+			int rowBytes = rowLength - 1;
+			byte[] data = new byte[(end - first) * rowLength];
+			byte[] previous = new byte[rowBytes];
+			byte[] current = new byte[rowBytes];
+			int[] argb = indexed ? null : new int[width];
+			byte[][] candidates = filter == Filter.ADAPTIVE ? new byte[5][rowBytes] : null;
+			if(first > 0) {
+				read(first - 1, previous, argb);
+			}
+			for(int y = first; y < end; y++) {
+				read(y, current, argb);
+				int offset = (y - first) * rowLength;
+				if(filter == Filter.ADAPTIVE) {
+					int best = 0;
+					long bestSum = Long.MAX_VALUE;
+					for(int type = 0; type < 5; type++) {
+						applyFilter(type, current, previous, candidates[type], 0);
+						long sum = 0;
+						for(byte b : candidates[type]) {
+							sum += Math.abs((int) b);
+						}
+						if(sum < bestSum) {
+							bestSum = sum;
+							best = type;
+						}
+					}
+					data[offset] = (byte) best;
+					System.arraycopy(candidates[best], 0, data, offset + 1, rowBytes);
+				} else {
+					data[offset] = (byte) filter.ordinal();
+					applyFilter(filter.ordinal(), current, previous, data, offset + 1);
+				}
+				byte[] swap = previous;
+				previous = current;
+				current = swap;
+			}
+			return data;
+		}
+		
+		/**
+		 * Applies one of the five PNG filter types to a row.
+		 */
+		void applyFilter(int type, byte[] row, byte[] above, byte[] out, int offset) {
+			int bpp = bytesPerPixel;
+			for(int i = 0; i < row.length; i++) {
+				int value = row[i] & 0xFF;
+				int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+				int up = above[i] & 0xFF;
+				int upLeft = i >= bpp ? above[i - bpp] & 0xFF : 0;
+				int predicted;
+				switch(type) {
+					case 1: predicted = left; break;
+					case 2: predicted = up; break;
+					case 3: predicted = (left + up) >> 1; break;
+					case 4: predicted = paeth(left, up, upLeft); break;
+					default: predicted = 0;
+				}
+				out[offset + i] = (byte) (value - predicted);
+			}
+		}
+	}
+	
+	static int paeth(int left, int up, int upLeft) {
+		int estimate = left + up - upLeft;
+		int distanceLeft = Math.abs(estimate - left);
+		int distanceUp = Math.abs(estimate - up);
+		int distanceUpLeft = Math.abs(estimate - upLeft);
+		if(distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+			return left;
+		}
+		return distanceUp <= distanceUpLeft ? up : upLeft;
+	}
+}
+
+/**
+ * Writes template pages as SVG or PDF instead of as an image. Each bead color is defined once, as an SVG symbol or 
+ * a PDF form, and every bead in the grid refers to it, so the file grows with the number of beads and colors rather 
+ * than with the size of the page. The page is streamed to the file as it is written. The layout and units are the 
+ * same as the PNG page, which is 300 pixels to the inch.
+ */
+class VectorExporter {
+	/** File formats that can be written. */
+	enum Format {SVG, PDF}
+	
+	// Points per page pixel in PDF files.
+	static final double PDF_SCALE = 72.0 / 300.0;
+	// How much of each circle's radius the Bezier control points are placed at.
+	static final double CIRCLE_CONTROL = 0.5523;
+	
+	private final CreateImageAndExportToFile layout = new CreateImageAndExportToFile();
+	
+	/**
+	 * Writes a template page.
+	 * @param format The file format.
+	 * @param title The title printed at the top of the page.
+	 * @param subtitle A line printed below the title, or null for none.
+	 * @param matrix The BeadMatrix containing the grid of beads and list of bead colors used.
+	 * @param codeMap A map containing color names and their color codes.
+	 * @param file The file to write.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public void export(Format format, String title, String subtitle, BeadMatrix matrix, Map<String,String> codeMap, File file) throws IOException {
+		try(VectorOutput out = new VectorOutput(file)) {
+			if(format == Format.SVG) {
+				writeSvg(out, title, subtitle, matrix, codeMap);
+			} else {
+				writePdf(out, title, subtitle, matrix, codeMap);
+			}
+		}
+	}
+	
+	/**
+	 * @return Returns each different bead in the grid, in the order first seen, with its number.
+	 */
+	private LinkedHashMap<String, Integer> findBeads(BeadMatrix matrix, ArrayList<Bead> beads) {
+		LinkedHashMap<String, Integer> numbers = new LinkedHashMap<>();
+		for(int i = 0; i < matrix.getRowCount(); i++) {
+			for(int j = 0; j < matrix.getColumnCount(); j++) {
+				Bead bead = matrix.getBead(i, j);
+				if(bead != null && numbers.putIfAbsent(key(bead), beads.size()) == null) {
+					beads.add(bead);
+				}
+			}
+		}
+		return numbers;
+	}
+	
+	private static String key(Bead bead) {
+		return bead.getCode() + "/" + (bead.getColor().getRGB() & 0xFFFFFF);
+	}
+	
+	/**
+	 * @return Returns the lines of the bead list, in the order they are printed.
+	 */
+	private java.util.List<String> listLines(Map<String, Integer> colorList, Map<String,String> codeMap) {
+		java.util.List<String> lines = new ArrayList<>();
+		for(Map.Entry<String, Integer> entry : colorList.entrySet()) {
+			lines.add(entry.getKey() + " (" + codeMap.get(entry.getKey()) + ") - " + entry.getValue() + " beads");
+		}
+		return lines;
+	}
+	
+	private void writeSvg(VectorOutput out, String title, String subtitle, BeadMatrix matrix, Map<String,String> codeMap) throws IOException {
+		int diameter = layout.DIAMETER;
+		int radius = layout.RADIUS;
+		out.print("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		out.print("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\" width=\"8.5in\" height=\"11in\" viewBox=\"0 0 ");
+		out.print(layout.PAGE_WIDTH + " " + layout.PAGE_HEIGHT + "\">\n");
+		out.print("<rect width=\"100%\" height=\"100%\" fill=\"#FFFFFF\"/>\n");
+		
+		// One symbol per bead: black circle, colored circle and code.
+		ArrayList<Bead> beads = new ArrayList<>();
+		LinkedHashMap<String, Integer> numbers = findBeads(matrix, beads);
+		out.print("<defs>\n");
+		for(int i = 0; i < beads.size(); i++) {
+			Bead bead = beads.get(i);
+			out.print("<g id=\"b" + i + "\"><circle cx=\"" + radius + "\" cy=\"" + radius + "\" r=\"" + radius + "\" fill=\"#000000\"/>");
+			out.print("<circle cx=\"" + radius + "\" cy=\"" + radius + "\" r=\"" + (radius - layout.borderWidth) + "\" fill=\"" 
+					+ String.format("#%06X", bead.getColor().getRGB() & 0xFFFFFF) + "\"/>");
+			out.print("<text x=\"" + (radius - radius / 3) + "\" y=\"" + (radius + radius / 6) + "\" font-size=\"" + (diameter / 3) + "\">");
+			out.print(escapeXml(bead.getCode()) + "</text></g>\n");
+		}
+		out.print("</defs>\n");
+		
+		int startX = layout.gridX(matrix.getColumnCount());
+		out.print("<g font-family=\"Helvetica, Arial, sans-serif\" font-weight=\"bold\">\n");
+		for(int i = 0; i < matrix.getRowCount(); i++) {
+			for(int j = 0; j < matrix.getColumnCount(); j++) {
+				// Empty pegs are left blank.
+				if(matrix.getBead(i, j) == null) {
+					continue;
+				}
+				out.print("<use xlink:href=\"#b" + numbers.get(key(matrix.getBead(i, j))) + "\" x=\"" + (diameter * j + startX) 
+						+ "\" y=\"" + (diameter * i + layout.GRID_Y) + "\"/>\n");
+			}
+		}
+		out.print("</g>\n");
+		
+		out.print("<g font-family=\"Helvetica, Arial, sans-serif\" font-weight=\"bold\" font-size=\"30\">\n");
+		svgText(out, title, 1050, 150);
+		if(subtitle != null) {
+			svgText(out, subtitle, layout.LIST_X, 210);
+		}
+		svgText(out, "You will need the following bead colors:", layout.LIST_X, layout.LIST_Y - 100);
+		java.util.List<String> lines = listLines(matrix.colorList, codeMap);
+		for(int i = 0; i < lines.size(); i++) {
+			svgText(out, lines.get(i), layout.LIST_X + (i / 10) * 600, layout.LIST_Y + (i % 10) * 100);
+		}
+		out.print("</g>\n</svg>\n");
+	}
+	
+	private static void svgText(VectorOutput out, String text, int x, int y) throws IOException {
+		out.print("<text x=\"" + x + "\" y=\"" + y + "\">" + escapeXml(text) + "</text>\n");
+	}
+	
+	static String escapeXml(String text) {
+		StringBuilder escaped = new StringBuilder(text.length());
+		for(char c : text.toCharArray()) {
+			switch(c) {
+				case '<': escaped.append("&lt;"); break;
+				case '>': escaped.append("&gt;"); break;
+				case '&': escaped.append("&amp;"); break;
+				case '"': escaped.append("&quot;"); break;
+				default: escaped.append(c);
+			}
+		}
+		return escaped.toString();
+	}
+	
+	/**
+	 * Writes a one page PDF. Objects are numbered: 1 catalog, 2 page tree, 3 page, 4 font, 5 page contents, 6 the 
+	 * length of the page contents, and 7 onwards one form per bead. The page contents are written before their 
+	 * length is known, so the length is its own object.
+	 */
+	private void writePdf(VectorOutput out, String title, String subtitle, BeadMatrix matrix, Map<String,String> codeMap) throws IOException {
+		int diameter = layout.DIAMETER;
+		int radius = layout.RADIUS;
+		ArrayList<Bead> beads = new ArrayList<>();
+		LinkedHashMap<String, Integer> numbers = findBeads(matrix, beads);
+		long[] offsets = new long[7 + beads.size()];
+		double width = layout.PAGE_WIDTH * PDF_SCALE;
+		double height = layout.PAGE_HEIGHT * PDF_SCALE;
+		
+		out.print("%PDF-1.4\n");
+		offsets[1] = out.position();
+		out.print("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+		offsets[2] = out.position();
+		out.print("2 0 obj\n<< /Type /Pages /Kids [3 0 R] /Count 1 >>\nendobj\n");
+		offsets[3] = out.position();
+		out.print("3 0 obj\n<< /Type /Page /Parent 2 0 R /MediaBox [0 0 " + number(width) + " " + number(height) + "] /Contents 5 0 R\n");
+		out.print("/Resources << /Font << /F1 4 0 R >> /XObject <<");
+		for(int i = 0; i < beads.size(); i++) {
+			out.print(" /B" + i + " " + (7 + i) + " 0 R");
+		}
+		out.print(" >> >> >>\nendobj\n");
+		offsets[4] = out.position();
+		out.print("4 0 obj\n<< /Type /Font /Subtype /Type1 /BaseFont /Helvetica-Bold /Encoding /WinAnsiEncoding >>\nendobj\n");
+		
+		// Page contents in page pixels, with y pointing down as on the PNG page.
+		offsets[5] = out.position();
+		out.print("5 0 obj\n<< /Length 6 0 R >>\nstream\n");
+		long start = out.position();
+		out.print(number(PDF_SCALE) + " 0 0 " + number(-PDF_SCALE) + " 0 " + number(height) + " cm\n");
+		int startX = layout.gridX(matrix.getColumnCount());
+		for(int i = 0; i < matrix.getRowCount(); i++) {
+			for(int j = 0; j < matrix.getColumnCount(); j++) {
+				if(matrix.getBead(i, j) == null) {
+					continue;
+				}
+				out.print("q 1 0 0 1 " + (diameter * j + startX) + " " + (diameter * i + layout.GRID_Y) + " cm /B" 
+						+ numbers.get(key(matrix.getBead(i, j))) + " Do Q\n");
+			}
+		}
+		out.print("0 g BT /F1 30 Tf\n");
+		pdfText(out, title, 1050, 150);
+		if(subtitle != null) {
+			pdfText(out, subtitle, layout.LIST_X, 210);
+		}
+		pdfText(out, "You will need the following bead colors:", layout.LIST_X, layout.LIST_Y - 100);
+		java.util.List<String> lines = listLines(matrix.colorList, codeMap);
+		for(int i = 0; i < lines.size(); i++) {
+			pdfText(out, lines.get(i), layout.LIST_X + (i / 10) * 600, layout.LIST_Y + (i % 10) * 100);
+		}
+		out.print("ET\n");
+		long length = out.position() - start;
+		out.print("endstream\nendobj\n");
+		offsets[6] = out.position();
+		out.print("6 0 obj\n" + length + "\nendobj\n");
+		
+		for(int i = 0; i < beads.size(); i++) {
+			Color color = beads.get(i).getColor();
+			StringBuilder form = new StringBuilder();
+			form.append("0 g\n");
+			circle(form, radius, radius);
+			form.append(number(color.getRed() / 255.0) + " " + number(color.getGreen() / 255.0) + " " + number(color.getBlue() / 255.0) + " rg\n");
+			circle(form, radius, radius - layout.borderWidth);
+			form.append("0 g BT /F1 " + (diameter / 3) + " Tf 1 0 0 -1 " + (radius - radius / 3) + " " + (radius + radius / 6) 
+					+ " Tm (" + escapePdf(beads.get(i).getCode()) + ") Tj ET\n");
+			byte[] content = form.toString().getBytes("ISO-8859-1");
+			offsets[7 + i] = out.position();
+			// A margin of one diameter on every side, like the sprite canvas, so long codes are not clipped.
+			out.print((7 + i) + " 0 obj\n<< /Type /XObject /Subtype /Form /BBox [" + (-diameter) + " " + (-diameter) 
+					+ " " + (2 * diameter) + " " + (2 * diameter) + "] /Resources << /Font << /F1 4 0 R >> >> /Length " + content.length + " >>\nstream\n");
+			out.write(content);
+			out.print("endstream\nendobj\n");
+		}
+		
+		long xref = out.position();
+		out.print("xref\n0 " + offsets.length + "\n0000000000 65535 f \n");
+		for(int i = 1; i < offsets.length; i++) {
+			out.print(String.format("%010d 00000 n \n", offsets[i]));
+		}
+		out.print("trailer\n<< /Size " + offsets.length + " /Root 1 0 R >>\nstartxref\n" + xref + "\n%%EOF\n");
+	}
+	
+	/**
+	 * Adds a filled circle made of four Bezier curves.
+	 */
+	private static void circle(StringBuilder out, double center, double radius) {
+		double k = radius * CIRCLE_CONTROL;
+		out.append(number(center + radius) + " " + number(center) + " m\n");
+		out.append(number(center + radius) + " " + number(center + k) + " " + number(center + k) + " " + number(center + radius) + " " + number(center) + " " + number(center + radius) + " c\n");
+		out.append(number(center - k) + " " + number(center + radius) + " " + number(center - radius) + " " + number(center + k) + " " + number(center - radius) + " " + number(center) + " c\n");
+		out.append(number(center - radius) + " " + number(center - k) + " " + number(center - k) + " " + number(center - radius) + " " + number(center) + " " + number(center - radius) + " c\n");
+		out.append(number(center + k) + " " + number(center - radius) + " " + number(center + radius) + " " + number(center - k) + " " + number(center + radius) + " " + number(center) + " c f\n");
+	}
+	
+	/**
+	 * Places a line of text. Text is flipped back upright, since the page's y axis points down.
+	 */
+	private static void pdfText(VectorOutput out, String text, int x, int y) throws IOException {
+		out.print("1 0 0 -1 " + x + " " + y + " Tm (" + escapePdf(text) + ") Tj\n");
+	}
+	
+	static String escapePdf(String text) {
+		StringBuilder escaped = new StringBuilder(text.length());
+		for(char c : text.toCharArray()) {
+			if(c == '(' || c == ')' || c == '\\') {
+				escaped.append('\\').append(c);
+			} else if(c >= 0xA0 && c < 256) {
+				// Latin-1 letters are the same codes in WinAnsiEncoding. They are written as octal escapes so the 
+				// file stays ASCII whatever charset it is written in.
+				escaped.append('\\').append(Integer.toOctalString(c));
+			} else {
+				// The font has no other characters, and control characters draw nothing.
+				escaped.append(c >= 0x20 && c < 0x7F ? c : '?');
+			}
+		}
+		return escaped.toString();
+	}
+	
+	/**
+	 * @return Returns a number with at most four decimals, as PDF does not allow exponents.
+	 */
+	static String number(double value) {
+		String text = String.format(Locale.ROOT, "%.4f", value);
+		text = text.replaceAll("0+$", "");
+		return text.endsWith(".") ? text.substring(0, text.length() - 1) : text;
+	}
+}
+
+/**
+ * Buffers text and bytes and writes them to a file channel, keeping count of the bytes written. Text is written as 
+ * UTF-8, which SVG declares. PDF text only ever holds ASCII, since escapePdf writes every other character as an 
+ * octal escape.
+ */
+class VectorOutput implements Closeable {
+	static final int BUFFER_SIZE = 1 << 16;
+	
+	private final FileChannel channel;
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private long position;
+	
+	public VectorOutput(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+	
+	/**
+	 * @return Returns the number of bytes written so far.
+	 */
+	public long position() {
+		return position;
+	}
+	
+	public void print(String text) throws IOException {
+		write(text.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	public void write(byte[] bytes) throws IOException {
+		int offset = 0;
+		while(offset < bytes.length) {
+			if(!buffer.hasRemaining()) {
+				drain();
+			}
+			int length = Math.min(buffer.remaining(), bytes.length - offset);
+			buffer.put(bytes, offset, length);
+			offset += length;
+		}
+		position += bytes.length;
+	}
+	
+	private void drain() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			drain();
+		} finally {
+			channel.close();
+		}
+	}
+}
+
+/**
+ * Saves designs in a compact binary file and reads them back, one board at a time if needed. The file is split 
+ * into pegboard-sized boards, and a table of offsets says where each board starts, so one board of a large mosaic 
+ * can be read without reading the rest. All numbers are big-endian.
+ * <pre>
+ * int     magic "BTPL"
+ * short   version, 1
+ * short   board size, in pegs along each side
+ * int     header length in bytes, counted from the start of the file
+ * int     width and height of the design, in beads
+ * int     number of beads in the palette
+ * beads   color as 0xRRGGBB, then name and code as DataOutput UTF strings
+ * int     board rows and board columns
+ * long    file offset of each board, row by row, then the end of the last board
+ * boards  each row of the board, top to bottom, as runs: the run length, then the palette index
+ * </pre>
+ * Run lengths and indexes are unsigned varints: seven bits per byte, low bits first, with the top bit set on 
+ * every byte but the last. Runs never cross the edge of a board, so every board row can be decoded on its own. 
+ * A board of one color takes two bytes per row.
+ */
+class BeadTemplateFile {
+	static final int MAGIC = 0x4254504C;
+	static final int VERSION = 1;
+	
+	/**
+	 * Writes a design.
+	 * @param design The design to save.
+	 * @param boardSize Pegs along each side of a board.
+	 * @param file The file to write.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public static void write(CompactBeadMatrix design, int boardSize, File file) throws IOException {
+		if(boardSize < 1 || boardSize > Short.MAX_VALUE) {
+			throw new IllegalArgumentException("Board size must be from 1 to " + Short.MAX_VALUE + ".");
+		}
+		int boardRows = (design.getHeight() + boardSize - 1) / boardSize;
+		int boardColumns = (design.getWidth() + boardSize - 1) / boardSize;
+		BeadPalette palette = design.getPalette();
+		
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(design.getWidth());
+		header.writeInt(design.getHeight());
+		header.writeInt(palette.size());
+		for(int i = 0; i < palette.size(); i++) {
+			header.writeInt(palette.getRGB(i));
+			header.writeUTF(palette.getBead(i).getName());
+			header.writeUTF(palette.getBead(i).getCode());
+		}
+		header.writeInt(boardRows);
+		header.writeInt(boardColumns);
+		// Magic, version, board size and header length come first.
+		int headerLength = 12 + header.size() + 8 * (boardRows * boardColumns + 1);
+		
+		try(FileOutputStream stream = new FileOutputStream(file)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+			out.writeInt(MAGIC);
+			out.writeShort(VERSION);
+			out.writeShort(boardSize);
+			out.writeInt(headerLength);
+			headerBytes.writeTo(out);
+			// The offsets are filled in once the boards are written.
+			out.write(new byte[8 * (boardRows * boardColumns + 1)]);
+			
+			long[] offsets = new long[boardRows * boardColumns + 1];
+			long position = headerLength;
+			ByteArrayOutputStream board = new ByteArrayOutputStream();
+			for(int boardRow = 0; boardRow < boardRows; boardRow++) {
+				for(int boardColumn = 0; boardColumn < boardColumns; boardColumn++) {
+					offsets[boardRow * boardColumns + boardColumn] = position;
+					board.reset();
+					encodeBoard(design, boardColumn * boardSize, boardRow * boardSize, boardSize, board);
+					board.writeTo(out);
+					position += board.size();
+				}
+			}
+			offsets[offsets.length - 1] = position;
+			out.flush();
+			
+			ByteBuffer table = ByteBuffer.allocate(8 * offsets.length);
+			table.asLongBuffer().put(offsets);
+			FileChannel channel = stream.getChannel();
+			long tablePosition = headerLength - table.capacity();
+			while(table.hasRemaining()) {
+				tablePosition += channel.write(table, tablePosition);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the runs of every row of one board.
+	 */
+	private static void encodeBoard(CompactBeadMatrix design, int left, int top, int boardSize, ByteArrayOutputStream out) {
+		int right = Math.min(design.getWidth(), left + boardSize);
+		int bottom = Math.min(design.getHeight(), top + boardSize);
+		for(int row = top; row < bottom; row++) {
+			int column = left;
+			while(column < right) {
+				int index = design.getIndex(row, column);
+				int start = column;
+				while(column < right && design.getIndex(row, column) == index) {
+					column++;
+				}
+				writeVarint(out, column - start);
+				writeVarint(out, index);
+			}
+		}
+	}
+	
+	static void writeVarint(ByteArrayOutputStream out, int value) {
+		while((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+	
+	static int readVarint(ByteBuffer buffer) throws IOException {
+		int value = 0;
+		for(int shift = 0; shift < 32; shift += 7) {
+			int b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Varint is too long.");
+	}
+	
+	/**
+	 * Opens a file for reading.
+	 * @throws IOException If the file cannot be read or is not a template file.
+	 */
+	public static Reader open(File file) throws IOException {
+		return new Reader(file);
+	}
+	
+	/**
+	 * Reads a whole design.
+	 * @throws IOException If the file cannot be read or is not a template file.
+	 */
+	public static CompactBeadMatrix read(File file) throws IOException {
+		try(Reader reader = open(file)) {
+			return reader.readAll();
+		}
+	}
+	
+	/**
+	 * Reads boards from a template file. Only the header is read when the file is opened. Each board is read 
+	 * through a memory map of just that board's bytes. Safe to use from several threads.
+	 */
+	static class Reader implements Closeable {
+		private final FileChannel channel;
+		private final int boardSize;
+		private final int width;
+		private final int height;
+		private final BeadPalette palette;
+		private final int boardRows;
+		private final int boardColumns;
+		private final long[] offsets;
+		
+		Reader(File file) throws IOException {
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+			try {
+				ByteBuffer start = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(12, channel.size()));
+				if(start.remaining() < 12 || start.getInt() != MAGIC) {
+					throw new IOException("Not a bead template file: " + file);
+				}
+				if(start.getShort() != VERSION) {
+					throw new IOException("Unknown bead template version: " + file);
+				}
+				boardSize = start.getShort();
+				int headerLength = start.getInt();
+				if(headerLength < 12 || headerLength > channel.size()) {
+					throw new IOException("Bad header length: " + file);
+				}
+				ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 12, headerLength - 12);
+				width = header.getInt();
+				height = header.getInt();
+				int size = header.getInt();
+				ArrayList<Bead> beads = new ArrayList<>();
+				for(int i = 0; i < size; i++) {
+					Color color = new Color(header.getInt());
+					String name = ConversionCache.readUTF(header);
+					beads.add(new Bead(name, ConversionCache.readUTF(header), color));
+				}
+				palette = new BeadPalette(beads);
+				boardRows = header.getInt();
+				boardColumns = header.getInt();
+				// The boards must cover the design exactly, or some cells would never be read.
+				if(boardSize < 1 || width < 0 || height < 0 || (long) width * height > Integer.MAX_VALUE
+						|| boardRows != (height + boardSize - 1) / boardSize || boardColumns != (width + boardSize - 1) / boardSize) {
+					throw new IOException("Damaged bead template file: " + file);
+				}
+				offsets = new long[boardRows * boardColumns + 1];
+				header.asLongBuffer().get(offsets);
+			} catch (IOException | RuntimeException e) {
+				channel.close();
+				throw e instanceof IOException ? (IOException) e : new IOException("Damaged bead template file: " + file, e);
+			}
+		}
+		
+		public int getWidth() {
+			return width;
+		}
+		
+		public int getHeight() {
+			return height;
+		}
+		
+		public int getBoardSize() {
+			return boardSize;
+		}
+		
+		public int getBoardRows() {
+			return boardRows;
+		}
+		
+		public int getBoardColumns() {
+			return boardColumns;
+		}
+		
+		public BeadPalette getPalette() {
+			return palette;
+		}
+		
+		/**
+		 * Reads one board.
+		 * @param boardRow The board's row, counting from 0.
+		 * @param boardColumn The board's column, counting from 0.
+		 * @return Returns the board. Boards on the right and bottom edges may be smaller than the board size.
+		 * @throws IOException If the board cannot be read.
+		 */
+		public CompactBeadMatrix readBoard(int boardRow, int boardColumn) throws IOException {
+			if(boardRow < 0 || boardColumn < 0 || boardRow >= boardRows || boardColumn >= boardColumns) {
+				throw new IndexOutOfBoundsException("No board " + boardRow + ", " + boardColumn);
+			}
+			int board = boardRow * boardColumns + boardColumn;
+			int boardWidth = Math.min(boardSize, width - boardColumn * boardSize);
+			int boardHeight = Math.min(boardSize, height - boardRow * boardSize);
+			short[] cells = new short[boardWidth * boardHeight];
+			decode(offsets[board], offsets[board + 1], cells, boardWidth, boardHeight, 0, boardWidth);
+			return new CompactBeadMatrix(palette, boardWidth, boardHeight, cells);
+		}
+		
+		/**
+		 * Reads every board into one design.
+		 * @throws IOException If a board cannot be read.
+		 */
+		public CompactBeadMatrix readAll() throws IOException {
+			short[] cells = new short[width * height];
+			for(int boardRow = 0; boardRow < boardRows; boardRow++) {
+				for(int boardColumn = 0; boardColumn < boardColumns; boardColumn++) {
+					int board = boardRow * boardColumns + boardColumn;
+					int boardWidth = Math.min(boardSize, width - boardColumn * boardSize);
+					int boardHeight = Math.min(boardSize, height - boardRow * boardSize);
+					decode(offsets[board], offsets[board + 1], cells, boardWidth, boardHeight, boardRow * boardSize * width + boardColumn * boardSize, width);
+				}
+			}
+			return new CompactBeadMatrix(palette, width, height, cells);
+		}
+		
+		/**
+		 * Decodes the runs of one board into an array of cells.
+		 * @param first Index in cells of the board's top left cell.
+		 * @param stride Cells from one row to the next.
+		 */
+		private void decode(long from, long to, short[] cells, int boardWidth, int boardHeight, int first, int stride) throws IOException {
+			if(from < 0 || to < from || to > channel.size()) {
+				throw new IOException("Bad board offset.");
+			}
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+			try {
+				for(int row = 0; row < boardHeight; row++) {
+					int column = 0;
+					while(column < boardWidth) {
+						int length = readVarint(data);
+						int index = readVarint(data);
+						if(length < 1 || column + length > boardWidth || index < 0 || index >= palette.size()) {
+							throw new IOException("Bad run in bead template file.");
+						}
+						Arrays.fill(cells, first + row * stride + column, first + row * stride + column + length, (short) index);
+						column += length;
+					}
+				}
+			} catch (BufferUnderflowException e) {
+				throw new IOException("Board ends early.", e);
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
+
+/**
+ * Exports a design that is larger than one pegboard. The design is split into board-sized tiles, and each tile is 
+ * printed on its own page with its position and the positions of its neighbors. An overview image shows the whole 
+ * design with the board lines, and a bill of materials lists the beads needed for all boards together. Pages are 
+ * rendered on several threads. Only a few pages are rendered at once, so memory use does not grow with the number 
+ * of boards.
+ */
+class MosaicExporter {
+	// Most pixels along the longer side of the overview image, unless the design has more beads than that.
+	static final int OVERVIEW_SIZE = 2000;
+	
+	private final int boardSize;
+	private final int threads;
+	
+	/**
+	 * Constructor for MosaicExporter.
+	 * @param boardSize Number of pegs along each side of a pegboard.
+	 * @param threads Number of pages to render at once.
+	 */
+	public MosaicExporter(int boardSize, int threads) {
+		if(boardSize < 1 || threads < 1) {
+			throw new IllegalArgumentException("Board size and thread count must be at least 1.");
+		}
+		this.boardSize = boardSize;
+		this.threads = threads;
+	}
+	
+	/**
+	 * @return Returns the number of boards across a design.
+	 */
+	public int boardColumns(CompactBeadMatrix design) {
+		return (design.getWidth() + boardSize - 1) / boardSize;
+	}
+	
+	/**
+	 * @return Returns the number of boards down a design.
+	 */
+	public int boardRows(CompactBeadMatrix design) {
+		return (design.getHeight() + boardSize - 1) / boardSize;
+	}
+	
+	/**
+	 * @return Returns the file name of one board's page.
+	 */
+	static String boardFileName(String baseName, int row, int column) {
+		return String.format("%s-board-%02d-%02d.png", baseName, row + 1, column + 1);
+	}
+	
+	/**
+	 * Writes one page per board, an overview image and a bill of materials.
+	 * @param design The whole converted design.
+	 * @param codeMap A map containing color names and their color codes.
+	 * @param title The title printed at the top of every page.
+	 * @param directory The directory to write the files to.
+	 * @param baseName The start of every file name.
+	 * @return Returns the files written, board pages first.
+	 * @throws IOException If a file cannot be written.
+	 */
+	public java.util.List<File> export(CompactBeadMatrix design, Map<String,String> codeMap, String title, File directory, String baseName) throws IOException {
+		int rows = boardRows(design);
+		int columns = boardColumns(design);
+		java.util.List<File> files = new ArrayList<>();
+		// Number of boards each palette color appears on.
+		AtomicIntegerArray boardsUsing = new AtomicIntegerArray(design.getPalette().size());
+		
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		// Limits how many pages are queued or being rendered at once.
+		Semaphore permits = new Semaphore(threads * 2);
+		java.util.List<Future<?>> pending = new ArrayList<>();
+		try {
+			for(int row = 0; row < rows; row++) {
+				for(int column = 0; column < columns; column++) {
+					File file = new File(directory, boardFileName(baseName, row, column));
+					files.add(file);
+					int boardRow = row;
+					int boardColumn = column;
+					permits.acquireUninterruptibly();
+					pending.add(executor.submit(() -> {
+						try {
+							exportBoard(design, codeMap, title, boardRow, boardColumn, file, boardsUsing);
+						} finally {
+							permits.release();
+						}
+						return null;
+					}));
+					// Check finished pages as we go so failures are reported early and the list stays short.
+					checkFinished(pending, false);
+				}
+			}
+			checkFinished(pending, true);
+		} finally {
+			executor.shutdownNow();
+		}
+		
+		File overview = new File(directory, baseName + "-overview.png");
+		ImageIO.write(renderOverview(design), "png", overview);
+		files.add(overview);
+		File materials = new File(directory, baseName + "-materials.csv");
+		writeMaterials(design, codeMap, boardsUsing, materials);
+		files.add(materials);
+		return files;
+	}
+	
+	/**
+	 * Removes finished pages from the list, rethrowing any failure. When wait is true, waits for all pages.
+	 */
+	private static void checkFinished(java.util.List<Future<?>> pending, boolean wait) throws IOException {
+		Iterator<Future<?>> iterator = pending.iterator();
+		while(iterator.hasNext()) {
+			Future<?> future = iterator.next();
+			if(!wait && !future.isDone()) {
+				continue;
+			}
+			try {
+				future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while exporting boards.");
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException("Could not export board.", e.getCause());
+			}
+			iterator.remove();
+		}
+	}
+	
+	/**
+	 * Renders and writes the page of one board.
+	 */
+	private void exportBoard(CompactBeadMatrix design, Map<String,String> codeMap, String title, int row, int column, File file, AtomicIntegerArray boardsUsing) throws IOException {
+		int x = column * boardSize;
+		int y = row * boardSize;
+		CompactBeadMatrix board = design.copyRegion(x, y, Math.min(boardSize, design.getWidth() - x), Math.min(boardSize, design.getHeight() - y));
+		for(int i = 0; i < boardsUsing.length(); i++) {
+			if(board.getCount(i) > 0) {
+				boardsUsing.incrementAndGet(i);
+			}
+		}
+		String subtitle = "Board " + label(row, column) + " of " + boardRows(design) + " x " + boardColumns(design)
+				+ ".   Above: " + neighbor(design, row - 1, column) + "   Below: " + neighbor(design, row + 1, column)
+				+ "   Left: " + neighbor(design, row, column - 1) + "   Right: " + neighbor(design, row, column + 1);
+		// Pages are already written on several threads, so each one is compressed on one.
+		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+		exporter.setIndexedColor(true);
+		exporter.setFilter(PngEncoder.Filter.UP);
+		BufferedImage page = exporter.renderPage(title, subtitle, board.asBeadMatrix(), codeMap);
+		exporter.writePng(page, file);
+	}
+	
+	/**
+	 * @return Returns the label of a board, given by its row and column counting from 1.
+	 */
+	static String label(int row, int column) {
+		return (row + 1) + "-" + (column + 1);
+	}
+	
+	private String neighbor(CompactBeadMatrix design, int row, int column) {
+		if(row < 0 || column < 0 || row >= boardRows(design) || column >= boardColumns(design)) {
+			return "none";
+		}
+		return label(row, column);
+	}
+	
+	/**
+	 * Draws the whole design as small squares of bead color, with the board edges and labels drawn over it.
+	 * @return Returns the overview image.
+	 */
+	public BufferedImage renderOverview(CompactBeadMatrix design) {
+		int scale = Math.max(1, Math.min(20, OVERVIEW_SIZE / Math.max(design.getWidth(), design.getHeight())));
+		int width = design.getWidth() * scale;
+		int height = design.getHeight() * scale;
+		BufferedImage overview = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		int[] data = ((DataBufferInt) overview.getRaster().getDataBuffer()).getData();
+		for(int i = 0; i < design.getHeight(); i++) {
+			for(int j = 0; j < design.getWidth(); j++) {
+				int rgb = design.getPalette().getRGB(design.getIndex(i, j));
+				for(int dy = 0; dy < scale; dy++) {
+					Arrays.fill(data, (i * scale + dy) * width + j * scale, (i * scale + dy) * width + (j + 1) * scale, rgb);
+				}
+			}
+		}
+		Graphics2D g = overview.createGraphics();
+		g.setFont(new Font("Helvetica", 1, Math.max(10, boardSize * scale / 4)));
+		for(int row = 0; row < boardRows(design); row++) {
+			for(int column = 0; column < boardColumns(design); column++) {
+				int x = column * boardSize * scale;
+				int y = row * boardSize * scale;
+				g.setColor(Color.BLACK);
+				g.drawRect(x, y, boardSize * scale, boardSize * scale);
+				g.setColor(Color.WHITE);
+				g.drawString(label(row, column), x + 4, y + g.getFont().getSize());
+			}
+		}
+		g.dispose();
+		return overview;
+	}
+	
+	/**
+	 * Writes the bill of materials as CSV: one line per bead color with its code, the number of beads needed for the
+	 * whole design and the number of boards it is used on, followed by the total.
+	 */
+	private void writeMaterials(CompactBeadMatrix design, Map<String,String> codeMap, AtomicIntegerArray boardsUsing, File file) throws IOException {
+		try(BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+			// PrintWriter keeps write errors to itself, so they are checked before the file counts as written.
+			PrintWriter out = new PrintWriter(writer);
+			writeMaterials(design, codeMap, boardsUsing, out);
+			out.flush();
+			if(out.checkError()) {
+				throw new IOException("Could not write " + file);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the bill of materials as CSV to a stream, counting the boards each color is used on. The writer is 
+	 * flushed but not closed.
+	 */
+	public void writeMaterials(CompactBeadMatrix design, Map<String,String> codeMap, Writer writer) {
+		AtomicIntegerArray boardsUsing = new AtomicIntegerArray(design.getPalette().size());
+		short[] cells = design.getCells();
+		boolean[] used = new boolean[boardsUsing.length()];
+		for(int row = 0; row < boardRows(design); row++) {
+			for(int column = 0; column < boardColumns(design); column++) {
+				Arrays.fill(used, false);
+				for(int y = row * boardSize; y < Math.min((row + 1) * boardSize, design.getHeight()); y++) {
+					for(int x = column * boardSize; x < Math.min((column + 1) * boardSize, design.getWidth()); x++) {
+						used[cells[y * design.getWidth() + x]] = true;
+					}
+				}
+				for(int i = 0; i < used.length; i++) {
+					if(used[i]) {
+						boardsUsing.incrementAndGet(i);
+					}
+				}
+			}
+		}
+		PrintWriter out = new PrintWriter(writer);
+		writeMaterials(design, codeMap, boardsUsing, out);
+		out.flush();
+	}
+	
+	private void writeMaterials(CompactBeadMatrix design, Map<String,String> codeMap, AtomicIntegerArray boardsUsing, PrintWriter out) {
+		BeadPalette palette = design.getPalette();
+		Integer[] order = new Integer[palette.size()];
+		for(int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		// Most used colors first.
+		Arrays.sort(order, (a, b) -> Integer.compare(design.getCount(b), design.getCount(a)));
+		long total = 0;
+		out.println("Color,Code,Beads,Boards");
+		for(int index : order) {
+			if(design.getCount(index) > 0) {
+				Bead bead = palette.getBead(index);
+				String code = codeMap.getOrDefault(bead.getName(), bead.getCode());
+				out.println(csvField(bead.getName()) + "," + csvField(code) + "," + design.getCount(index) + "," + boardsUsing.get(index));
+				total += design.getCount(index);
+			}
+		}
+		out.println("Total,," + total + "," + (boardRows(design) * boardColumns(design)));
+	}
+	
+	/**
+	 * Quotes a CSV field if it holds a comma, a quote or a line break. Quotes inside are doubled.
+	 */
+	static String csvField(String text) {
+		if(text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0) {
+			return text;
+		}
+		return "\"" + text.replace("\"", "\"\"") + "\"";
+	}
+}
+
+/**
+ * Serves conversions over HTTP so the program can run once and handle many requests. Images are uploaded as the 
+ * body of a POST request and converted in memory, so requests never share or write files. The palettes, the 
+ * matchers and the conversion cache stay loaded between requests.
+ * 
+ * POST /template returns the template page as PNG, and POST /materials returns the bill of materials as CSV. Both 
+ * take these query parameters, all optional: columns and rows (the largest design size in beads), colors (the most 
+ * bead colors to use), brand, strategy (a MatchingStrategy) and dither (a DitherMode). /template also takes 
+ * transparent=true, which leaves transparent pixels as empty pegs. GET /palettes lists the brands and GET /metrics 
+ * prints the conversion metrics.
+ * 
+ * Each request runs on its own virtual thread when the Java version has them, and on a pool of ordinary threads 
+ * otherwise. Uploads and conversions are limited separately. At most two uploads per conversion slot are held in 
+ * memory, and a request that cannot get an upload slot within the queue timeout is turned away with 503 Service 
+ * Unavailable before its body is read. A conversion slot is only taken once the whole upload has arrived, so slow 
+ * clients cannot hold up conversions, and an upload still arriving after the upload timeout is refused with 408 
+ * Request Timeout. The timeout is checked as the body arrives, so a client that stops sending altogether keeps its 
+ * upload slot until the connection closes. A Content-Length over the upload limit is refused with 413 Payload Too 
+ * Large without reading the body.
+ */
+class TemplateService {
+	static final int DEFAULT_PORT = 8080;
+	// Largest design in beads across or down for the bill of materials. Pages hold one board.
+	static final int MAX_DESIGN_SIZE = 1000;
+	
+	private final PaletteRegistry registry;
+	private final ConversionCache cache;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	// Uploads that may be held at once, and conversions that may run at once. Package-private so tests can see how 
+	// many are taken.
+	final Semaphore uploads;
+	final Semaphore permits;
+	private long queueTimeoutMillis = 5000;
+	private long uploadTimeoutMillis = 30000;
+	private int maxUploadBytes = 16 << 20;
+	
+	/**
+	 * Constructor for TemplateService. The server does not accept requests until start is called.
+	 * @param address The address and port to listen on. Port 0 picks a free port.
+	 * @param registry The palettes that requests may choose from.
+	 * @param cache The cache shared by all requests, or null for none.
+	 * @param maxConversions Most conversions to run at once.
+	 * @throws IOException If the address cannot be bound.
+	 */
+	public TemplateService(InetSocketAddress address, PaletteRegistry registry, ConversionCache cache, int maxConversions) throws IOException {
+		if(maxConversions < 1) {
+			throw new IllegalArgumentException("At least one conversion must be allowed.");
+		}
+		this.registry = registry;
+		this.cache = cache;
+		uploads = new Semaphore(2 * maxConversions);
+		permits = new Semaphore(maxConversions);
+		executor = createExecutor(maxConversions);
+		server = HttpServer.create(address, 0);
+		server.setExecutor(executor);
+		server.createContext("/template", exchange -> handleConversion(exchange, true));
+		server.createContext("/materials", exchange -> handleConversion(exchange, false));
+		server.createContext("/palettes", this::handlePalettes);
+		server.createContext("/metrics", this::handleMetrics);
+	}
+	
+	/**
+	 * Sets how long a request waits for a free upload or conversion slot before it is turned away.
+	 */
+	public void setQueueTimeoutMillis(long queueTimeoutMillis) {
+		this.queueTimeoutMillis = queueTimeoutMillis;
+	}
+	
+	/**
+	 * Sets how long an upload may take to arrive. Slower uploads are refused with 408 Request Timeout.
+	 */
+	public void setUploadTimeoutMillis(long uploadTimeoutMillis) {
+		this.uploadTimeoutMillis = uploadTimeoutMillis;
+	}
+	
+	/**
+	 * Sets the largest upload accepted. Larger uploads are refused with 413 Payload Too Large.
+	 */
+	public void setMaxUploadBytes(int maxUploadBytes) {
+		this.maxUploadBytes = maxUploadBytes;
+	}
+	
+	public void start() {
+		server.start();
+	}
+	
+	/**
+	 * Stops accepting requests, waits up to the given time for requests in progress, then stops the threads.
+	 */
+	public void stop(int delaySeconds) {
+		server.stop(delaySeconds);
+		executor.shutdownNow();
+	}
+	
+	/**
+	 * @return Returns the address the server listens on, with the actual port.
+	 */
+	public InetSocketAddress getAddress() {
+		return server.getAddress();
 	}
 	
-	public void setCode(String code) {
-		this.code = code;
+	/**
+	 * Creates an executor that starts a virtual thread per task. Virtual threads came with Java 21, and this program
+	 * builds for Java 17, so the factory is looked up by name. Without it, requests run on ordinary threads, a few 
+	 * per conversion slot so that waiting requests do not hold up those ready to run.
+	 */
+	static ExecutorService createExecutor(int maxConversions) {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(4 * maxConversions, task -> {
+				Thread thread = new Thread(task, "template-service");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
 	}
 	
-	public void setColor(Color color) {
-		this.color = color;
+	private void handleConversion(HttpExchange exchange, boolean page) throws IOException {
+		try {
+			if(!exchange.getRequestMethod().equals("POST")) {
+				sendText(exchange, 405, "Upload an image with POST.");
+				return;
+			}
+			Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+			int limit = page ? ConvertImageToTemplate.BOARD_SIZE : MAX_DESIGN_SIZE;
+			int columns = intParameter(query, "columns", ConvertImageToTemplate.BOARD_SIZE, 1, limit);
+			int rows = intParameter(query, "rows", ConvertImageToTemplate.BOARD_SIZE, 1, limit);
+			int colors = intParameter(query, "colors", 0, 0, Short.MAX_VALUE);
+			PaletteRegistry.Palette palette = registry.get(query.getOrDefault("brand", PaletteRegistry.BUILT_IN_BRAND));
+			MatchingStrategy strategy = MatchingStrategy.valueOf(query.getOrDefault("strategy", MatchingStrategy.CHANNEL_SEARCH.name()));
+			DitherMode dither = DitherMode.valueOf(query.getOrDefault("dither", DitherMode.NONE.name()));
+			boolean transparent = Boolean.parseBoolean(query.getOrDefault("transparent", "false"));
+			if(transparent && !page) {
+				sendText(exchange, 400, "transparent is only supported for /template.");
+				return;
+			}
+			
+			// An upload that says it is too large is refused before it takes a slot. The server has already checked that 
+			// the length is a number.
+			String length = exchange.getRequestHeaders().getFirst("Content-Length");
+			if(length != null && Long.parseLong(length.trim()) > maxUploadBytes) {
+				sendText(exchange, 413, "Images may be at most " + maxUploadBytes + " bytes.");
+				return;
+			}
+			
+			// The upload slot is taken before the body is read, which bounds the uploads held in memory. It is kept 
+			// until the response is sent, since the upload stays in memory until then.
+			if(!uploads.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+				sendBusy(exchange);
+				return;
+			}
+			try {
+				byte[] upload;
+				try {
+					upload = readUpload(exchange);
+				} catch (java.net.SocketTimeoutException e) {
+					sendText(exchange, 408, e.getMessage());
+					return;
+				}
+				if(upload == null) {
+					sendText(exchange, 413, "Images may be at most " + maxUploadBytes + " bytes.");
+					return;
+				}
+				if(!permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+					sendBusy(exchange);
+					return;
+				}
+				try {
+					convert(exchange, page, upload, columns, rows, colors, palette, strategy, dither, transparent);
+				} finally {
+					permits.release();
+				}
+			} finally {
+				uploads.release();
+			}
+		} catch (IllegalArgumentException e) {
+			sendText(exchange, 400, e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			sendText(exchange, 500, "Conversion failed: " + e);
+		} finally {
+			exchange.close();
+		}
 	}
 	
-	public void setX(int x) {
-		this.x = x;
+	/**
+	 * Converts an upload and sends the page or the bill of materials.
+	 */
+	private void convert(HttpExchange exchange, boolean page, byte[] upload, int columns, int rows, int colors, PaletteRegistry.Palette palette, 
+			MatchingStrategy strategy, DitherMode dither, boolean transparent) throws IOException {
+		ImageToBeadConverter converter = new ImageToBeadConverter();
+		converter.setMatchUniqueColors(true);
+		converter.setPaletteSize(colors);
+		converter.setDitherMode(dither);
+		converter.setCache(cache);
+		CompactBeadMatrix design = null;
+		BeadMatrix matrix;
+		try {
+			if(transparent) {
+				// Sparse designs are not cached.
+				BufferedImage image;
+				try(ImageInputStream input = new javax.imageio.stream.MemoryCacheImageInputStream(new ByteArrayInputStream(upload))) {
+					image = BeadGridResampler.loadScaled(input, "upload", columns, rows, BeadGridResampler.Filter.BOX);
+				}
+				matrix = converter.convertSparse(image, palette.getBeads(), strategy).asBeadMatrix();
+			} else {
+				design = converter.convertBytes(upload, palette.getBeads(), strategy, columns, rows, BeadGridResampler.Filter.BOX);
+				matrix = design.asBeadMatrix();
+			}
+		} catch (IOException e) {
+			sendText(exchange, 415, e.getMessage());
+			return;
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		if(page) {
+			CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+			exporter.setIndexedColor(true);
+			exporter.setFilter(PngEncoder.Filter.UP);
+			String title = palette.getBrand() + " Bead Pattern";
+			exporter.writePng(exporter.renderPage(title, null, matrix, palette.getCodeMap()), body);
+			exchange.getResponseHeaders().set("Content-Type", "image/png");
+		} else {
+			Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+			new MosaicExporter(ConvertImageToTemplate.BOARD_SIZE, 1).writeMaterials(design, palette.getCodeMap(), writer);
+			exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=utf-8");
+		}
+		exchange.sendResponseHeaders(200, body.size());
+		body.writeTo(exchange.getResponseBody());
 	}
 	
-	public void setY(int y) {
-		this.y = y;
+	private void handlePalettes(HttpExchange exchange) throws IOException {
+		try(exchange) {
+			StringBuilder text = new StringBuilder();
+			for(String brand : registry.getBrands()) {
+				text.append(brand).append(',').append(registry.get(brand).size()).append('\n');
+			}
+			sendText(exchange, 200, text.toString());
+		}
+	}
+	
+	private void handleMetrics(HttpExchange exchange) throws IOException {
+		try(exchange) {
+			sendText(exchange, 200, ConversionMetrics.isEnabled() ? ConversionMetrics.snapshot().toString() 
+					: "Metrics are off. Start with -Dperlerbeads.metrics=true to collect them.\n");
+		}
+	}
+	
+	/**
+	 * Reads the request body. The upload timeout is checked each time more of the body arrives.
+	 * @return Returns the body, or null if it is larger than the upload limit.
+	 * @throws java.net.SocketTimeoutException If the body takes longer than the upload timeout to arrive.
+	 */
+	private byte[] readUpload(HttpExchange exchange) throws IOException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(uploadTimeoutMillis);
+		InputStream input = exchange.getRequestBody();
+		ByteArrayOutputStream upload = new ByteArrayOutputStream();
+		byte[] buffer = new byte[64 << 10];
+		int read;
+		while((read = input.read(buffer)) > 0) {
+			if(upload.size() + read > maxUploadBytes) {
+				return null;
+			}
+			if(System.nanoTime() - deadline > 0) {
+				throw new java.net.SocketTimeoutException("The upload took longer than " + uploadTimeoutMillis + " ms.");
+			}
+			upload.write(buffer, 0, read);
+		}
+		return upload.toByteArray();
+	}
+	
+	/**
+	 * Turns a request away because every slot is taken.
+	 */
+	private static void sendBusy(HttpExchange exchange) throws IOException {
+		exchange.getResponseHeaders().set("Retry-After", "1");
+		sendText(exchange, 503, "Too many conversions in progress. Try again shortly.");
+	}
+	
+	/**
+	 * Sends a plain text response. Does nothing if the response has already started.
+	 */
+	private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+		if(exchange.getResponseCode() != -1) {
+			return;
+		}
+		byte[] bytes = (text.endsWith("\n") ? text : text + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		exchange.getResponseBody().write(bytes);
+	}
+	
+	static Map<String, String> parseQuery(String rawQuery) {
+		Map<String, String> query = new HashMap<>();
+		if(rawQuery == null || rawQuery.isEmpty()) {
+			return query;
+		}
+		for(String pair : rawQuery.split("&")) {
+			int equals = pair.indexOf('=');
+			String name = java.net.URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+			String value = equals < 0 ? "" : java.net.URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+			query.put(name, value);
+		}
+		return query;
+	}
+	
+	private static int intParameter(Map<String, String> query, String name, int defaultValue, int min, int max) {
+		String text = query.get(name);
+		if(text == null) {
+			return defaultValue;
+		}
+		try {
+			int value = Integer.parseInt(text);
+			if(value >= min && value <= max) {
+				return value;
+			}
+		} catch (NumberFormatException e) {
+			// Reported below.
+		}
+		throw new IllegalArgumentException(name + " must be a whole number from " + min + " to " + max + ".");
 	}
 }
 
 /**
- * Creates a library of bead colors. Creates bead objects mimicking the true names and colors of Perler beads. 
- * Includes methods to populate color palettes.
+ * Converts many images in one run, each to its own template page. The work is split into four stages: reading 
+ * the image, matching beads, drawing the page and writing the PNG. Each stage has its own worker threads, and the 
+ * stages are joined by small queues, so one image can be written while the next is drawn and a third is matched. 
+ * When a stage falls behind, the queue before it fills and the stages before it wait, which keeps the number of 
+ * images in memory bounded.
+ * 
+ * Pages are named after their images. Images with the same name get -2, -3 and so on, in input order. An image 
+ * that fails at any stage, even with an Error such as OutOfMemoryError, is recorded in the summary and the rest of 
+ * the batch carries on.
  */
-class ColorLibrary {
-	// Define each bead color with name, code, and RGB color value.
-	Bead white = new Bead("White", "01", new Color(241, 241, 241));	
-	Bead cream = new Bead("Cream", "02", new Color(224, 222, 169));
-	Bead yellow = new Bead("Yellow", "03", new Color(236, 216, 0));
-	Bead orange = new Bead("Orange", "04", new Color(237, 97, 32));
-	Bead red = new Bead("Red", "05", new Color(191, 46, 64));
-	Bead bubblegum = new Bead("Bubblegum", "06", new Color(221, 102, 155));
-	Bead purple = new Bead("Purple", "07", new Color(96, 64, 137));
-	Bead darkBlue = new Bead("Dark Blue", "08",	new Color(43, 63, 135));
-	Bead lightBlue = new Bead("Light Blue", "09", new Color(51, 112, 192));
-	Bead darkGreen = new Bead("Dark Green", "10", new Color(28, 117, 62));
-	Bead pearlCoral = new Bead("Pearl Coral", "100", new Color(249, 126, 121));
-	Bead pearlLightBlue = new Bead("Pearl Light Blue", "101", new Color(122, 174, 162));
-	Bead pearlGreen = new Bead("Pearl Green", "102", new Color(132, 183, 145));
-	Bead pearlYellow = new Bead("Pearl Yellow", "103", new Color(202, 192, 51));
-	Bead pearlLightPink = new Bead("Pearl Light Pink", "104", new Color(215, 168, 162));
-	Bead silver = new Bead("Silver", "105", new Color(119, 123, 129));
-	Bead lightGreen = new Bead("Light Green", "11", new Color(86, 186, 159));
-	Bead brown = new Bead("Brown", "12", new Color(81, 57, 49));
-	Bead grey = new Bead("Grey", "17", new Color(138, 141, 145));
-	Bead black = new Bead("Black", "18", new Color(46, 47, 50));
-	Bead rust = new Bead("Rust", "20", new Color(140, 55, 44));
-	Bead lightBrown = new Bead("Light Brown", "21", new Color(129, 93, 52));
-	Bead peach = new Bead("Peach", "33", new Color(238, 186, 178));
-	Bead tan = new Bead("Tan", "35", new Color(188, 147, 113));
-	Bead magenta = new Bead("Magenta", "38", new Color(242, 42, 123));
-	Bead neonYellow = new Bead("Neon Yellow", "47", new Color(220, 224, 2));
-	Bead neonOrange = new Bead("Neon Orange", "48", new Color(255, 119, 0));
-	Bead neonGreen = new Bead("Neon Green", "49", new Color(1, 158, 67));
-	Bead neonPink = new Bead("Neon Pink", "50", new Color(255, 57, 145));
-	Bead pastelBlue = new Bead("Pastel Blue", "52", new Color(83, 144, 209));
-	Bead pastelGreen = new Bead("Pastel Green", "53", new Color(118, 200, 130));
-	Bead pastelLavender = new Bead("Pastel Lavender", "54", new Color(138, 114, 193));
-	Bead pastelYellow = new Bead("Pastel Yellow", "56", new Color(254, 248, 117));
-	Bead cheddar = new Bead("Cheddar", "57", new Color(241, 170, 12));
-	Bead toothpaste = new Bead("Toothpaste", "58", new Color(147, 200, 212));
-	Bead hotCoral = new Bead("Hot Coral", "59", new Color(255, 56, 81));
-	Bead plum = new Bead("Plum", "60", new Color(62, 75, 156));
-	Bead kiwiLime = new Bead("Kiwi Lime", "61", new Color(108, 190, 19));
-	Bead cyan = new Bead("Cyan", "62", new Color(43, 137, 198));
-	Bead blush = new Bead("Blush", "63", new Color(255, 130, 133));
-	Bead periwinkleBlue = new Bead("Periwinkle Blue", "70", new Color(100, 124, 190));
-	Bead lightPink = new Bead("Light Pink", "79", new Color(246, 179, 221));
-	Bead brightGreen = new Bead("Bright Green", "80", new Color(79, 173, 66));
-	Bead lightGray = new Bead("Light Gray", "81", new Color(177, 181, 178));
-	Bead evergreen = new Bead("Evergreen", "179", new Color(53, 83, 67));
-	Bead lavender = new Bead("Lavender", "82", new Color(173, 152, 212));
-	Bead pink = new Bead("Pink", "83", new Color(228, 72, 146));
-	Bead gold = new Bead("Gold", "85", new Color(187, 118, 52));
-	Bead raspberry = new Bead("Raspberry", "88", new Color(165, 48, 97));
-	Bead butterscotch = new Bead("Butterscotch", "90", new Color(212, 132, 55));
-	Bead parrotGreen = new Bead("Parrot Green", "91", new Color(6, 124, 129));
-	Bead darkGrey = new Bead("Dark Grey", "92", new Color(77, 81, 86));
-	Bead blueberryCream = new Bead("Blueberry Cream", "93", new Color(130, 151, 217));
+class BatchConverter {
+	/** The stages of the batch, in order. */
+	enum Stage {
+		DECODE, MATCH, RENDER, ENCODE
+	}
+	
+	// Name of the summary written next to the pages.
+	static final String SUMMARY_FILE = "batch-summary.txt";
+	
+	private final ArrayList<Bead> beadArray;
+	private final Map<String,String> codeMap;
+	private final int[] workers = new int[Stage.values().length];
+	private int queueCapacity = 4;
+	private int maxColumns = ConvertImageToTemplate.BOARD_SIZE;
+	private int maxRows = ConvertImageToTemplate.BOARD_SIZE;
+	private int paletteSize;
+	private MatchingStrategy strategy = MatchingStrategy.CHANNEL_SEARCH;
 	
 	/**
-	 * Defines the color palette to be used in the process of converting pixel colors to bead colors. This method
-	 * uses all possible colors.
-	 * @param array An ArrayList that contains the color palette.
+	 * Constructor for BatchConverter. Reading uses one thread, and the other stages one per core.
+	 * @param beadArray The bead colors to use.
+	 * @param codeMap A map containing color names and their color codes.
 	 */
-	public void populateArrayAllColors(ArrayList<Bead> array) {
-		array.add(white);
-		array.add(cream);
-		array.add(yellow);
-		array.add(orange);
-		array.add(red);
-		array.add(bubblegum);
-		array.add(purple);
-		array.add(darkBlue);
-		array.add(lightBlue);
-		array.add(darkGreen);
-		array.add(pearlCoral);
-		array.add(pearlLightBlue);
-		array.add(pearlGreen);
-		array.add(pearlYellow);
-		array.add(pearlLightPink);
-		array.add(silver);
-		array.add(lightGreen);
-		array.add(brown);
-		array.add(grey);
-		array.add(black);
-		array.add(rust);
-		array.add(lightBrown);
-		array.add(peach);
-		array.add(tan);
-		array.add(magenta);
-		array.add(neonYellow);
-		array.add(neonOrange);
-		array.add(neonGreen);
-		array.add(neonPink);
-		array.add(pastelBlue);
-		array.add(pastelGreen);
-		array.add(pastelLavender);
-		array.add(pastelYellow);
-		array.add(cheddar);
-		array.add(toothpaste);
-		array.add(hotCoral);
-		array.add(plum);
-		array.add(kiwiLime);
-		array.add(cyan);
-		array.add(blush);
-		array.add(periwinkleBlue);
-		array.add(lightPink);
-		array.add(brightGreen);
-		array.add(lightGray);
-		array.add(evergreen);
-		array.add(lavender);
-		array.add(pink);
-		array.add(gold);
-		array.add(raspberry);
-		array.add(butterscotch);
-		array.add(parrotGreen);
-		array.add(darkGrey);
-		array.add(blueberryCream);
+	public BatchConverter(ArrayList<Bead> beadArray, Map<String,String> codeMap) {
+		this.beadArray = beadArray;
+		this.codeMap = codeMap;
+		Arrays.fill(workers, Runtime.getRuntime().availableProcessors());
+		workers[Stage.DECODE.ordinal()] = 1;
+	}
+	
+	/**
+	 * Sets the number of threads working on a stage.
+	 */
+	public void setWorkers(Stage stage, int count) {
+		if(count < 1) {
+			throw new IllegalArgumentException("Each stage needs at least one worker.");
+		}
+		workers[stage.ordinal()] = count;
+	}
+	
+	/**
+	 * Sets how many images may wait between two stages.
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if(queueCapacity < 1) {
+			throw new IllegalArgumentException("Queue capacity must be at least 1.");
+		}
+		this.queueCapacity = queueCapacity;
+	}
+	
+	/**
+	 * Sets the largest design in beads. Designs must fit on one page, so neither side may be larger than a board.
+	 */
+	public void setMaxSize(int maxColumns, int maxRows) {
+		if(maxColumns < 1 || maxRows < 1 || maxColumns > ConvertImageToTemplate.BOARD_SIZE || maxRows > ConvertImageToTemplate.BOARD_SIZE) {
+			throw new IllegalArgumentException("Design size must be from 1 to " + ConvertImageToTemplate.BOARD_SIZE + " beads.");
+		}
+		this.maxColumns = maxColumns;
+		this.maxRows = maxRows;
+	}
+	
+	/**
+	 * Sets the most bead colors in each design, or 0 for all.
+	 */
+	public void setPaletteSize(int paletteSize) {
+		this.paletteSize = paletteSize;
+	}
+	
+	public void setStrategy(MatchingStrategy strategy) {
+		this.strategy = strategy;
+	}
+	
+	/**
+	 * Lists the images to convert.
+	 * @param source A directory, whose image files are listed in name order, or a manifest: a text file with one 
+	 * image per line. Paths in a manifest are relative to its directory. Blank lines and lines starting with # are 
+	 * skipped.
+	 * @return Returns the image files.
+	 * @throws IOException If the directory or manifest cannot be read.
+	 */
+	static java.util.List<File> listInputs(File source) throws IOException {
+		java.util.List<File> inputs = new ArrayList<>();
+		if(source.isDirectory()) {
+			Set<String> suffixes = new HashSet<>();
+			for(String suffix : ImageIO.getReaderFileSuffixes()) {
+				suffixes.add(suffix.toLowerCase(Locale.ROOT));
+			}
+			File[] files = source.listFiles(file -> file.isFile() && suffixes.contains(suffixOf(file.getName())));
+			if(files == null) {
+				throw new IOException("Cannot list " + source);
+			}
+			Arrays.sort(files);
+			inputs.addAll(Arrays.asList(files));
+		} else {
+			File base = source.getAbsoluteFile().getParentFile();
+			for(String line : Files.readAllLines(source.toPath(), StandardCharsets.UTF_8)) {
+				line = line.trim();
+				if(!line.isEmpty() && !line.startsWith("#")) {
+					File file = new File(line);
+					inputs.add(file.isAbsolute() ? file : new File(base, line));
+				}
+			}
+		}
+		return inputs;
+	}
+	
+	/**
+	 * Names each page after its image, without the suffix. Repeated names get -2, -3 and so on.
+	 * @return Returns a page file name for each input, in the same order.
+	 */
+	static java.util.List<String> outputNames(java.util.List<File> inputs) {
+		java.util.List<String> names = new ArrayList<>();
+		Set<String> used = new HashSet<>();
+		for(File input : inputs) {
+			String name = input.getName();
+			int dot = name.lastIndexOf('.');
+			String stem = (dot > 0 ? name.substring(0, dot) : name).replaceAll("[^A-Za-z0-9._-]", "_");
+			String unique = stem;
+			for(int n = 2; !used.add(unique.toLowerCase(Locale.ROOT)); n++) {
+				unique = stem + "-" + n;
+			}
+			names.add(unique + ".png");
+		}
+		return names;
+	}
+	
+	private static String suffixOf(String name) {
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+	}
+	
+	/**
+	 * Converts every image and writes the pages and the summary into the output directory.
+	 * @param inputs The images to convert.
+	 * @param outputDirectory The directory for the pages. It is created if needed.
+	 * @return Returns the summary.
+	 * @throws IOException If the output directory or summary cannot be written.
+	 * @throws InterruptedException If the thread is interrupted while waiting for the workers.
+	 */
+	public Summary run(java.util.List<File> inputs, File outputDirectory) throws IOException, InterruptedException {
+		outputDirectory.mkdirs();
+		if(!outputDirectory.isDirectory()) {
+			throw new IOException("Cannot create " + outputDirectory);
+		}
+		java.util.List<String> names = outputNames(inputs);
+		Summary summary = new Summary(inputs.size());
+		// The queue in front of each stage after the first.
+		java.util.List<BlockingQueue<Job>> queues = new ArrayList<>();
+		for(int s = 0; s < workers.length; s++) {
+			queues.add(s == 0 ? null : new ArrayBlockingQueue<>(queueCapacity));
+		}
+		AtomicInteger nextInput = new AtomicInteger();
+		// Workers still running in each stage. The last one to finish tells the next stage to stop.
+		AtomicInteger[] running = new AtomicInteger[workers.length];
+		int total = 0;
+		for(int s = 0; s < workers.length; s++) {
+			running[s] = new AtomicInteger(workers[s]);
+			total += workers[s];
+		}
+		
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(total);
+		try {
+			java.util.List<Future<?>> pending = new ArrayList<>();
+			for(Stage stage : Stage.values()) {
+				for(int w = 0; w < workers[stage.ordinal()]; w++) {
+					pending.add(executor.submit(() -> {
+						work(stage, inputs, names, outputDirectory, nextInput, queues, running, summary);
+						return null;
+					}));
+				}
+			}
+			for(Future<?> future : pending) {
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					// Workers catch every failure of a single image, so this is a bug. Stop the batch.
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		summary.elapsedNanos = System.nanoTime() - start;
+		try(BufferedWriter out = Files.newBufferedWriter(new File(outputDirectory, SUMMARY_FILE).toPath(), StandardCharsets.UTF_8)) {
+			out.write(summary.toString());
+		}
+		return summary;
+	}
+	
+	/**
+	 * The loop of one worker. Decode workers take the next input until none are left. The other stages take images
+	 * from their queue until they find the end marker.
+	 */
+	private void work(Stage stage, java.util.List<File> inputs, java.util.List<String> names, File outputDirectory, AtomicInteger nextInput, 
+			java.util.List<BlockingQueue<Job>> queues, AtomicInteger[] running, Summary summary) throws InterruptedException {
+		int s = stage.ordinal();
+		BlockingQueue<Job> in = queues.get(s);
+		BlockingQueue<Job> out = s + 1 < queues.size() ? queues.get(s + 1) : null;
+		ImageToBeadConverter converter = new ImageToBeadConverter();
+		converter.setMatchUniqueColors(true);
+		converter.setPaletteSize(paletteSize);
+		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+		exporter.setIndexedColor(true);
+		exporter.setFilter(PngEncoder.Filter.UP);
+		try {
+			while(true) {
+				Job job;
+				if(in == null) {
+					int index = nextInput.getAndIncrement();
+					if(index >= inputs.size()) {
+						break;
+					}
+					job = new Job(inputs.get(index), new File(outputDirectory, names.get(index)));
+				} else {
+					job = in.take();
+					if(job == Job.END) {
+						break;
+					}
+				}
+				long begin = System.nanoTime();
+				try {
+					switch(stage) {
+					case DECODE:
+						ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.DECODE);
+						job.image = BeadGridResampler.loadScaled(job.source, maxColumns, maxRows, BeadGridResampler.Filter.BOX);
+						timer.stop((long) job.image.getWidth() * job.image.getHeight());
+						break;
+					case MATCH:
+						job.design = converter.convert(job.image, beadArray, strategy);
+						job.image = null;
+						summary.pixels.add((long) job.design.getWidth() * job.design.getHeight());
+						break;
+					case RENDER:
+						job.page = exporter.renderPage("Perler Bead Pattern for " + job.source.getName(), null, job.design.asBeadMatrix(), codeMap);
+						job.design = null;
+						break;
+					case ENCODE:
+						exporter.writePng(job.page, job.output);
+						job.page = null;
+						summary.written.add(job.output);
+						break;
+					}
+				} catch (Throwable e) {
+					// Errors such as running out of memory are recorded too. A worker that died here would leave the 
+					// stage before it waiting forever on a full queue.
+					summary.failures.add(new Failure(job.source, stage, e));
+					continue;
+				} finally {
+					summary.stageNanos[s].add(System.nanoTime() - begin);
+				}
+				if(out != null) {
+					out.put(job);
+				}
+			}
+		} finally {
+			if(running[s].decrementAndGet() == 0 && out != null) {
+				for(int w = 0; w < workers[s + 1]; w++) {
+					out.put(Job.END);
+				}
+			}
+		}
 	}
 	
 	/**
-	 * Defines the color palette to be used in the process of converting pixel colors to bead colors. This method
-	 * uses a palette of colors found in a commonly used set of Perler beads.
-	 * @param array An ArrayList that contains the color palette.
+	 * One image on its way through the stages. Each stage drops what the later stages no longer need.
 	 */
-	public void populateArrayFunColors(ArrayList<Bead> array) {
-			array.add(pink);
-			array.add(magenta);
-			array.add(red);
-			array.add(cheddar);
-			array.add(neonOrange);
-			array.add(yellow);
-			array.add(lightGreen);
-			array.add(kiwiLime);
-			array.add(parrotGreen);
-			array.add(lightBlue);
-			array.add(plum);
-			array.add(pink);
-			array.add(purple);
-			array.add(lightBrown);
-			array.add(black);
-			array.add(white);
+	private static class Job {
+		// Marks the end of a queue.
+		static final Job END = new Job(null, null);
+		
+		final File source;
+		final File output;
+		BufferedImage image;
+		CompactBeadMatrix design;
+		BufferedImage page;
+		
+		Job(File source, File output) {
+			this.source = source;
+			this.output = output;
+		}
 	}
 	
 	/**
-	 * Reads all the bead colors contained in the given array, and creates a map storing the name and code of 
-	 * each color. This map is used to create a list on the final printable file that includes the color code 
-	 * for each bead color.
-	 * @param array An array of bead objects that defines the color palette of the project.
-	 * @return Returns a map containing color names as keys and color codes as values.
+	 * An image that could not be converted.
 	 */
-	public Map<String,String> createCodeMap(ArrayList<Bead> array) {
-		Map<String,String> codeMap = new HashMap<>();
-		for(int i = 0; i < array.size(); i++) {
-			codeMap.put(array.get(i).getName(), array.get(i).getCode());
+	static class Failure {
+		private final File source;
+		private final Stage stage;
+		private final String message;
+		
+		Failure(File source, Stage stage, Throwable cause) {
+			this.source = source;
+			this.stage = stage;
+			this.message = cause.getMessage() != null ? cause.getMessage() : cause.toString();
 		}
-		return codeMap;
-	}
-}
-
-/**
- * Used to compare the averaged tonal value of a bead object. Not currently used, but may prove useful in future updates.
- */
-class TonalValueComparator implements Comparator<Bead>, java.io.Serializable {
-	public int compare(Bead b1, Bead b2) {
-		int rgb1 = ((b1.getColor().getRed() + b1.getColor().getGreen() + b1.getColor().getBlue()) / 3);
-		int rgb2 = ((b2.getColor().getRed() + b2.getColor().getGreen() + b2.getColor().getBlue()) / 3);
 		
-		if (rgb1 < rgb2) {
-			return -1;
-		} else if (rgb1 == rgb2) {
-			return 0;
-		} else {
-			return 1;
+		public File getSource() {
+			return source;
+		}
+		
+		public Stage getStage() {
+			return stage;
+		}
+		
+		public String getMessage() {
+			return message;
 		}
 	}
-}
-
-/**
- * Used to compare the red channel value of a bead object.
- */
-class RedChannelComparator implements Comparator<Bead>, java.io.Serializable {
-	public int compare(Bead b1, Bead b2) {
-		int r1 = b1.getColor().getRed();
-		int r2 = b2.getColor().getRed();
+	
+	/**
+	 * What a batch did: the pages written, the images that failed, and how long each stage worked.
+	 */
+	static class Summary {
+		private final int inputs;
+		private final Queue<File> written = new ConcurrentLinkedQueue<>();
+		private final Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+		private final LongAdder pixels = new LongAdder();
+		private final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+		private long elapsedNanos;
 		
-		if (r1 < r2) {
-			return -1;
-		} else if (r1 == r2) {
-			return 0;
-		} else {
-			return 1;
+		Summary(int inputs) {
+			this.inputs = inputs;
+			for(int s = 0; s < stageNanos.length; s++) {
+				stageNanos[s] = new LongAdder();
+			}
+		}
+		
+		public int getInputs() {
+			return inputs;
+		}
+		
+		/**
+		 * @return Returns the pages written, in the order they were finished.
+		 */
+		public java.util.List<File> getWritten() {
+			return new ArrayList<>(written);
+		}
+		
+		public java.util.List<Failure> getFailures() {
+			return new ArrayList<>(failures);
+		}
+		
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+		
+		/**
+		 * @return Returns the time all workers of a stage spent working, added together.
+		 */
+		public long getStageNanos(Stage stage) {
+			return stageNanos[stage.ordinal()].sum();
+		}
+		
+		/**
+		 * @return Returns the pages written per second.
+		 */
+		public double getImagesPerSecond() {
+			return elapsedNanos == 0 ? 0 : written.size() * 1e9 / elapsedNanos;
+		}
+		
+		/**
+		 * @return Returns the beads matched per second.
+		 */
+		public double getPixelsPerSecond() {
+			return elapsedNanos == 0 ? 0 : pixels.sum() * 1e9 / elapsedNanos;
+		}
+		
+		public String toString() {
+			StringBuilder report = new StringBuilder();
+			report.append(String.format("%d images, %d written, %d failed in %.1f s%n", inputs, written.size(), failures.size(), elapsedNanos / 1e9));
+			report.append(String.format("%.1f images/s, %.0f beads/s%n", getImagesPerSecond(), getPixelsPerSecond()));
+			for(Stage stage : Stage.values()) {
+				report.append(String.format("%-8s %10.1f s busy%n", stage, getStageNanos(stage) / 1e9));
+			}
+			for(Failure failure : failures) {
+				report.append(String.format("FAILED %s at %s: %s%n", failure.getSource(), failure.getStage(), failure.getMessage()));
+			}
+			return report.toString();
 		}
 	}
 }
 
 /**
- * Used to compare the green channel value of a bead object.
+ * A converted design and its rendered page that are kept up to date as the source image is edited. Only the edited 
+ * pixels are matched again, the bead counts are adjusted by the beads that changed, and only the changed beads and 
+ * lines of the bead list are drawn again on the page, so an edit takes time in proportion to its size rather than 
+ * the size of the design. Every pixel is matched to its closest bead on its own, so there is no dithering and the 
+ * palette is not reduced. Indexed pages get a color table with the whole palette, so an edit that brings in a new 
+ * bead color can still be patched.
  */
-class GreenChannelComparator implements Comparator<Bead>, java.io.Serializable {
-	public int compare(Bead b1, Bead b2) {
-		int g1 = b1.getColor().getGreen();
-		int g2 = b2.getColor().getGreen();
-		
-		if (g1 < g2) {
-			return -1;
-		} else if (g1 == g2) {
+class EditableTemplate {
+	private final int[] pixels;
+	private final int width;
+	private final int height;
+	private final BeadPalette palette;
+	private final BeadMatcher matcher;
+	private final CompactBeadMatrix design;
+	private final BeadMatrix matrix;
+	private final CreateImageAndExportToFile exporter;
+	private final String title;
+	private final Map<String,String> codeMap;
+	// The color table with the whole palette for indexed pages, or null.
+	private final IndexColorModel colorModel;
+	private BufferedImage page;
+	// The bead list lines drawn on the page.
+	private java.util.List<String> lines;
+	
+	/**
+	 * Converts an image and renders its page.
+	 * @param image The source image, with one pixel for each bead.
+	 * @param palette The bead colors to match against.
+	 * @param strategy The method used to find the closest bead color for each pixel.
+	 * @param exporter The exporter that renders the page.
+	 * @param title The title printed at the top of the page.
+	 * @param codeMap A map containing color names and their color codes.
+	 */
+	public EditableTemplate(BufferedImage image, BeadPalette palette, MatchingStrategy strategy, CreateImageAndExportToFile exporter, String title, Map<String,String> codeMap) {
+		this.pixels = ImagePixelReader.readPixels(image);
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.palette = palette;
+		this.matcher = strategy.createMatcher(palette);
+		this.design = new ImageToBeadConverter().convert(pixels, width, height, palette, matcher);
+		this.matrix = design.asBeadMatrix();
+		this.exporter = exporter;
+		this.title = title;
+		this.codeMap = codeMap;
+		this.colorModel = exporter.isIndexedColor() ? CreateImageAndExportToFile.createColorModel(palette) : null;
+		this.page = render();
+		this.lines = CreateImageAndExportToFile.legendLines(matrix.colorList, codeMap);
+	}
+	
+	/**
+	 * Replaces a rectangle of the source image.
+	 * @param x Left edge of the rectangle.
+	 * @param y Top edge of the rectangle.
+	 * @param rectWidth Width of the rectangle.
+	 * @param rectHeight Height of the rectangle.
+	 * @param rgb The new pixels of the rectangle packed as 0xRRGGBB, row by row.
+	 * @return Returns the number of beads that changed.
+	 */
+	public int update(int x, int y, int rectWidth, int rectHeight, int[] rgb) {
+		if(x < 0 || y < 0 || rectWidth < 0 || rectHeight < 0 || x + rectWidth > width || y + rectHeight > height) {
+			throw new IllegalArgumentException("Rectangle " + rectWidth + "x" + rectHeight + " at " + x + "," + y + " is outside the " + width + "x" + height + " image.");
+		}
+		if(rgb.length != rectWidth * rectHeight) {
+			throw new IllegalArgumentException("Expected " + (rectWidth * rectHeight) + " pixels but found " + rgb.length + ".");
+		}
+		int[] positions = new int[rgb.length];
+		for(int i = 0; i < rectHeight; i++) {
+			for(int j = 0; j < rectWidth; j++) {
+				positions[i * rectWidth + j] = (y + i) * width + x + j;
+			}
+		}
+		return apply(positions, rgb);
+	}
+	
+	/**
+	 * Replaces single pixels of the source image. A pixel may be listed more than once; the last color wins.
+	 * @param positions The pixels to change, as y * width + x.
+	 * @param rgb The new color of each listed pixel packed as 0xRRGGBB.
+	 * @return Returns the number of beads that changed.
+	 */
+	public int update(int[] positions, int[] rgb) {
+		if(positions.length != rgb.length) {
+			throw new IllegalArgumentException("Expected one color for each of the " + positions.length + " positions but found " + rgb.length + ".");
+		}
+		for(int position : positions) {
+			if(position < 0 || position >= pixels.length) {
+				throw new IllegalArgumentException("Position " + position + " is outside the " + width + "x" + height + " image.");
+			}
+		}
+		return apply(positions, rgb);
+	}
+	
+	/**
+	 * Matches the changed pixels, patches the grid and bead counts, and patches the page. The page is rendered 
+	 * again instead if the exporter cannot patch it.
+	 */
+	private int apply(int[] positions, int[] rgb) {
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.MATCH);
+		short[] cells = design.getCells();
+		int[] changed = new int[positions.length];
+		Bead[] previous = new Bead[positions.length];
+		int changes = 0;
+		for(int k = 0; k < positions.length; k++) {
+			int position = positions[k];
+			pixels[position] = rgb[k];
+			int index = matcher.findClosestBead(rgb[k]);
+			if(index != cells[position]) {
+				Bead old = palette.getBead(cells[position]);
+				design.setIndex(position / width, position % width, index);
+				addCount(old.getName(), -1);
+				addCount(palette.getBead(index).getName(), 1);
+				changed[changes] = position;
+				previous[changes] = old;
+				changes++;
+			}
+		}
+		timer.stop(positions.length);
+		if(changes == 0) {
 			return 0;
+		}
+		
+		timer = ConversionMetrics.start(ConversionMetrics.Stage.RENDER);
+		java.util.List<String> newLines = CreateImageAndExportToFile.legendLines(matrix.colorList, codeMap);
+		if(exporter.repaintBeads(page, matrix, null, changed, previous, changes)) {
+			exporter.repaintLegend(page, lines, newLines);
+			timer.stop((long) changes * exporter.DIAMETER * exporter.DIAMETER);
 		} else {
-			return 1;
+			// renderPage records its own time.
+			page = render();
 		}
+		lines = newLines;
+		return changes;
 	}
-}
-
-/**
- * Used to compare the blue channel value of a bead object.
- */
-class BlueChannelComparator implements Comparator<Bead>, java.io.Serializable {
-	public int compare(Bead b1, Bead b2) {
-		int rgb1 = b1.getColor().getBlue();
-		int rgb2 = b2.getColor().getBlue();
-		
-		if (rgb1 < rgb2) {
-			return -1;
-		} else if (rgb1 == rgb2) {
-			return 0;
+	
+	/**
+	 * Renders the whole page. A palette too large for one color table gets the exporter's usual page instead.
+	 */
+	private BufferedImage render() {
+		return colorModel != null ? exporter.renderPage(title, null, matrix, codeMap, colorModel) : exporter.renderPage(title, null, matrix, codeMap);
+	}
+	
+	/**
+	 * Adds to the count of a color in the color list, and drops the color when none are left.
+	 */
+	private void addCount(String name, int delta) {
+		int count = matrix.colorList.getOrDefault(name, 0) + delta;
+		if(count == 0) {
+			matrix.colorList.remove(name);
 		} else {
-			return 1;
+			matrix.colorList.put(name, count);
 		}
 	}
+	
+	/**
+	 * @return Returns the design, which is patched in place by every update.
+	 */
+	public CompactBeadMatrix getDesign() {
+		return design;
+	}
+	
+	/**
+	 * @return Returns the view of the design that the page is rendered from. Its color list is kept up to date.
+	 */
+	public BeadMatrix getMatrix() {
+		return matrix;
+	}
+	
+	/**
+	 * @return Returns the current page. It is usually patched in place, but is replaced when an update has to render 
+	 * the whole page again.
+	 */
+	public BufferedImage getPage() {
+		return page;
+	}
 }
 
 /**
- * Creates and exports an image file ready to be printed on letter sized paper at 300dpi.
+ * A converted image that can be switched to a different set of bead colors without converting it again. When it is 
+ * made, each distinct color of the image gets a short list of the beads closest to it from a full palette, nearest 
+ * first. Choosing a smaller palette, such as the fun colors or the full palette without the colors that have run 
+ * out, then only needs the first listed bead that is still in the palette. Colors whose whole list was removed are 
+ * searched for in the new palette as usual. The result is the same as converting the image with the new palette.
+ * 
+ * The lists follow the distance the matching strategy uses: RGB distance for LOOKUP_TABLE, KD_TREE and VECTOR, 
+ * and CIEDE2000 for CIEDE2000. The channel search does not rank beads by a distance, so with CHANNEL_SEARCH no lists 
+ * are kept and every distinct color is searched again, which still skips reading the image and matching each pixel.
  */
-class CreateImageAndExportToFile {
-	// Width and height of page, and radius of each bead. 
-	final int PAGE_WIDTH = 2550;
-	final int PAGE_HEIGHT = 3300;
-	final int RADIUS = 29;
-	final int DIAMETER = RADIUS * 2;
-	int borderWidth = 3;
-	// Starting x and y coordinates for list of beads.
-	int listX = 200;
-	int listY = 2200;
-	int listCounter = 0;
+class BeadCandidates {
+	// Number of beads listed for each color unless another number is given.
+	static final int DEFAULT_CANDIDATES = 8;
+	
+	private final int width;
+	private final int height;
+	private final BeadPalette palette;
+	private final MatchingStrategy strategy;
+	// Index of each bead in the palette, keyed by code and color, so beads from another ColorLibrary are found.
+	private final Map<String, Integer> paletteIndexes = new HashMap<>();
+	// The distinct colors of the image, how many pixels have each, and which one each pixel has.
+	private final int[] colors;
+	private final int[] counts;
+	private final int[] pixelColors;
+	// Beads listed for each distinct color, nearest first, and their distances.
+	private final int listLength;
+	private final int[] candidates;
+	private final double[] distances;
+	// Colors that had to be searched for in the last palette chosen.
+	private int searches;
 	
 	/**
-	 * This method formats and exports the output file. It creates a white page, paints rows of beads in their 
-	 * appropriate colors overlaid with their color codes, adds title text, and creates a list of bead colors 
-	 * needed to complete the project as well as the quantity in which they are needed.
-	 * @param fileName The name of the image file originally imported for conversion.
-	 * @param matrix The BeadMatrix containing the grid of bead objects and list of bead colors used.
-	 * @param codeMap A map containing color names and their color codes.
+	 * Finds the distinct colors of an image and lists the closest beads for each.
+	 * @param image The image to convert, with one pixel for each bead.
+	 * @param palette The full palette. Palettes chosen later must only use beads from it.
+	 * @param strategy The method used to find the closest bead color for each pixel.
+	 * @param listLength The number of beads listed for each color. Longer lists need a search less often.
 	 */
-	public CreateImageAndExportToFile(String fileName, BeadMatrix matrix, Map<String,String> codeMap) {
-		// Create BufferedImage to hold graphics.
-		BufferedImage bufferedImage = new BufferedImage(PAGE_WIDTH, PAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+	public BeadCandidates(BufferedImage image, BeadPalette palette, MatchingStrategy strategy, int listLength) {
+		if(listLength < 1) {
+			throw new IllegalArgumentException("At least one bead must be listed for each color.");
+		}
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.palette = palette;
+		this.strategy = strategy;
+		for(int i = palette.size() - 1; i >= 0; i--) {
+			paletteIndexes.put(beadKey(palette.getBead(i)), i);
+		}
 		
-		// Create white page.
-		Graphics2D page = bufferedImage.createGraphics();
-		page.setColor(Color.WHITE);
-		page.fillRect(0, 0, PAGE_WIDTH, PAGE_HEIGHT);
-		page.dispose();
+		int[] pixels = ImagePixelReader.readPixels(image);
+		ColorHistogram histogram = ColorHistogram.count(pixels, 0xFFFFFF);
+		colors = new int[histogram.size()];
+		counts = new int[histogram.size()];
+		int[] colorOfSlot = new int[histogram.capacity()];
+		int distinct = 0;
+		for(int slot = 0; slot < histogram.capacity(); slot++) {
+			if(histogram.isUsed(slot)) {
+				colors[distinct] = histogram.getColor(slot);
+				counts[distinct] = histogram.getCount(slot);
+				colorOfSlot[slot] = distinct++;
+			}
+		}
+		pixelColors = new int[pixels.length];
+		for(int i = 0; i < pixels.length; i++) {
+			pixelColors[i] = colorOfSlot[histogram.slotOf(pixels[i] & 0xFFFFFF)];
+		}
 		
-		// Set width and height of grid. Set x and y location of grid.
-		int width = DIAMETER * matrix.beadGrid[0].length;
-		int height = DIAMETER * matrix.beadGrid.length;
-		int startX = (PAGE_WIDTH - width) / 2;
-		int startY = 250;
+		this.listLength = strategy == MatchingStrategy.CHANNEL_SEARCH ? 0 : Math.min(listLength, palette.size());
+		candidates = new int[colors.length * this.listLength];
+		distances = new double[colors.length * this.listLength];
+		double[][] lab = null;
+		if(strategy == MatchingStrategy.CIEDE2000) {
+			lab = new double[palette.size()][];
+			for(int i = 0; i < palette.size(); i++) {
+				lab[i] = LabColorSpace.toLab(palette.getRGB(i));
+			}
+		}
+		double[] distance = new double[palette.size()];
+		for(int c = 0; c < colors.length && this.listLength > 0; c++) {
+			measure(colors[c], lab, distance);
+			rank(distance, c * this.listLength);
+		}
+	}
+	
+	/**
+	 * Works out the distance from a color to every bead in the palette, as the strategy's matcher would.
+	 * @param lab The palette in CIELAB for CIEDE2000, or null for RGB distance.
+	 */
+	private void measure(int rgb, double[][] lab, double[] distance) {
+		if(lab != null) {
+			double[] color = LabColorSpace.toLab(rgb);
+			double chroma = Math.sqrt(color[1] * color[1] + color[2] * color[2]);
+			for(int i = 0; i < distance.length; i++) {
+				distance[i] = LabColorSpace.deltaE2000Squared(color[0], color[1], color[2], chroma, lab[i][0], lab[i][1], lab[i][2], Double.MAX_VALUE);
+			}
+			return;
+		}
+		for(int i = 0; i < distance.length; i++) {
+			int dr = ((rgb >> 16) & 0xFF) - ((palette.getRGB(i) >> 16) & 0xFF);
+			int dg = ((rgb >> 8) & 0xFF) - ((palette.getRGB(i) >> 8) & 0xFF);
+			int db = (rgb & 0xFF) - (palette.getRGB(i) & 0xFF);
+			distance[i] = dr * dr + dg * dg + db * db;
+		}
+	}
+	
+	/**
+	 * Keeps the nearest beads, in order of distance and then palette index, by insertion into a short sorted list.
+	 */
+	private void rank(double[] distance, int offset) {
+		int listed = 0;
+		for(int i = 0; i < distance.length; i++) {
+			if(listed == listLength && distance[i] >= distances[offset + listed - 1]) {
+				continue;
+			}
+			int k = Math.min(listed, listLength - 1);
+			while(k > 0 && distances[offset + k - 1] > distance[i]) {
+				candidates[offset + k] = candidates[offset + k - 1];
+				distances[offset + k] = distances[offset + k - 1];
+				k--;
+			}
+			candidates[offset + k] = i;
+			distances[offset + k] = distance[i];
+			listed = Math.min(listed + 1, listLength);
+		}
+	}
+	
+	private static String beadKey(Bead bead) {
+		return bead.getCode() + "=" + Integer.toHexString(bead.getColor().getRGB() & 0xFFFFFF);
+	}
+	
+	/**
+	 * Converts the image with some of the palette's beads.
+	 * @param beadArray The beads to use, in any order. Each must be in the full palette.
+	 * @return Returns the design, with the chosen beads as its palette.
+	 */
+	public CompactBeadMatrix select(ArrayList<Bead> beadArray) {
+		if(beadArray.isEmpty()) {
+			throw new IllegalArgumentException("Palette must contain at least one color.");
+		}
+		ConversionMetrics.Timer timer = ConversionMetrics.start(ConversionMetrics.Stage.MATCH);
+		BeadPalette chosen = new BeadPalette(beadArray);
+		// Index of each palette bead in the chosen palette, or -1 if it is not there. The first copy of a bead wins.
+		int[] chosenIndex = new int[palette.size()];
+		Arrays.fill(chosenIndex, -1);
+		for(int i = 0; i < chosen.size(); i++) {
+			Integer index = paletteIndexes.get(beadKey(chosen.getBead(i)));
+			if(index == null) {
+				throw new IllegalArgumentException(chosen.getBead(i).getName() + " (" + chosen.getBead(i).getCode() + ") is not in the palette the beads were listed from.");
+			}
+			if(chosenIndex[index] < 0) {
+				chosenIndex[index] = i;
+			}
+		}
 		
-		// Create grid and set font for code.
-		Graphics2D pegboard = bufferedImage.createGraphics();
-		Font codeFont = new Font("Helvetica", 1, (DIAMETER / 3));
-		pegboard.setFont(codeFont);
-				
-		// Create colored circle for each bead and add code.
-		pegboard.setColor(Color.BLACK);
-		for(int i = 0; i < matrix.beadGrid.length; i++) {
-			for(int j = 0; j < matrix.beadGrid[i].length; j++) {
-				pegboard.fillOval((DIAMETER * j) + startX, (DIAMETER * i) + startY, DIAMETER, DIAMETER);
-				pegboard.setColor(matrix.beadGrid[i][j].getColor());
-				pegboard.fillOval(((DIAMETER * j) + borderWidth) + startX, ((DIAMETER * i) + borderWidth) + startY, DIAMETER - (2 * borderWidth), DIAMETER - (2 * borderWidth));
-				pegboard.setColor(Color.BLACK);
-				pegboard.drawString(matrix.beadGrid[i][j].getCode(), ((DIAMETER * j) + RADIUS - (RADIUS / 3)) + startX, ((DIAMETER * i) + RADIUS + (RADIUS / 6)) + startY);
+		int[] matches = new int[colors.length];
+		BeadMatcher matcher = null;
+		searches = 0;
+		for(int c = 0; c < colors.length; c++) {
+			int match = pick(c, chosenIndex);
+			if(match < 0) {
+				if(matcher == null) {
+					matcher = strategy.createMatcher(chosen);
+				}
+				match = matcher.findClosestBead(colors[c]);
+				searches++;
 			}
-		} 
-		pegboard.dispose();
+			matches[c] = match;
+		}
 		
-		// Create list of bead colors with their color code and number of beads required for project.
-		Graphics2D beadList = bufferedImage.createGraphics();
-		Font listFont = new Font("Helvetica", 1, 30);
-		beadList.setFont(listFont);
-		beadList.setColor(Color.BLACK);
-		beadList.drawString("Perler Bead Pattern for " + fileName, 1050, 150);
-		beadList.drawString("You will need the following bead colors:", listX, listY - 100);
-		
-		// Draw each item of list.
-		matrix.colorList.forEach((k, v) -> {
-			beadList.drawString(k + " (" + codeMap.get(k) + ") - " + v + " beads", listX, listY);
-			listY += 100;
-			listCounter++;
-			if(listCounter % 10 == 0) {
-				listY = 2200;
-				listX += 600;
+		short[] cells = new short[pixelColors.length];
+		for(int i = 0; i < cells.length; i++) {
+			cells[i] = (short) matches[pixelColors[i]];
+		}
+		int[] histogram = new int[chosen.size()];
+		for(int c = 0; c < colors.length; c++) {
+			histogram[matches[c]] += counts[c];
+		}
+		timer.stop(cells.length);
+		return new CompactBeadMatrix(chosen, width, height, cells, histogram);
+	}
+	
+	/**
+	 * Picks the first listed bead that is in the chosen palette. Beads at the same distance are decided by their 
+	 * order in the chosen palette, as the matchers do.
+	 * @return Returns the index in the chosen palette, or -1 if the color must be searched for.
+	 */
+	private int pick(int color, int[] chosenIndex) {
+		int offset = color * listLength;
+		for(int k = 0; k < listLength; k++) {
+			int best = chosenIndex[candidates[offset + k]];
+			if(best < 0) {
+				continue;
 			}
-		});
-		beadList.dispose();
-			
-		try {
-			// Save as PNG
-			File file = new File("BeadTemplate.png");
-			ImageIO.write(bufferedImage, "png", file);
-		} catch (IOException ex) {
-			System.out.print(ex);
+			int next = k + 1;
+			while(next < listLength && distances[offset + next] == distances[offset + k]) {
+				int index = chosenIndex[candidates[offset + next]];
+				if(index >= 0 && index < best) {
+					best = index;
+				}
+				next++;
+			}
+			// A bead past the end of the list could be just as close.
+			if(next == listLength && listLength < palette.size()) {
+				return -1;
+			}
+			return best;
 		}
-	} 
-}
\ No newline at end of file
+		return -1;
+	}
+	
+	/**
+	 * @return Returns the number of distinct colors in the image.
+	 */
+	public int getColorCount() {
+		return colors.length;
+	}
+	
+	/**
+	 * @return Returns how many distinct colors had none of their listed beads in the last palette chosen, and were 
+	 * searched for instead.
+	 */
+	public int getSearchCount() {
+		return searches;
+	}
+}
@@ -1,7 +1,11 @@
 import static org.junit.Assert.*;
 import org.junit.Test;
 import java.awt.*;
+import java.io.File;
+import java.nio.file.Files;
+import java.awt.image.BufferedImage;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class ConvertImageToTemplateTest {
 
@@ -139,4 +143,1333 @@ public class ConvertImageToTemplateTest {
 		assertEquals(comparator.compare(orange, yellow), 1);
 		assertEquals(comparator.compare(yellow, yellow), 0);
 	}
-}
\ No newline at end of file
+	
+	@Test
+	public void testLookupTableMatcher() {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		LookupTableMatcher matcher = LookupTableMatcher.forPalette(palette);
+		Random random = new Random(1);
+		for(int i = 0; i < 10000; i++) {
+			int rgb = random.nextInt(0x1000000);
+			assertEquals(matcher.findClosestBead(rgb), palette.findNearest((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF));
+		}
+		assertEquals(palette.getBead(matcher.findClosestBead(0x2E2F32)).getName(), "Black");
+		assertSame(matcher, LookupTableMatcher.forPalette(new BeadPalette(beads)));
+	}
+	
+	@Test
+	public void testChannelSearchMatcher() {
+		Bead yellow = new Bead("Yellow", "03", new Color(236, 216, 0));
+		Bead orange = new Bead("Orange", "04", new Color(237, 97, 32));
+		Bead white = new Bead("White", "01", new Color(241, 241, 241));
+		ArrayList<Bead> beads = new ArrayList<>();
+		beads.add(yellow);
+		beads.add(orange);
+		beads.add(white);
+		ChannelSearchMatcher matcher = new ChannelSearchMatcher(new BeadPalette(beads));
+		assertEquals(matcher.findClosestBead(0xEC6120), 1);
+		assertEquals(matcher.findClosestBead(0xFFFFFF), 2);
+	}
+	
+	@Test
+	public void testKdTreeMatcher() {
+		Random random = new Random(2);
+		ArrayList<Bead> beads = new ArrayList<>();
+		for(int i = 0; i < 1000; i++) {
+			beads.add(new Bead("Color " + i, "" + i, new Color(random.nextInt(0x1000000))));
+		}
+		// Duplicate colors must match the bead listed first.
+		beads.add(new Bead("Copy", "copy", beads.get(10).getColor()));
+		BeadPalette palette = new BeadPalette(beads);
+		KdTreeMatcher matcher = new KdTreeMatcher(palette);
+		for(int i = 0; i < 10000; i++) {
+			int rgb = random.nextInt(0x1000000);
+			assertEquals(matcher.findClosestBead(rgb), palette.findNearest((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF));
+		}
+		assertEquals(matcher.findClosestBead(palette.getRGB(10)), 10);
+	}
+	
+	@Test
+	public void testDeltaE2000() {
+		// Reference values from Sharma, Wu and Dalal, "The CIEDE2000 Color-Difference Formula".
+		assertEquals(LabColorSpace.deltaE2000(50, 2.6772, -79.7751, 50, 0, -82.7485), 2.0425, 0.0001);
+		assertEquals(LabColorSpace.deltaE2000(50, 0, 0, 50, -1, 2), 2.3669, 0.0001);
+		assertEquals(LabColorSpace.deltaE2000(50, 2.5, 0, 73, 25, -18), 27.1492, 0.0001);
+		assertEquals(LabColorSpace.deltaE2000(2.0776, 0.0795, -1.1350, 0.9033, -0.0636, -0.5514), 0.9082, 0.0001);
+	}
+	
+	@Test
+	public void testCiedeMatcher() {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		CiedeMatcher matcher = new CiedeMatcher(palette);
+		Random random = new Random(3);
+		for(int i = 0; i < 2000; i++) {
+			int rgb = random.nextInt(0x1000000);
+			double[] lab = LabColorSpace.toLab(rgb);
+			int best = 0;
+			double bestDistance = Double.MAX_VALUE;
+			for(int j = 0; j < palette.size(); j++) {
+				double[] bead = LabColorSpace.toLab(palette.getRGB(j));
+				double distance = LabColorSpace.deltaE2000(lab[0], lab[1], lab[2], bead[0], bead[1], bead[2]);
+				if(distance < bestDistance) {
+					bestDistance = distance;
+					best = j;
+				}
+			}
+			assertEquals(matcher.findClosestBead(rgb), best);
+			// A second lookup is answered from the cache.
+			assertEquals(matcher.findClosestBead(rgb), best);
+		}
+	}
+	
+	@Test
+	public void testCompactBeadMatrix() {
+		Bead white = new Bead("White", "01", new Color(241, 241, 241));
+		Bead black = new Bead("Black", "18", new Color(46, 47, 50));
+		ArrayList<Bead> beads = new ArrayList<>();
+		beads.add(white);
+		beads.add(black);
+		CompactBeadMatrix matrix = new CompactBeadMatrix(new BeadPalette(beads), 3, 2);
+		matrix.setIndex(0, 1, 1);
+		matrix.setIndex(1, 2, 1);
+		assertEquals(matrix.getCount(0), 4);
+		assertEquals(matrix.getCount(1), 2);
+		assertSame(matrix.getBead(1, 2), black);
+		assertEquals(matrix.createColorList().get("White"), Integer.valueOf(4));
+		
+		BeadMatrix view = matrix.asBeadMatrix();
+		assertEquals(view.getRowCount(), 2);
+		assertEquals(view.getColumnCount(), 3);
+		assertEquals(view.getBead(0, 1).getName(), "Black");
+		assertEquals(view.colorList.get("Black"), Integer.valueOf(2));
+		
+		BeadMatrix full = matrix.toBeadMatrix();
+		assertEquals(full.beadGrid[1][2].getCode(), "18");
+		assertEquals(full.beadGrid[1][2].getX(), 2);
+		assertEquals(full.beadGrid[1][2].getY(), 1);
+	}
+	
+	@Test
+	public void testReadPixels() {
+		int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_ARGB_PRE, BufferedImage.TYPE_INT_BGR,
+				BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR, BufferedImage.TYPE_BYTE_INDEXED, BufferedImage.TYPE_BYTE_GRAY,
+				BufferedImage.TYPE_BYTE_BINARY, BufferedImage.TYPE_USHORT_565_RGB};
+		Random random = new Random(4);
+		for(int type : types) {
+			BufferedImage image = new BufferedImage(13, 7, type);
+			for(int y = 0; y < 7; y++) {
+				for(int x = 0; x < 13; x++) {
+					image.setRGB(x, y, random.nextInt());
+				}
+			}
+			int[] pixels = ImagePixelReader.readPixels(image);
+			for(int y = 0; y < 7; y++) {
+				for(int x = 0; x < 13; x++) {
+					assertEquals(pixels[y * 13 + x], image.getRGB(x, y));
+				}
+			}
+			// A sub-image shares the parent's buffer but starts part way into it.
+			BufferedImage sub = image.getSubimage(2, 1, 5, 4);
+			assertEquals(ImagePixelReader.readPixels(sub)[6], sub.getRGB(1, 1));
+		}
+	}
+	
+	@Test
+	public void testParallelConvert() {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		BeadMatcher matcher = MatchingStrategy.KD_TREE.createMatcher(palette);
+		Random random = new Random(5);
+		int[] pixels = new int[300 * 211];
+		for(int i = 0; i < pixels.length; i++) {
+			pixels[i] = random.nextInt();
+		}
+		CompactBeadMatrix sequential = new ImageToBeadConverter().convert(pixels, 300, 211, palette, matcher);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		CompactBeadMatrix parallel;
+		try {
+			parallel = new ImageToBeadConverter(pool).convert(pixels, 300, 211, palette, matcher);
+		} finally {
+			pool.shutdown();
+		}
+		assertArrayEquals(parallel.getCells(), sequential.getCells());
+		for(int i = 0; i < palette.size(); i++) {
+			assertEquals(parallel.getCount(i), sequential.getCount(i));
+		}
+		assertEquals(parallel.createColorList(), sequential.createColorList());
+	}
+	
+	@Test
+	public void testColorHistogram() {
+		ColorHistogram histogram = ColorHistogram.count(new int[] {0, 0xFF000000, 5, 0x123456, 5, 5}, 0xFFFFFF);
+		assertEquals(histogram.size(), 3);
+		assertEquals(histogram.getCountOf(0), 2);
+		assertEquals(histogram.getCountOf(5), 3);
+		assertEquals(histogram.getCountOf(0x123456), 1);
+		assertEquals(histogram.getCountOf(7), 0);
+		
+		// Grow well past the starting size.
+		ColorHistogram large = new ColorHistogram();
+		for(int i = 0; i < 5000; i++) {
+			large.add(i * 31, i + 1);
+		}
+		assertEquals(large.size(), 5000);
+		assertEquals(large.getCountOf(31 * 4321), 4322);
+		
+		// Posterized colors with no blue still spread over the table instead of forming long probe runs.
+		ColorHistogram posterized = new ColorHistogram();
+		for(int red = 0; red < 256; red += 16) {
+			for(int green = 0; green < 256; green += 16) {
+				for(int blue = 0; blue < 256; blue += 16) {
+					posterized.add((red << 16) | (green << 8) | blue, 1);
+				}
+			}
+		}
+		ColorHistogram noBlue = new ColorHistogram();
+		for(int red = 0; red < 256; red += 4) {
+			for(int green = 0; green < 256; green += 4) {
+				noBlue.add((red << 16) | (green << 8), 1);
+			}
+		}
+		for(ColorHistogram table : new ColorHistogram[] {posterized, noBlue}) {
+			int run = 0;
+			int longestRun = 0;
+			for(int slot = 0; slot < table.capacity(); slot++) {
+				run = table.isUsed(slot) ? run + 1 : 0;
+				longestRun = Math.max(longestRun, run);
+			}
+			assertTrue("longest run " + longestRun, longestRun < 100);
+		}
+		assertEquals(posterized.size(), 4096);
+		assertEquals(noBlue.size(), 4096);
+	}
+	
+	@Test
+	public void testMatchUniqueColors() {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		BeadMatcher matcher = MatchingStrategy.CHANNEL_SEARCH.createMatcher(palette);
+		Random random = new Random(6);
+		int[] colors = new int[40];
+		for(int i = 0; i < colors.length; i++) {
+			colors[i] = random.nextInt();
+		}
+		int[] pixels = new int[64 * 48];
+		for(int i = 0; i < pixels.length; i++) {
+			pixels[i] = colors[random.nextInt(colors.length)];
+		}
+		CompactBeadMatrix expected = new ImageToBeadConverter().convert(pixels, 64, 48, palette, matcher);
+		ImageToBeadConverter converter = new ImageToBeadConverter();
+		converter.setMatchUniqueColors(true);
+		CompactBeadMatrix unique = converter.convert(pixels, 64, 48, palette, matcher);
+		assertArrayEquals(unique.getCells(), expected.getCells());
+		assertEquals(unique.createColorList(), expected.createColorList());
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			ImageToBeadConverter parallel = new ImageToBeadConverter(pool);
+			parallel.setMatchUniqueColors(true);
+			assertArrayEquals(parallel.convert(pixels, 64, 48, palette, matcher).getCells(), expected.getCells());
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	@Test
+	public void testBoxResample() {
+		// Each target pixel averages a 2x2 block.
+		int[] pixels = {
+				0xFF000000, 0xFFFFFFFF, 0xFF102030, 0xFF102030,
+				0xFF000000, 0xFFFFFFFF, 0xFF102030, 0xFF102030};
+		BeadGridResampler resampler = new BeadGridResampler(4, 2, 2, 1, BeadGridResampler.Filter.BOX);
+		resampler.pushRow(pixels, 0);
+		resampler.pushRow(pixels, 4);
+		int[] result = resampler.getPixels();
+		assertEquals(result[0], 0xFF808080);
+		assertEquals(result[1], 0xFF102030);
+		
+		// Transparent pixels do not change the color of the opaque ones they are averaged with.
+		BeadGridResampler alpha = new BeadGridResampler(2, 1, 1, 1, BeadGridResampler.Filter.BOX);
+		alpha.pushRow(new int[] {0x00000000, 0xFFFF0000}, 0);
+		assertEquals(alpha.getPixels()[0], 0x80FF0000);
+	}
+	
+	@Test
+	public void testLanczosResample() {
+		BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+		g.setColor(new Color(40, 120, 200));
+		g.fillRect(0, 0, 300, 200);
+		g.dispose();
+		BufferedImage scaled = BeadGridResampler.resample(image, 29, 19, BeadGridResampler.Filter.LANCZOS);
+		assertEquals(scaled.getWidth(), 29);
+		assertEquals(scaled.getRGB(10, 10), 0xFF2878C8);
+	}
+	
+	@Test
+	public void testFitWithin() {
+		assertArrayEquals(BeadGridResampler.fitWithin(4000, 3000, 29, 29), new int[] {29, 22});
+		assertArrayEquals(BeadGridResampler.fitWithin(20, 25, 29, 29), new int[] {20, 25});
+	}
+	
+	@Test
+	public void testMosaicExport() throws Exception {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		Random random = new Random(8);
+		short[] cells = new short[60 * 40];
+		for(int i = 0; i < cells.length; i++) {
+			cells[i] = (short) random.nextInt(5);
+		}
+		CompactBeadMatrix design = new CompactBeadMatrix(palette, 60, 40, cells);
+		File directory = Files.createTempDirectory("mosaic").toFile();
+		MosaicExporter exporter = new MosaicExporter(29, 2);
+		java.util.List<File> files = exporter.export(design, cl.createCodeMap(beads), "Test", directory, "design");
+		// Three boards across and two down, plus the overview and the bill of materials.
+		assertEquals(files.size(), 8);
+		for(File file : files) {
+			assertTrue(file.getName(), file.length() > 0);
+		}
+		assertEquals(files.get(5).getName(), "design-board-02-03.png");
+		java.util.List<String> lines = Files.readAllLines(files.get(7).toPath());
+		assertEquals(lines.get(lines.size() - 1), "Total,,2400,6");
+		
+		// Names and codes with commas or quotes are quoted.
+		ArrayList<Bead> named = new ArrayList<>();
+		named.add(new Bead("Blue, Sky", "B\"1", Color.BLUE));
+		java.io.StringWriter materials = new java.io.StringWriter();
+		exporter.writeMaterials(new CompactBeadMatrix(new BeadPalette(named), 2, 1, new short[2]), new HashMap<>(), materials);
+		assertEquals(materials.toString().split("\r?\n")[1], "\"Blue, Sky\",\"B\"\"1\",2,1");
+		
+		// The materials file is UTF-8 whatever the platform charset is.
+		named.set(0, new Bead("Cr\u00e8me", "C1", Color.WHITE));
+		files = exporter.export(new CompactBeadMatrix(new BeadPalette(named), 2, 1, new short[2]), new HashMap<>(), "Test", directory, "named");
+		assertEquals(Files.readAllLines(files.get(files.size() - 1).toPath(), java.nio.charset.StandardCharsets.UTF_8).get(1), "Cr\u00e8me,C1,2,1");
+		
+		// Command line counts.
+		assertEquals(ConvertImageToTemplate.countArgument("60", 1), 60);
+		assertEquals(ConvertImageToTemplate.countArgument("0", 1), -1);
+		assertEquals(ConvertImageToTemplate.countArgument("0", 0), 0);
+		assertEquals(ConvertImageToTemplate.countArgument("sixty", 1), -1);
+		
+		CompactBeadMatrix corner = design.copyRegion(58, 29, 2, 11);
+		assertEquals(corner.getIndex(10, 1), design.getIndex(39, 59));
+	}
+	
+	@Test
+	public void testBeadSprites() {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		// A code wider than the bead reaches into the next bead.
+		beads.add(new Bead("Wide", "P12345", new Color(10, 200, 30)));
+		BeadPalette palette = new BeadPalette(beads);
+		short[] cells = new short[9 * 6];
+		for(int i = 0; i < cells.length; i++) {
+			cells[i] = (short) (i % palette.size());
+		}
+		cells[cells.length - 1] = (short) (palette.size() - 1);
+		BeadMatrix matrix = new CompactBeadMatrix(palette, 9, 6, cells).asBeadMatrix();
+		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+		
+		BufferedImage stamped = new BufferedImage(exporter.PAGE_WIDTH, 800, BufferedImage.TYPE_INT_RGB);
+		BufferedImage drawn = new BufferedImage(exporter.PAGE_WIDTH, 800, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = drawn.createGraphics();
+		graphics.setColor(Color.WHITE);
+		graphics.fillRect(0, 0, drawn.getWidth(), drawn.getHeight());
+		stamped.createGraphics().drawImage(drawn, 0, 0, null);
+		exporter.drawGrid(stamped, matrix);
+		int startX = exporter.gridX(9);
+		for(int i = 0; i < 6; i++) {
+			for(int j = 0; j < 9; j++) {
+				exporter.drawBead(graphics, matrix.getBead(i, j), exporter.DIAMETER * j + startX, exporter.DIAMETER * i + exporter.GRID_Y);
+			}
+		}
+		graphics.dispose();
+		assertArrayEquals(stamped.getRGB(0, 0, stamped.getWidth(), 800, null, 0, stamped.getWidth()), 
+				drawn.getRGB(0, 0, drawn.getWidth(), 800, null, 0, drawn.getWidth()));
+		
+		// Beads off the edge of the page are clipped.
+		int[] page = new int[40 * 40];
+		BeadSprite.forBead(beads.get(0), exporter).stamp(page, 40, 40, -30, 20);
+		assertEquals(page[20 * 40 + 40 - 1], 0);
+		assertTrue(page[39 * 40] != 0);
+		
+		// An exporter with a wider border gets its own sprites.
+		CreateImageAndExportToFile thick = new CreateImageAndExportToFile();
+		thick.borderWidth = 8;
+		int[] thinPage = new int[80 * 80];
+		int[] thickPage = new int[80 * 80];
+		BeadSprite.forBead(beads.get(0), exporter).stamp(thinPage, 80, 80, 0, 0);
+		BeadSprite.forBead(beads.get(0), thick).stamp(thickPage, 80, 80, 0, 0);
+		assertEquals(thinPage[exporter.RADIUS * 80 + 5], beads.get(0).getColor().getRGB() & 0xFFFFFF);
+		assertEquals(thickPage[exporter.RADIUS * 80 + 5], 0);
+	}
+	
+	@Test
+	public void testIndexedPage() {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		short[] cells = new short[29 * 29];
+		for(int i = 0; i < cells.length; i++) {
+			cells[i] = (short) (i % palette.size());
+		}
+		BeadMatrix matrix = new CompactBeadMatrix(palette, 29, 29, cells).asBeadMatrix();
+		Map<String,String> codeMap = cl.createCodeMap(beads);
+		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+		BufferedImage rgb = exporter.renderPage("Test", "Subtitle", matrix, codeMap);
+		exporter.setIndexedColor(true);
+		BufferedImage indexed = exporter.renderPage("Test", "Subtitle", matrix, codeMap);
+		assertEquals(indexed.getType(), BufferedImage.TYPE_BYTE_INDEXED);
+		int width = rgb.getWidth();
+		int height = rgb.getHeight();
+		assertArrayEquals(indexed.getRGB(0, 0, width, height, null, 0, width), rgb.getRGB(0, 0, width, height, null, 0, width));
+	}
+	
+	@Test
+	public void testPngEncoder() throws Exception {
+		Random random = new Random(11);
+		BufferedImage image = new BufferedImage(97, 3000, BufferedImage.TYPE_INT_ARGB);
+		for(int y = 0; y < image.getHeight(); y++) {
+			for(int x = 0; x < image.getWidth(); x++) {
+				image.setRGB(x, y, (x * 0x030201 + y) ^ random.nextInt(4) ^ (y % 3 == 0 ? 0xFF000000 : 0x80000000));
+			}
+		}
+		int[] expected = image.getRGB(0, 0, 97, 3000, null, 0, 97);
+		for(PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+			for(int threads = 1; threads <= 3; threads += 2) {
+				PngEncoder encoder = new PngEncoder();
+				encoder.setFilter(filter);
+				encoder.setThreads(threads);
+				java.io.ByteArrayOutputStream output = new java.io.ByteArrayOutputStream();
+				encoder.write(image, output);
+				BufferedImage decoded = javax.imageio.ImageIO.read(new java.io.ByteArrayInputStream(output.toByteArray()));
+				assertArrayEquals(filter + " " + threads, decoded.getRGB(0, 0, 97, 3000, null, 0, 97), expected);
+			}
+		}
+		
+		java.util.zip.Adler32 whole = new java.util.zip.Adler32();
+		java.util.zip.Adler32 first = new java.util.zip.Adler32();
+		java.util.zip.Adler32 second = new java.util.zip.Adler32();
+		byte[] data = new byte[200000];
+		random.nextBytes(data);
+		whole.update(data);
+		first.update(data, 0, 70000);
+		second.update(data, 70000, 130000);
+		assertEquals(PngEncoder.combineAdler(first.getValue(), second.getValue(), 130000), whole.getValue());
+	}
+	
+	@Test
+	public void testVectorExport() throws Exception {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		short[] cells = new short[29 * 29];
+		for(int i = 0; i < cells.length; i++) {
+			cells[i] = (short) (i % 7);
+		}
+		BeadMatrix matrix = new CompactBeadMatrix(palette, 29, 29, cells).asBeadMatrix();
+		Map<String,String> codeMap = cl.createCodeMap(beads);
+		VectorExporter exporter = new VectorExporter();
+		
+		File svg = File.createTempFile("template", ".svg");
+		svg.deleteOnExit();
+		exporter.export(VectorExporter.Format.SVG, "Pattern for <test> & more", null, matrix, codeMap, svg);
+		org.w3c.dom.Document document = javax.xml.parsers.DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(svg);
+		assertEquals(document.getElementsByTagName("use").getLength(), 29 * 29);
+		// One black and one colored circle for each of the seven colors.
+		assertEquals(document.getElementsByTagName("circle").getLength(), 14);
+		
+		// Every object in the cross reference table starts where the table says it does.
+		File pdf = File.createTempFile("template", ".pdf");
+		pdf.deleteOnExit();
+		exporter.export(VectorExporter.Format.PDF, "Pattern (test)", "Board 1-1", matrix, codeMap, pdf);
+		String text = new String(Files.readAllBytes(pdf.toPath()), "ISO-8859-1");
+		assertTrue(text.startsWith("%PDF-1.4"));
+		int xref = Integer.parseInt(text.substring(text.lastIndexOf("startxref") + 10, text.lastIndexOf("%%EOF")).trim());
+		String[] table = text.substring(xref).split("\n");
+		int objects = Integer.parseInt(table[1].split(" ")[1]);
+		assertEquals(objects, 7 + 7);
+		for(int i = 1; i < objects; i++) {
+			int offset = Integer.parseInt(table[2 + i].substring(0, 10));
+			assertTrue(text.startsWith(i + " 0 obj", offset));
+		}
+		assertEquals(VectorExporter.number(0.24), "0.24");
+		assertEquals(VectorExporter.escapePdf("a(b)"), "a\\(b\\)");
+		assertEquals(VectorExporter.escapePdf("Cr\u00e8me \u4e00"), "Cr\\350me ?");
+		int diameter = new CreateImageAndExportToFile().DIAMETER;
+		assertTrue(text.contains("/BBox [" + (-diameter) + " " + (-diameter) + " " + (2 * diameter) + " " + (2 * diameter) + "]"));
+		
+		// Latin-1 titles end up as WinAnsi codes, not UTF-8 bytes.
+		exporter.export(VectorExporter.Format.PDF, "Cr\u00e8me br\u00fbl\u00e9e", null, matrix, codeMap, pdf);
+		text = new String(Files.readAllBytes(pdf.toPath()), "ISO-8859-1");
+		assertTrue(text.contains("(Cr\\350me br\\373l\\351e)"));
+		assertFalse(text.contains("\u00c3"));
+	}
+	
+	@Test
+	public void testDithering() {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		BeadMatcher matcher = MatchingStrategy.LOOKUP_TABLE.createMatcher(palette);
+		Random random = new Random(13);
+		int width = 173;
+		int height = 91;
+		int[] pixels = new int[width * height];
+		for(int i = 0; i < pixels.length; i++) {
+			pixels[i] = random.nextInt();
+		}
+		// The wavefront gives exactly the same beads as one thread.
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for(DitherMode mode : new DitherMode[] {DitherMode.FLOYD_STEINBERG, DitherMode.ATKINSON, DitherMode.BAYER}) {
+				Ditherer ditherer = new Ditherer(palette, matcher, mode);
+				assertArrayEquals(ditherer.dither(pixels, width, height, pool), ditherer.dither(pixels, width, height, null));
+			}
+		} finally {
+			pool.shutdown();
+		}
+		
+		// Middle gray with only black and white beads comes out about half white.
+		ArrayList<Bead> blackAndWhite = new ArrayList<>();
+		blackAndWhite.add(new Bead("Black", "B", Color.BLACK));
+		blackAndWhite.add(new Bead("White", "W", Color.WHITE));
+		BeadPalette twoColors = new BeadPalette(blackAndWhite);
+		int[] gray = new int[64 * 64];
+		Arrays.fill(gray, 0xFF808080);
+		for(DitherMode mode : new DitherMode[] {DitherMode.FLOYD_STEINBERG, DitherMode.BAYER}) {
+			ImageToBeadConverter converter = new ImageToBeadConverter();
+			converter.setDitherMode(mode);
+			CompactBeadMatrix result = converter.convert(gray, 64, 64, twoColors, MatchingStrategy.KD_TREE.createMatcher(twoColors));
+			assertEquals(mode.toString(), result.getCount(1), 2048, 64);
+		}
+		assertArrayEquals(Ditherer.bayerMatrix(1), new int[] {0, 2, 3, 1});
+	}
+	
+	@Test
+	public void testPaletteReducer() {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		// An image made of three bead colors keeps exactly those beads.
+		int[] pixels = new int[300 * 200];
+		for(int i = 0; i < pixels.length; i++) {
+			pixels[i] = palette.getRGB(i % 3 == 0 ? 5 : i % 3 == 1 ? 20 : 40);
+		}
+		assertArrayEquals(new PaletteReducer().choose(pixels, palette, 3), new int[] {5, 20, 40});
+		
+		// A photograph-like image gives the same beads on one thread and on several.
+		Random random = new Random(14);
+		for(int i = 0; i < pixels.length; i++) {
+			pixels[i] = (((i % 300) * 255 / 300) << 16) | (((i / 300) * 255 / 200) << 8) | random.nextInt(256);
+		}
+		ForkJoinPool pool = new ForkJoinPool(3);
+		int[] chosen;
+		try {
+			chosen = new PaletteReducer(pool).choose(pixels, palette, 12);
+		} finally {
+			pool.shutdown();
+		}
+		assertArrayEquals(new PaletteReducer().choose(pixels, palette, 12), chosen);
+		assertEquals(chosen.length, 12);
+		
+		ImageToBeadConverter converter = new ImageToBeadConverter();
+		converter.setPaletteSize(12);
+		BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+		image.setRGB(0, 0, 300, 200, pixels, 0, 300);
+		CompactBeadMatrix design = converter.convert(image, beads, MatchingStrategy.KD_TREE);
+		assertEquals(design.getPalette().size(), 12);
+		assertTrue(design.toBeadMatrix().colorList.size() <= 12);
+	}
+	
+	@Test
+	public void testConversionCache() throws Exception {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		File directory = Files.createTempDirectory("cache").toFile();
+		File image = new File("painting-03.png");
+		ConversionCache cache = new ConversionCache(directory, 1 << 20);
+		ImageToBeadConverter converter = new ImageToBeadConverter();
+		converter.setCache(cache);
+		CompactBeadMatrix first = converter.convertFile(image, beads, MatchingStrategy.KD_TREE, 29, 29, BeadGridResampler.Filter.BOX);
+		CompactBeadMatrix second = converter.convertFile(image, beads, MatchingStrategy.KD_TREE, 29, 29, BeadGridResampler.Filter.BOX);
+		assertEquals(cache.getMisses(), 1);
+		assertEquals(cache.getMemoryHits(), 1);
+		assertArrayEquals(second.getCells(), first.getCells());
+		
+		// A new cache on the same directory finds the result on disk.
+		ConversionCache reopened = new ConversionCache(directory, 1 << 20);
+		converter.setCache(reopened);
+		CompactBeadMatrix third = converter.convertFile(image, beads, MatchingStrategy.KD_TREE, 29, 29, BeadGridResampler.Filter.BOX);
+		assertEquals(reopened.getDiskHits(), 1);
+		assertArrayEquals(third.getCells(), first.getCells());
+		assertEquals(third.getPalette().getKey(), first.getPalette().getKey());
+		assertEquals(third.toBeadMatrix().colorList, first.toBeadMatrix().colorList);
+		
+		// Other settings are a different result.
+		converter.setPaletteSize(5);
+		converter.convertFile(image, beads, MatchingStrategy.KD_TREE, 29, 29, BeadGridResampler.Filter.BOX);
+		assertEquals(reopened.getMisses(), 1);
+		
+		// The least recently used result is dropped when memory is full.
+		ConversionCache small = new ConversionCache(null, 2 * ConversionCache.sizeOf(first));
+		small.put("a", first);
+		small.put("b", first);
+		small.get("a");
+		small.put("c", first);
+		assertNotNull(small.get("a"));
+		assertNull(small.get("b"));
+		assertTrue(small.getMemoryUsed() <= 2 * ConversionCache.sizeOf(first));
+		
+		// A directory that cannot be written only loses the disk tier. The conversion still returns its result.
+		File blocked = File.createTempFile("cache", ".file");
+		blocked.deleteOnExit();
+		ConversionCache unwritable = new ConversionCache(blocked, 1 << 20);
+		converter.setCache(unwritable);
+		converter.setPaletteSize(0);
+		CompactBeadMatrix fourth = converter.convertFile(image, beads, MatchingStrategy.KD_TREE, 29, 29, BeadGridResampler.Filter.BOX);
+		assertArrayEquals(fourth.getCells(), first.getCells());
+		assertEquals(unwritable.getDiskErrors(), 1);
+		converter.convertFile(image, beads, MatchingStrategy.KD_TREE, 29, 29, BeadGridResampler.Filter.BOX);
+		assertEquals(unwritable.getMemoryHits(), 1);
+		
+		// The directory is trimmed to its limit, keeping the most recently used files.
+		File trimmed = Files.createTempDirectory("cache-trim").toFile();
+		new ConversionCache(trimmed, 0).put("key-a", first);
+		long fileSize = new File(trimmed, "key-a.bmx").length();
+		ConversionCache bounded = new ConversionCache(trimmed, 0, 2 * fileSize);
+		new File(trimmed, "key-a.bmx").setLastModified(System.currentTimeMillis() - 3000);
+		bounded.put("key-b", first);
+		new File(trimmed, "key-b.bmx").setLastModified(System.currentTimeMillis() - 2000);
+		bounded.put("key-c", first);
+		assertFalse(new File(trimmed, "key-a.bmx").exists());
+		assertTrue(new File(trimmed, "key-b.bmx").exists());
+		assertTrue(new File(trimmed, "key-c.bmx").exists());
+		new File(trimmed, "key-c.bmx").setLastModified(System.currentTimeMillis() - 1000);
+		assertNotNull(bounded.get("key-b"));
+		bounded.put("key-d", first);
+		assertTrue(new File(trimmed, "key-b.bmx").exists());
+		assertFalse(new File(trimmed, "key-c.bmx").exists());
+		
+		// Results are only read from a directory the user owns, and never through a link.
+		assertTrue(ConversionCache.isOwnedByUser(trimmed));
+		File link = new File(Files.createTempDirectory("cache-link").toFile(), "cache");
+		Files.createSymbolicLink(link.toPath(), trimmed.toPath());
+		ConversionCache linked = new ConversionCache(link, 0);
+		assertNull(linked.get("key-b"));
+		linked.put("key-e", first);
+		assertEquals(linked.getDiskErrors(), 1);
+		assertFalse(new File(trimmed, "key-e.bmx").exists());
+	}
+	
+	@Test
+	public void testBeadTemplateFile() throws Exception {
+		ColorLibrary cl = new ColorLibrary();
+		ArrayList<Bead> beads = new ArrayList<>();
+		cl.populateArrayAllColors(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		// Runs of random lengths, so some rows have long runs and some have many short ones.
+		Random random = new Random(16);
+		short[] cells = new short[70 * 45];
+		for(int i = 0; i < cells.length; ) {
+			int length = 1 + random.nextInt(i % 3 == 0 ? 40 : 3);
+			short index = (short) random.nextInt(palette.size());
+			for(int k = 0; k < length && i < cells.length; k++) {
+				cells[i++] = index;
+			}
+		}
+		CompactBeadMatrix design = new CompactBeadMatrix(palette, 70, 45, cells);
+		File file = File.createTempFile("design", ".beads");
+		file.deleteOnExit();
+		BeadTemplateFile.write(design, 29, file);
+		assertTrue(file.length() < cells.length * 2);
+		
+		CompactBeadMatrix read = BeadTemplateFile.read(file);
+		assertArrayEquals(read.getCells(), cells);
+		assertEquals(read.getPalette().getKey(), palette.getKey());
+		assertEquals(read.toBeadMatrix().colorList, design.toBeadMatrix().colorList);
+		try(BeadTemplateFile.Reader reader = BeadTemplateFile.open(file)) {
+			assertEquals(reader.getBoardRows(), 2);
+			assertEquals(reader.getBoardColumns(), 3);
+			for(int row = 0; row < 2; row++) {
+				for(int column = 0; column < 3; column++) {
+					CompactBeadMatrix board = reader.readBoard(row, column);
+					CompactBeadMatrix expected = design.copyRegion(column * 29, row * 29, board.getWidth(), board.getHeight());
+					assertArrayEquals(board.getCells(), expected.getCells());
+				}
+			}
+			assertEquals(reader.readBoard(1, 2).getWidth(), 12);
+			assertEquals(reader.readBoard(1, 2).getHeight(), 16);
+		}
+		
+		// A header whose boards do not cover the design is rejected.
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		int boardRowsAt = java.nio.ByteBuffer.wrap(bytes).getInt(8) - 8 * (2 * 3 + 1) - 8;
+		assertEquals(java.nio.ByteBuffer.wrap(bytes).getInt(boardRowsAt), 2);
+		for(int[] damage : new int[][] {{boardRowsAt, 1}, {boardRowsAt + 4, 4}}) {
+			byte[] damaged = bytes.clone();
+			java.nio.ByteBuffer.wrap(damaged).putInt(damage[0], damage[1]);
+			Files.write(file.toPath(), damaged);
+			try {
+				BeadTemplateFile.read(file);
+				fail("Damaged header was accepted.");
+			} catch (java.io.IOException e) {
+				assertTrue(e.getMessage().startsWith("Damaged bead template file"));
+			}
+		}
+		
+		java.io.ByteArrayOutputStream varint = new java.io.ByteArrayOutputStream();
+		BeadTemplateFile.writeVarint(varint, 300);
+		assertArrayEquals(varint.toByteArray(), new byte[] {(byte) 0xAC, 0x02});
+		assertEquals(BeadTemplateFile.readVarint(java.nio.ByteBuffer.wrap(varint.toByteArray())), 300);
+	}
+	
+	@Test
+	public void testPaletteRegistry() throws Exception {
+		File directory = Files.createTempDirectory("palettes").toFile();
+		File csv = new File(directory, "a.csv");
+		Files.write(csv.toPath(), ("brand,name,code,color\n"
+				+ "# Replaces the built-in white and adds a new color.\n"
+				+ "perler,White,01,#FFFFFF\n"
+				+ "Perler,\"Blue, Sky\",200,10,20,30\n").getBytes("UTF-8"));
+		File json = new File(directory, "b.json");
+		Files.write(json.toPath(), ("{\"brand\": \"Hama\", \"beads\": ["
+				+ "{\"name\": \"White\", \"code\": \"H01\", \"color\": \"#FEFEFE\"},"
+				+ "{\"name\": \"Black\", \"code\": \"H18\", \"rgb\": [0, 0, 0]}]}").getBytes("UTF-8"));
+		
+		PaletteRegistry registry = PaletteRegistry.load(directory);
+		assertEquals(registry.getBrands(), Arrays.asList("Hama", "Perler"));
+		PaletteRegistry.Palette perler = registry.get("PERLER");
+		assertEquals(perler.size(), PaletteRegistry.getDefault().get("Perler").size() + 1);
+		ArrayList<Bead> beads = perler.getBeads();
+		assertEquals(beads.get(0).getColor().getRGB() & 0xFFFFFF, 0xFFFFFF);
+		assertEquals(beads.get(beads.size() - 1).getName(), "Blue, Sky");
+		assertEquals(perler.getCodeMap().get("Blue, Sky"), "200");
+		// Beads handed out are copies.
+		beads.get(0).setCode("changed");
+		assertEquals(perler.getBeads().get(0).getCode(), "01");
+		assertEquals(registry.get("hama").getBeads().get(1).getColor().getRGB() & 0xFFFFFF, 0);
+		
+		// The compiled matchers give the same beads as matchers built from the beads.
+		BeadPalette palette = new BeadPalette(perler.getBeads());
+		BeadMatcher channel = perler.createMatcher(MatchingStrategy.CHANNEL_SEARCH);
+		BeadMatcher table = perler.createMatcher(MatchingStrategy.LOOKUP_TABLE);
+		ChannelSearchMatcher reference = new ChannelSearchMatcher(palette);
+		Random random = new Random(17);
+		for(int i = 0; i < 2000; i++) {
+			int rgb = random.nextInt(1 << 24);
+			assertEquals(channel.findClosestBead(rgb), reference.findClosestBead(rgb));
+			assertEquals(table.findClosestBead(rgb), palette.findNearest((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF));
+		}
+		// The default registry builds its lookup table when it is first asked for.
+		PaletteRegistry.Palette builtIn = PaletteRegistry.getDefault().get("Perler");
+		BeadMatcher builtInTable = builtIn.createMatcher(MatchingStrategy.LOOKUP_TABLE);
+		for(int i = 0; i < 500; i++) {
+			int rgb = random.nextInt(1 << 24);
+			assertEquals(builtInTable.findClosestBead(rgb), builtIn.getBeadPalette().findNearest((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF));
+		}
+		
+		// A snapshot is written once and mapped in while the files are unchanged.
+		File snapshot = new File(directory, "cache/palettes.snapshot");
+		PaletteRegistry.loadCached(snapshot, csv, json);
+		assertTrue(snapshot.isFile());
+		long written = snapshot.lastModified();
+		PaletteRegistry cached = PaletteRegistry.loadCached(snapshot, csv, json);
+		assertEquals(snapshot.lastModified(), written);
+		assertEquals(cached.getBrands(), registry.getBrands());
+		for(String brand : registry.getBrands()) {
+			assertEquals(cached.get(brand).getBeadPalette().getKey(), registry.get(brand).getBeadPalette().getKey());
+		}
+		BeadMatcher cachedChannel = cached.get("Perler").createMatcher(MatchingStrategy.CHANNEL_SEARCH);
+		for(int i = 0; i < 500; i++) {
+			int rgb = random.nextInt(1 << 24);
+			assertEquals(cachedChannel.findClosestBead(rgb), reference.findClosestBead(rgb));
+		}
+		
+		// Two folders sharing one snapshot each get their own palettes, even when the files are older than it.
+		File first = Files.createTempDirectory("palettes-a").toFile();
+		File second = Files.createTempDirectory("palettes-b").toFile();
+		Files.write(new File(first, "p.csv").toPath(), "Artkal,White,A01,#FFFFFF\n".getBytes("UTF-8"));
+		Files.write(new File(second, "p.csv").toPath(), "Hama,White,H01,#FFFFFF\n".getBytes("UTF-8"));
+		long old = System.currentTimeMillis() - 60000;
+		for(File folder : new File[] {first, second}) {
+			new File(folder, "p.csv").setLastModified(old);
+			folder.setLastModified(old);
+		}
+		File shared = new File(directory, "cache/shared.snapshot");
+		assertEquals(PaletteRegistry.loadCached(shared, first).getBrands(), Arrays.asList("Artkal", "Perler"));
+		assertEquals(PaletteRegistry.loadCached(shared, second).getBrands(), Arrays.asList("Hama", "Perler"));
+		assertEquals(PaletteRegistry.loadCached(shared, first).getBrands(), Arrays.asList("Artkal", "Perler"));
+		
+		Files.write(csv.toPath(), "Perler,White,01,#GGGGGG\n".getBytes("UTF-8"));
+		try {
+			PaletteRegistry.load(csv);
+			fail("Bad color was accepted.");
+		} catch (java.io.IOException e) {
+			assertTrue(e.getMessage().contains("line 1"));
+		}
+		try {
+			registry.get("Nabbi");
+			fail("Unknown brand was found.");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+	
+	@Test
+	public void testConversionMetrics() throws Exception {
+		ArrayList<Bead> beads = new ArrayList<>();
+		new ColorLibrary().populateArrayAllColors(beads);
+		BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+		Random random = new Random(19);
+		for(int y = 0; y < 30; y++) {
+			for(int x = 0; x < 40; x++) {
+				image.setRGB(x, y, random.nextInt(1 << 24));
+			}
+		}
+		File file = File.createTempFile("metrics", ".png");
+		file.deleteOnExit();
+		javax.imageio.ImageIO.write(image, "png", file);
+		ImageToBeadConverter converter = new ImageToBeadConverter();
+		
+		// Nothing is counted while metrics are off.
+		ConversionMetrics.setEnabled(false);
+		ConversionMetrics.reset();
+		converter.convertFile(file, beads, MatchingStrategy.CHANNEL_SEARCH, 0, 0, null);
+		assertEquals(ConversionMetrics.snapshot().getCount(ConversionMetrics.Stage.MATCH), 0);
+		assertEquals(ConversionMetrics.snapshot().getSearches(), 0);
+		// With nothing recording either, every stage gets the same idle timer.
+		assertSame(ConversionMetrics.start(ConversionMetrics.Stage.DECODE), ConversionMetrics.start(ConversionMetrics.Stage.MATCH));
+		
+		jdk.jfr.Recording recording = new jdk.jfr.Recording();
+		recording.enable("perlerbeads.ConversionStage");
+		recording.start();
+		try {
+			ConversionMetrics.setEnabled(true);
+			converter.convertFile(file, beads, MatchingStrategy.CHANNEL_SEARCH, 0, 0, null);
+			CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+			BeadMatrix matrix = converter.convertFile(file, beads, MatchingStrategy.KD_TREE, 29, 29, BeadGridResampler.Filter.BOX).toBeadMatrix();
+			File page = File.createTempFile("metrics", ".png");
+			page.deleteOnExit();
+			exporter.writePng(exporter.renderPage("Metrics", null, matrix, new ColorLibrary().createCodeMap(beads)), page);
+		} finally {
+			ConversionMetrics.setEnabled(false);
+			recording.stop();
+		}
+		
+		ConversionMetrics.Snapshot snapshot = ConversionMetrics.snapshot();
+		assertEquals(snapshot.getCount(ConversionMetrics.Stage.DECODE), 2);
+		assertEquals(snapshot.getCount(ConversionMetrics.Stage.MATCH), 2);
+		assertEquals(snapshot.getPixels(ConversionMetrics.Stage.MATCH), 40 * 30 + 29 * 22);
+		assertEquals(snapshot.getCount(ConversionMetrics.Stage.RENDER), 1);
+		assertEquals(snapshot.getCount(ConversionMetrics.Stage.ENCODE), 1);
+		assertEquals(snapshot.getCount(ConversionMetrics.Stage.REDUCE), 0);
+		assertTrue(snapshot.getPixelsPerSecond(ConversionMetrics.Stage.MATCH) > 0);
+		assertTrue(snapshot.getAllocatedBytes(ConversionMetrics.Stage.RENDER) > 0);
+		// Only the channel search is counted in the histogram, once per pixel.
+		assertEquals(snapshot.getSearches(), 40 * 30);
+		assertTrue(snapshot.getSearchStepsPercentile(0.5) <= snapshot.getSearchStepsPercentile(1));
+		assertTrue(snapshot.toString().contains("MATCH"));
+		
+		File dump = File.createTempFile("metrics", ".jfr");
+		dump.deleteOnExit();
+		recording.dump(dump.toPath());
+		recording.close();
+		Set<String> stages = new HashSet<>();
+		for(jdk.jfr.consumer.RecordedEvent event : jdk.jfr.consumer.RecordingFile.readAllEvents(dump.toPath())) {
+			if(event.getEventType().getName().equals("perlerbeads.ConversionStage")) {
+				stages.add(event.getString("stage"));
+			}
+		}
+		assertEquals(stages, new HashSet<>(Arrays.asList("DECODE", "MATCH", "RENDER", "ENCODE")));
+	}
+	
+	@Test
+	public void testTemplateService() throws Exception {
+		TemplateService service = new TemplateService(new java.net.InetSocketAddress("127.0.0.1", 0), PaletteRegistry.getDefault(), 
+				new ConversionCache(null, 16L << 20), 2);
+		service.setMaxUploadBytes(1 << 20);
+		service.start();
+		try {
+			java.net.http.HttpClient client = java.net.http.HttpClient.newHttpClient();
+			String base = "http://127.0.0.1:" + service.getAddress().getPort();
+			byte[] image = Files.readAllBytes(new File("painting-03.png").toPath());
+			
+			// Several uploads at once all get the same page, drawn as it would be locally.
+			java.util.List<java.util.concurrent.CompletableFuture<java.net.http.HttpResponse<byte[]>>> responses = new ArrayList<>();
+			for(int i = 0; i < 4; i++) {
+				responses.add(client.sendAsync(post(base + "/template", image), java.net.http.HttpResponse.BodyHandlers.ofByteArray()));
+			}
+			ImageToBeadConverter converter = new ImageToBeadConverter();
+			converter.setMatchUniqueColors(true);
+			ArrayList<Bead> beads = PaletteRegistry.getDefault().get("Perler").getBeads();
+			CompactBeadMatrix design = converter.convertFile(new File("painting-03.png"), beads, MatchingStrategy.CHANNEL_SEARCH, 29, 29, BeadGridResampler.Filter.BOX);
+			CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+			exporter.setIndexedColor(true);
+			BufferedImage expected = exporter.renderPage("Perler Bead Pattern", null, design.asBeadMatrix(), new ColorLibrary().createCodeMap(beads));
+			for(java.util.concurrent.CompletableFuture<java.net.http.HttpResponse<byte[]>> response : responses) {
+				assertEquals(response.get().statusCode(), 200);
+				assertEquals(response.get().headers().firstValue("Content-Type").get(), "image/png");
+				BufferedImage page = javax.imageio.ImageIO.read(new java.io.ByteArrayInputStream(response.get().body()));
+				assertArrayEquals(page.getRGB(0, 0, page.getWidth(), page.getHeight(), null, 0, page.getWidth()), 
+						expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null, 0, expected.getWidth()));
+			}
+			
+			java.net.http.HttpResponse<String> materials = client.send(post(base + "/materials?columns=60&rows=60&colors=6", image), 
+					java.net.http.HttpResponse.BodyHandlers.ofString());
+			assertEquals(materials.statusCode(), 200);
+			String[] lines = materials.body().split("\n");
+			assertEquals(lines[0], "Color,Code,Beads,Boards");
+			assertTrue(lines.length <= 8);
+			assertTrue(lines[lines.length - 1].startsWith("Total,,"));
+			
+			// Transparent pixels can be left as empty pegs on the page.
+			BufferedImage sprite = new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+			sprite.setRGB(4, 5, 0xFFFF0000);
+			java.io.ByteArrayOutputStream spriteBytes = new java.io.ByteArrayOutputStream();
+			javax.imageio.ImageIO.write(sprite, "png", spriteBytes);
+			java.net.http.HttpResponse<byte[]> sparse = client.send(post(base + "/template?transparent=true", spriteBytes.toByteArray()), 
+					java.net.http.HttpResponse.BodyHandlers.ofByteArray());
+			assertEquals(sparse.statusCode(), 200);
+			BufferedImage sparsePage = javax.imageio.ImageIO.read(new java.io.ByteArrayInputStream(sparse.body()));
+			BufferedImage expectedSparse = exporter.renderPage("Perler Bead Pattern", null, 
+					converter.convertSparse(sprite, beads, MatchingStrategy.CHANNEL_SEARCH).asBeadMatrix(), new ColorLibrary().createCodeMap(beads));
+			assertArrayEquals(sparsePage.getRGB(0, 0, sparsePage.getWidth(), sparsePage.getHeight(), null, 0, sparsePage.getWidth()), 
+					expectedSparse.getRGB(0, 0, expectedSparse.getWidth(), expectedSparse.getHeight(), null, 0, expectedSparse.getWidth()));
+			assertEquals(client.send(post(base + "/materials?transparent=true", spriteBytes.toByteArray()), java.net.http.HttpResponse.BodyHandlers.ofString()).statusCode(), 400);
+			
+			assertEquals(client.send(post(base + "/template?columns=100", image), java.net.http.HttpResponse.BodyHandlers.ofString()).statusCode(), 400);
+			assertEquals(client.send(post(base + "/template?brand=Nabbi", image), java.net.http.HttpResponse.BodyHandlers.ofString()).statusCode(), 400);
+			assertEquals(client.send(post(base + "/template", new byte[] {1, 2, 3}), java.net.http.HttpResponse.BodyHandlers.ofString()).statusCode(), 415);
+			assertEquals(client.send(java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + "/template")).GET().build(), 
+					java.net.http.HttpResponse.BodyHandlers.ofString()).statusCode(), 405);
+			assertTrue(client.send(java.net.http.HttpRequest.newBuilder(java.net.URI.create(base + "/palettes")).GET().build(), 
+					java.net.http.HttpResponse.BodyHandlers.ofString()).body().contains("Perler,"));
+			
+			// Slow uploads only take upload slots, two per conversion slot, so conversions still run while they arrive. 
+			// Once every upload slot is taken, the rest of a burst is turned away before its uploads are read, and the 
+			// slow uploads still finish.
+			java.net.Socket[] slow = new java.net.Socket[4];
+			long deadline = System.currentTimeMillis() + 10000;
+			try {
+				for(int i = 0; i < slow.length; i++) {
+					slow[i] = startUpload(service, image);
+					if(i == 1) {
+						while(service.uploads.availablePermits() > 2 && System.currentTimeMillis() < deadline) {
+							Thread.sleep(10);
+						}
+						assertEquals(service.uploads.availablePermits(), 2);
+						assertEquals(service.permits.availablePermits(), 2);
+						assertEquals(client.send(post(base + "/template", image), java.net.http.HttpResponse.BodyHandlers.ofByteArray()).statusCode(), 200);
+					}
+				}
+				while(service.uploads.availablePermits() > 0 && System.currentTimeMillis() < deadline) {
+					Thread.sleep(10);
+				}
+				assertEquals(service.uploads.availablePermits(), 0);
+				service.setQueueTimeoutMillis(0);
+				responses.clear();
+				for(int i = 0; i < 6; i++) {
+					responses.add(client.sendAsync(post(base + "/template", image), java.net.http.HttpResponse.BodyHandlers.ofByteArray()));
+				}
+				for(java.util.concurrent.CompletableFuture<java.net.http.HttpResponse<byte[]>> response : responses) {
+					assertEquals(response.get().statusCode(), 503);
+					assertEquals(response.get().headers().firstValue("Retry-After").get(), "1");
+				}
+				service.setQueueTimeoutMillis(10000);
+				for(java.net.Socket socket : slow) {
+					socket.getOutputStream().write(image, image.length / 2, image.length - image.length / 2);
+					socket.getOutputStream().flush();
+				}
+				for(java.net.Socket socket : slow) {
+					assertEquals(statusLine(socket), "HTTP/1.1 200 OK");
+				}
+			} finally {
+				for(java.net.Socket socket : slow) {
+					if(socket != null) {
+						socket.close();
+					}
+				}
+			}
+			
+			// An upload still arriving after the upload timeout is refused, and so is one that says it is too large.
+			service.setUploadTimeoutMillis(200);
+			try(java.net.Socket late = startUpload(service, image)) {
+				Thread.sleep(400);
+				late.getOutputStream().write(image, image.length / 2, image.length - image.length / 2);
+				late.getOutputStream().flush();
+				assertTrue(statusLine(late).startsWith("HTTP/1.1 408"));
+			}
+			try(java.net.Socket large = new java.net.Socket("127.0.0.1", service.getAddress().getPort())) {
+				large.getOutputStream().write(("POST /template HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: " + ((1 << 20) + 1) 
+						+ "\r\n\r\n").getBytes("US-ASCII"));
+				large.getOutputStream().flush();
+				assertTrue(statusLine(large).startsWith("HTTP/1.1 413"));
+			}
+			
+			// The slots are given back once the responses are sent.
+			deadline = System.currentTimeMillis() + 10000;
+			while((service.uploads.availablePermits() < 4 || service.permits.availablePermits() < 2) && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(service.uploads.availablePermits(), 4);
+			assertEquals(service.permits.availablePermits(), 2);
+		} finally {
+			service.stop(0);
+		}
+	}
+	
+	private static java.net.http.HttpRequest post(String uri, byte[] body) {
+		return java.net.http.HttpRequest.newBuilder(java.net.URI.create(uri)).POST(java.net.http.HttpRequest.BodyPublishers.ofByteArray(body)).build();
+	}
+	
+	/**
+	 * Sends the headers and the first half of an image upload to /template, leaving the rest to the caller.
+	 */
+	private static java.net.Socket startUpload(TemplateService service, byte[] image) throws java.io.IOException {
+		java.net.Socket socket = new java.net.Socket("127.0.0.1", service.getAddress().getPort());
+		socket.getOutputStream().write(("POST /template HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: " + image.length 
+				+ "\r\n\r\n").getBytes("US-ASCII"));
+		socket.getOutputStream().write(image, 0, image.length / 2);
+		socket.getOutputStream().flush();
+		return socket;
+	}
+	
+	private static String statusLine(java.net.Socket socket) throws java.io.IOException {
+		return new java.io.BufferedReader(new java.io.InputStreamReader(socket.getInputStream(), "US-ASCII")).readLine();
+	}
+	
+	@Test
+	public void testBatchConverter() throws Exception {
+		File input = Files.createTempDirectory("batch-in").toFile();
+		File output = Files.createTempDirectory("batch-out").toFile();
+		Random random = new Random(21);
+		String[] names = {"a.png", "b.png", "c.png", "sub/a.png", "d.bmp"};
+		new File(input, "sub").mkdirs();
+		for(String name : names) {
+			BufferedImage image = new BufferedImage(20 + random.nextInt(40), 20 + random.nextInt(40), BufferedImage.TYPE_INT_RGB);
+			for(int y = 0; y < image.getHeight(); y++) {
+				for(int x = 0; x < image.getWidth(); x++) {
+					image.setRGB(x, y, random.nextInt(1 << 24));
+				}
+			}
+			javax.imageio.ImageIO.write(image, name.substring(name.indexOf('.') + 1), new File(input, name));
+		}
+		Files.write(new File(input, "broken.png").toPath(), new byte[] {1, 2, 3});
+		File manifest = new File(input, "manifest.txt");
+		Files.write(manifest.toPath(), "# Two images named a.png, and one that cannot be read.\na.png\nb.png\nsub/a.png\n\nbroken.png\nd.bmp\nc.png\n".getBytes("UTF-8"));
+		
+		// Directories list image files only, in name order.
+		java.util.List<File> listed = BatchConverter.listInputs(input);
+		assertEquals(listed.size(), 5);
+		assertEquals(listed.get(0).getName(), "a.png");
+		java.util.List<File> inputs = BatchConverter.listInputs(manifest);
+		assertEquals(BatchConverter.outputNames(inputs), Arrays.asList("a.png", "b.png", "a-2.png", "broken.png", "d.png", "c.png"));
+		
+		ArrayList<Bead> beads = new ArrayList<>();
+		new ColorLibrary().populateArrayAllColors(beads);
+		Map<String,String> codeMap = new ColorLibrary().createCodeMap(beads);
+		BatchConverter batch = new BatchConverter(beads, codeMap);
+		batch.setWorkers(BatchConverter.Stage.DECODE, 2);
+		batch.setWorkers(BatchConverter.Stage.MATCH, 3);
+		batch.setWorkers(BatchConverter.Stage.RENDER, 2);
+		batch.setWorkers(BatchConverter.Stage.ENCODE, 1);
+		batch.setQueueCapacity(1);
+		BatchConverter.Summary summary = batch.run(inputs, output);
+		assertEquals(summary.getInputs(), 6);
+		assertEquals(summary.getWritten().size(), 5);
+		assertEquals(summary.getFailures().size(), 1);
+		assertEquals(summary.getFailures().get(0).getSource().getName(), "broken.png");
+		assertEquals(summary.getFailures().get(0).getStage(), BatchConverter.Stage.DECODE);
+		assertFalse(new File(output, "broken.png").exists());
+		assertTrue(summary.getImagesPerSecond() > 0);
+		assertTrue(new String(Files.readAllBytes(new File(output, BatchConverter.SUMMARY_FILE).toPath()), "UTF-8").contains("FAILED"));
+		
+		// Each page is the page a single conversion gives.
+		ImageToBeadConverter converter = new ImageToBeadConverter();
+		converter.setMatchUniqueColors(true);
+		CompactBeadMatrix design = converter.convertFile(new File(input, "sub/a.png"), beads, MatchingStrategy.CHANNEL_SEARCH, 29, 29, BeadGridResampler.Filter.BOX);
+		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+		exporter.setIndexedColor(true);
+		BufferedImage expected = exporter.renderPage("Perler Bead Pattern for a.png", null, design.asBeadMatrix(), codeMap);
+		BufferedImage page = javax.imageio.ImageIO.read(new File(output, "a-2.png"));
+		assertArrayEquals(page.getRGB(0, 0, page.getWidth(), page.getHeight(), null, 0, page.getWidth()), 
+				expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null, 0, expected.getWidth()));
+		
+		// An Error while drawing is recorded for each image instead of stopping the drawing stage and leaving the 
+		// batch waiting on a full queue.
+		Map<String,String> failingMap = new HashMap<String,String>(codeMap) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			public String get(Object key) {
+				throw new OutOfMemoryError("Drawing failed");
+			}
+		};
+		BatchConverter failing = new BatchConverter(beads, failingMap);
+		failing.setWorkers(BatchConverter.Stage.RENDER, 1);
+		failing.setQueueCapacity(1);
+		java.util.concurrent.ExecutorService runner = java.util.concurrent.Executors.newSingleThreadExecutor();
+		try {
+			summary = runner.submit(() -> failing.run(inputs, Files.createTempDirectory("batch-fail").toFile())).get(60, java.util.concurrent.TimeUnit.SECONDS);
+		} finally {
+			runner.shutdownNow();
+		}
+		assertEquals(summary.getWritten().size(), 0);
+		assertEquals(summary.getFailures().size(), 6);
+		for(BatchConverter.Failure failure : summary.getFailures()) {
+			if(!failure.getSource().getName().equals("broken.png")) {
+				assertEquals(failure.getStage(), BatchConverter.Stage.RENDER);
+				assertEquals(failure.getMessage(), "Drawing failed");
+			}
+		}
+	}
+	
+	@Test
+	public void testEditableTemplate() {
+		ArrayList<Bead> beads = new ArrayList<>();
+		ColorLibrary cl = new ColorLibrary();
+		cl.populateArrayAllColors(beads);
+		Map<String,String> codeMap = cl.createCodeMap(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		Random random = new Random(22);
+		BufferedImage image = new BufferedImage(29, 29, BufferedImage.TYPE_INT_RGB);
+		for(int y = 0; y < 29; y++) {
+			for(int x = 0; x < 29; x++) {
+				image.setRGB(x, y, random.nextInt(1 << 24));
+			}
+		}
+		
+		for(boolean indexed : new boolean[] {false, true}) {
+			CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+			exporter.setIndexedColor(indexed);
+			BufferedImage source = new BufferedImage(29, 29, BufferedImage.TYPE_INT_RGB);
+			source.setData(image.getData());
+			EditableTemplate template = new EditableTemplate(source, palette, MatchingStrategy.CHANNEL_SEARCH, exporter, "Edit", codeMap);
+			for(int edit = 0; edit < 6; edit++) {
+				BufferedImage page = template.getPage();
+				if(edit % 2 == 0) {
+					// Fill a rectangle with one color, which drops some colors from the list.
+					int width = 1 + random.nextInt(8), height = 1 + random.nextInt(8);
+					int x = random.nextInt(29 - width + 1), y = random.nextInt(29 - height + 1);
+					int[] rgb = new int[width * height];
+					Arrays.fill(rgb, beads.get(random.nextInt(beads.size())).getColor().getRGB() & 0xFFFFFF);
+					template.update(x, y, width, height, rgb);
+					for(int i = 0; i < rgb.length; i++) {
+						source.setRGB(x + i % width, y + i / width, rgb[i]);
+					}
+				} else {
+					int[] positions = new int[10];
+					int[] rgb = new int[10];
+					for(int i = 0; i < 10; i++) {
+						positions[i] = random.nextInt(29 * 29);
+						rgb[i] = random.nextInt(1 << 24);
+						source.setRGB(positions[i] % 29, positions[i] / 29, rgb[i]);
+					}
+					template.update(positions, rgb);
+				}
+				// The page is patched, even when an edit brings in a color that was not on an indexed page.
+				assertSame(template.getPage(), page);
+				
+				// The patched design and page are the same as converting and rendering the edited image again.
+				CompactBeadMatrix expected = new ImageToBeadConverter().convert(source, palette, MatchingStrategy.CHANNEL_SEARCH.createMatcher(palette));
+				assertArrayEquals(template.getDesign().getCells(), expected.getCells());
+				assertEquals(template.getMatrix().colorList, expected.createColorList());
+				BufferedImage rendered = exporter.renderPage("Edit", null, template.getMatrix(), codeMap);
+				page = template.getPage();
+				assertArrayEquals(page.getRGB(0, 0, page.getWidth(), page.getHeight(), null, 0, page.getWidth()), 
+						rendered.getRGB(0, 0, rendered.getWidth(), rendered.getHeight(), null, 0, rendered.getWidth()));
+			}
+		}
+		
+		// A page of one color gets a second color from an edit.
+		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+		exporter.setIndexedColor(true);
+		BufferedImage plain = new BufferedImage(29, 29, BufferedImage.TYPE_INT_RGB);
+		int white = palette.getRGB(palette.findNearest(255, 255, 255));
+		int red = palette.getRGB(palette.findNearest(255, 0, 0));
+		for(int y = 0; y < 29; y++) {
+			for(int x = 0; x < 29; x++) {
+				plain.setRGB(x, y, white);
+			}
+		}
+		EditableTemplate template = new EditableTemplate(plain, palette, MatchingStrategy.KD_TREE, exporter, "Edit", codeMap);
+		BufferedImage page = template.getPage();
+		assertEquals(template.update(10, 10, 3, 3, new int[] {red, red, red, red, red, red, red, red, red}), 9);
+		assertSame(template.getPage(), page);
+		for(int y = 10; y < 13; y++) {
+			for(int x = 10; x < 13; x++) {
+				plain.setRGB(x, y, red);
+			}
+		}
+		CompactBeadMatrix expected = new ImageToBeadConverter().convert(plain, palette, MatchingStrategy.KD_TREE.createMatcher(palette));
+		BufferedImage rendered = exporter.renderPage("Edit", null, expected.asBeadMatrix(), codeMap);
+		assertArrayEquals(page.getRGB(0, 0, page.getWidth(), page.getHeight(), null, 0, page.getWidth()), 
+				rendered.getRGB(0, 0, rendered.getWidth(), rendered.getHeight(), null, 0, rendered.getWidth()));
+	}
+	
+	@Test
+	public void testBeadCandidates() {
+		ArrayList<Bead> all = new ArrayList<>();
+		new ColorLibrary().populateArrayAllColors(all);
+		BeadPalette palette = new BeadPalette(all);
+		Random random = new Random(23);
+		BufferedImage image = new BufferedImage(40, 30, BufferedImage.TYPE_INT_RGB);
+		for(int y = 0; y < 30; y++) {
+			for(int x = 0; x < 40; x++) {
+				// Some exact bead colors, so beads at the same distance are tried too.
+				image.setRGB(x, y, random.nextInt(4) == 0 ? all.get(random.nextInt(all.size())).getColor().getRGB() : random.nextInt(1 << 24));
+			}
+		}
+		
+		ArrayList<ArrayList<Bead>> choices = new ArrayList<>();
+		ArrayList<Bead> fun = new ArrayList<>();
+		new ColorLibrary().populateArrayFunColors(fun);
+		choices.add(fun);
+		ArrayList<Bead> outOfSome = new ArrayList<>(all);
+		Collections.shuffle(outOfSome, random);
+		choices.add(new ArrayList<>(outOfSome.subList(0, 40)));
+		choices.add(new ArrayList<>(all.subList(0, 6)));
+		choices.add(all);
+		for(MatchingStrategy strategy : MatchingStrategy.values()) {
+			BeadCandidates candidates = new BeadCandidates(image, palette, strategy, 4);
+			for(ArrayList<Bead> beads : choices) {
+				CompactBeadMatrix design = candidates.select(beads);
+				BeadPalette chosen = new BeadPalette(beads);
+				CompactBeadMatrix expected = new ImageToBeadConverter().convert(image, chosen, strategy.createMatcher(chosen));
+				assertArrayEquals(design.getCells(), expected.getCells());
+				assertEquals(design.createColorList(), expected.createColorList());
+				// Only colors whose listed beads were all removed are searched for.
+				if(strategy == MatchingStrategy.CHANNEL_SEARCH) {
+					assertEquals(candidates.getSearchCount(), candidates.getColorCount());
+				} else if(beads == all) {
+					assertEquals(candidates.getSearchCount(), 0);
+				} else if(beads.size() == 6) {
+					assertTrue(candidates.getSearchCount() > 0);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testNearestColorMatcher() {
+		Random random = new Random(24);
+		for(int size : new int[] {1, 2, 7, 8, 9, 16, 17, 53, 70, 1024}) {
+			ArrayList<Bead> beads = new ArrayList<>();
+			for(int i = 0; i < size; i++) {
+				// Repeat some colors so that equally close beads are compared too.
+				Color color = i > 0 && random.nextInt(5) == 0 ? beads.get(random.nextInt(i)).getColor() : new Color(random.nextInt(1 << 24));
+				beads.add(new Bead("Color " + i, "C" + i, color));
+			}
+			BeadPalette palette = new BeadPalette(beads);
+			BeadMatcher scalar = new NearestColorMatcher(palette);
+			BeadMatcher fastest = MatchingStrategy.VECTOR.createMatcher(palette);
+			assertEquals(fastest.getClass().getName().equals(NearestColorMatcher.VECTOR_MATCHER), NearestColorMatcher.isVectorized());
+			for(int i = 0; i < 2000; i++) {
+				int rgb = i % 4 == 0 ? palette.getRGB(random.nextInt(size)) : random.nextInt(1 << 24);
+				int expected = palette.findNearest((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+				assertEquals(scalar.findClosestBead(rgb), expected);
+				assertEquals(fastest.findClosestBead(rgb), expected);
+			}
+		}
+	}
+	
+	@Test
+	public void testSparseBeadMatrix() {
+		ArrayList<Bead> beads = new ArrayList<>();
+		ColorLibrary cl = new ColorLibrary();
+		cl.populateArrayAllColors(beads);
+		Map<String,String> codeMap = cl.createCodeMap(beads);
+		BeadPalette palette = new BeadPalette(beads);
+		BeadMatcher matcher = MatchingStrategy.LOOKUP_TABLE.createMatcher(palette);
+		// A sprite: a colored disc on a transparent background, with a half transparent edge.
+		Random random = new Random(25);
+		BufferedImage image = new BufferedImage(29, 29, BufferedImage.TYPE_INT_ARGB);
+		for(int y = 0; y < 29; y++) {
+			for(int x = 0; x < 29; x++) {
+				int distance = (x - 14) * (x - 14) + (y - 14) * (y - 14);
+				int alpha = distance < 80 ? 0xFF : distance < 120 ? 0x60 : 0;
+				image.setRGB(x, y, (alpha << 24) | random.nextInt(1 << 24));
+			}
+		}
+		int[] pixels = ImagePixelReader.readPixels(image);
+		CompactBeadMatrix full = new ImageToBeadConverter().convert(pixels, 29, 29, palette, matcher);
+		
+		for(boolean unique : new boolean[] {false, true}) {
+			ImageToBeadConverter converter = new ImageToBeadConverter();
+			converter.setMatchUniqueColors(unique);
+			SparseBeadMatrix sparse = converter.convertSparse(pixels, 29, 29, palette, matcher);
+			Map<String, Integer> expected = new HashMap<>();
+			int filled = 0;
+			for(int y = 0; y < 29; y++) {
+				for(int x = 0; x < 29; x++) {
+					if((pixels[y * 29 + x] >>> 24) < 128) {
+						assertEquals(sparse.getIndex(y, x), -1);
+						assertNull(sparse.getBead(y, x));
+					} else {
+						assertEquals(sparse.getIndex(y, x), full.getIndex(y, x));
+						expected.merge(full.getBead(y, x).getName(), 1, Integer::sum);
+						filled++;
+					}
+				}
+			}
+			assertEquals(sparse.getBeadCount(), filled);
+			assertEquals(sparse.createColorList(), expected);
+			assertEquals(sparse.asBeadMatrix().colorList, expected);
+		}
+		
+		// Empty pegs are left blank on the page, and the other beads are drawn as before.
+		ImageToBeadConverter converter = new ImageToBeadConverter();
+		converter.setAlphaThreshold(1);
+		SparseBeadMatrix sparse = converter.convertSparse(pixels, 29, 29, palette, matcher);
+		assertEquals(sparse.getIndex(14, 14 + 9), full.getIndex(14, 14 + 9));
+		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+		BufferedImage page = exporter.renderPage("Sprite", null, sparse.asBeadMatrix(), codeMap);
+		int startX = exporter.gridX(29);
+		for(int y = 0; y < 29; y++) {
+			for(int x = 0; x < 29; x++) {
+				int rgb = page.getRGB(startX + exporter.DIAMETER * x + exporter.RADIUS, exporter.GRID_Y + exporter.DIAMETER * y + 8) & 0xFFFFFF;
+				assertEquals(rgb, sparse.getIndex(y, x) < 0 ? 0xFFFFFF : palette.getRGB(sparse.getIndex(y, x)));
+			}
+		}
+		
+		// A solid background color can be left empty instead.
+		BufferedImage opaque = new BufferedImage(3, 2, BufferedImage.TYPE_INT_RGB);
+		opaque.setRGB(1, 0, 0xFF0000);
+		opaque.setRGB(2, 1, 0x00FF00);
+		converter.setBackgroundColor(Color.BLACK);
+		sparse = converter.convertSparse(opaque, beads, MatchingStrategy.KD_TREE);
+		assertEquals(sparse.getBeadCount(), 2);
+		assertEquals(sparse.getIndex(0, 0), -1);
+		assertEquals(sparse.getIndex(0, 1), palette.findNearest(0xFF, 0, 0));
+		assertEquals(sparse.getIndex(1, 2), palette.findNearest(0, 0xFF, 0));
+		
+		// An image with no beads at all still converts when the palette is limited.
+		for(boolean unique : new boolean[] {false, true}) {
+			converter = new ImageToBeadConverter();
+			converter.setMatchUniqueColors(unique);
+			converter.setPaletteSize(5);
+			sparse = converter.convertSparse(new BufferedImage(5, 4, BufferedImage.TYPE_INT_ARGB), beads, MatchingStrategy.CHANNEL_SEARCH);
+			assertEquals(sparse.getBeadCount(), 0);
+			assertTrue(sparse.createColorList().isEmpty());
+		}
+	}
+}
@@ -0,0 +1,65 @@
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Nearest color by RGB distance, worked out for as many palette colors at once as the processor's vector registers
+ * hold. The palette is kept as three arrays of channel values, padded to a whole number of vectors with colors too
+ * far away to ever be picked. Each lane keeps the closest color it has seen, and the lanes are combined at the end,
+ * taking the lowest palette index when colors are equally close, the same as BeadPalette.findNearest.
+ *
+ * This class uses the incubating Vector API, so it is compiled and run with --add-modules jdk.incubator.vector.
+ * NearestColorMatcher loads it by name and uses its own scalar loop when the module is not there.
+ */
+class VectorNearestMatcher implements BeadMatcher {
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+	// Channel value of the padding colors. Their distance from any pixel is larger than any real distance.
+	private static final int FAR = 1 << 12;
+	
+	private final int[] red;
+	private final int[] green;
+	private final int[] blue;
+	
+	/**
+	 * Constructor for VectorNearestMatcher. Splits the palette into channel arrays.
+	 * @param palette The bead colors to match against.
+	 */
+	public VectorNearestMatcher(BeadPalette palette) {
+		if(palette.size() == 0) {
+			throw new IllegalArgumentException("Palette must contain at least one color.");
+		}
+		int length = SPECIES.loopBound(palette.size() + SPECIES.length() - 1);
+		red = new int[length];
+		green = new int[length];
+		blue = new int[length];
+		for(int i = 0; i < length; i++) {
+			int rgb = palette.getRGB(Math.min(i, palette.size() - 1));
+			red[i] = i < palette.size() ? (rgb >> 16) & 0xFF : FAR;
+			green[i] = i < palette.size() ? (rgb >> 8) & 0xFF : FAR;
+			blue[i] = i < palette.size() ? rgb & 0xFF : FAR;
+		}
+	}
+	
+	public int findClosestBead(int rgb) {
+		IntVector pixelRed = IntVector.broadcast(SPECIES, (rgb >> 16) & 0xFF);
+		IntVector pixelGreen = IntVector.broadcast(SPECIES, (rgb >> 8) & 0xFF);
+		IntVector pixelBlue = IntVector.broadcast(SPECIES, rgb & 0xFF);
+		IntVector lane = IntVector.zero(SPECIES).addIndex(1);
+		IntVector bestDistance = IntVector.broadcast(SPECIES, Integer.MAX_VALUE);
+		IntVector bestIndex = IntVector.zero(SPECIES);
+		for(int i = 0; i < red.length; i += SPECIES.length()) {
+			IntVector dr = IntVector.fromArray(SPECIES, red, i).sub(pixelRed);
+			IntVector dg = IntVector.fromArray(SPECIES, green, i).sub(pixelGreen);
+			IntVector db = IntVector.fromArray(SPECIES, blue, i).sub(pixelBlue);
+			IntVector distance = dr.mul(dr).add(dg.mul(dg)).add(db.mul(db));
+			// Strictly closer only, so each lane keeps the first of equally close colors.
+			VectorMask<Integer> closer = distance.compare(VectorOperators.LT, bestDistance);
+			bestDistance = bestDistance.blend(distance, closer);
+			bestIndex = bestIndex.blend(lane.add(i), closer);
+		}
+		int best = bestDistance.reduceLanes(VectorOperators.MIN);
+		VectorMask<Integer> closest = bestDistance.compare(VectorOperators.EQ, best);
+		return IntVector.broadcast(SPECIES, Integer.MAX_VALUE).blend(bestIndex, closest).reduceLanes(VectorOperators.MIN);
+	}
+}
@@ -0,0 +1,236 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.function.IntSupplier;
+import javax.imageio.ImageIO;
+
+/**
+ * Builds the work measured by the JMH benchmarks. The program's classes have no package, and classes without a 
+ * package cannot be named from a package, while JMH needs its benchmarks to be in one. So the work is set up here, 
+ * next to the program's classes, and handed to the benchmarks as plain Callables and IntSuppliers.
+ */
+public final class Workloads {
+	private Workloads() {
+	}
+	
+	/**
+	 * Creates an image of random blocks. Each pixel takes one of the given number of random colors, in blocks of 
+	 * 4x4 pixels so the image looks more like a picture than noise.
+	 * @param size Width and height in pixels.
+	 * @param colors Number of distinct colors.
+	 * @param seed Seed for the random colors.
+	 * @return Returns the image.
+	 */
+	public static BufferedImage syntheticImage(int size, int colors, long seed) {
+		Random random = new Random(seed);
+		int[] palette = new int[colors];
+		for(int i = 0; i < colors; i++) {
+			palette[i] = random.nextInt(0x1000000);
+		}
+		BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+		for(int y = 0; y < size; y += 4) {
+			for(int x = 0; x < size; x += 4) {
+				int rgb = palette[random.nextInt(colors)];
+				for(int dy = y; dy < Math.min(y + 4, size); dy++) {
+					for(int dx = x; dx < Math.min(x + 4, size); dx++) {
+						image.setRGB(dx, dy, rgb);
+					}
+				}
+			}
+		}
+		return image;
+	}
+	
+	/**
+	 * Creates a palette of the given size. The Perler colors come first and random colors fill the rest.
+	 */
+	static ArrayList<Bead> palette(int size) {
+		ArrayList<Bead> palette = new ArrayList<>();
+		new ColorLibrary().populateArrayAllColors(palette);
+		Random random = new Random(size);
+		while(palette.size() < size) {
+			palette.add(new Bead("Random " + palette.size(), "R" + palette.size(), new Color(random.nextInt(0x1000000))));
+		}
+		while(palette.size() > size) {
+			palette.remove(palette.size() - 1);
+		}
+		return palette;
+	}
+	
+	/**
+	 * Writes a synthetic image to a temporary PNG file and returns a task that converts it with processImage.
+	 * @param imageSize Width and height of the image in pixels.
+	 * @param imageColors Number of distinct colors in the image.
+	 * @param paletteSize Number of bead colors.
+	 * @param strategy Name of the MatchingStrategy.
+	 * @return Returns the task. Each call reads and converts the file once.
+	 * @throws IOException If the file cannot be written.
+	 */
+	public static Callable<Object> processImage(int imageSize, int imageColors, int paletteSize, String strategy) throws IOException {
+		File file = File.createTempFile("benchmark", ".png");
+		file.deleteOnExit();
+		ImageIO.write(syntheticImage(imageSize, imageColors, imageSize * 31L + imageColors), "png", file);
+		ArrayList<Bead> beads = palette(paletteSize);
+		MatchingStrategy matchingStrategy = MatchingStrategy.valueOf(strategy);
+		ImageToBeadConverter converter = new ImageToBeadConverter();
+		String fileName = file.getPath();
+		return () -> converter.processImage(fileName, beads, matchingStrategy);
+	}
+	
+	/**
+	 * Returns a task that matches a fixed set of random pixels against a palette. Palettes larger than the Perler 
+	 * library are filled with random colors.
+	 * @param paletteSize Number of bead colors.
+	 * @param strategy Name of the MatchingStrategy, or FULL_SCAN for a plain scan of every bead, for reference.
+	 * @param pixelCount Number of pixels matched by each call.
+	 * @return Returns the task. Each call returns the sum of the matched palette indexes.
+	 */
+	public static IntSupplier matchPixels(int paletteSize, String strategy, int pixelCount) {
+		BeadPalette palette = new BeadPalette(palette(paletteSize));
+		BeadMatcher matcher = strategy.equals("FULL_SCAN") 
+				? rgb -> palette.findNearest((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF) 
+				: MatchingStrategy.valueOf(strategy).createMatcher(palette);
+		int[] pixels = new int[pixelCount];
+		Random random = new Random(7);
+		for(int i = 0; i < pixels.length; i++) {
+			pixels[i] = random.nextInt(0x1000000);
+		}
+		return () -> {
+			int sum = 0;
+			for(int pixel : pixels) {
+				sum += matcher.findClosestBead(pixel);
+			}
+			return sum;
+		};
+	}
+	
+	/**
+	 * Returns a task that builds a matcher for a palette. The channel search and the lookup table keep the matchers
+	 * they made for reuse, so those two are built with their constructors to leave the cache out.
+	 * @param paletteSize Number of bead colors.
+	 * @param strategy Name of the MatchingStrategy.
+	 * @return Returns the task. Each call returns a new matcher.
+	 */
+	public static Callable<Object> buildMatcher(int paletteSize, String strategy) {
+		BeadPalette palette = new BeadPalette(palette(paletteSize));
+		MatchingStrategy matchingStrategy = MatchingStrategy.valueOf(strategy);
+		switch(matchingStrategy) {
+		case CHANNEL_SEARCH:
+			return () -> new ChannelSearchMatcher(palette);
+		case LOOKUP_TABLE:
+			return () -> new LookupTableMatcher(palette);
+		default:
+			return () -> matchingStrategy.createMatcher(palette);
+		}
+	}
+	
+	/**
+	 * Returns a task that runs the channel search's bookkeeping on its own: beads are flagged on the red, green and 
+	 * blue channels with addBeadAsPossibleMatch until one bead is flagged on all three, as the search does while 
+	 * walking outward through the sorted palette. Red and green visit the beads in order and blue in reverse, so the 
+	 * match is found after about half the depth.
+	 * @param depth Number of beads on each channel's walk.
+	 * @return Returns the task. Each call returns the number of beads flagged before the match.
+	 */
+	public static IntSupplier colorMatchSearch(int depth) {
+		ArrayList<Bead> beads = palette(depth + 1);
+		String[] codes = new String[beads.size()];
+		for(int i = 0; i < codes.length; i++) {
+			codes[i] = beads.get(i).getCode();
+		}
+		ColorMatch masterMatch = new ColorMatch();
+		return () -> {
+			Map<String,ColorMatch> colorMap = new HashMap<>();
+			for(int step = 0; step <= depth; step++) {
+				if(masterMatch.addBeadAsPossibleMatch(colorMap, codes[step], 0)
+						|| masterMatch.addBeadAsPossibleMatch(colorMap, codes[step], 1)
+						|| masterMatch.addBeadAsPossibleMatch(colorMap, codes[depth - step], 2)) {
+					return colorMap.size();
+				}
+			}
+			return -1;
+		};
+	}
+	
+	/**
+	 * Returns a task that renders a template page for a grid of random beads.
+	 * @param gridSize Beads along each side of the grid.
+	 * @param indexed True for a page with one byte per pixel, false for RGB.
+	 * @return Returns the task. Each call returns a new page.
+	 */
+	public static Callable<Object> renderPage(int gridSize, boolean indexed) {
+		BeadMatrix matrix = randomGrid(gridSize);
+		Map<String,String> codeMap = new ColorLibrary().createCodeMap(palette(53));
+		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+		exporter.setIndexedColor(indexed);
+		return () -> exporter.renderPage("Benchmark", null, matrix, codeMap);
+	}
+	
+	/**
+	 * Returns a task that draws the beads of a grid of random beads onto a page, leaving out the rest of the page.
+	 * @param gridSize Beads along each side of the grid.
+	 * @param sprites True to copy cached bead sprites into the page, as the renderer does, or false to draw every 
+	 * bead with graphics calls, as it did before sprites.
+	 * @return Returns the task. Each call draws the grid once on the same page.
+	 */
+	public static Runnable drawGrid(int gridSize, boolean sprites) {
+		BeadMatrix matrix = randomGrid(gridSize);
+		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+		BufferedImage page = new BufferedImage(exporter.PAGE_WIDTH, exporter.PAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+		if(sprites) {
+			return () -> exporter.drawGrid(page, matrix);
+		}
+		int startX = exporter.gridX(matrix.getColumnCount());
+		return () -> {
+			Graphics2D graphics = page.createGraphics();
+			for(int i = 0; i < matrix.getRowCount(); i++) {
+				for(int j = 0; j < matrix.getColumnCount(); j++) {
+					exporter.drawBead(graphics, matrix.getBead(i, j), exporter.DIAMETER * j + startX, exporter.DIAMETER * i + exporter.GRID_Y);
+				}
+			}
+			graphics.dispose();
+		};
+	}
+	
+	/**
+	 * Renders one template page and returns a task that encodes it as PNG into memory.
+	 * @param gridSize Beads along each side of the grid.
+	 * @param indexed True for a page with one byte per pixel, false for RGB.
+	 * @param filter IMAGEIO for the ImageIO writer, or the name of a PngEncoder.Filter.
+	 * @param level Deflate level from 0 to 9, or -1 for the writer's default.
+	 * @param threads Threads compressing the page. More than one always uses PngEncoder.
+	 * @return Returns the task. Each call returns the number of bytes written.
+	 */
+	public static IntSupplier encodePage(int gridSize, boolean indexed, String filter, int level, int threads) {
+		CreateImageAndExportToFile exporter = new CreateImageAndExportToFile();
+		exporter.setIndexedColor(indexed);
+		BufferedImage page = exporter.renderPage("Benchmark", null, randomGrid(gridSize), new ColorLibrary().createCodeMap(palette(53)));
+		exporter.setFilter(filter.equals("IMAGEIO") ? null : PngEncoder.Filter.valueOf(filter));
+		exporter.setCompressionLevel(level);
+		exporter.setDeflateThreads(threads);
+		return () -> {
+			ByteArrayOutputStream output = new ByteArrayOutputStream(1 << 20);
+			try {
+				exporter.writePng(page, output);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			return output.size();
+		};
+	}
+	
+	private static BeadMatrix randomGrid(int gridSize) {
+		BeadPalette palette = new BeadPalette(palette(53));
+		Random random = new Random(gridSize);
+		short[] cells = new short[gridSize * gridSize];
+		for(int i = 0; i < cells.length; i++) {
+			cells[i] = (short) random.nextInt(palette.size());
+		}
+		return new CompactBeadMatrix(palette, gridSize, gridSize, cells).asBeadMatrix();
+	}
+}
@@ -0,0 +1,86 @@
+package perlerbeads.jmh;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Times finding the closest bead color. addBeadAsPossibleMatch times the bookkeeping of the channel search: flagging 
+ * beads on each channel with ColorMatch.addBeadAsPossibleMatch until one bead is flagged on all three. The depth is 
+ * how far the search walks, which grows with the palette. findClosestBead matches pixels with each strategy as the 
+ * palette grows from the 53 Perler colors to 2048, and buildMatcher times making the matcher for the palette.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class ColorMatchBenchmark {
+	// Pixels matched by each call of findClosestBead.
+	static final int PIXELS = 1024;
+	
+	@State(Scope.Benchmark)
+	public static class Search {
+		@Param({"4", "16", "64", "256"})
+		public int depth;
+		
+		IntSupplier task;
+		
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			task = Targets.create("colorMatchSearch", new Class<?>[] {int.class}, depth);
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Match {
+		@Param({"53", "128", "256", "512", "1024", "2048"})
+		public int paletteSize;
+		
+		@Param({"FULL_SCAN", "CHANNEL_SEARCH", "LOOKUP_TABLE", "KD_TREE", "CIEDE2000", "VECTOR"})
+		public String strategy;
+		
+		IntSupplier task;
+		
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			task = Targets.create("matchPixels", new Class<?>[] {int.class, String.class, int.class}, paletteSize, strategy, PIXELS);
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Build {
+		@Param({"53", "512", "2048"})
+		public int paletteSize;
+		
+		@Param({"CHANNEL_SEARCH", "LOOKUP_TABLE", "KD_TREE", "VECTOR"})
+		public String strategy;
+		
+		Callable<Object> task;
+		
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			task = Targets.create("buildMatcher", new Class<?>[] {int.class, String.class}, paletteSize, strategy);
+		}
+	}
+	
+	@Benchmark
+	public int addBeadAsPossibleMatch(Search state) {
+		return state.task.getAsInt();
+	}
+	
+	/**
+	 * Matches PIXELS pixels per call, so the time per pixel is the score divided by PIXELS.
+	 */
+	@Benchmark
+	public int findClosestBead(Match state) {
+		return state.task.getAsInt();
+	}
+	
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Object buildMatcher(Build state) throws Exception {
+		return state.task.call();
+	}
+}
@@ -0,0 +1,42 @@
+package perlerbeads.jmh;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reads and converts a synthetic PNG image with ImageToBeadConverter.processImage. Images range from a few colors 
+ * to thousands, and palettes from the 53 Perler colors to large generated palettes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Benchmark)
+public class ConversionBenchmark {
+	@Param({"64", "512"})
+	public int imageSize;
+	
+	@Param({"16", "4096"})
+	public int imageColors;
+	
+	@Param({"53", "1024"})
+	public int paletteSize;
+	
+	@Param({"CHANNEL_SEARCH", "LOOKUP_TABLE", "KD_TREE", "VECTOR"})
+	public String strategy;
+	
+	private Callable<Object> task;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		task = Targets.create("processImage", new Class<?>[] {int.class, int.class, int.class, String.class}, 
+				imageSize, imageColors, paletteSize, strategy);
+	}
+	
+	@Benchmark
+	public Object processImage() throws Exception {
+		return task.call();
+	}
+}
@@ -0,0 +1,92 @@
+package perlerbeads.jmh;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Renders template pages with CreateImageAndExportToFile and encodes them as PNG. The grids are one pegboard and 
+ * the widest grid that fits on a page, drawn on RGB and indexed pages. drawGrid compares copying cached bead sprites 
+ * with drawing every bead. Encoding is measured into memory, so disk speed is left out. Try -p threads=4 to see 
+ * compression split over several threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PageBenchmark {
+	@State(Scope.Benchmark)
+	public static class Render {
+		@Param({"29", "43"})
+		public int gridSize;
+		
+		@Param({"false", "true"})
+		public boolean indexed;
+		
+		Callable<Object> task;
+		
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			task = Targets.create("renderPage", new Class<?>[] {int.class, boolean.class}, gridSize, indexed);
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Grid {
+		@Param({"29", "43"})
+		public int gridSize;
+		
+		@Param({"false", "true"})
+		public boolean sprites;
+		
+		Runnable task;
+		
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			task = Targets.create("drawGrid", new Class<?>[] {int.class, boolean.class}, gridSize, sprites);
+		}
+	}
+	
+	@State(Scope.Benchmark)
+	public static class Encode {
+		@Param({"29"})
+		public int gridSize;
+		
+		@Param({"false", "true"})
+		public boolean indexed;
+		
+		@Param({"IMAGEIO", "NONE", "UP", "ADAPTIVE"})
+		public String filter;
+		
+		@Param({"-1", "1"})
+		public int level;
+		
+		@Param({"1"})
+		public int threads;
+		
+		IntSupplier task;
+		
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			task = Targets.create("encodePage", new Class<?>[] {int.class, boolean.class, String.class, int.class, int.class}, 
+					gridSize, indexed, filter, level, threads);
+		}
+	}
+	
+	@Benchmark
+	public Object renderPage(Render state) throws Exception {
+		return state.task.call();
+	}
+	
+	@Benchmark
+	public void drawGrid(Grid state) {
+		state.task.run();
+	}
+	
+	@Benchmark
+	public int encodePng(Encode state) {
+		return state.task.getAsInt();
+	}
+}
@@ -0,0 +1,31 @@
+package perlerbeads.jmh;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * Calls the factory methods of the Workloads class. Workloads has no package, so it can only be reached by name.
+ * This is done once per trial in each benchmark's setup, never inside a measured method.
+ */
+final class Targets {
+	private Targets() {
+	}
+	
+	/**
+	 * Calls a static method of Workloads.
+	 * @param name The method name.
+	 * @param types The parameter types.
+	 * @param args The arguments.
+	 * @return Returns the method's result.
+	 * @throws Exception If the method throws, or cannot be found.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T create(String name, Class<?>[] types, Object... args) throws Exception {
+		Method method = Class.forName("Workloads").getMethod(name, types);
+		try {
+			return (T) method.invoke(null, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+}